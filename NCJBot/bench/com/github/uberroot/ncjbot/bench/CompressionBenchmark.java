@@ -0,0 +1,356 @@
+package com.github.uberroot.ncjbot.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import com.github.uberroot.ncjbot.protocol.Compression;
+import com.github.uberroot.ncjbot.protocol.FrameHeader;
+import com.github.uberroot.ncjbot.protocol.FrameReader;
+import com.github.uberroot.ncjbot.protocol.FrameWriter;
+import com.github.uberroot.ncjbot.protocol.Opcode;
+import com.github.uberroot.ncjbot.protocol.Protocol;
+
+/**
+ * <p>Compares the transfer time and CPU cost of sending a payload compressed at each Deflater level with sending it raw.</p>
+ *
+ * <p>Each payload is sent as a {@link Opcode#DATA} frame over a loopback connection, compressed as RequestPipeline compresses
+ * it and decompressed on the other end through {@link Compression#inflate(FrameHeader, FrameReader)}, as ServerSessionHandler
+ * does. The receiver can be held to a given link speed, in which case the sender is held back by TCP as it would be by a slow
+ * link. The transfer time runs from the start of the send until the receiver has the whole payload and acknowledges it. CPU
+ * time is measured separately on the sending and receiving threads.</p>
+ *
+ * <p>Usage: <code>java -cp bin:bench-bin com.github.uberroot.ncjbot.bench.CompressionBenchmark [bytes] [link bytes/s,...]</code>.
+ * The defaults are 2 MB payloads over an unthrottled link, 10 MB/s and 1 MB/s. A link speed of 0 is unthrottled.</p>
+ *
+ * @author Carter Waxman
+ *
+ */
+public final class CompressionBenchmark {
+	/**
+	 * <p>The levels compared, with {@link Compression#NONE} for the raw path.</p>
+	 */
+	private static final int LEVELS[] = {Compression.NONE, Deflater.BEST_SPEED, Deflater.DEFAULT_COMPRESSION, Deflater.BEST_COMPRESSION};
+
+	/**
+	 * <p>The names of the payloads compared.</p>
+	 */
+	private static final String KINDS[] = {"text", "numeric", "random"};
+
+	/**
+	 * <p>The receiving end of the benchmark connection. It reads one frame at a time and acknowledges it with a single
+	 * byte.</p>
+	 */
+	private static final class Receiver extends Thread{
+		/**
+		 * <p>The connection.</p>
+		 */
+		private final Socket socket;
+
+		/**
+		 * <p>The link speed in bytes per second, or 0 for no limit.</p>
+		 */
+		private final long rate;
+
+		/**
+		 * <p>Decompresses compressed frames.</p>
+		 */
+		private final Compression compression;
+
+		/**
+		 * <p>The payload received last.</p>
+		 */
+		private volatile byte received[];
+
+		/**
+		 * <p>The CPU time, in nanoseconds, spent on the payload received last.</p>
+		 */
+		private volatile long cpu;
+
+		/**
+		 * <p>Creates a receiver.</p>
+		 *
+		 * @param socket The connection.
+		 * @param rate The link speed in bytes per second, or 0 for no limit.
+		 */
+		private Receiver(Socket socket, long rate){
+			this.socket = socket;
+			this.rate = rate;
+			compression = new Compression(0, 0, 0, Integer.MAX_VALUE);
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+			try {
+				FrameReader in = new FrameReader(new Throttle(socket.getInputStream(), rate), 65536);
+				OutputStream ack = socket.getOutputStream();
+				FrameHeader h = new FrameHeader();
+				while(in.readHeader(h)){
+					long start = threads.getCurrentThreadCpuTime();
+					byte data[];
+					if(h.hasFlag(Protocol.FLAG_COMPRESSED)){
+						InputStream frame = compression.inflate(h, in);
+						try{
+							FrameReader fr = new FrameReader(frame, 65536);
+							FrameHeader fh = new FrameHeader();
+							if(!fr.readHeader(fh))
+								throw new IOException("Empty compressed frame");
+							data = new byte[(int)fh.getLength()];
+							fr.readFully(data, 0, data.length);
+						}
+						finally{
+							frame.close();
+						}
+					}
+					else{
+						data = new byte[(int)h.getLength()];
+						in.readFully(data, 0, data.length);
+					}
+					cpu = threads.getCurrentThreadCpuTime() - start;
+					received = data;
+					ack.write(1);
+					ack.flush();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * <p>A stream that is read no faster than a given link speed.</p>
+	 */
+	private static final class Throttle extends InputStream{
+		/**
+		 * <p>The stream being read.</p>
+		 */
+		private final InputStream in;
+
+		/**
+		 * <p>The link speed in bytes per second, or 0 for no limit.</p>
+		 */
+		private final long rate;
+
+		/**
+		 * <p>The time the first byte was read, in nanoseconds.</p>
+		 */
+		private long start;
+
+		/**
+		 * <p>The number of bytes read since the first.</p>
+		 */
+		private long count;
+
+		/**
+		 * <p>Creates a throttled stream.</p>
+		 *
+		 * @param in The stream to read.
+		 * @param rate The link speed in bytes per second, or 0 for no limit.
+		 */
+		private Throttle(InputStream in, long rate){
+			this.in = in;
+			this.rate = rate;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte b[] = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if(rate <= 0)
+				return in.read(b, off, len);
+
+			//Reads are kept small so that the link drains smoothly
+			int r = in.read(b, off, (int)Math.min(len, Math.max(1, rate / 100)));
+			if(r <= 0)
+				return r;
+			if(count == 0)
+				start = System.nanoTime();
+			count += r;
+			long due = start + count * 1000000000L / rate;
+			long wait = due - System.nanoTime();
+			if(wait > 0){
+				try {
+					Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+			}
+			return r;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return in.available();
+		}
+	}
+
+	/**
+	 * <p>This class only has static methods.</p>
+	 */
+	private CompressionBenchmark(){}
+
+	/**
+	 * <p>Runs the benchmark.</p>
+	 *
+	 * @param args The payload size in bytes, 2097152 by default, and a comma-separated list of link speeds in bytes per
+	 * second, "0,10000000,1000000" by default.
+	 * @throws Exception
+	 */
+	public static void main(String args[]) throws Exception{
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 2097152;
+		String rates[] = (args.length > 1 ? args[1] : "0,10000000,1000000").split(",");
+
+		System.out.printf("%-8s %-10s %-6s %10s %7s %10s %10s %10s%n", "payload", "link", "level", "wire KB", "ratio", "time ms",
+				"send CPU", "recv CPU");
+		for(String kind : KINDS){
+			byte payload[] = payload(kind, size);
+			for(String rs : rates){
+				long rate = Long.parseLong(rs.trim());
+				ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+				Socket sender = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+				Receiver receiver = new Receiver(server.accept(), rate);
+				server.close();
+				receiver.start();
+				try {
+					FrameWriter out = new FrameWriter(sender.getOutputStream(), 65536);
+					InputStream ack = sender.getInputStream();
+
+					//Warm up the code paths on a slice that the link passes quickly
+					byte warm[] = Arrays.copyOf(payload, Math.min(payload.length, 65536));
+					for(int i = 0; i < 3; i++)
+						for(int level : LEVELS)
+							send(out, ack, warm, level);
+
+					for(int level : LEVELS)
+						measure(kind, rate, level, payload, out, ack, receiver);
+				}
+				finally{
+					sender.close();
+				}
+			}
+		}
+		System.out.println("Times and CPU are in milliseconds. CPU is for the sending and receiving threads only.");
+	}
+
+	/**
+	 * <p>Sends a payload at one level and prints the measurements.</p>
+	 *
+	 * @param kind The name of the payload.
+	 * @param rate The link speed in bytes per second, or 0 for no limit.
+	 * @param level The Deflater level, or {@link Compression#NONE} to send raw.
+	 * @param payload The payload.
+	 * @param out The writer for the connection.
+	 * @param ack The stream carrying acknowledgements.
+	 * @param receiver The receiver.
+	 * @throws IOException If the payload did not arrive intact.
+	 */
+	private static void measure(String kind, long rate, int level, byte[] payload, FrameWriter out, InputStream ack, Receiver receiver) throws IOException{
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		long cpu = threads.getCurrentThreadCpuTime();
+		long start = System.nanoTime();
+		long wire = send(out, ack, payload, level);
+		long time = System.nanoTime() - start;
+		cpu = threads.getCurrentThreadCpuTime() - cpu;
+		if(!Arrays.equals(payload, receiver.received))
+			throw new IOException("The " + kind + " payload was corrupted at level " + level);
+
+		System.out.printf("%-8s %-10s %-6s %10d %7.2f %10.1f %10.1f %10.1f%n", kind, rate <= 0 ? "loopback" : (rate / 1000) + " KB/s",
+				level == Compression.NONE ? "raw" : level == Deflater.DEFAULT_COMPRESSION ? "6" : Integer.toString(level), wire / 1024, payload.length / (double)wire, time / 1e6,
+				cpu / 1e6, receiver.cpu / 1e6);
+	}
+
+	/**
+	 * <p>Sends a payload as a DATA frame and waits for the acknowledgement.</p>
+	 *
+	 * @param out The writer for the connection.
+	 * @param ack The stream carrying acknowledgements.
+	 * @param payload The payload.
+	 * @param level The Deflater level, or {@link Compression#NONE} to send raw.
+	 * @return The number of payload bytes sent on the wire.
+	 * @throws IOException
+	 */
+	private static long send(FrameWriter out, InputStream ack, byte[] payload, int level) throws IOException{
+		long wire;
+		if(level == Compression.NONE){
+			out.beginFrame(Opcode.DATA, 0, 1, payload.length);
+			out.writeBytes(payload, 0, payload.length);
+			wire = payload.length;
+		}
+		else{
+			//The frame is compressed into memory as it is written, then sent with the length of the original
+			Deflater deflater = new Deflater(level);
+			byte packed[];
+			try{
+				ByteArrayOutputStream buf = new ByteArrayOutputStream(8192);
+				DeflaterOutputStream compressor = new DeflaterOutputStream(buf, deflater, 8192);
+				FrameWriter writer = new FrameWriter(compressor);
+				writer.writeBytes(payload, 0, payload.length);
+				writer.flush();
+				compressor.finish();
+				packed = buf.toByteArray();
+			}
+			finally{
+				deflater.end();
+			}
+			wire = FrameWriter.varintSize(payload.length) + packed.length;
+			out.beginFrame(Opcode.DATA, Protocol.FLAG_COMPRESSED, 1, wire);
+			out.writeVarint(payload.length);
+			out.writeBytes(packed, 0, packed.length);
+		}
+		out.flush();
+		if(ack.read() != 1)
+			throw new IOException("The receiver did not acknowledge the payload");
+		return wire;
+	}
+
+	/**
+	 * <p>Creates a payload.</p>
+	 *
+	 * @param kind "text" for CSV-like rows of readings, "numeric" for a series of doubles, or "random" for incompressible
+	 * bytes.
+	 * @param size The size of the payload.
+	 * @return The payload.
+	 */
+	private static byte[] payload(String kind, int size){
+		Random r = new Random(42);
+		byte data[] = new byte[size];
+		if(kind.equals("random"))
+			r.nextBytes(data);
+		else if(kind.equals("numeric")){
+			//A slowly varying series, as results of a simulation would be
+			double v = 0;
+			for(int i = 0; i + 8 <= size; i += 8){
+				v += r.nextGaussian() * 0.01;
+				long bits = Double.doubleToLongBits(Math.round(v * 1000) / 1000.0);
+				for(int b = 0; b < 8; b++)
+					data[i + b] = (byte)(bits >>> (56 - b * 8));
+			}
+		}
+		else{
+			StringBuilder sb = new StringBuilder(size + 64);
+			for(int row = 0; sb.length() < size; row++)
+				sb.append(row).append(",sensor-").append(row % 64).append(',').append(r.nextInt(100000) / 100.0).append(',')
+						.append(r.nextBoolean() ? "OK" : "WARN").append('\n');
+			byte text[] = sb.toString().getBytes(StandardCharsets.US_ASCII);
+			System.arraycopy(text, 0, data, 0, size);
+		}
+		return data;
+	}
+}
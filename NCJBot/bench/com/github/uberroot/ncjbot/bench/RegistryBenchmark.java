@@ -0,0 +1,247 @@
+package com.github.uberroot.ncjbot.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.github.uberroot.ncjbot.RemoteNode;
+
+/**
+ * <p>Measures the active node registry of LazyOverlayManager at 10,000 and 100,000 nodes, and compares it with the
+ * synchronized list it replaced.</p>
+ *
+ * <p>For each size, a registry is filled with that many nodes, then every node is added again, then an unchanged snapshot is
+ * read repeatedly. Finally, nodes are removed and added back while four threads iterate snapshots, which is how the manager
+ * is used while peers come and go. Each size is run twice and only the second run, made with the code compiled, is reported.
+ * The old list is measured by filling it with up to 20,000 nodes, checking each with contains() under a lock as the manager
+ * used to, and then timing duplicate adds of nodes spread over the full list.</p>
+ *
+ * <p>The registry is private to the manager, so it is reached through method handles held in constants, which the compiler
+ * inlines like a direct call.</p>
+ *
+ * <p>Usage: <code>java -cp bin:bench-bin com.github.uberroot.ncjbot.bench.RegistryBenchmark [nodes...]</code>.</p>
+ *
+ * @author Carter Waxman
+ *
+ */
+public final class RegistryBenchmark {
+	/**
+	 * <p>The registry's constructor, add(), remove(), and list(), typed to take the registry as an Object.</p>
+	 */
+	private static final MethodHandle NEW;
+	private static final MethodHandle ADD;
+	private static final MethodHandle REMOVE;
+	private static final MethodHandle LIST;
+	static{
+		try{
+			Class<?> c = Class.forName("com.github.uberroot.ncjbot.modules.LazyOverlayManager$Registry");
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+			Constructor<?> ctor = c.getDeclaredConstructor();
+			ctor.setAccessible(true);
+			NEW = lookup.unreflectConstructor(ctor).asType(MethodType.methodType(Object.class));
+
+			Method m = c.getDeclaredMethod("add", RemoteNode.class);
+			m.setAccessible(true);
+			ADD = lookup.unreflect(m).asType(MethodType.methodType(boolean.class, Object.class, RemoteNode.class));
+
+			m = c.getDeclaredMethod("remove", RemoteNode.class);
+			m.setAccessible(true);
+			REMOVE = lookup.unreflect(m).asType(MethodType.methodType(boolean.class, Object.class, RemoteNode.class));
+
+			m = c.getDeclaredMethod("list");
+			m.setAccessible(true);
+			LIST = lookup.unreflect(m).asType(MethodType.methodType(List.class, Object.class));
+		} catch(ReflectiveOperationException e){
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/**
+	 * <p>The number of unchanged snapshots read.</p>
+	 */
+	private static final int READS = 100000;
+
+	/**
+	 * <p>The number of nodes removed and added back while snapshots are iterated.</p>
+	 */
+	private static final int CHURN = 200000;
+
+	/**
+	 * <p>The number of threads iterating snapshots during churn.</p>
+	 */
+	private static final int READERS = 4;
+
+	/**
+	 * <p>The most nodes put in the old list, which takes quadratic time to fill.</p>
+	 */
+	private static final int OLD_LIMIT = 20000;
+
+	/**
+	 * <p>The number of duplicate adds timed against the full old list, spread evenly over it.</p>
+	 */
+	private static final int OLD_DUPLICATES = 1000;
+
+	/**
+	 * <p>Set to stop the readers.</p>
+	 */
+	private static volatile boolean stop;
+
+	/**
+	 * <p>This class only has static methods.</p>
+	 */
+	private RegistryBenchmark(){}
+
+	/**
+	 * <p>Runs the benchmark.</p>
+	 *
+	 * @param args The registry sizes to measure, 10000 and 100000 by default.
+	 * @throws Throwable If the registry could not be called or a reader failed.
+	 */
+	public static void main(String args[]) throws Throwable{
+		int sizes[] = {10000, 100000};
+		if(args.length > 0){
+			sizes = new int[args.length];
+			for(int i = 0; i < args.length; i++)
+				sizes[i] = Integer.parseInt(args[i]);
+		}
+
+		for(int n : sizes){
+			RemoteNode nodes[] = nodes(n);
+			measureRegistry(nodes, false);
+			measureRegistry(nodes, true);
+			measureOldList(nodes);
+		}
+	}
+
+	/**
+	 * <p>Creates distinct nodes, which are never connected to.</p>
+	 *
+	 * @param n The number of nodes.
+	 * @return The nodes.
+	 * @throws UnknownHostException
+	 */
+	private static RemoteNode[] nodes(int n) throws UnknownHostException{
+		RemoteNode nodes[] = new RemoteNode[n];
+		for(int i = 0; i < n; i++)
+			nodes[i] = new RemoteNode(null, InetAddress.getByAddress(new byte[]{10, (byte)(i >> 16), (byte)(i >> 8), (byte)i}), 12340);
+		return nodes;
+	}
+
+	/**
+	 * <p>Measures a new registry.</p>
+	 *
+	 * @param nodes The nodes to put in it.
+	 * @param report Whether to print the results.
+	 * @throws Throwable If the registry could not be called or a reader failed.
+	 */
+	private static void measureRegistry(RemoteNode nodes[], boolean report) throws Throwable{
+		final Object registry = (Object)NEW.invokeExact();
+		int n = nodes.length;
+
+		long start = System.nanoTime();
+		for(RemoteNode rn : nodes)
+			if(!(boolean)ADD.invokeExact(registry, rn))
+				throw new IllegalStateException("A new node was already known");
+		long add = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for(RemoteNode rn : nodes)
+			if((boolean)ADD.invokeExact(registry, rn))
+				throw new IllegalStateException("A known node was added again");
+		long duplicate = System.nanoTime() - start;
+
+		long check = 0;
+		start = System.nanoTime();
+		for(int i = 0; i < READS; i++)
+			check += ((List<?>)LIST.invokeExact(registry)).size();
+		long read = System.nanoTime() - start;
+
+		//Churn while snapshots are iterated
+		stop = false;
+		final long passes[] = new long[READERS];
+		final Throwable failure[] = new Throwable[1];
+		Thread readers[] = new Thread[READERS];
+		for(int i = 0; i < READERS; i++){
+			final int reader = i;
+			readers[i] = new Thread(){
+				@Override
+				public void run(){
+					try{
+						while(!stop){
+							for(Object o : (List<?>)LIST.invokeExact(registry))
+								o.hashCode();
+							passes[reader]++;
+						}
+					} catch(Throwable t){
+						failure[0] = t;
+					}
+				}
+			};
+			readers[i].start();
+		}
+		start = System.nanoTime();
+		for(int i = 0; i < CHURN; i++){
+			RemoteNode rn = nodes[i % n];
+			if(!(boolean)REMOVE.invokeExact(registry, rn) || !(boolean)ADD.invokeExact(registry, rn))
+				throw new IllegalStateException("A node was lost during churn");
+		}
+		long churn = System.nanoTime() - start;
+		stop = true;
+		long totalPasses = 0;
+		for(int i = 0; i < READERS; i++){
+			readers[i].join();
+			totalPasses += passes[i];
+		}
+		if(failure[0] != null)
+			throw failure[0];
+
+		if(report)
+			System.out.printf("registry of %d: add %.0f ns, duplicate add %.0f ns, unchanged read %.0f ns, remove and add under %d iterating readers %.0f ns (%d reader passes, check %d)%n",
+					n, add / (double)n, duplicate / (double)n, read / (double)READS, READERS, churn / (double)CHURN, totalPasses, check);
+	}
+
+	/**
+	 * <p>Measures the synchronized list the registry replaced.</p>
+	 *
+	 * @param nodes The nodes to put in it, of which at most {@link #OLD_LIMIT} are used.
+	 */
+	private static void measureOldList(RemoteNode nodes[]){
+		int m = Math.min(nodes.length, OLD_LIMIT);
+		ArrayList<RemoteNode> old = new ArrayList<RemoteNode>();
+
+		long start = System.nanoTime();
+		for(int i = 0; i < m; i++)
+			addToOldList(old, nodes[i]);
+		long fill = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for(int i = 0; i < OLD_DUPLICATES; i++)
+			addToOldList(old, nodes[(int)((long)i * m / OLD_DUPLICATES)]);
+		long duplicate = System.nanoTime() - start;
+
+		System.out.printf("old list of %d: filling took %.1f ms, duplicate add %.0f ns%n", m, fill / 1e6, duplicate / (double)OLD_DUPLICATES);
+	}
+
+	/**
+	 * <p>Adds a node to the old list the way the manager used to.</p>
+	 *
+	 * @param old The list.
+	 * @param rn The node.
+	 * @return True if the node was not already in the list.
+	 */
+	private static boolean addToOldList(ArrayList<RemoteNode> old, RemoteNode rn){
+		synchronized(old){
+			if(old.contains(rn))
+				return false;
+			old.add(rn);
+			return true;
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package com.github.uberroot.ncjbot.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+
+import com.github.uberroot.ncjbot.protocol.TextReader;
+
+/**
+ * <p>Checks that decoding the text protocol with a {@link TextReader} allocates nothing per command once it is warm.</p>
+ *
+ * <p>A reader is fed the same exchange over and over, one phrase per read as it would arrive from a peer:
+ * "Are you alive?", "I have results." and its three numeric header lines, "I'm here." with a port, and "Goodbye.". Each
+ * phrase is matched and each number parsed the way ServerSessionHandler does. The bytes allocated by this thread are counted
+ * with com.sun.management.ThreadMXBean across the measured exchanges.</p>
+ *
+ * <p>Usage: <code>java -cp bin:bench-bin com.github.uberroot.ncjbot.bench.TextReaderAllocation [exchanges]</code>. The exit
+ * status is 1 if the exchanges allocated at least a byte each on average, and 2 if the JVM cannot count allocations.</p>
+ *
+ * @author Carter Waxman
+ *
+ */
+public final class TextReaderAllocation {
+	/**
+	 * <p>The phrases matched, as ServerSessionHandler encodes them.</p>
+	 */
+	private static final byte ARE_YOU_ALIVE[] = TextReader.encode("Are you alive?");
+	private static final byte I_HAVE_RESULTS[] = TextReader.encode("I have results.");
+	private static final byte I_M_HERE[] = TextReader.encode("I'm here.\n");
+	private static final byte GOODBYE[] = TextReader.encode("Goodbye.");
+
+	/**
+	 * <p>The reads making up one exchange, in order.</p>
+	 */
+	private static final byte EXCHANGE[][] = {
+		ARE_YOU_ALIVE,
+		I_HAVE_RESULTS,
+		TextReader.encode("12340\n87\n2097152\n"),
+		TextReader.encode("I'm here.\n12341"),
+		GOODBYE
+	};
+
+	/**
+	 * <p>The number of exchanges run before measuring, so that the decoder is compiled.</p>
+	 */
+	private static final int WARMUP = 200000;
+
+	/**
+	 * <p>A stream that returns the reads of {@link #EXCHANGE} endlessly, one per call, without allocating.</p>
+	 */
+	private static final class Replay extends InputStream{
+		/**
+		 * <p>The read to return next.</p>
+		 */
+		private int next;
+
+		@Override
+		public int read() throws IOException {
+			throw new IOException("Only bulk reads are expected");
+		}
+
+		@Override
+		public int read(byte[] data, int off, int len) {
+			byte chunk[] = EXCHANGE[next];
+			next = (next + 1) % EXCHANGE.length;
+
+			//The reader's buffer is larger than any read, so a read is never split
+			System.arraycopy(chunk, 0, data, off, chunk.length);
+			return chunk.length;
+		}
+	}
+
+	/**
+	 * <p>This class only has static methods.</p>
+	 */
+	private TextReaderAllocation(){}
+
+	/**
+	 * <p>Runs the check.</p>
+	 *
+	 * @param args The number of exchanges to measure, 1000000 by default.
+	 * @throws IOException
+	 */
+	public static void main(String args[]) throws IOException{
+		int exchanges = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+		if(!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)){
+			System.err.println("This JVM cannot count the bytes allocated by a thread");
+			System.exit(2);
+		}
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		if(!threads.isThreadAllocatedMemorySupported()){
+			System.err.println("This JVM cannot count the bytes allocated by a thread");
+			System.exit(2);
+		}
+		threads.setThreadAllocatedMemoryEnabled(true);
+
+		TextReader in = new TextReader(new Replay());
+		long check = run(in, WARMUP);
+
+		long id = Thread.currentThread().getId();
+		long before = threads.getThreadAllocatedBytes(id);
+		long start = System.nanoTime();
+		check += run(in, exchanges);
+		long time = System.nanoTime() - start;
+		long allocated = threads.getThreadAllocatedBytes(id) - before;
+
+		System.out.printf("%d exchanges allocated %d bytes (%.3f bytes each) in %.0f ns each (check %d)%n", exchanges, allocated,
+				allocated / (double)exchanges, time / (double)exchanges, check);
+		if(allocated >= exchanges){
+			System.out.println("FAILED: decoding allocates per command");
+			System.exit(1);
+		}
+		System.out.println("OK");
+	}
+
+	/**
+	 * <p>Decodes a number of exchanges.</p>
+	 *
+	 * @param in The reader.
+	 * @param exchanges The number of exchanges.
+	 * @return The sum of the numbers parsed, so that the parsing is not optimized away.
+	 * @throws IOException If a phrase did not match.
+	 */
+	private static long run(TextReader in, int exchanges) throws IOException{
+		long sum = 0;
+		for(int i = 0; i < exchanges; i++){
+			if(!in.readPhrase() || !in.phraseIs(ARE_YOU_ALIVE))
+				throw new IOException("Expected \"Are you alive?\"");
+			if(!in.readPhrase() || !in.phraseIs(I_HAVE_RESULTS))
+				throw new IOException("Expected \"I have results.\"");
+			sum += in.readNumber();
+			sum += in.readNumber();
+			sum += in.readNumber();
+			if(!in.readPhrase() || !in.phraseStartsWith(I_M_HERE) || in.phraseNumber(I_M_HERE.length) == -1)
+				throw new IOException("Expected \"I'm here.\" and a port");
+			sum += in.phraseNumber(I_M_HERE.length);
+			if(!in.readPhrase() || !in.phraseIs(GOODBYE))
+				throw new IOException("Expected \"Goodbye.\"");
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,418 @@
+package com.github.uberroot.ncjbot.bench;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Scanner;
+
+/**
+ * <p>Compares the thread count, memory, and accept-to-response latency of a node running its sessions on platform threads
+ * with one running them on virtual threads (LocalNode.virtualThreads).</p>
+ *
+ * <p>For each mode, a node is started in its own JVM from the classpath of this one, with the given config.properties and a
+ * free listening port. The benchmark then opens the given number of sessions and keeps them open and idle, timing each from
+ * the start of the connection to the node's reply to "Are you alive?". Once all of them are open, it samples the node's
+ * thread count and resident memory and times further short sessions against the loaded node.</p>
+ *
+ * <p>Usage: <code>java -cp bin:bench-bin com.github.uberroot.ncjbot.bench.ThreadingBenchmark [sessions] [config.properties]</code>.
+ * Thread count and memory are read from /proc, so they are only reported on Linux. Virtual threads need Java 21 or later.
+ * The node falls back to platform threads on older JVMs, which this reports.</p>
+ *
+ * @author Carter Waxman
+ *
+ */
+public final class ThreadingBenchmark {
+	/**
+	 * <p>The liveness query of the text protocol.</p>
+	 */
+	private static final byte ARE_YOU_ALIVE[] = "Are you alive?".getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * <p>The reply of a running node to the liveness query.</p>
+	 */
+	private static final byte NOT_DEAD_YET[] = "I'm not dead yet.".getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * <p>The number of short sessions timed against the loaded node.</p>
+	 */
+	private static final int PROBES = 200;
+
+	/**
+	 * <p>The number of sessions opened and closed before measuring, so that both modes are compared warm.</p>
+	 */
+	private static final int WARMUP = 500;
+
+	/**
+	 * <p>The number of milliseconds to wait for a node to open its server socket.</p>
+	 */
+	private static final long START_TIMEOUT = 30000;
+
+	/**
+	 * <p>The measurements of one mode.</p>
+	 */
+	private static final class Result{
+		/**
+		 * <p>The mode measured.</p>
+		 */
+		private final String mode;
+
+		/**
+		 * <p>The node's thread count before the sessions were opened.</p>
+		 */
+		private long threadsBefore;
+
+		/**
+		 * <p>The node's thread count with every session open.</p>
+		 */
+		private long threadsLoaded;
+
+		/**
+		 * <p>The node's resident memory, in kilobytes, before the sessions were opened.</p>
+		 */
+		private long rssBefore;
+
+		/**
+		 * <p>The node's resident memory, in kilobytes, with every session open.</p>
+		 */
+		private long rssLoaded;
+
+		/**
+		 * <p>The accept-to-response times of the held sessions, in nanoseconds.</p>
+		 */
+		private long opening[];
+
+		/**
+		 * <p>The accept-to-response times of the short sessions against the loaded node, in nanoseconds.</p>
+		 */
+		private long loaded[];
+
+		/**
+		 * <p>Creates an empty result.</p>
+		 *
+		 * @param mode The mode measured.
+		 */
+		private Result(String mode){
+			this.mode = mode;
+		}
+	}
+
+	/**
+	 * <p>This class only has static methods.</p>
+	 */
+	private ThreadingBenchmark(){}
+
+	/**
+	 * <p>Runs the benchmark.</p>
+	 *
+	 * @param args The number of sessions to hold open, 2000 by default, and the config.properties to start the nodes with,
+	 * ./config.properties by default.
+	 * @throws Exception
+	 */
+	public static void main(String args[]) throws Exception{
+		int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		File config = new File(args.length > 1 ? args[1] : "config.properties");
+		if(!config.isFile()){
+			System.err.println("No config.properties at " + config.getAbsolutePath());
+			System.exit(-1);
+		}
+
+		boolean virtual;
+		try {
+			Thread.class.getMethod("ofVirtual");
+			virtual = true;
+		} catch (NoSuchMethodException e) {
+			virtual = false;
+		}
+		System.out.println("Java " + System.getProperty("java.version") + ", " + sessions + " sessions"
+				+ (virtual ? "" : ". This JVM has no virtual threads, so both modes use platform threads."));
+
+		List<Result> results = new ArrayList<Result>();
+		results.add(run("platform", false, sessions, config));
+		results.add(run("virtual", true, sessions, config));
+
+		System.out.println();
+		System.out.printf("%-9s %8s %8s %10s %10s %9s %9s %9s %9s %9s%n", "mode", "threads", "+threads", "rss KB", "+KB/sess",
+				"open p50", "open p99", "open max", "load p50", "load p99");
+		for(Result r : results){
+			System.out.printf("%-9s %8s %8s %10s %10s %9s %9s %9s %9s %9s%n", r.mode,
+					count(r.threadsLoaded), count(r.threadsLoaded < 0 ? -1 : r.threadsLoaded - r.threadsBefore),
+					count(r.rssLoaded), r.rssLoaded < 0 ? "-" : String.format("%.1f", (r.rssLoaded - r.rssBefore) / (double)sessions),
+					millis(r.opening, 50), millis(r.opening, 99), millis(r.opening, 100),
+					millis(r.loaded, 50), millis(r.loaded, 99));
+		}
+		System.out.println("Times are in milliseconds from the start of the connection to the reply.");
+	}
+
+	/**
+	 * <p>Measures one mode.</p>
+	 *
+	 * @param mode The name of the mode.
+	 * @param virtual Whether the node runs its sessions on virtual threads.
+	 * @param sessions The number of sessions to hold open.
+	 * @param config The config.properties to start the node with.
+	 * @return The measurements.
+	 * @throws Exception
+	 */
+	private static Result run(String mode, boolean virtual, int sessions, File config) throws Exception{
+		Result r = new Result(mode);
+		int port = freePort();
+		File dir = Files.createTempDirectory("ncjbot-bench-" + mode).toFile();
+		writeConfig(config, new File(dir, "config.properties"), port, virtual);
+
+		System.out.println("Starting a " + mode + " node on port " + port + " in " + dir);
+		ProcessBuilder pb = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(),
+				"-cp", System.getProperty("java.class.path"), "com.github.uberroot.ncjbot.LocalNode");
+		pb.directory(dir);
+		pb.redirectErrorStream(true);
+		pb.redirectOutput(new File(dir, "node.log"));
+		Process p = pb.start();
+		OutputStream console = p.getOutputStream();
+		ArrayList<Socket> held = new ArrayList<Socket>(sessions);
+		try {
+			awaitPort(port, p);
+			for(int i = 0; i < WARMUP; i++)
+				probe(port).close();
+
+			//The node is found by its working directory, which is unique to it
+			String pid = findPid(dir);
+			Thread.sleep(1000);
+			r.threadsBefore = status(pid, "Threads:");
+			r.rssBefore = status(pid, "VmRSS:");
+
+			r.opening = new long[sessions];
+			for(int i = 0; i < sessions; i++){
+				long start = System.nanoTime();
+				held.add(probe(port));
+				r.opening[i] = System.nanoTime() - start;
+			}
+
+			Thread.sleep(1000);
+			r.threadsLoaded = status(pid, "Threads:");
+			r.rssLoaded = status(pid, "VmRSS:");
+
+			r.loaded = new long[PROBES];
+			for(int i = 0; i < PROBES; i++){
+				long start = System.nanoTime();
+				probe(port).close();
+				r.loaded[i] = System.nanoTime() - start;
+			}
+		}
+		finally{
+			for(Socket s : held){
+				try {
+					s.close();
+				} catch (IOException e) {}
+			}
+			try {
+				console.write("QUIT\n".getBytes(StandardCharsets.US_ASCII));
+				console.flush();
+			} catch (IOException e) {}
+			for(int i = 0; i < 100 && isAlive(p); i++)
+				Thread.sleep(100);
+			p.destroy();
+			p.waitFor();
+		}
+		return r;
+	}
+
+	/**
+	 * <p>Opens a session and waits for the node to answer "Are you alive?" on it.</p>
+	 *
+	 * @param port The node's listening port.
+	 * @return The open session.
+	 * @throws IOException If the node did not give the expected answer.
+	 */
+	private static Socket probe(int port) throws IOException{
+		Socket s = new Socket();
+		try {
+			s.setSoTimeout(60000);
+			s.connect(new InetSocketAddress("127.0.0.1", port));
+			s.getOutputStream().write(ARE_YOU_ALIVE);
+			InputStream in = s.getInputStream();
+			byte reply[] = new byte[NOT_DEAD_YET.length];
+			int n = 0;
+			while(n < reply.length){
+				int r = in.read(reply, n, reply.length - n);
+				if(r == -1)
+					break;
+				n += r;
+			}
+			if(!Arrays.equals(reply, NOT_DEAD_YET))
+				throw new IOException("Unexpected answer: " + new String(reply, 0, n, StandardCharsets.US_ASCII));
+			return s;
+		} catch (IOException e) {
+			s.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * <p>Writes the config for a node, which is the given config with the listening port, seed node and thread mode
+	 * replaced.</p>
+	 *
+	 * @param src The config to start from.
+	 * @param dest The file to write.
+	 * @param port The listening port.
+	 * @param virtual Whether sessions run on virtual threads.
+	 * @throws IOException
+	 */
+	private static void writeConfig(File src, File dest, int port, boolean virtual) throws IOException{
+		FileInputStream in = new FileInputStream(src);
+		FileOutputStream out = new FileOutputStream(dest);
+		try {
+			byte buf[] = new byte[8192];
+			int r;
+			while((r = in.read(buf)) != -1)
+				out.write(buf, 0, r);
+
+			//Later entries replace earlier ones when the config is loaded
+			out.write(("\nBasicServer.listenPort=" + port
+					+ "\nLazyOverlayManager.seedNodes=127.0.0.1\\:" + port
+					+ "\nGossipOverlayManager.seedNodes=127.0.0.1\\:" + port
+					+ "\nLocalNode.virtualThreads=" + virtual + "\n").getBytes(StandardCharsets.ISO_8859_1));
+		}
+		finally{
+			in.close();
+			out.close();
+		}
+	}
+
+	/**
+	 * <p>Finds a port that is not in use.</p>
+	 *
+	 * @return The port.
+	 * @throws IOException
+	 */
+	private static int freePort() throws IOException{
+		ServerSocket s = new ServerSocket(0);
+		try {
+			return s.getLocalPort();
+		}
+		finally{
+			s.close();
+		}
+	}
+
+	/**
+	 * <p>Waits for a node to open its server socket.</p>
+	 *
+	 * @param port The node's listening port.
+	 * @param p The node's process.
+	 * @throws Exception If the node exited or did not open the socket in time.
+	 */
+	private static void awaitPort(int port, Process p) throws Exception{
+		long deadline = System.currentTimeMillis() + START_TIMEOUT;
+		while(true){
+			try {
+				probe(port).close();
+				return;
+			} catch (IOException e) {
+				if(!isAlive(p))
+					throw new IOException("The node exited with " + p.exitValue());
+				if(System.currentTimeMillis() > deadline)
+					throw new IOException("The node did not open port " + port, e);
+				Thread.sleep(200);
+			}
+		}
+	}
+
+	/**
+	 * <p>Determines whether a process is still running.</p>
+	 *
+	 * @param p The process.
+	 * @return True if it has not exited.
+	 */
+	private static boolean isAlive(Process p){
+		try {
+			p.exitValue();
+			return false;
+		} catch (IllegalThreadStateException e) {
+			return true;
+		}
+	}
+
+	/**
+	 * <p>Finds the process running in a directory.</p>
+	 *
+	 * @param dir The working directory of the process.
+	 * @return The process id, or null if it could not be found.
+	 */
+	private static String findPid(File dir){
+		File procs[] = new File("/proc").listFiles();
+		if(procs == null)
+			return null;
+		try {
+			String target = dir.getCanonicalPath();
+			for(File f : procs){
+				if(!f.getName().matches("\\d+"))
+					continue;
+				try {
+					if(new File(f, "cwd").getCanonicalPath().equals(target))
+						return f.getName();
+				} catch (IOException e) {}
+			}
+		} catch (IOException e) {}
+		return null;
+	}
+
+	/**
+	 * <p>Reads a numeric field from /proc/&lt;pid&gt;/status.</p>
+	 *
+	 * @param pid The process id.
+	 * @param field The name of the field, with its colon.
+	 * @return The value, or -1 if it could not be read.
+	 */
+	private static long status(String pid, String field){
+		if(pid == null)
+			return -1;
+		try {
+			Scanner s = new Scanner(new File("/proc/" + pid + "/status"), "US-ASCII");
+			try {
+				while(s.hasNextLine()){
+					String line = s.nextLine();
+					if(line.startsWith(field))
+						return Long.parseLong(line.substring(field.length()).trim().split("\\s+")[0]);
+				}
+			}
+			finally{
+				s.close();
+			}
+		} catch (IOException e) {}
+		return -1;
+	}
+
+	/**
+	 * <p>Formats a count that may not have been read.</p>
+	 *
+	 * @param n The count, or a negative number if it was not read.
+	 * @return The formatted count.
+	 */
+	private static String count(long n){
+		return n < 0 ? "-" : Long.toString(n);
+	}
+
+	/**
+	 * <p>Formats a percentile of a set of times.</p>
+	 *
+	 * @param times The times, in nanoseconds.
+	 * @param percentile The percentile, where 100 is the largest time.
+	 * @return The time in milliseconds.
+	 */
+	private static String millis(long times[], int percentile){
+		long sorted[] = times.clone();
+		Arrays.sort(sorted);
+		int i = Math.min(sorted.length - 1, (int)Math.ceil(sorted.length * percentile / 100.0) - 1);
+		return String.format("%.2f", sorted[Math.max(i, 0)] / 1e6);
+	}
+}
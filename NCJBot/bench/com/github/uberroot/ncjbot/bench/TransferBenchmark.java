@@ -0,0 +1,319 @@
+package com.github.uberroot.ncjbot.bench;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import com.github.uberroot.ncjbot.modapi.ConnectionFactory.Connection;
+import com.github.uberroot.ncjbot.modules.BasicConnector;
+import com.github.uberroot.ncjbot.protocol.FrameHeader;
+import com.github.uberroot.ncjbot.protocol.FrameReader;
+import com.github.uberroot.ncjbot.protocol.FrameWriter;
+import com.github.uberroot.ncjbot.protocol.Opcode;
+
+/**
+ * <p>Compares sending a large worker file through channels with the copy loops it replaced.</p>
+ *
+ * <p>A file of the given size is sent as one DATA frame over a loopback socket and written to a file on the other end, the
+ * way a job's worker is. The copy path writes the file through a BufferedInputStream and the frame buffer, as
+ * RequestPipeline used to, and the receiver copies it through the FrameReader's buffer into a FileOutputStream. The channel
+ * path sends with BasicConnection.transferFrom, which uses FileChannel.transferTo, and the receiver reads with a
+ * FrameReader given the socket's channel, which uses FileChannel.transferFrom. Each path is run a number of times
+ * alternately. The wall time of each transfer and the CPU time of the sending and receiving threads are reported, and the
+ * received file is checked against the sent one after every transfer.</p>
+ *
+ * <p>Usage: <code>java -cp bin:bench-bin com.github.uberroot.ncjbot.bench.TransferBenchmark [megabytes] [runs] [directory]</code>.
+ * Files are written to the given directory, or the temporary directory by default, and deleted on exit. The page cache
+ * should be able to hold both files, or the disk is measured instead.</p>
+ *
+ * @author Carter Waxman
+ *
+ */
+public final class TransferBenchmark {
+	/**
+	 * <p>The size of the buffer the copy path reads the file through, as RequestPipeline used.</p>
+	 */
+	private static final int COPY_BUFFER = 4096;
+
+	/**
+	 * <p>The size of the FrameReader buffer, as ServerSessionHandler uses.</p>
+	 */
+	private static final int READ_BUFFER = 8192;
+
+	/**
+	 * <p>The per-thread CPU clock.</p>
+	 */
+	private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+	/**
+	 * <p>The results of one transfer.</p>
+	 */
+	private static final class Result{
+		/**
+		 * <p>The nanoseconds from the start of sending to the end of receiving.</p>
+		 */
+		private long time;
+
+		/**
+		 * <p>The CPU nanoseconds used by the sending and receiving threads.</p>
+		 */
+		private long sendCpu;
+		private long recvCpu;
+	}
+
+	/**
+	 * <p>This class only has static methods.</p>
+	 */
+	private TransferBenchmark(){}
+
+	/**
+	 * <p>Runs the benchmark.</p>
+	 *
+	 * @param args The size of the file in megabytes, 512 by default, the number of runs of each path, 5 by default, and the
+	 * directory for the files.
+	 * @throws Exception If a transfer failed or was corrupted.
+	 */
+	public static void main(String args[]) throws Exception{
+		long size = (args.length > 0 ? Long.parseLong(args[0]) : 512) << 20;
+		int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		File dir = new File(args.length > 2 ? args[2] : System.getProperty("java.io.tmpdir"));
+
+		File source = File.createTempFile("transfer", ".src", dir);
+		File dest = File.createTempFile("transfer", ".dst", dir);
+		source.deleteOnExit();
+		dest.deleteOnExit();
+		fill(source, size);
+		long expected = checksum(source);
+
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+		//One untimed transfer of each, so that both are compared warm
+		transfer(server, source, dest, false);
+		transfer(server, source, dest, true);
+
+		Result copy[] = new Result[runs];
+		Result channel[] = new Result[runs];
+		for(int i = 0; i < runs; i++){
+			copy[i] = transfer(server, source, dest, false);
+			verify(dest, size, expected);
+			channel[i] = transfer(server, source, dest, true);
+			verify(dest, size, expected);
+		}
+		server.close();
+
+		System.out.printf("%d MB over loopback, median of %d runs%n", size >> 20, runs);
+		report("copy loop", copy, size);
+		report("channels", channel, size);
+	}
+
+	/**
+	 * <p>Fills a file with random bytes.</p>
+	 *
+	 * @param f The file.
+	 * @param size The number of bytes.
+	 * @throws IOException
+	 */
+	private static void fill(File f, long size) throws IOException{
+		Random rand = new Random(1);
+		byte chunk[] = new byte[1 << 20];
+		OutputStream out = new FileOutputStream(f);
+		try{
+			while(size > 0){
+				rand.nextBytes(chunk);
+				int n = (int)Math.min(size, chunk.length);
+				out.write(chunk, 0, n);
+				size -= n;
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * <p>Computes the CRC-32 of a file.</p>
+	 *
+	 * @param f The file.
+	 * @return The checksum.
+	 * @throws IOException
+	 */
+	private static long checksum(File f) throws IOException{
+		CRC32 crc = new CRC32();
+		byte buf[] = new byte[1 << 20];
+		InputStream in = new FileInputStream(f);
+		try{
+			int r;
+			while((r = in.read(buf)) != -1)
+				crc.update(buf, 0, r);
+		} finally {
+			in.close();
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * <p>Checks that a received file matches the one sent.</p>
+	 *
+	 * @param f The received file.
+	 * @param size The size of the file sent.
+	 * @param expected The checksum of the file sent.
+	 * @throws IOException If the files differ.
+	 */
+	private static void verify(File f, long size, long expected) throws IOException{
+		if(f.length() != size || checksum(f) != expected)
+			throw new IOException("The received file does not match the one sent");
+	}
+
+	/**
+	 * <p>Sends a file over a new loopback connection and receives it into another.</p>
+	 *
+	 * @param server The listening socket.
+	 * @param source The file to send.
+	 * @param dest The file to receive into, which is truncated.
+	 * @param channels Whether to use the channel path rather than the copy path.
+	 * @return The results of the transfer.
+	 * @throws Exception If the transfer failed.
+	 */
+	private static Result transfer(ServerSocketChannel server, final File source, File dest, final boolean channels) throws Exception{
+		final Result result = new Result();
+		final Exception failure[] = new Exception[1];
+		final SocketChannel client = SocketChannel.open(server.getLocalAddress());
+		Socket accepted = server.accept().socket();
+
+		Thread sender = new Thread(){
+			@Override
+			public void run(){
+				long cpu = threads.getCurrentThreadCpuTime();
+				try{
+					send(client.socket(), source, channels);
+				} catch(Exception e){
+					failure[0] = e;
+				} finally {
+					result.sendCpu = threads.getCurrentThreadCpuTime() - cpu;
+				}
+			}
+		};
+
+		long start = System.nanoTime();
+		sender.start();
+		long cpu = threads.getCurrentThreadCpuTime();
+		try{
+			receive(accepted, dest, channels);
+		} finally {
+			result.recvCpu = threads.getCurrentThreadCpuTime() - cpu;
+			result.time = System.nanoTime() - start;
+			sender.join();
+			accepted.close();
+			client.close();
+		}
+		if(failure[0] != null)
+			throw failure[0];
+		return result;
+	}
+
+	/**
+	 * <p>Sends a file as a DATA frame.</p>
+	 *
+	 * @param s The socket to send on.
+	 * @param source The file.
+	 * @param channels Whether to use the channel path rather than the copy path.
+	 * @throws IOException
+	 */
+	private static void send(Socket s, File source, boolean channels) throws IOException{
+		//The connection is not given a node, which it only uses when opening sockets itself
+		Connection c = new BasicConnector(null).registerConnection(s);
+		long len = source.length();
+		FrameWriter out = new FrameWriter(c.getOutputStream());
+		out.beginFrame(Opcode.DATA, 0, 1, len);
+
+		if(channels){
+			out.flush();
+			FileInputStream fin = new FileInputStream(source);
+			try{
+				c.transferFrom(fin.getChannel(), 0, len);
+			} finally {
+				fin.close();
+			}
+		}
+		else{
+			BufferedInputStream fin = new BufferedInputStream(new FileInputStream(source), COPY_BUFFER);
+			try{
+				out.writeFrom(fin, len);
+				out.flush();
+			} finally {
+				fin.close();
+			}
+		}
+	}
+
+	/**
+	 * <p>Receives a DATA frame into a file.</p>
+	 *
+	 * @param s The socket to receive from.
+	 * @param dest The file, which is truncated.
+	 * @param channels Whether to use the channel path rather than the copy path.
+	 * @throws IOException
+	 */
+	private static void receive(Socket s, File dest, boolean channels) throws IOException{
+		FrameReader in = new FrameReader(s.getInputStream(), channels ? s.getChannel() : null, READ_BUFFER);
+		FrameHeader header = new FrameHeader();
+		if(!in.readHeader(header))
+			throw new IOException("The sender closed the connection before the frame");
+
+		FileOutputStream fos = new FileOutputStream(dest);
+		try{
+			if(channels)
+				in.transferTo(fos.getChannel(), in.remaining());
+			else
+				in.transferTo(fos, in.remaining());
+		} finally {
+			fos.close();
+		}
+	}
+
+	/**
+	 * <p>Prints the median results of one path.</p>
+	 *
+	 * @param name The name of the path.
+	 * @param results The results of each run.
+	 * @param size The number of bytes sent in each run.
+	 */
+	private static void report(String name, Result results[], long size){
+		long time[] = new long[results.length];
+		long send[] = new long[results.length];
+		long recv[] = new long[results.length];
+		for(int i = 0; i < results.length; i++){
+			time[i] = results[i].time;
+			send[i] = results[i].sendCpu;
+			recv[i] = results[i].recvCpu;
+		}
+		long t = median(time);
+		System.out.printf("%-10s %8.1f MB/s  %7.0f ms  send CPU %6.0f ms  receive CPU %6.0f ms%n", name,
+				size / (t / 1e9) / (1 << 20), t / 1e6, median(send) / 1e6, median(recv) / 1e6);
+	}
+
+	/**
+	 * <p>Finds the median of some values.</p>
+	 *
+	 * @param values The values, which are sorted.
+	 * @return The median.
+	 */
+	private static long median(long values[]){
+		Arrays.sort(values);
+		return values[values.length / 2];
+	}
+}
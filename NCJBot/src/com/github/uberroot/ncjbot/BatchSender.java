@@ -0,0 +1,292 @@
+package com.github.uberroot.ncjbot;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>Gathers small units of data for a job on a RemoteNode and sends them together, opened with
+ * {@link RemoteJob#openBatchSender()}. The receiving job gets each unit through its own call to
+ * {@link com.github.uberroot.ncjbot.api.LocalJob#dataReceived(RemoteNode, String, Payload)}, in the order the units
+ * were sent.</p>
+ *
+ * <p>Units are held until BatchSender.maxBytes bytes are waiting or until BatchSender.linger milliseconds have passed since
+ * the first of them was queued, whichever comes first, and then sent as a single {@link com.github.uberroot.ncjbot.protocol.Opcode#DATA_BATCH}
+ * frame. Batches are sent one at a time, in order, on the thread pool given by RemoteNode.ioThreadPool, so a slow node only
+ * holds up its own senders. The linger time is kept by BatchSender.threadPool, which never waits on a node. A failure to send a
+ * batch after the linger time is reported by the next call to {@link #send(byte[])}, {@link #flush()}, or {@link #close()}.
+ * The units of a batch that could not be sent are not lost. They are kept and sent again, ahead of later units, with the next
+ * batch.</p>
+ *
+ * <p>The data is identified as originating from the thread that opened the sender.</p>
+ *
+ * @author Carter Waxman
+ *
+ */
+public final class BatchSender implements Closeable {
+	/**
+	 * <p>The node receiving the data.</p>
+	 */
+	private final RemoteNode remote;
+	
+	/**
+	 * <p>The thread id of the job receiving the data.</p>
+	 */
+	private final String destTid;
+	
+	/**
+	 * <p>The thread id of the job sending the data.</p>
+	 */
+	private final long sourceTid;
+	
+	/**
+	 * <p>The number of waiting bytes that causes a batch to be sent.</p>
+	 */
+	private final int maxBytes;
+	
+	/**
+	 * <p>The time, in milliseconds, that a unit may wait before its batch is sent.</p>
+	 */
+	private final long linger;
+	
+	/**
+	 * <p>The executor that keeps the linger time.</p>
+	 */
+	private final ScheduledThreadPoolExecutor executor;
+	
+	/**
+	 * <p>The executor that sends batches.</p>
+	 */
+	private final ScheduledThreadPoolExecutor io;
+	
+	/**
+	 * <p>Guards the state of the sender. A lock is used rather than a monitor so that a virtual thread waiting in
+	 * {@link #flush()} does not pin its carrier thread.</p>
+	 */
+	private final ReentrantLock lock;
+	
+	/**
+	 * <p>Signalled when a batch has finished sending.</p>
+	 */
+	private final Condition changed;
+	
+	/**
+	 * <p>The units waiting to be sent.</p>
+	 */
+	private ArrayList<byte[]> pending;
+	
+	/**
+	 * <p>The total size of the waiting units.</p>
+	 */
+	private int pendingBytes;
+	
+	/**
+	 * <p>The scheduled sending of the waiting units, or null if none is scheduled.</p>
+	 */
+	private ScheduledFuture<?> scheduled;
+	
+	/**
+	 * <p>Whether a batch is being sent.</p>
+	 */
+	private boolean sending;
+	
+	/**
+	 * <p>The failure of a batch, or null if there has been none since it was last reported.</p>
+	 */
+	private Exception failure;
+	
+	/**
+	 * <p>Whether the sender has been closed.</p>
+	 */
+	private boolean closed;
+	
+	/**
+	 * <p>Creates a sender. This should only be called by {@link RemoteJob#openBatchSender()}.</p>
+	 *
+	 * @param node The running LocalNode instance.
+	 * @param remote The node receiving the data.
+	 * @param destTid The thread id of the job receiving the data.
+	 */
+	BatchSender(LocalNode node, RemoteNode remote, String destTid){
+		this.remote = remote;
+		this.destTid = destTid;
+		sourceTid = Thread.currentThread().getId(); //TODO: This assumes that the thread opening the sender is the one that runs the LocalJob
+		maxBytes = node.getConfigManager().getSetting("BatchSender", "maxBytes", int.class);
+		linger = node.getConfigManager().getSetting("BatchSender", "linger", long.class);
+		executor = node.getExecutor(node.getConfigManager().getSetting("BatchSender", "threadPool", int.class));
+		io = node.getExecutor(node.getConfigManager().getSetting("RemoteNode", "ioThreadPool", int.class));
+		lock = new ReentrantLock();
+		changed = lock.newCondition();
+		pending = new ArrayList<byte[]>();
+		pendingBytes = 0;
+		scheduled = null;
+		sending = false;
+		failure = null;
+		closed = false;
+	}
+	
+	/**
+	 * <p>Queues a unit of data, sending the waiting units if they have reached the size limit.</p>
+	 *
+	 * @param data The data to send. The array must not be modified afterwards.
+	 * @throws IOException If this or an earlier batch could not be sent.
+	 * @throws NodeStateException If the node was not running when this or an earlier batch was sent.
+	 */
+	public void send(byte[] data) throws IOException, NodeStateException{
+		lock.lock();
+		try{
+			if(closed)
+				throw new IOException("The sender has been closed");
+			rethrow();
+			pending.add(data);
+			pendingBytes += data.length;
+			if(pendingBytes >= maxBytes || linger <= 0)
+				flush();
+			else if(scheduled == null){
+				scheduled = executor.schedule(new Runnable(){
+					@Override
+					public void run() {
+						lock.lock();
+						try{
+							scheduled = null;
+							sendPending();
+						} finally {
+							lock.unlock();
+						}
+					}
+				}, linger, TimeUnit.MILLISECONDS);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * <p>Sends all waiting units and waits for them to be received.</p>
+	 *
+	 * @throws IOException If this or an earlier batch could not be sent. The units that were not sent are kept.
+	 * @throws NodeStateException If the node was not running when this or an earlier batch was sent.
+	 */
+	public void flush() throws IOException, NodeStateException{
+		lock.lock();
+		try{
+			if(scheduled != null){
+				scheduled.cancel(false);
+				scheduled = null;
+			}
+			rethrow();
+			sendPending();
+			try {
+				while(sending)
+					changed.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while flushing to " + remote);
+			}
+			rethrow();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * <p>Sends all waiting units and closes the sender.</p>
+	 *
+	 * @throws IOException If this or an earlier batch could not be sent.
+	 */
+	@Override
+	public void close() throws IOException {
+		lock.lock();
+		try{
+			if(closed)
+				return;
+			try {
+				flush();
+			} catch (NodeStateException e) {
+				throw new IOException(e);
+			}
+			finally{
+				closed = true;
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * <p>Starts sending the waiting units in the background, unless a batch is already being sent. Units queued in the
+	 * meantime are sent once it has been received.</p>
+	 */
+	private void sendPending(){
+		if(sending || pending.isEmpty())
+			return;
+		sending = true;
+		try{
+			io.execute(new Runnable(){
+				@Override
+				public void run() {
+					while(true){
+						ArrayList<byte[]> batch;
+						lock.lock();
+						try{
+							if(pending.isEmpty() || failure != null){
+								sending = false;
+								changed.signalAll();
+								return;
+							}
+							batch = pending;
+							pending = new ArrayList<byte[]>();
+							pendingBytes = 0;
+						} finally {
+							lock.unlock();
+						}
+					
+						try {
+							remote.sendBatch(destTid, sourceTid, batch);
+						} catch (Exception e) {
+							//Keep the units for the next batch, ahead of any queued since
+							lock.lock();
+							try{
+								for(byte[] b : batch)
+									pendingBytes += b.length;
+								batch.addAll(pending);
+								pending = batch;
+								failure = e;
+							} finally {
+								lock.unlock();
+							}
+						}
+					}
+				}
+			});
+		} catch(RejectedExecutionException e){
+			sending = false;
+			failure = new IOException("Unable to queue a batch for " + remote, e);
+		}
+	}
+	
+	/**
+	 * <p>Reports the failure of a batch sent after the linger time.</p>
+	 *
+	 * @throws IOException
+	 * @throws NodeStateException
+	 */
+	private void rethrow() throws IOException, NodeStateException{
+		Exception e = failure;
+		if(e == null)
+			return;
+		failure = null;
+		if(e instanceof IOException)
+			throw (IOException)e;
+		if(e instanceof NodeStateException)
+			throw (NodeStateException)e;
+		throw (RuntimeException)e;
+	}
+}
@@ -0,0 +1,282 @@
+package com.github.uberroot.ncjbot;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.github.uberroot.ncjbot.protocol.Capabilities;
+import com.github.uberroot.ncjbot.protocol.FrameHeader;
+import com.github.uberroot.ncjbot.protocol.FrameWriter;
+import com.github.uberroot.ncjbot.protocol.Opcode;
+import com.github.uberroot.ncjbot.protocol.Protocol;
+
+/**
+ * <p>A connection to a RemoteNode held open for calls to its jobs, shared by every {@link RemoteJob} on the node. Calls are
+ * sent as soon as they are made, without waiting for the replies to earlier calls, and a reader thread completes the Future
+ * for each call as its reply arrives. Replies are matched to calls by request id, so the node may answer them in any
+ * order.</p>
+ *
+ * <p>The connection is opened by the first call, and opened again by the first call after a failure. A failure of the
+ * connection fails every call still awaiting a reply with the IOException. The node may close the connection once it has
+ * been idle for ServerSessionHandler.idleTimeout. If no call is awaiting a reply, this is not a failure, and the connection
+ * is opened again by the next call. If the node is not running, the Future for a call
+ * fails with a {@link NodeStateException}. If the job could not answer, it fails with an IOException carrying the reason.</p>
+ *
+ * @author Carter Waxman
+ *
+ */
+public final class CallChannel implements Closeable {
+	/**
+	 * <p>The running LocalNode instance.</p>
+	 */
+	private final LocalNode node;
+	
+	/**
+	 * <p>The node receiving the calls.</p>
+	 */
+	private final RemoteNode remote;
+	
+	/**
+	 * <p>The session carrying the calls, or null if it has not been opened.</p>
+	 */
+	private PeerSession session;
+	
+	/**
+	 * <p>The calls awaiting replies, keyed by request id. The reader thread matches replies here without locking the channel,
+	 * so that it keeps reading while a call is being written.</p>
+	 */
+	private final ConcurrentHashMap<Integer, CompletableFuture<ByteBuffer>> pending;
+	
+	/**
+	 * <p>Guards the session, the id counter, and the closed flag. Locks are used rather than monitors so that a virtual
+	 * thread blocked while holding one does not pin its carrier thread.</p>
+	 */
+	private final ReentrantLock lock;
+	
+	/**
+	 * <p>Held while a call is written to the session. This is separate from the lock on the channel, which the reader thread
+	 * takes, so that a write blocked by a peer that is not reading cannot stop replies from being read.</p>
+	 */
+	private final ReentrantLock writeLock;
+	
+	/**
+	 * <p>The id to use for the next call.</p>
+	 */
+	private int nextId;
+	
+	/**
+	 * <p>Whether the channel has been closed.</p>
+	 */
+	private boolean closed;
+	
+	/**
+	 * <p>Creates a channel without connecting to the node. This should only be called by
+	 * {@link LocalNode#getCallChannel(RemoteNode)}.</p>
+	 *
+	 * @param node The running LocalNode instance.
+	 * @param remote The node receiving the calls.
+	 */
+	CallChannel(LocalNode node, RemoteNode remote){
+		this.node = node;
+		this.remote = remote;
+		session = null;
+		pending = new ConcurrentHashMap<Integer, CompletableFuture<ByteBuffer>>();
+		lock = new ReentrantLock();
+		writeLock = new ReentrantLock();
+		nextId = 1;
+		closed = false;
+	}
+	
+	/**
+	 * <p>Calls a job on the node.</p>
+	 *
+	 * @param destTid The thread id of the job receiving the call.
+	 * @param sourceTid The thread id of the job making the call.
+	 * @param data The request.
+	 * @return A Future for the reply. The buffer is read-only.
+	 * @throws IOException If the node does not accept calls or the call could not be sent.
+	 */
+	public Future<ByteBuffer> call(String destTid, long sourceTid, byte[] data) throws IOException{
+		long dest = Long.parseLong(destTid);
+		PeerSession s;
+		int id;
+		CompletableFuture<ByteBuffer> f = new CompletableFuture<ByteBuffer>();
+		lock.lock();
+		try{
+			if(closed)
+				throw new IOException("The channel has been closed");
+			if(session == null)
+				open();
+			s = session;
+			id = nextId++;
+			if(nextId < 0)
+				nextId = 1;
+			pending.put(id, f);
+		} finally {
+			lock.unlock();
+		}
+		
+		//Send the listening port, the destination process id, the source process id, and the request
+		try {
+			int port = node.getServer().getCurrentPort();
+			writeLock.lock();
+			try{
+				s.out.beginFrame(Opcode.CALL, 0, id, FrameWriter.varintSize(port) + FrameWriter.varintSize(dest) + FrameWriter.varintSize(sourceTid) + data.length);
+				s.out.writeVarint(port);
+				s.out.writeVarint(dest);
+				s.out.writeVarint(sourceTid);
+				s.out.writeBytes(data, 0, data.length);
+				s.out.flush();
+			} finally {
+				writeLock.unlock();
+			}
+		} catch (IOException e) {
+			fail(s, e);
+			throw e;
+		}
+		return f;
+	}
+	
+	/**
+	 * <p>Closes the connection, failing every call still awaiting a reply.</p>
+	 */
+	@Override
+	public void close(){
+		lock.lock();
+		try{
+			closed = true;
+			if(session != null)
+				fail(session, new IOException("The channel has been closed"));
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * <p>Opens the session and starts the thread reading its replies.</p>
+	 *
+	 * @throws IOException If the node could not be reached or does not accept calls.
+	 */
+	private void open() throws IOException{
+		final PeerSession s;
+		try {
+			s = remote.openSession();
+		} catch (IOException e) {
+			//Communication error of some sort.
+			remote.nodeConnectionFailed();
+			throw e;
+		}
+		if(s == null || !s.capabilities.supports(Capabilities.CALLS)){
+			if(s != null)
+				s.release();
+			throw new IOException(remote + " does not accept calls");
+		}
+		session = s;
+		node.createThread(new Runnable(){
+			@Override
+			public void run() {
+				read(s);
+			}
+		}, "Call Channel (" + remote + ")").start();
+	}
+	
+	/**
+	 * <p>Reads replies from a session until it fails, completing the matching calls. This runs on the reader thread.</p>
+	 *
+	 * @param s The session.
+	 */
+	private void read(PeerSession s){
+		FrameHeader h = new FrameHeader();
+		try {
+			while(true){
+				if(!s.in.readHeader(h)){
+					//An idle connection closed by the node is opened again by the next call
+					lock.lock();
+					try{
+						if(pending.isEmpty()){
+							fail(s, new EOFException("The node closed the idle connection"));
+							return;
+						}
+					} finally {
+						lock.unlock();
+					}
+					throw new EOFException("The node closed the connection");
+				}
+				CompletableFuture<ByteBuffer> f = pending.remove(h.getRequestId());
+				if(f == null)
+					throw new ProtocolException("Reply to an unknown call: " + h);
+				
+				if(h.getOpcode() == Opcode.STATUS){
+					//The node refused the call
+					NodeState state = Protocol.decodeState(s.in.readByte());
+					if(state == NodeState.RUNNING)
+						state = NodeState.UNKNOWN;
+					remote.setState(state);
+					f.completeExceptionally(new NodeStateException(state));
+				}
+				else if(h.getOpcode() == Opcode.RESULT){
+					//Replies are held in memory, so those too large to hold fail the call rather than the node
+					long max = node.getConfigManager().getSetting("CallChannel", "maxReply", long.class);
+					if(s.in.remaining() > Math.min(max, Integer.MAX_VALUE - 8)){
+						long len = s.in.remaining();
+						s.in.skip(len);
+						f.completeExceptionally(new IOException("The reply of " + len + " bytes from " + remote + " exceeds the limit of " + max + " bytes"));
+						continue;
+					}
+					byte reply[] = new byte[(int)s.in.remaining()];
+					s.in.readFully(reply, 0, reply.length);
+					if(h.hasFlag(Protocol.FLAG_FAILED))
+						f.completeExceptionally(new IOException("The call to " + remote + " failed: " + new String(reply, "UTF-8")));
+					else{
+						remote.setState(NodeState.RUNNING);
+						f.complete(ByteBuffer.wrap(reply).asReadOnlyBuffer());
+					}
+				}
+				else
+					throw new ProtocolException("Expected " + Opcode.RESULT + " but received " + h.getOpcode());
+			}
+		} catch (IOException e) {
+			boolean current;
+			lock.lock();
+			try{
+				current = session == s && !closed;
+				fail(s, e);
+			} finally {
+				lock.unlock();
+			}
+			if(current)
+				remote.nodeConnectionFailed();
+		}
+	}
+	
+	/**
+	 * <p>Handles the failure of a session by closing it and failing every call awaiting a reply on it. Failures of sessions
+	 * that have already been replaced are ignored.</p>
+	 *
+	 * @param s The session that failed.
+	 * @param e The cause of the failure.
+	 */
+	private void fail(PeerSession s, IOException e){
+		lock.lock();
+		try{
+			if(session != s)
+				return;
+			session = null;
+			s.connection.close();
+			for(Iterator<CompletableFuture<ByteBuffer>> i = pending.values().iterator(); i.hasNext();){
+				CompletableFuture<ByteBuffer> f = i.next();
+				i.remove();
+				f.completeExceptionally(e);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+}
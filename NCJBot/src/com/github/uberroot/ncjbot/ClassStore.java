@@ -0,0 +1,299 @@
+package com.github.uberroot.ncjbot;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>Keeps worker classes by the SHA-256 hash of their class files, so that a node sending the same worker many times only
+ * needs to upload it once.</p>
+ *
+ * <p>On the receiving side, the store holds the class files of recently received workers, up to ClassStore.maxBytes in
+ * total. The least recently used classes are evicted first. Every lookup is counted as a hit or a miss.</p>
+ *
+ * <p>On the sending side, the store remembers the hash of each worker file, so that a file is only hashed again if it
+ * changes, and which nodes have recently been sent each class, so that a class is only announced by hash to a node that is
+ * likely to still hold it.</p>
+ *
+ * @author Carter Waxman
+ *
+ */
+public final class ClassStore {
+	/**
+	 * <p>The length of a class hash in bytes.</p>
+	 */
+	public static final int HASH_LENGTH = 32;
+	
+	/**
+	 * <p>The number of worker files, and of node and class pairs, remembered by the sending side.</p>
+	 */
+	private static final int MAX_REMEMBERED = 4096;
+	
+	/**
+	 * <p>The maximum total size of the stored class files.</p>
+	 */
+	private final long maxBytes;
+	
+	/**
+	 * <p>The stored class files, keyed by hash, with the least recently used first.</p>
+	 */
+	private final LinkedHashMap<String, byte[]> classes;
+	
+	/**
+	 * <p>The total size of the stored class files.</p>
+	 */
+	private long size;
+	
+	/**
+	 * <p>The number of lookups that found a class.</p>
+	 */
+	private long hits;
+	
+	/**
+	 * <p>The number of lookups that did not find a class.</p>
+	 */
+	private long misses;
+	
+	/**
+	 * <p>The hashes of worker files, keyed by path.</p>
+	 */
+	private final LinkedHashMap<String, FileHash> fileHashes;
+	
+	/**
+	 * <p>The node and class pairs recently sent, with the least recently used first.</p>
+	 */
+	private final LinkedHashMap<String, Boolean> sent;
+	
+	/**
+	 * <p>The hash of a worker file, along with the length and modification time of the file when it was hashed.</p>
+	 */
+	private static final class FileHash{
+		/**
+		 * <p>The length of the file.</p>
+		 */
+		private final long length;
+		
+		/**
+		 * <p>The modification time of the file.</p>
+		 */
+		private final long modified;
+		
+		/**
+		 * <p>The hash of the file.</p>
+		 */
+		private final byte[] hash;
+		
+		private FileHash(long length, long modified, byte[] hash){
+			this.length = length;
+			this.modified = modified;
+			this.hash = hash;
+		}
+	}
+	
+	/**
+	 * <p>Creates an empty store.</p>
+	 *
+	 * @param maxBytes The maximum total size of the stored class files.
+	 */
+	public ClassStore(long maxBytes){
+		this.maxBytes = maxBytes;
+		classes = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+		size = 0;
+		hits = 0;
+		misses = 0;
+		fileHashes = new LinkedHashMap<String, FileHash>(16, 0.75f, true){
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, FileHash> eldest) {
+				return size() > MAX_REMEMBERED;
+			}
+		};
+		sent = new LinkedHashMap<String, Boolean>(16, 0.75f, true){
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+				return size() > MAX_REMEMBERED;
+			}
+		};
+	}
+	
+	/**
+	 * <p>Computes the hash of a class file.</p>
+	 *
+	 * @param data The class file.
+	 * @return The hash.
+	 */
+	public static byte[] hash(byte[] data){
+		MessageDigest md = newDigest();
+		return md.digest(data);
+	}
+	
+	/**
+	 * <p>Gets the hash of a worker file, hashing it only if it has changed since it was last hashed.</p>
+	 *
+	 * @param worker The worker file.
+	 * @return The hash.
+	 * @throws IOException
+	 */
+	public byte[] hash(File worker) throws IOException{
+		String path = worker.getAbsolutePath();
+		long length = worker.length();
+		long modified = worker.lastModified();
+		synchronized(fileHashes){
+			FileHash entry = fileHashes.get(path);
+			if(entry != null && entry.length == length && entry.modified == modified)
+				return entry.hash;
+		}
+		
+		MessageDigest md = newDigest();
+		FileInputStream fin = new FileInputStream(worker);
+		try{
+			byte buffer[] = new byte[8192];
+			int r;
+			while((r = fin.read(buffer)) != -1)
+				md.update(buffer, 0, r);
+		}
+		finally{
+			fin.close();
+		}
+		byte hash[] = md.digest();
+		synchronized(fileHashes){
+			fileHashes.put(path, new FileHash(length, modified, hash));
+		}
+		return hash;
+	}
+	
+	/**
+	 * <p>Gets a stored class file, counting the lookup as a hit or a miss.</p>
+	 *
+	 * @param hash The hash of the class file.
+	 * @return The class file, or null if it is not stored. The array must not be modified.
+	 */
+	public synchronized byte[] get(byte[] hash){
+		byte data[] = classes.get(toKey(hash));
+		if(data == null)
+			misses++;
+		else
+			hits++;
+		return data;
+	}
+	
+	/**
+	 * <p>Stores a class file, evicting the least recently used classes as needed. Class files larger than the store are
+	 * not stored.</p>
+	 *
+	 * @param hash The hash of the class file.
+	 * @param data The class file. The array must not be modified afterwards.
+	 */
+	public synchronized void put(byte[] hash, byte[] data){
+		if(data.length > maxBytes)
+			return;
+		byte old[] = classes.put(toKey(hash), data);
+		if(old != null)
+			size -= old.length;
+		size += data.length;
+		for(Iterator<byte[]> i = classes.values().iterator(); size > maxBytes && i.hasNext();){
+			size -= i.next().length;
+			i.remove();
+		}
+	}
+	
+	/**
+	 * <p>Determines whether a class was recently sent to a node, so that the node probably still has it.</p>
+	 *
+	 * @param peer Identifies the node.
+	 * @param hash The hash of the class file.
+	 * @return True if the class was recently sent to the node.
+	 */
+	public boolean wasSent(String peer, byte[] hash){
+		synchronized(sent){
+			return sent.get(peer + "/" + toKey(hash)) != null;
+		}
+	}
+	
+	/**
+	 * <p>Records whether a node holds a class.</p>
+	 *
+	 * @param peer Identifies the node.
+	 * @param hash The hash of the class file.
+	 * @param held True if the node received the class, false if it reported that it no longer has it.
+	 */
+	public void setSent(String peer, byte[] hash, boolean held){
+		synchronized(sent){
+			if(held)
+				sent.put(peer + "/" + toKey(hash), Boolean.TRUE);
+			else
+				sent.remove(peer + "/" + toKey(hash));
+		}
+	}
+	
+	/**
+	 * <p>Gets the number of lookups that found a class.</p>
+	 *
+	 * @return The number of hits.
+	 */
+	public synchronized long getHits(){
+		return hits;
+	}
+	
+	/**
+	 * <p>Gets the number of lookups that did not find a class.</p>
+	 *
+	 * @return The number of misses.
+	 */
+	public synchronized long getMisses(){
+		return misses;
+	}
+	
+	/**
+	 * <p>Gets the number of classes stored.</p>
+	 *
+	 * @return The number of classes stored.
+	 */
+	public synchronized int getCount(){
+		return classes.size();
+	}
+	
+	/**
+	 * <p>Gets the total size of the stored class files.</p>
+	 *
+	 * @return The total size in bytes.
+	 */
+	public synchronized long getSize(){
+		return size;
+	}
+	
+	/**
+	 * <p>Converts a hash to the key used for it.</p>
+	 *
+	 * @param hash The hash.
+	 * @return The key.
+	 */
+	private static String toKey(byte[] hash){
+		StringBuilder sb = new StringBuilder(hash.length * 2);
+		for(byte b : hash)
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		return sb.toString();
+	}
+	
+	/**
+	 * <p>Creates a digest for class hashes.</p>
+	 *
+	 * @return The digest.
+	 */
+	private static MessageDigest newDigest(){
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			//Every Java platform is required to support SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,23 @@
+package com.github.uberroot.ncjbot;
+
+/**
+ * An exception that is thrown when a job sent by {@link LocalNode#dispatchJob(long, java.io.File, byte[], java.util.Collection)}
+ * could not be started on one of its nodes.
+ * 
+ * @author Carter Waxman
+ *
+ */
+public class DispatchException extends NCJBotException {
+	private static final long serialVersionUID = 1L;
+	
+	private RemoteNode node;
+	
+	public DispatchException(RemoteNode node, String message, Throwable cause) {
+		super(node + ": " + message, cause);
+		this.node = node;
+	}
+	
+	public RemoteNode getNode(){
+		return node;
+	}
+}
@@ -1,16 +1,25 @@
 package com.github.uberroot.ncjbot;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Method;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Hashtable;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 
 import com.github.uberroot.ncjbot.api.LocalJob;
 import com.github.uberroot.ncjbot.api.JobEnvironment;
 import com.github.uberroot.ncjbot.modapi.*;
+import com.github.uberroot.ncjbot.protocol.Capabilities;
+import com.github.uberroot.ncjbot.protocol.Compression;
 
 /**
  * <p>This is the core of the NCJBot. It is responsible for loading and handling all modules and components
@@ -62,6 +71,53 @@ public final class LocalNode implements UnsafeObject<com.github.uberroot.ncjbot.
 	 */
 	private ArrayList<ScheduledThreadPoolExecutor> executors;
 	
+	/**
+	 * <p>The outcome of protocol negotiations with remote nodes, keyed by the address and port of the node. This allows every
+	 * RemoteNode instance referring to the same node to share a single negotiation.</p>
+	 */
+	private Hashtable<String, Capabilities> capabilities = new Hashtable<String, Capabilities>();
+	
+	/**
+	 * <p>The last active node list received from each remote node, keyed by address and port.</p>
+	 */
+	private Hashtable<String, PeerMembership> peerMemberships = new Hashtable<String, PeerMembership>();
+	
+	/**
+	 * <p>The numbered changes to the active node list of this node.</p>
+	 */
+	private MembershipLog membershipLog;
+	
+	/**
+	 * <p>The connections held open for calls to jobs on remote nodes, keyed by address and port.</p>
+	 */
+	private Hashtable<String, CallChannel> callChannels = new Hashtable<String, CallChannel>();
+	
+	/**
+	 * <p>The worker classes received by this node, and the record of those sent by it.</p>
+	 */
+	private ClassStore classStore;
+	
+	/**
+	 * <p>The policy for compressing payloads sent to other nodes.</p>
+	 */
+	private Compression compression;
+	
+	/**
+	 * <p>The timer enforcing the timeouts of sessions with other nodes.</p>
+	 */
+	private SessionTimer sessionTimer;
+	
+	/**
+	 * <p>The builder used to create virtual threads, or null if platform threads are used. This is resolved reflectively
+	 * since virtual threads are not available on every supported JVM.</p>
+	 */
+	private Object virtualThreadBuilder;
+	
+	/**
+	 * <p>The method of the virtual thread builder that creates an unstarted thread.</p>
+	 */
+	private Method unstartedThread;
+	
 	/**
 	 * <p>Entry point for the program. This loads the sole LocalNode instance.</p>
 	 * 
@@ -96,6 +152,28 @@ public final class LocalNode implements UnsafeObject<com.github.uberroot.ncjbot.
 		for(String s : pools)
 			executors.add(new ScheduledThreadPoolExecutor(Integer.valueOf(s.trim())));
 		
+		classStore = new ClassStore(configManager.getSetting("ClassStore", "maxBytes", long.class));
+		compression = new Compression(configManager.getSetting("Compression", "minBytes", long.class),
+				configManager.getSetting("Compression", "slowLink", long.class),
+				configManager.getSetting("Compression", "fastLink", long.class),
+				configManager.getSetting("Compression", "maxInflated", long.class));
+		membershipLog = new MembershipLog(configManager.getSetting("MembershipLog", "maxChanges", int.class));
+		sessionTimer = new SessionTimer(configManager.getSetting("SessionTimer", "keepAlive", boolean.class));
+		sessionTimer.start(getExecutor(configManager.getSetting("SessionTimer", "threadPool", int.class)),
+				configManager.getSetting("SessionTimer", "tick", long.class));
+		
+		//Use virtual threads for sessions and jobs if requested and supported
+		virtualThreadBuilder = null;
+		if(configManager.getSetting("LocalNode", "virtualThreads", boolean.class)){
+			try {
+				virtualThreadBuilder = Thread.class.getMethod("ofVirtual").invoke(null);
+				unstartedThread = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+			} catch (Exception e) {
+				System.err.println("Virtual threads are not supported by this JVM. Platform threads will be used instead.");
+				virtualThreadBuilder = null;
+			}
+		}
+		
 		//Load modules
 		exclusives = new Hashtable<Class<?>, AbstractModule>();
 		modules = new ArrayList<AbstractModule>();
@@ -176,6 +254,13 @@ public final class LocalNode implements UnsafeObject<com.github.uberroot.ncjbot.
 	 */
 	//TODO: This should be a shutdown hook
 	public void quit(){
+		//Leave the network while the connections and server it may need are still running
+		if(RunningModule.class.isAssignableFrom(getOverlayManager().getClass()))
+			try {
+				((RunningModule)getOverlayManager()).stop();
+			} catch (Exception e1) {
+				e1.printStackTrace();
+			}
 		for(AbstractModule m : modules)
 			if(RunningModule.class.isAssignableFrom(m.getClass()))
 				try {
@@ -183,6 +268,9 @@ public final class LocalNode implements UnsafeObject<com.github.uberroot.ncjbot.
 				} catch (Exception e1) {
 					e1.printStackTrace();
 				}
+		for(CallChannel c : callChannels.values())
+			c.close();
+		sessionTimer.stop();
 		for(ScheduledThreadPoolExecutor e : executors)
 			e.shutdown();
 		System.exit(0);
@@ -225,18 +313,7 @@ public final class LocalNode implements UnsafeObject<com.github.uberroot.ncjbot.
 	public long startJob(String classPath, String className, RemoteNode source, String remoteTid, File initData, boolean cleanup){
 		JobEnvironment jobThread = null;
 		try {
-			jobThread = new JobEnvironment(this, className, new File(classPath), source, remoteTid, initData, getWatchdog(), cleanup, new JobEnvironment.JobStateListener(){
-				@Override
-				public void jobLoaded(JobEnvironment wrapper, LocalJob job) {
-					jobs.put(wrapper.getId(), job);
-				}
-
-				@Override
-				public void jobFailedToLoad(JobEnvironment wrapper, Exception ex) {
-					ex.printStackTrace();
-				}
-				
-			});
+			jobThread = new JobEnvironment(this, className, new File(classPath), source, remoteTid, initData, getWatchdog(), cleanup, jobStateListener());
 			jobThread.start();
 		} catch (Exception e) {
 			//Either a bad path was provided, or the classloader cannot load the class.
@@ -246,22 +323,105 @@ public final class LocalNode implements UnsafeObject<com.github.uberroot.ncjbot.
 		return jobThread.getId();
 	}
 	
+	/**
+	 * <p> Starts a new job on its own thread, loading its class straight from memory. </p>
+	 * 
+	 * @param classPath The path to the running directory for the job to be created. This is only created if the job needs it.
+	 * @param className The name of the LocalJob subclass to run.
+	 * @param classData The class file of the LocalJob subclass.
+	 * @param source The node that sent the job.
+	 * @param remoteTid The thread id of the remote job that sent the job.
+	 * @param initData Initialization parameters for the job to be created.
+	 * @param cleanup Whether to delete the running directory after the job finishes running.
+	 * @return The thread id of the new job, or -1 on failure.
+	 */
+	public long startJob(String classPath, String className, ByteBuffer classData, RemoteNode source, String remoteTid, ByteBuffer initData, boolean cleanup){
+		JobEnvironment jobThread = null;
+		try {
+			jobThread = new JobEnvironment(this, className, classData, new File(classPath), source, remoteTid, initData, getWatchdog(), cleanup, jobStateListener());
+			jobThread.start();
+		} catch (Exception e) {
+			//Either a bad path was provided, or the classloader cannot load the class.
+			e.printStackTrace();
+			return -1;
+		}
+		return jobThread.getId();
+	}
+	
+	/**
+	 * <p>Creates the listener that registers jobs with this node once they have loaded.</p>
+	 * 
+	 * @return The listener.
+	 */
+	private JobEnvironment.JobStateListener jobStateListener(){
+		return new JobEnvironment.JobStateListener(){
+			@Override
+			public void jobLoaded(JobEnvironment wrapper, LocalJob job) {
+				jobs.put(wrapper.getId(), job);
+			}
+
+			@Override
+			public void jobFailedToLoad(JobEnvironment wrapper, Exception ex) {
+				ex.printStackTrace();
+			}
+			
+		};
+	}
+	
 	/**
 	 * <p>Delivers data from a remote job to a job running on this node.</p>
 	 * 
 	 * @param destTid The thread id of the destination job running on this node.
 	 * @param sourceTid The thread id of the source job for the data.
 	 * @param source The node from which the data originated
-	 * @param data The data to deliver.
+	 * @param data The data to deliver, which is only valid until this method returns.
 	 */
 	//TODO: sourcePID and source should be combined into a RemoteJob
-	//TODO: File use should be replaced with an abstraction to a stream or to a byte buffer or array
-	public void sendData(String destTid, String sourceTid, RemoteNode source, File data){
+	public void sendData(String destTid, String sourceTid, RemoteNode source, Payload data){
 		LocalJob job = jobs.get(Long.valueOf(destTid));
 		if(job != null)
 			job.dataReceived(source, sourceTid, data);
 	}
 	
+	/**
+	 * <p>Delivers a call from a remote job to a job running on this node, and gets the reply.</p>
+	 * 
+	 * @param destTid The thread id of the destination job running on this node.
+	 * @param sourceTid The thread id of the job making the call.
+	 * @param source The node from which the call originated
+	 * @param request The request. The buffer must be read-only, and is only valid until this method returns.
+	 * @return The reply.
+	 * @throws Exception If the destination job is not running or could not answer the call.
+	 */
+	public ByteBuffer sendCall(String destTid, String sourceTid, RemoteNode source, ByteBuffer request) throws Exception{
+		LocalJob job = jobs.get(Long.valueOf(destTid));
+		if(job == null)
+			throw new IllegalStateException("Job " + destTid + " is not running");
+		return job.callReceived(source, sourceTid, request);
+	}
+	
+	/**
+	 * <p>Delivers a stream from a remote job to a job running on this node. The job reads the stream on a thread of its own.</p>
+	 * 
+	 * @param destTid The thread id of the destination job running on this node.
+	 * @param sourceTid The thread id of the source job for the stream.
+	 * @param source The node from which the stream originated
+	 * @param data The stream to deliver.
+	 * @return False if the destination job is not running.
+	 */
+	public boolean sendStream(String destTid, final String sourceTid, final RemoteNode source, final InputStream data){
+		final LocalJob job = jobs.get(Long.valueOf(destTid));
+		if(job == null)
+			return false;
+		createThread(new Runnable(){
+			@Override
+			public void run() {
+				job.streamReceived(source, sourceTid, data);
+			}
+		}, "Stream (" + source + " " + sourceTid + " -> " + destTid + ")").start();
+		return true;
+	}
+	
 	/**
 	 * <p>Alerts the jobs currently running on this node to a new node on the network.</p>
 	 * 
@@ -294,6 +454,57 @@ public final class LocalNode implements UnsafeObject<com.github.uberroot.ncjbot.
 		}
 	}
 	
+	/**
+	 * <p>Gets the outcome of the protocol negotiation with a remote node.</p>
+	 * 
+	 * @param rn The remote node.
+	 * @return The negotiated capabilities, or null if the node has not been negotiated with.
+	 */
+	public Capabilities getCapabilities(RemoteNode rn){
+		return capabilities.get(rn.toString());
+	}
+	
+	/**
+	 * <p>Records the outcome of the protocol negotiation with a remote node.</p>
+	 * 
+	 * @param rn The remote node.
+	 * @param caps The negotiated capabilities, or null to require a new negotiation.
+	 */
+	public void setCapabilities(RemoteNode rn, Capabilities caps){
+		if(caps == null)
+			capabilities.remove(rn.toString());
+		else
+			capabilities.put(rn.toString(), caps);
+	}
+	
+	/**
+	 * <p>Gets the last active node list received from a remote node.</p>
+	 * 
+	 * @param rn The remote node.
+	 * @return The list, which is empty if none has been received.
+	 */
+	PeerMembership getPeerMembership(RemoteNode rn){
+		String key = rn.toString();
+		synchronized(peerMemberships){
+			PeerMembership view = peerMemberships.get(key);
+			if(view == null){
+				view = new PeerMembership();
+				peerMemberships.put(key, view);
+			}
+			return view;
+		}
+	}
+	
+	/**
+	 * <p>Gets the log numbering the changes to the active node list of this node. The OverlayManager records its changes to
+	 * the list here.</p>
+	 * 
+	 * @return The membership log.
+	 */
+	public MembershipLog getMembershipLog(){
+		return membershipLog;
+	}
+	
 	/**
 	 * <p>Retrieves the running OverlayManager for this node.</p>
 	 * 
@@ -329,6 +540,88 @@ public final class LocalNode implements UnsafeObject<com.github.uberroot.ncjbot.
 		return configManager;
 	}
 	
+	/**
+	 * <p>Gets the store of worker classes.</p>
+	 * 
+	 * @return the store of worker classes.
+	 */
+	public ClassStore getClassStore(){
+		return classStore;
+	}
+	
+	/**
+	 * <p>Gets the policy for compressing payloads sent to other nodes.</p>
+	 * 
+	 * @return the compression policy.
+	 */
+	public Compression getCompression(){
+		return compression;
+	}
+	
+	/**
+	 * <p>Gets the timer enforcing the timeouts of sessions with other nodes.</p>
+	 * 
+	 * @return the session timer.
+	 */
+	public SessionTimer getSessionTimer(){
+		return sessionTimer;
+	}
+	
+	/**
+	 * <p>Gets the connection held open for calls to jobs on a remote node, creating it if there is none.</p>
+	 * 
+	 * @param rn The remote node.
+	 * @return The channel for calls to the node.
+	 */
+	public CallChannel getCallChannel(RemoteNode rn){
+		String key = rn.getIpAddress().getHostAddress() + ":" + rn.getListeningPort();
+		synchronized(callChannels){
+			CallChannel c = callChannels.get(key);
+			if(c == null){
+				c = new CallChannel(this, rn);
+				callChannels.put(key, c);
+			}
+			return c;
+		}
+	}
+	
+	/**
+	 * <p>Sends a job to many nodes at once. The worker is read and encoded once, and is sent to as many nodes at a time as
+	 * there are threads in the pool given by LocalNode.dispatchThreadPool, so that dispatching to many nodes takes about as
+	 * long as dispatching to the slowest of them rather than to all of them in turn.</p>
+	 * 
+	 * <p>Each started job is placed in the returned CompletionService as soon as its node replies. A node that could not
+	 * start the job instead yields a Future that fails with a {@link DispatchException} naming the node.</p>
+	 * 
+	 * @param ownerTid The thread id of the job that will be the parent of the started jobs.
+	 * @param worker A file pointing to the class file to send.
+	 * @param params Initialization parameters for the new LocalJobs.
+	 * @param targets The nodes to start the job on.
+	 * @return The started jobs, in the order they were started. Exactly one Future is placed for each target.
+	 * @throws IOException If the worker could not be read.
+	 */
+	public CompletionService<RemoteJob> dispatchJob(long ownerTid, final File worker, byte[] params, Collection<RemoteNode> targets) throws IOException{
+		final WorkerImage image = new WorkerImage(this, ownerTid, worker, params);
+		CompletionService<RemoteJob> jobs = new ExecutorCompletionService<RemoteJob>(getExecutor(configManager.getSetting("LocalNode", "dispatchThreadPool", int.class)));
+		for(final RemoteNode rn : targets){
+			jobs.submit(new Callable<RemoteJob>(){
+				@Override
+				public RemoteJob call() throws Exception {
+					long tid;
+					try{
+						tid = rn.sendJob(image);
+					} catch (Exception e) {
+						throw new DispatchException(rn, "Could not send " + worker.getName(), e);
+					}
+					if(tid == -1)
+						throw new DispatchException(rn, "Could not start " + worker.getName(), null);
+					return rn.getJob(tid);
+				}
+			});
+		}
+		return jobs;
+	}
+	
 	/**
 	 * <p>Gets the current connection factory.</p>
 	 * 
@@ -355,6 +648,30 @@ public final class LocalNode implements UnsafeObject<com.github.uberroot.ncjbot.
 		return null; //This should never happen because of the controlled load sequence
 	}
 	
+	/**
+	 * <p>Creates an unstarted thread for a long running task such as a client session or a job. If LocalNode.virtualThreads
+	 * is enabled and the JVM supports it, this will be a virtual thread, allowing tasks that spend most of their time blocked
+	 * to run without occupying a platform thread each.</p>
+	 * 
+	 * @param task The task for the thread to run.
+	 * @param name The name of the thread.
+	 * @return The new thread.
+	 */
+	public Thread createThread(Runnable task, String name){
+		Thread t = null;
+		if(virtualThreadBuilder != null){
+			try {
+				t = (Thread)unstartedThread.invoke(virtualThreadBuilder, task);
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+		if(t == null)
+			t = new Thread(task);
+		t.setName(name);
+		return t;
+	}
+	
 	/**
 	 * <p>Gets the ScheduledThreadPoolExecutor that will be used to execute tasks on the given thread pool.</p>
 	 * 
@@ -0,0 +1,31 @@
+package com.github.uberroot.ncjbot;
+
+/**
+ * <p>A enumeration type for the states of members of the network, as spread by gossip. The order of the states is used on
+ * the wire and must not be changed.</p>
+ * 
+ * @author Carter Waxman
+ *
+ */
+public enum MemberState{
+	/**
+	 * <p>The member answered its last probe.</p>
+	 */
+	ALIVE,
+	
+	/**
+	 * <p>The member could not be reached, directly or through other members, and will be declared dead unless it refutes the
+	 * suspicion.</p>
+	 */
+	SUSPECT,
+	
+	/**
+	 * <p>The member was suspected for too long and is considered to have failed.</p>
+	 */
+	DEAD,
+	
+	/**
+	 * <p>The member announced that it was leaving the network.</p>
+	 */
+	LEFT
+}
@@ -0,0 +1,173 @@
+package com.github.uberroot.ncjbot;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.github.uberroot.ncjbot.protocol.FrameReader;
+import com.github.uberroot.ncjbot.protocol.FrameWriter;
+
+/**
+ * <p>A statement about the state of one member of the network, carried by gossip. Each member numbers its own lives with an
+ * incarnation, which only it may increase. An update with a higher incarnation overrides any older update about the same
+ * member, so that a member can refute a suspicion about itself by announcing that it is alive with a new incarnation.</p>
+ * 
+ * @author Carter Waxman
+ *
+ */
+public final class MemberUpdate {
+	/**
+	 * <p>The address written in place of the address of the node writing an update about itself, which the reader knows
+	 * better than the writer does.</p>
+	 */
+	private static final InetAddress SELF;
+	
+	static{
+		try {
+			SELF = InetAddress.getByAddress(new byte[4]);
+		} catch (UnknownHostException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+	
+	/**
+	 * <p>The address of the member, or null if the update is about the node writing it.</p>
+	 */
+	private final InetAddress address;
+	
+	/**
+	 * <p>The listening port of the member.</p>
+	 */
+	private final int port;
+	
+	/**
+	 * <p>The state of the member.</p>
+	 */
+	private final MemberState state;
+	
+	/**
+	 * <p>The incarnation of the member the state applies to.</p>
+	 */
+	private final long incarnation;
+	
+	/**
+	 * <p>Creates an update.</p>
+	 * 
+	 * @param address The address of the member, or null if the update is about this node.
+	 * @param port The listening port of the member.
+	 * @param state The state of the member.
+	 * @param incarnation The incarnation of the member the state applies to.
+	 */
+	public MemberUpdate(InetAddress address, int port, MemberState state, long incarnation){
+		this.address = address;
+		this.port = port;
+		this.state = state;
+		this.incarnation = incarnation;
+	}
+	
+	/**
+	 * <p>Gets the address of the member.</p>
+	 * 
+	 * @return The address, or null if the update is about this node.
+	 */
+	public InetAddress getAddress(){
+		return address;
+	}
+	
+	/**
+	 * <p>Gets the listening port of the member.</p>
+	 * 
+	 * @return The port.
+	 */
+	public int getPort(){
+		return port;
+	}
+	
+	/**
+	 * <p>Gets the state of the member.</p>
+	 * 
+	 * @return The state.
+	 */
+	public MemberState getState(){
+		return state;
+	}
+	
+	/**
+	 * <p>Gets the incarnation of the member the state applies to.</p>
+	 * 
+	 * @return The incarnation.
+	 */
+	public long getIncarnation(){
+		return incarnation;
+	}
+	
+	/**
+	 * <p>Gets the key identifying the member, in the same form as {@link RemoteNode#toString()}.</p>
+	 * 
+	 * @return The address and port of the member.
+	 */
+	public String getKey(){
+		return (address == null ? "self" : address.getHostAddress()) + ":" + port;
+	}
+	
+	@Override
+	public String toString(){
+		return getKey() + " " + state + "#" + incarnation;
+	}
+	
+	/**
+	 * <p>Gets the length of a list of updates on the wire.</p>
+	 * 
+	 * @param updates The updates.
+	 * @return The length in bytes.
+	 */
+	static long size(List<MemberUpdate> updates){
+		long len = FrameWriter.varintSize(updates.size());
+		for(MemberUpdate u : updates)
+			len += FrameWriter.addressSize(u.address == null ? SELF : u.address) + FrameWriter.varintSize(u.port) + 1 + FrameWriter.varintSize(u.incarnation);
+		return len;
+	}
+	
+	/**
+	 * <p>Writes a list of updates.</p>
+	 * 
+	 * @param out The writer for the frame.
+	 * @param updates The updates.
+	 * @throws IOException
+	 */
+	static void write(FrameWriter out, List<MemberUpdate> updates) throws IOException{
+		out.writeVarint(updates.size());
+		for(MemberUpdate u : updates){
+			out.writeAddress(u.address == null ? SELF : u.address);
+			out.writeVarint(u.port);
+			out.writeByte(u.state.ordinal());
+			out.writeVarint(u.incarnation);
+		}
+	}
+	
+	/**
+	 * <p>Reads a list of updates.</p>
+	 * 
+	 * @param in The reader for the frame.
+	 * @param sender The address of the node that wrote the updates, which replaces the unspecified address.
+	 * @return The updates.
+	 * @throws IOException
+	 */
+	static List<MemberUpdate> read(FrameReader in, InetAddress sender) throws IOException{
+		MemberState states[] = MemberState.values();
+		int count = in.readInt();
+		ArrayList<MemberUpdate> updates = new ArrayList<MemberUpdate>(Math.min(count, 64));
+		for(int i = 0; i < count; i++){
+			InetAddress address = in.readAddress();
+			int port = in.readInt();
+			int state = in.readByte();
+			if(state >= states.length)
+				throw new ProtocolException("Unknown member state: " + state);
+			updates.add(new MemberUpdate(address.isAnyLocalAddress() ? sender : address, port, states[state], in.readVarint()));
+		}
+		return updates;
+	}
+}
@@ -0,0 +1,249 @@
+package com.github.uberroot.ncjbot;
+
+import java.net.InetAddress;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * <p>Numbers the changes to the active node list of this node, so that other nodes may ask for only the changes since the
+ * list they last received rather than the whole list. The OverlayManager records each node it adds to or removes from the
+ * list, and each change increments the version of the list.</p>
+ *
+ * <p>Only the last MembershipLog.maxChanges changes are kept. A node asking for changes older than that, or asking with the
+ * epoch of a previous run of this node, is sent the whole list instead. The epoch is chosen at random when the node starts,
+ * since versions restart from 0.</p>
+ *
+ * @author Carter Waxman
+ *
+ */
+public final class MembershipLog {
+	/**
+	 * <p>A single change to the active node list.</p>
+	 */
+	public static final class Change{
+		/**
+		 * <p>The version of the list after the change.</p>
+		 */
+		private final long version;
+
+		/**
+		 * <p>The address and listening port of the node.</p>
+		 */
+		private final InetAddress address;
+		private final int port;
+
+		/**
+		 * <p>Whether the node was added rather than removed.</p>
+		 */
+		private final boolean added;
+
+		/**
+		 * <p>Creates a change.</p>
+		 *
+		 * @param version The version of the list after the change.
+		 * @param address The address of the node.
+		 * @param port The listening port of the node.
+		 * @param added Whether the node was added rather than removed.
+		 */
+		private Change(long version, InetAddress address, int port, boolean added){
+			this.version = version;
+			this.address = address;
+			this.port = port;
+			this.added = added;
+		}
+
+		/**
+		 * <p>Gets the address of the node.</p>
+		 *
+		 * @return The address.
+		 */
+		public InetAddress getAddress(){
+			return address;
+		}
+
+		/**
+		 * <p>Gets the listening port of the node.</p>
+		 *
+		 * @return The port.
+		 */
+		public int getPort(){
+			return port;
+		}
+
+		/**
+		 * <p>Determines whether the node was added rather than removed.</p>
+		 *
+		 * @return True if the node was added.
+		 */
+		public boolean isAdded(){
+			return added;
+		}
+	}
+
+	/**
+	 * <p>The changes since a version, as returned by {@link MembershipLog#since(long, long)}.</p>
+	 */
+	public static final class Delta{
+		/**
+		 * <p>The version of the list after the changes.</p>
+		 */
+		private final long version;
+
+		/**
+		 * <p>The changes, with at most one for each node.</p>
+		 */
+		private final List<Change> changes;
+
+		/**
+		 * <p>Creates a delta.</p>
+		 *
+		 * @param version The version of the list after the changes.
+		 * @param changes The changes.
+		 */
+		private Delta(long version, List<Change> changes){
+			this.version = version;
+			this.changes = changes;
+		}
+
+		/**
+		 * <p>Gets the version of the list after the changes.</p>
+		 *
+		 * @return The version.
+		 */
+		public long getVersion(){
+			return version;
+		}
+
+		/**
+		 * <p>Gets the changes. Only the last change to each node is included.</p>
+		 *
+		 * @return The changes, oldest first.
+		 */
+		public List<Change> getChanges(){
+			return changes;
+		}
+	}
+
+	/**
+	 * <p>Identifies this run of the node. This is never 0, which stands for no epoch.</p>
+	 */
+	private final long epoch;
+
+	/**
+	 * <p>The current version of the list.</p>
+	 */
+	private long version;
+
+	/**
+	 * <p>The newest version whose changes are no longer kept. Changes since any version from this one on are known.</p>
+	 */
+	private long floor;
+
+	/**
+	 * <p>The kept changes, oldest first.</p>
+	 */
+	private final ArrayDeque<Change> changes;
+
+	/**
+	 * <p>The number of changes to keep.</p>
+	 */
+	private final int maxChanges;
+
+	/**
+	 * <p>Creates an empty log.</p>
+	 *
+	 * @param maxChanges The number of changes to keep.
+	 */
+	public MembershipLog(int maxChanges){
+		long e = 0;
+		SecureRandom random = new SecureRandom();
+		while(e == 0)
+			e = random.nextLong() & Long.MAX_VALUE;
+		epoch = e;
+		version = 0;
+		floor = 0;
+		changes = new ArrayDeque<Change>();
+		this.maxChanges = Math.max(1, maxChanges);
+	}
+
+	/**
+	 * <p>Gets the epoch identifying this run of the node.</p>
+	 *
+	 * @return The epoch.
+	 */
+	public long getEpoch(){
+		return epoch;
+	}
+
+	/**
+	 * <p>Gets the current version of the list. A list read after this is called is at least as new as the version
+	 * returned.</p>
+	 *
+	 * @return The version.
+	 */
+	public synchronized long getVersion(){
+		return version;
+	}
+
+	/**
+	 * <p>Records that a node was added to the active node list.</p>
+	 *
+	 * @param rn The node.
+	 */
+	public void added(RemoteNode rn){
+		record(rn.getIpAddress(), rn.getListeningPort(), true);
+	}
+
+	/**
+	 * <p>Records that a node was removed from the active node list.</p>
+	 *
+	 * @param rn The node.
+	 */
+	public void removed(RemoteNode rn){
+		record(rn.getIpAddress(), rn.getListeningPort(), false);
+	}
+
+	/**
+	 * <p>Records a change to the active node list.</p>
+	 *
+	 * @param address The address of the node.
+	 * @param port The listening port of the node.
+	 * @param added Whether the node was added rather than removed.
+	 */
+	public synchronized void record(InetAddress address, int port, boolean added){
+		changes.addLast(new Change(++version, address, port, added));
+		while(changes.size() > maxChanges)
+			floor = changes.removeFirst().version;
+	}
+
+	/**
+	 * <p>Gets the changes made since a version.</p>
+	 *
+	 * @param epoch The epoch the version belongs to.
+	 * @param since The version.
+	 * @return The changes, or null if they are not known and the whole list must be sent instead.
+	 */
+	public synchronized Delta since(long epoch, long since){
+		if(epoch != this.epoch || since < floor || since > version)
+			return null;
+
+		//Only the last change to each node matters
+		LinkedHashMap<String, Change> last = new LinkedHashMap<String, Change>();
+		for(Iterator<Change> i = changes.descendingIterator(); i.hasNext();){
+			Change c = i.next();
+			if(c.version <= since)
+				break;
+			String key = c.address.getHostAddress() + ":" + c.port;
+			if(!last.containsKey(key))
+				last.put(key, c);
+		}
+		ArrayList<Change> ret = new ArrayList<Change>(last.values());
+		Collections.reverse(ret);
+		return new Delta(version, ret);
+	}
+}
@@ -0,0 +1,299 @@
+package com.github.uberroot.ncjbot;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.github.uberroot.ncjbot.modapi.ConnectionFactory.Connection;
+import com.github.uberroot.ncjbot.protocol.FrameWriter;
+
+/**
+ * <p>A unit of data sent to or received from a job, held either in memory or in a file. Small payloads are held on the heap,
+ * or off the heap in a direct buffer, and large ones in a file, so that neither sending nor receiving requires the whole
+ * payload to fit in the heap. Payloads held in files are sent straight from the file, and are read through memory mapped
+ * regions of the file rather than copied into the heap.</p>
+ *
+ * <p>A received payload is only valid until the method it was delivered to returns, after which it is closed. Closing a
+ * payload that the node spooled to a file deletes the file. Closing any other payload has no effect.</p>
+ *
+ * @author Carter Waxman
+ *
+ */
+public final class Payload implements Closeable {
+	/**
+	 * <p>The data, if the payload is held in memory, or its mapping, once the file holding the payload has been mapped. Only
+	 * read-only views of this are given out.</p>
+	 */
+	private ByteBuffer buffer;
+	
+	/**
+	 * <p>The file holding the payload, or null if it is held in memory.</p>
+	 */
+	private final File file;
+	
+	/**
+	 * <p>Whether the file was created by the node to hold the payload, and so should be deleted when the payload is closed.</p>
+	 */
+	private final boolean spooled;
+	
+	/**
+	 * <p>The length of the payload.</p>
+	 */
+	private final long length;
+	
+	/**
+	 * <p>Creates a payload. Payloads are created with the static methods of this class.</p>
+	 *
+	 * @param buffer The data held in memory, or null.
+	 * @param file The file holding the data, or null.
+	 * @param spooled Whether the file should be deleted when the payload is closed.
+	 * @param length The length of the payload.
+	 */
+	private Payload(ByteBuffer buffer, File file, boolean spooled, long length){
+		this.buffer = buffer;
+		this.file = file;
+		this.spooled = spooled;
+		this.length = length;
+	}
+	
+	/**
+	 * <p>Creates a payload holding an array. The array is not copied, and must not be modified while the payload is in use.</p>
+	 *
+	 * @param data The data.
+	 * @return The payload.
+	 */
+	public static Payload wrap(byte[] data){
+		return new Payload(ByteBuffer.wrap(data), null, false, data.length);
+	}
+	
+	/**
+	 * <p>Creates a payload holding the remaining data of a buffer, which may be direct. The data is not copied, and must not be
+	 * modified while the payload is in use. The position of the buffer is not changed.</p>
+	 *
+	 * @param data The data.
+	 * @return The payload.
+	 */
+	public static Payload wrap(ByteBuffer data){
+		ByteBuffer b = data.slice();
+		return new Payload(b, null, false, b.remaining());
+	}
+	
+	/**
+	 * <p>Creates a payload holding the contents of a file. The file is read when the payload is used, and must not be modified
+	 * while it is in use. It is not deleted when the payload is closed.</p>
+	 *
+	 * @param file The file.
+	 * @return The payload.
+	 * @throws IOException If the file does not exist.
+	 */
+	public static Payload of(File file) throws IOException{
+		if(!file.isFile())
+			throw new IOException(file + " does not exist");
+		return new Payload(null, file, false, file.length());
+	}
+	
+	/**
+	 * <p>Creates a payload held in a file spooled by the node. The file is deleted when the payload is closed.</p>
+	 *
+	 * @param file The file.
+	 * @param length The length of the payload.
+	 * @return The payload.
+	 */
+	static Payload spooled(File file, long length){
+		return new Payload(null, file, true, length);
+	}
+	
+	/**
+	 * <p>Gets the length of the payload.</p>
+	 *
+	 * @return The length in bytes.
+	 */
+	public long length(){
+		return length;
+	}
+	
+	/**
+	 * <p>Determines whether the payload is held in a file.</p>
+	 *
+	 * @return True if the payload is held in a file, or false if it is held in memory.
+	 */
+	public boolean isFile(){
+		return file != null;
+	}
+	
+	/**
+	 * <p>Gets the whole payload as a buffer. A payload held in a file is mapped into memory the first time this is called.</p>
+	 *
+	 * @return A read-only buffer holding the payload.
+	 * @throws IOException If the payload is longer than a buffer can be, in which case {@link #getRegion(long, int)} or
+	 * {@link #openStream()} must be used, or if the file could not be mapped.
+	 */
+	public ByteBuffer getBuffer() throws IOException{
+		return buffer().asReadOnlyBuffer();
+	}
+	
+	/**
+	 * <p>Gets the data of the payload, mapping the file holding it if it has not yet been mapped.</p>
+	 *
+	 * @return A view of the data, which may be writable.
+	 * @throws IOException
+	 */
+	private synchronized ByteBuffer buffer() throws IOException{
+		if(buffer == null){
+			if(length > Integer.MAX_VALUE)
+				throw new IOException("The payload of " + length + " bytes is too large for a single buffer");
+			buffer = map(0, (int)length);
+		}
+		return buffer.duplicate();
+	}
+	
+	/**
+	 * <p>Gets part of the payload as a buffer. A payload held in a file is mapped into memory for each region, so that
+	 * payloads too large for a single buffer may be read in parts.</p>
+	 *
+	 * @param position The position in the payload at which the region begins.
+	 * @param size The length of the region.
+	 * @return A read-only buffer holding the region.
+	 * @throws IOException If the region does not lie within the payload, or the file could not be mapped.
+	 */
+	public synchronized ByteBuffer getRegion(long position, int size) throws IOException{
+		if(position < 0 || size < 0 || position + size > length)
+			throw new IOException("The region " + position + "+" + size + " is outside the payload of " + length + " bytes");
+		if(buffer == null)
+			return map(position, size);
+		ByteBuffer b = buffer.duplicate();
+		b.position((int)position);
+		b.limit((int)position + size);
+		return b.slice().asReadOnlyBuffer();
+	}
+	
+	/**
+	 * <p>Opens a stream reading the whole payload.</p>
+	 *
+	 * @return The stream, which should be closed when finished.
+	 * @throws IOException If the file could not be opened.
+	 */
+	public InputStream openStream() throws IOException{
+		if(file != null)
+			return new FileInputStream(file);
+		final ByteBuffer b = getBuffer();
+		return new InputStream(){
+			@Override
+			public int read() throws IOException {
+				return b.hasRemaining() ? b.get() & 0xFF : -1;
+			}
+			
+			@Override
+			public int read(byte[] data, int off, int len) throws IOException {
+				if(!b.hasRemaining())
+					return len == 0 ? 0 : -1;
+				len = Math.min(len, b.remaining());
+				b.get(data, off, len);
+				return len;
+			}
+			
+			@Override
+			public int available() {
+				return b.remaining();
+			}
+		};
+	}
+	
+	/**
+	 * <p>Maps a region of the file holding the payload.</p>
+	 *
+	 * @param position The position of the region.
+	 * @param size The length of the region.
+	 * @return A read-only buffer holding the region.
+	 * @throws IOException
+	 */
+	private ByteBuffer map(long position, int size) throws IOException{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try{
+			//The mapping remains valid after the file is closed
+			return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, position, size);
+		}
+		finally{
+			raf.close();
+		}
+	}
+	
+	/**
+	 * <p>Writes the whole payload to a frame.</p>
+	 *
+	 * @param out The writer for the frame.
+	 * @throws IOException
+	 */
+	void writeTo(FrameWriter out) throws IOException{
+		if(file != null){
+			FileInputStream fin = new FileInputStream(file);
+			try{
+				out.writeFrom(fin, length);
+			}
+			finally{
+				fin.close();
+			}
+			return;
+		}
+		ByteBuffer b = buffer();
+		if(b.hasArray()){
+			out.writeBytes(b.array(), b.arrayOffset() + b.position(), b.remaining());
+			return;
+		}
+		
+		//Direct buffers are copied through a small array
+		byte chunk[] = new byte[Math.min(b.remaining(), 8192)];
+		while(b.hasRemaining()){
+			int n = Math.min(chunk.length, b.remaining());
+			b.get(chunk, 0, n);
+			out.writeBytes(chunk, 0, n);
+		}
+	}
+	
+	/**
+	 * <p>Writes the whole payload straight to a connection. A payload held in a file is passed from the file to the connection
+	 * without being copied into the heap if the connection allows it.</p>
+	 *
+	 * @param c The connection.
+	 * @throws IOException
+	 */
+	void transferTo(Connection c) throws IOException{
+		if(file != null){
+			FileInputStream fin = new FileInputStream(file);
+			try{
+				c.transferFrom(fin.getChannel(), 0, length);
+			}
+			finally{
+				fin.close();
+			}
+			return;
+		}
+		ByteBuffer b = buffer();
+		if(b.hasArray()){
+			c.write(b.array(), b.arrayOffset() + b.position(), b.remaining());
+			return;
+		}
+		byte chunk[] = new byte[Math.min(b.remaining(), 8192)];
+		while(b.hasRemaining()){
+			int n = Math.min(chunk.length, b.remaining());
+			b.get(chunk, 0, n);
+			c.write(chunk, 0, n);
+		}
+	}
+	
+	/**
+	 * <p>Releases the payload, deleting the file holding it if the node spooled it.</p>
+	 */
+	@Override
+	public synchronized void close(){
+		if(spooled){
+			buffer = null;
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package com.github.uberroot.ncjbot;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * <p>The last active node list received from a remote node, and the membership version it was received at. This allows
+ * {@link RequestPipeline#getKnownNodes()} to ask the node for only the changes since then.</p>
+ *
+ * @author Carter Waxman
+ *
+ */
+final class PeerMembership {
+	/**
+	 * <p>The epoch of the remote node the list belongs to, or 0 if no list has been received.</p>
+	 */
+	private long epoch;
+	
+	/**
+	 * <p>The version of the list.</p>
+	 */
+	private long version;
+	
+	/**
+	 * <p>The nodes in the list, keyed by address and port.</p>
+	 */
+	private final LinkedHashMap<String, RemoteNode> nodes;
+	
+	/**
+	 * <p>Creates an empty view.</p>
+	 */
+	PeerMembership(){
+		epoch = 0;
+		version = 0;
+		nodes = new LinkedHashMap<String, RemoteNode>();
+	}
+	
+	/**
+	 * <p>Gets the epoch and version of the list, read together so that they match.</p>
+	 *
+	 * @return The epoch followed by the version.
+	 */
+	synchronized long[] getPosition(){
+		return new long[]{epoch, version};
+	}
+	
+	/**
+	 * <p>Applies a list received from the remote node.</p>
+	 *
+	 * @param epoch The epoch of the remote node.
+	 * @param version The version of the received list.
+	 * @param delta Whether the received list is the changes since the version asked for rather than the whole list.
+	 * @param added The nodes listed, or added if the list is a delta.
+	 * @param removed The nodes removed, if the list is a delta.
+	 * @return The whole list.
+	 */
+	synchronized List<RemoteNode> apply(long epoch, long version, boolean delta, List<RemoteNode> added, List<RemoteNode> removed){
+		//A reply to an earlier request that arrives late is already reflected in the list
+		if(epoch == this.epoch && version < this.version)
+			return new ArrayList<RemoteNode>(nodes.values());
+		
+		if(!delta)
+			nodes.clear();
+		for(RemoteNode rn : removed)
+			nodes.remove(rn.toString());
+		for(RemoteNode rn : added)
+			nodes.put(rn.toString(), rn);
+		this.epoch = epoch;
+		this.version = version;
+		return new ArrayList<RemoteNode>(nodes.values());
+	}
+}
@@ -0,0 +1,83 @@
+package com.github.uberroot.ncjbot;
+
+import java.io.Closeable;
+
+import com.github.uberroot.ncjbot.modapi.ConnectionFactory.Connection;
+import com.github.uberroot.ncjbot.protocol.Capabilities;
+import com.github.uberroot.ncjbot.protocol.FrameHeader;
+import com.github.uberroot.ncjbot.protocol.FrameReader;
+import com.github.uberroot.ncjbot.protocol.FrameWriter;
+
+/**
+ * <p>A connection to a RemoteNode along with the state needed to use the binary protocol over it. The session is attached
+ * to its connection so that it may be reused along with the connection.</p>
+ *
+ * @author Carter Waxman
+ *
+ */
+final class PeerSession {
+	/**
+	 * <p>The underlying connection.</p>
+	 */
+	final Connection connection;
+	
+	/**
+	 * <p>The reader for frames from the node.</p>
+	 */
+	final FrameReader in;
+	
+	/**
+	 * <p>The writer for frames to the node.</p>
+	 */
+	final FrameWriter out;
+	
+	/**
+	 * <p>The header reused for all frames read.</p>
+	 */
+	final FrameHeader header;
+	
+	/**
+	 * <p>Enforces the read and write timeouts of the session while it is armed, such as for the life of a
+	 * {@link RequestPipeline}.</p>
+	 */
+	final SessionTimer.Watch watch;
+	
+	/**
+	 * <p>The capabilities negotiated with the node.</p>
+	 */
+	Capabilities capabilities;
+	
+	/**
+	 * <p>Creates a session over an open connection.</p>
+	 *
+	 * @param node The running LocalNode instance.
+	 * @param remote The node at the other end of the connection.
+	 * @param connection The open connection.
+	 */
+	PeerSession(LocalNode node, RemoteNode remote, final Connection connection){
+		this.connection = connection;
+		watch = node.getSessionTimer().watch(new Closeable(){
+			@Override
+			public void close() {
+				connection.close();
+			}
+		}, "session with " + remote,
+				node.getConfigManager().getSetting("RemoteNode", "readTimeout", int.class),
+				node.getConfigManager().getSetting("RemoteNode", "writeTimeout", int.class),
+				0);
+		in = new FrameReader(watch.watch(connection.getInputStream()));
+		out = new FrameWriter(watch.watch(connection.getOutputStream()));
+		header = new FrameHeader();
+	}
+	
+	/**
+	 * <p>Finishes the current use of the session. The connection is returned for reuse if the node keeps sessions open between
+	 * requests, and closed otherwise.</p>
+	 */
+	void release(){
+		if(capabilities != null && capabilities.supports(Capabilities.POOLED_CONNECTIONS))
+			connection.release();
+		else
+			connection.close();
+	}
+}
@@ -1,5 +1,8 @@
 package com.github.uberroot.ncjbot;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
 import com.github.uberroot.ncjbot.api.LocalJob;
 
 /**
@@ -65,18 +68,80 @@ public final class RemoteJob {
 	
 	/**
 	 * <p>Sends a chunk of data to the remote job. Upon receipt, this should trigger a call to the
-	 * {@link LocalJob#dataReceived(RemoteNode, String, java.io.File)} method for the remote LocalNode class.</p>
+	 * {@link LocalJob#dataReceived(RemoteNode, String, Payload)} method for the remote LocalNode class.</p>
 	 * 
 	 * @param data The data to send.
 	 * 
 	 * @throws IOException 
 	 * @throws NodeStateException 
 	 */
-	//TODO: The type for data will likely become an abstraction, allowing direct use of files and memory cached resources.
 	public void sendData(byte data[]) throws IOException, NodeStateException{ //TODO: Enforce linkages between jobs and remote jobs to prevent spoofing
 		remoteNode.sendData(remoteTid, data);
 	}
 	
+	/**
+	 * <p>Sends a chunk of data held in memory or in a file to the remote job. Data held in a large file is sent straight from
+	 * the file, so results of any size may be sent without reading them into the heap.</p>
+	 * 
+	 * @param data The data to send. It is not closed.
+	 * 
+	 * @throws IOException 
+	 * @throws NodeStateException 
+	 */
+	public void sendData(Payload data) throws IOException, NodeStateException{ //TODO: Enforce linkages between jobs and remote jobs to prevent spoofing
+		remoteNode.sendData(remoteTid, data);
+	}
+	
+	/**
+	 * <p>Sends a chunk of data to the remote job without waiting for it to be received, as by
+	 * {@link RemoteNode#sendDataAsync(String, byte[])}.</p>
+	 * 
+	 * @param data The data to send, which must not be modified until the future completes.
+	 * @return A future that completes when the data has been received.
+	 */
+	public CompletableFuture<Void> sendDataAsync(byte data[]){ //TODO: Enforce linkages between jobs and remote jobs to prevent spoofing
+		return remoteNode.sendDataAsync(remoteTid, data);
+	}
+	
+	/**
+	 * <p>Calls the remote job, which answers through the {@link LocalJob#callReceived(RemoteNode, String, java.nio.ByteBuffer)}
+	 * method for the remote LocalNode class. The call is sent over a connection held open for calls to the remote node, so
+	 * any number of calls may await their replies at once without a connection being made for each.</p>
+	 * 
+	 * @param data The request.
+	 * @return A Future for the reply. The buffer is read-only. See {@link CallChannel} for the ways a call may fail.
+	 * 
+	 * @throws IOException If the remote node does not accept calls or the call could not be sent.
+	 */
+	public Future<ByteBuffer> call(byte data[]) throws IOException{
+		return node.getCallChannel(remoteNode).call(remoteTid, Thread.currentThread().getId(), data); //TODO: This assumes that the calling thread is the one that runs the LocalJob
+	}
+	
+	/**
+	 * <p>Opens a stream of data to the remote job. Upon receipt, this triggers a call to the
+	 * {@link LocalJob#streamReceived(RemoteNode, String, java.io.InputStream)} method for the remote LocalNode class.
+	 * The stream must be closed once all of the data has been written.</p>
+	 * 
+	 * @return The stream.
+	 * 
+	 * @throws IOException If the remote node does not accept streams, or if the remote job is not running.
+	 * @throws NodeStateException 
+	 */
+	public RemoteStream openStream() throws IOException, NodeStateException{
+		return remoteNode.openStream(remoteTid);
+	}
+	
+	/**
+	 * <p>Opens a sender that gathers many small units of data for the remote job and sends them together. Each unit is
+	 * delivered separately, and in order, to the {@link LocalJob#dataReceived(RemoteNode, String, Payload)}
+	 * method for the remote LocalNode class. The sender should be closed once all of the data has been queued.</p>
+	 * 
+	 * @return The sender.
+	 */
+	public BatchSender openBatchSender(){
+		return new BatchSender(node, remoteNode, remoteTid);
+	}
+	
 	@Override
 	public String toString(){
 		return remoteNode.toString() + "_" + remoteTid;
@@ -1,23 +1,39 @@
 package com.github.uberroot.ncjbot;
-import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 import com.github.uberroot.ncjbot.modapi.ConnectionFactory.Connection;
+import com.github.uberroot.ncjbot.protocol.Capabilities;
+import com.github.uberroot.ncjbot.protocol.FrameWriter;
+import com.github.uberroot.ncjbot.protocol.Opcode;
+import com.github.uberroot.ncjbot.protocol.Protocol;
 
 
 /**
  * <p>This class is responsible for holding data about remote nodes and handling the underlying socket communication.</p>
  * 
+ * <p>Network operations do not lock the RemoteNode, so any number of them may run against the same node at once, each over
+ * its own connection. Each blocking operation has an asynchronous variant that runs it on the thread pool given by
+ * RemoteNode.ioThreadPool and returns at once. The futures of these variants fail with the same IOException or
+ * NodeStateException the blocking operation would throw, which {@link RequestPipeline#getResult(Future)} rethrows.</p>
+ * 
  * @author Carter Waxman
  */
 //TODO: This should encapsulate a meta-class that handles ALL client socket code. Meta class methods will not automatically close sockets for efficiency.
@@ -64,14 +80,15 @@ public final class RemoteNode {
 	private LocalNode node;
 	
 	/**
-	 * The port on which the node accepts new connections.
+	 * The port on which the node accepts new connections. The address, port and hash are volatile rather than guarded by
+	 * the node, so that equals, hashCode and toString never lock it.
 	 */
-	private int listeningPort;
+	private volatile int listeningPort;
 	
 	/**
 	 * The IP address of the node.
 	 */
-	private InetAddress ipAddress;
+	private volatile InetAddress ipAddress;
 	
 	/**
 	 * The last confirmed state of the node.
@@ -82,7 +99,7 @@ public final class RemoteNode {
 	 * A unique hash for the address-port paring. This is recalculated when either value changes.
 	 */
 	//TODO: This should be based on sequential / random ID numbers generated when a node joins a network (A Node ID). UUID class???
-	private int hashCode; //TODO: THIS PROBABLY COLLIDES.
+	private volatile int hashCode; //TODO: THIS PROBABLY COLLIDES.
 	
 	/**
 	 * Creates an instance of a RemoteNode with the host/port pair.
@@ -100,6 +117,20 @@ public final class RemoteNode {
 		listeners = new Vector<EventListener>();
 	}
 	
+	/**
+	 * Creates an instance of a RemoteNode with the address/port pair.
+	 * @param node The running LocalNode instance.
+	 * @param ip The address of the machine running the node.
+	 * @param port TCP Port on which the node listens.
+	 */
+	public RemoteNode(LocalNode node, InetAddress ip, int port){
+		this.node = node;
+		ipAddress = ip;
+		setListeningPort(port);
+		state = NodeState.UNKNOWN;
+		listeners = new Vector<EventListener>();
+	}
+	
 	//TODO: The following private setters may need to become public if asymmetric cryptography is used for identification, allowing nodes to become aware of ip address changes.
 	
 	/**
@@ -124,7 +155,7 @@ public final class RemoteNode {
 	 * Gets the IPv4 address of the remote node.
 	 * @return The IPv4 address of the remote node.
 	 */
-	public synchronized InetAddress getIpAddress(){
+	public InetAddress getIpAddress(){
 		return ipAddress;
 	}
 
@@ -132,7 +163,7 @@ public final class RemoteNode {
 	 * Gets the listening port of the remote node.
 	 * @return The listening port of the remote node
 	 */
-	public synchronized int getListeningPort(){
+	public int getListeningPort(){
 		return listeningPort;
 	}
 	
@@ -152,8 +183,8 @@ public final class RemoteNode {
 	 * @return True if the nodes match, false if they do not.
 	 */
 	@Override
-	public synchronized boolean equals(Object o){
-		if(o.getClass() == RemoteNode.class){
+	public boolean equals(Object o){
+		if(o != null && o.getClass() == RemoteNode.class){
 			RemoteNode other = (RemoteNode)o;
 			if(other.ipAddress.equals(ipAddress) && other.listeningPort == listeningPort)
 				return true;
@@ -167,7 +198,7 @@ public final class RemoteNode {
 	 * @return The string describing the remote node.
 	 */
 	@Override
-	public synchronized String toString(){
+	public String toString(){
 		return ipAddress.getHostAddress() + ":" + listeningPort;
 	}
 	
@@ -177,7 +208,7 @@ public final class RemoteNode {
 	 * @return The hash code generated.
 	 */
 	@Override
-	public synchronized int hashCode(){
+	public int hashCode(){
 		return hashCode;
 	}
 	
@@ -202,60 +233,634 @@ public final class RemoteNode {
 	}
 
 	/**
-	 * Queries the node for a list of all other nodes it communicates with.
+	 * <p>Gets the outcome of the protocol negotiation with the node. Negotiation occurs when the first connection is made
+	 * and is repeated after a connection failure.</p>
 	 * 
+	 * @return The negotiated capabilities, or null if the node has not been negotiated with.
+	 */
+	public Capabilities getCapabilities(){
+		return node.getCapabilities(this);
+	}
+	
+	/**
+	 * <p>Creates a pipeline for sending several requests to the node over a single connection without awaiting each reply.
+	 * The pipeline must be closed when it is no longer needed.</p>
+	 *
+	 * @return The new pipeline.
+	 * @throws IOException If a connection could not be established.
+	 */
+	public RequestPipeline pipeline() throws IOException{
+		try {
+			return new RequestPipeline(node, this, openSession());
+		} catch (IOException e) {
+			//Communication error of some sort.
+			nodeConnectionFailed();
+			throw e;
+		}
+	}
+	
+	/**
+	 * <p>Runs a blocking operation on the thread pool given by RemoteNode.ioThreadPool.</p>
+	 *
+	 * @param task The operation.
+	 * @return A future for the outcome of the operation.
+	 */
+	private <T> CompletableFuture<T> async(final Callable<T> task){
+		final CompletableFuture<T> f = new CompletableFuture<T>();
+		try{
+			node.getExecutor(node.getConfigManager().getSetting("RemoteNode", "ioThreadPool", int.class)).execute(new Runnable(){
+				@Override
+				public void run() {
+					try{
+						f.complete(task.call());
+					} catch (Throwable e) {
+						f.completeExceptionally(e);
+					}
+				}
+			});
+		} catch(RejectedExecutionException e){
+			f.completeExceptionally(new IOException("Unable to queue an operation for " + this, e));
+		}
+		return f;
+	}
+	
+	/**
+	 * Queries the node for a list of all other nodes it communicates with.
+	 *
 	 * @throws ConnectException
-	 * @throws IOException 
-	 * @throws NodeStateException 
+	 * @throws IOException
+	 * @throws NodeStateException
 	 */
-	public synchronized List<RemoteNode> getKnownNodes() throws IOException, NodeStateException{
+	public List<RemoteNode> getKnownNodes() throws IOException, NodeStateException{
+		RequestPipeline p = pipeline();
+		try{
+			Future<List<RemoteNode>> f = p.getKnownNodes();
+			p.await();
+			return RequestPipeline.getResult(f);
+		}
+		finally{
+			p.close();
+		}
+	}
+	
+	/**
+	 * <p>Performs {@link #getKnownNodes()} on the thread pool given by RemoteNode.ioThreadPool.</p>
+	 *
+	 * @return A future for the nodes known to the node.
+	 */
+	public CompletableFuture<List<RemoteNode>> getKnownNodesAsync(){
+		return async(new Callable<List<RemoteNode>>(){
+			@Override
+			public List<RemoteNode> call() throws Exception {
+				return getKnownNodes();
+			}
+		});
+	}
+	
+	/**
+	 * Sends a unit of data to a specific job on the remote node.
+	 *
+	 * @param destTid The thread id of the job receiving the data.
+	 * @param data The data to send.
+	 *
+	 * @throws ConnectException
+	 * @throws IOException
+	 * @throws NodeStateException
+	 */
+	//TODO: This method should be merged with RemoteJob.sendData(byte[])
+	public void sendData(String destTid, byte[] data) throws IOException, NodeStateException{
+		sendData(destTid, Payload.wrap(data));
+	}
+	
+	/**
+	 * Sends a unit of data held in memory or in a file to a specific job on the remote node. Large files are sent without
+	 * being read into the heap.
+	 *
+	 * @param destTid The thread id of the job receiving the data.
+	 * @param data The data to send. It is not closed.
+	 *
+	 * @throws IOException
+	 * @throws NodeStateException
+	 */
+	public void sendData(String destTid, Payload data) throws IOException, NodeStateException{
+		sendData(destTid, Thread.currentThread().getId(), data); //TODO: This assumes that the thread calling this method is the one that runs the LocalJob
+	}
+	
+	/**
+	 * Sends a unit of data to a specific job on the remote node, identifying the data as originating from the given job.
+	 *
+	 * @param destTid The thread id of the job receiving the data.
+	 * @param sourceTid The thread id of the job sending the data.
+	 * @param data The data to send. It is not closed.
+	 *
+	 * @throws IOException
+	 * @throws NodeStateException
+	 */
+	private void sendData(String destTid, long sourceTid, Payload data) throws IOException, NodeStateException{
+		RequestPipeline p = pipeline();
+		try{
+			Future<Void> f = p.sendData(destTid, sourceTid, data);
+			p.await();
+			RequestPipeline.getResult(f);
+		}
+		finally{
+			p.close();
+		}
+	}
+	
+	/**
+	 * <p>Performs {@link #sendData(String, byte[])} on the thread pool given by RemoteNode.ioThreadPool. The data is identified
+	 * as originating from the thread calling this method.</p>
+	 *
+	 * @param destTid The thread id of the job receiving the data.
+	 * @param data The data to send, which must not be modified until the future completes.
+	 * @return A future that completes when the data has been received.
+	 */
+	public CompletableFuture<Void> sendDataAsync(String destTid, byte[] data){
+		return sendDataAsync(destTid, Payload.wrap(data));
+	}
+	
+	/**
+	 * <p>Performs {@link #sendData(String, Payload)} on the thread pool given by RemoteNode.ioThreadPool. The data is
+	 * identified as originating from the thread calling this method.</p>
+	 *
+	 * @param destTid The thread id of the job receiving the data.
+	 * @param data The data to send, which must not be closed until the future completes.
+	 * @return A future that completes when the data has been received.
+	 */
+	public CompletableFuture<Void> sendDataAsync(final String destTid, final Payload data){
+		final long sourceTid = Thread.currentThread().getId(); //TODO: This assumes that the thread calling this method is the one that runs the LocalJob
+		return async(new Callable<Void>(){
+			@Override
+			public Void call() throws Exception {
+				sendData(destTid, sourceTid, data);
+				return null;
+			}
+		});
+	}
+	
+	/**
+	 * Sends several units of data to a specific job on the remote node at once. The units are delivered in order.
+	 *
+	 * @param destTid The thread id of the job receiving the data.
+	 * @param sourceTid The thread id of the job sending the data.
+	 * @param data The units of data to send.
+	 *
+	 * @throws IOException
+	 * @throws NodeStateException
+	 * @see BatchSender
+	 */
+	public void sendBatch(String destTid, long sourceTid, List<byte[]> data) throws IOException, NodeStateException{
+		RequestPipeline p = pipeline();
+		try{
+			Future<Void> f = p.sendBatch(destTid, sourceTid, data);
+			p.await();
+			RequestPipeline.getResult(f);
+		}
+		finally{
+			p.close();
+		}
+	}
+	
+	/**
+	 * <p>Opens a stream of data to a specific job on the remote node. The stream holds a connection to the node until it
+	 * is closed.</p>
+	 *
+	 * @param destTid The thread id of the job receiving the data.
+	 * @return The stream.
+	 *
+	 * @throws IOException If the node does not accept streams, or if the job is not running.
+	 * @throws NodeStateException
+	 * @see RemoteStream
+	 */
+	public RemoteStream openStream(String destTid) throws IOException, NodeStateException{
+		PeerSession s;
+		try {
+			s = openSession();
+		} catch (IOException e) {
+			nodeConnectionFailed();
+			throw e;
+		}
+		if(s == null)
+			throw new IOException(this + " does not accept streams");
+		if(!s.capabilities.supports(Capabilities.STREAMS)){
+			s.release();
+			throw new IOException(this + " does not accept streams");
+		}
+		
+		boolean accepted;
+		try {
+			//Send the listening port for this node to allow node identification, the remote(parent) process id, and the local process id
+			int port = node.getServer().getCurrentPort();
+			long dest = Long.parseLong(destTid);
+			long source = Thread.currentThread().getId(); //TODO: This assumes that the thread calling this method is the one that runs the LocalJob
+			s.out.beginFrame(Opcode.STREAM, 0, 0, FrameWriter.varintSize(port) + FrameWriter.varintSize(dest) + FrameWriter.varintSize(source));
+			s.out.writeVarint(port);
+			s.out.writeVarint(dest);
+			s.out.writeVarint(source);
+			s.out.flush();
+			if(!s.in.readHeader(s.header))
+				throw new EOFException("The node closed the connection before accepting the stream");
+			if(s.header.getOpcode() == Opcode.STATUS){
+				//The node refused the stream
+				NodeState state = Protocol.decodeState(s.in.readByte());
+				s.release();
+				if(state == NodeState.RUNNING)
+					state = NodeState.UNKNOWN;
+				setState(state);
+				throw new NodeStateException(state);
+			}
+			if(s.header.getOpcode() != Opcode.ACK)
+				throw new ProtocolException("Expected " + Opcode.ACK + " but received " + s.header.getOpcode());
+			accepted = !s.header.hasFlag(Protocol.FLAG_FAILED);
+		} catch (IOException e) {
+			s.connection.close();
+			nodeConnectionFailed();
+			throw e;
+		}
+		setState(NodeState.RUNNING);
+		if(!accepted){
+			s.release();
+			throw new IOException("Job " + destTid + " is not running on " + this);
+		}
+		return new RemoteStream(this, s, node.getConfigManager().getSetting("RemoteNode", "streamChunk", int.class));
+	}
+	
+	/**
+	 * Sends a job to be run on the RemoteNode. This will automatically register the RemoteNode with the Watchdog. Upon completion,
+	 * a corresponding call to releaseWatchdogReceiver() should occur with this node.
+	 *
+	 * @param ownerTid The thread id of the job that will be the parent of the started job.
+	 * @param worker A file pointing to the class file to send.
+	 * @param params Initialization parameters for the new LocalJob.
+	 * @return The remote thread id of the new job.
+	 *
+	 * @throws ConnectException
+	 * @throws IOException
+	 * @throws NodeStateException
+	 */
+	//TODO: Automatically derive ownerTid.
+	//TODO: Abstract param and worker storage and account for performance and space issues automatically.
+	//TODO: This should return a RemoteJob
+	//TODO: An additional parameter should be provided to allow the Watchdog functionality to be toggled
+	//TODO: Add job state tracking.
+	public long sendJob(long ownerTid, File worker, byte[] params) throws IOException, NodeStateException{
+		RequestPipeline p = pipeline();
+		try{
+			Future<Long> f = p.sendJob(ownerTid, worker, params);
+			p.await();
+			//node.getWatchdog().registerReceiver(this);
+			return RequestPipeline.getResult(f);
+		}
+		finally{
+			p.close();
+		}
+	}
+	
+	/**
+	 * <p>Performs {@link #sendJob(long, File, byte[])} on the thread pool given by RemoteNode.ioThreadPool.</p>
+	 *
+	 * @param ownerTid The thread id of the job that will be the parent of the started job.
+	 * @param worker A file pointing to the class file to send.
+	 * @param params Initialization parameters for the new LocalJob, which must not be modified until the future completes.
+	 * @return A future for the remote thread id of the new job.
+	 */
+	public CompletableFuture<Long> sendJobAsync(final long ownerTid, final File worker, final byte[] params){
+		return async(new Callable<Long>(){
+			@Override
+			public Long call() throws Exception {
+				return sendJob(ownerTid, worker, params);
+			}
+		});
+	}
+	
+	/**
+	 * <p>Sends a job that has already been read into memory to the node and starts it. This should only be called by
+	 * {@link LocalNode#dispatchJob(long, File, byte[], java.util.Collection)}.</p>
+	 *
+	 * @param image The worker.
+	 * @return The remote thread id of the new job, or -1 if it could not be started.
+	 * @throws IOException
+	 * @throws NodeStateException
+	 */
+	long sendJob(WorkerImage image) throws IOException, NodeStateException{
+		RequestPipeline p = pipeline();
+		try{
+			Future<Long> f = p.sendJob(image);
+			p.await();
+			return RequestPipeline.getResult(f);
+		}
+		finally{
+			p.close();
+		}
+	}
+	
+	/**
+	 * <p>Gets a handle to a job running on the node, such as one started with {@link #sendJob(long, File, byte[])}.</p>
+	 *
+	 * @param remoteTid The thread id of the job.
+	 * @return The job.
+	 */
+	public RemoteJob getJob(long remoteTid){
+		return new RemoteJob(node, this, Long.toString(remoteTid));
+	}
+	
+	/**
+	 * <p>Alerts the RemoteNode to the presence of this node. This is used to join into a network and to
+	 * alert the RemoteNode that the current node is still active.</p>
+	 *
+	 * @throws IOException
+	 * @throws NodeStateException
+	 */
+	public void beacon() throws IOException, NodeStateException{
+		RequestPipeline p = pipeline();
+		try{
+			Future<Void> f = p.beacon();
+			p.await();
+			RequestPipeline.getResult(f);
+		}
+		finally{
+			p.close();
+		}
+	}
+	
+	/**
+	 * <p>Performs {@link #beacon()} on the thread pool given by RemoteNode.ioThreadPool.</p>
+	 *
+	 * @return A future that completes when the node has acknowledged the beacon.
+	 */
+	public CompletableFuture<Void> beaconAsync(){
+		return async(new Callable<Void>(){
+			@Override
+			public Void call() throws Exception {
+				beacon();
+				return null;
+			}
+		});
+	}
+	
+	/**
+	 * <p>Probes the node as part of gossip about the membership of the network, exchanging membership updates with it. Nodes
+	 * that do not take part in gossip are beaconed instead, and send back no updates.</p>
+	 *
+	 * @param updates The updates to send.
+	 * @return The updates sent back by the node.
+	 * @throws IOException
+	 * @throws NodeStateException
+	 */
+	public List<MemberUpdate> ping(List<MemberUpdate> updates) throws IOException, NodeStateException{
+		RequestPipeline p = pipeline();
+		try{
+			Future<List<MemberUpdate>> f = p.ping(updates);
+			p.await();
+			return RequestPipeline.getResult(f);
+		}
+		finally{
+			p.close();
+		}
+	}
+	
+	/**
+	 * <p>Performs {@link #ping(List)} on the thread pool given by RemoteNode.ioThreadPool.</p>
+	 *
+	 * @param updates The updates to send.
+	 * @return A future for the updates sent back by the node.
+	 */
+	public CompletableFuture<List<MemberUpdate>> pingAsync(final List<MemberUpdate> updates){
+		return async(new Callable<List<MemberUpdate>>(){
+			@Override
+			public List<MemberUpdate> call() throws Exception {
+				return ping(updates);
+			}
+		});
+	}
+	
+	/**
+	 * <p>Asks the node to probe another node on behalf of this one, which could not reach it directly, exchanging membership
+	 * updates with it.</p>
+	 *
+	 * @param target The node to probe.
+	 * @param timeout The number of milliseconds the node should wait for the target to answer.
+	 * @param updates The updates to send.
+	 * @return The updates sent back by the node, or null if the target did not answer.
+	 * @throws IOException If the node could not be reached or does not take part in gossip.
+	 * @throws NodeStateException
+	 */
+	public List<MemberUpdate> pingRequest(RemoteNode target, int timeout, List<MemberUpdate> updates) throws IOException, NodeStateException{
+		RequestPipeline p = pipeline();
+		try{
+			Future<List<MemberUpdate>> f = p.pingRequest(target, timeout, updates);
+			p.await();
+			return RequestPipeline.getResult(f);
+		}
+		finally{
+			p.close();
+		}
+	}
+	
+	/**
+	 * <p>Performs {@link #pingRequest(RemoteNode, int, List)} on the thread pool given by RemoteNode.ioThreadPool.</p>
+	 *
+	 * @param target The node to probe.
+	 * @param timeout The number of milliseconds the node should wait for the target to answer.
+	 * @param updates The updates to send.
+	 * @return A future for the updates sent back by the node, which will be null if the target did not answer.
+	 */
+	public CompletableFuture<List<MemberUpdate>> pingRequestAsync(final RemoteNode target, final int timeout, final List<MemberUpdate> updates){
+		return async(new Callable<List<MemberUpdate>>(){
+			@Override
+			public List<MemberUpdate> call() throws Exception {
+				return pingRequest(target, timeout, updates);
+			}
+		});
+	}
+	
+	/**
+	 * <p>Opens a binary session with the node, negotiating the protocol to use if it has not already been negotiated.
+	 * If the connection is being reused, the session previously attached to it is returned.</p>
+	 *
+	 * @return The session, or null if the node only speaks the text protocol.
+	 * @throws IOException
+	 */
+	PeerSession openSession() throws IOException{
+		Capabilities caps = node.getCapabilities(this);
+		if(caps != null && caps.isLegacy())
+			return null;
+		
+		Connection c = node.getConnectionFactory().getConnection(this);
+		PeerSession s;
+		try {
+			s = (PeerSession)c.getAttachment();
+			if(s == null){
+				s = new PeerSession(node, this, c);
+				s.out.writePreamble();
+				c.setAttachment(s);
+			}
+			if(caps != null){
+				s.capabilities = caps;
+				return s;
+			}
+			
+			//Offer the features of this node
+			caps = negotiate(s);
+		} catch (IOException e) {
+			//The connection is in an unknown state, so it cannot be reused
+			c.close();
+			throw e;
+		}
+		if(caps != null){
+			node.setCapabilities(this, caps);
+			s.capabilities = caps;
+			return s;
+		}
+		
+		//The node did not answer the offer. Only fall back to the text protocol if it answers in text instead.
+		c.close();
+		if(!legacyAnswers())
+			throw new SocketTimeoutException(this + " did not answer the protocol negotiation");
+		node.setCapabilities(this, Capabilities.LEGACY);
+		System.out.println(this + " only supports the text protocol");
+		return null;
+	}
+	
+	/**
+	 * <p>Offers the version and features of this node and awaits the agreed values. Nodes that predate the binary protocol
+	 * will not answer, so the offer is abandoned if no answer arrives within the configured negotiation timeout.</p>
+	 *
+	 * @param s A session.
+	 * @return The negotiated capabilities, or null if the node did not answer.
+	 * @throws IOException
+	 */
+	private Capabilities negotiate(PeerSession s) throws IOException{
+		s.out.beginFrame(Opcode.HELLO, 0, 0, FrameWriter.varintSize(Capabilities.VERSION) + FrameWriter.varintSize(Capabilities.LOCAL));
+		s.out.writeVarint(Capabilities.VERSION);
+		s.out.writeVarint(Capabilities.LOCAL);
+		s.out.flush();
+		
+		s.connection.setReadTimeout(node.getConfigManager().getSetting("RemoteNode", "negotiationTimeout", int.class));
+		try{
+			if(!s.in.readHeader(s.header))
+				throw new EOFException("The node closed the connection during negotiation");
+		}
+		catch(SocketTimeoutException e){
+			return null;
+		}
+		if(s.header.getOpcode() != Opcode.HELLO)
+			throw new ProtocolException("Expected " + Opcode.HELLO + " but received " + s.header.getOpcode());
+		s.connection.setReadTimeout(0);
+		return new Capabilities(s.in.readInt(), s.in.readInt());
+	}
+	
+	//The following methods implement the text protocol for nodes that predate the binary protocol.
+	
+	/**
+	 * <p>Determines whether a node that ignored the protocol negotiation speaks the text protocol. The node is asked whether it
+	 * is alive over a new connection, and must answer within the negotiation timeout. Every text protocol answer begins with
+	 * "I". A node that answers promptly in text after ignoring the offer for as long predates the binary protocol, while one
+	 * that does not answer at all is only slow.</p>
+	 *
+	 * @return True if the node answered in the text protocol.
+	 * @throws IOException
+	 */
+	private boolean legacyAnswers() throws IOException{
+		Connection c = node.getConnectionFactory().getConnection(this);
+		try {
+			c.setReadTimeout(node.getConfigManager().getSetting("RemoteNode", "negotiationTimeout", int.class));
+			c.write("Are you alive?".getBytes());
+			byte reply[] = new byte[1];
+			return c.read(reply) == 1 && reply[0] == 'I';
+		} catch (SocketTimeoutException e) {
+			return false;
+		} finally {
+			c.close();
+		}
+	}
+	
+	/**
+	 * <p>Performs the text protocol liveness exchange, updating the last confirmed state.</p>
+	 *
+	 * @param c The connection to the node.
+	 * @throws IOException
+	 * @throws NodeStateException If the node is not running.
+	 */
+	private void legacyCheckAlive(Connection c) throws IOException, NodeStateException{
+		byte buffer[] = new byte[1500];
+		c.write("Are you alive?".getBytes());
+		c.read(buffer);
+		
+		String reply = new String(buffer, "ASCII").trim();
+		if(reply.equals("I'm not dead yet."))
+			setState(NodeState.RUNNING);
+		else if(reply.equals("I'm bleeding out.")){
+			//Node is shutting down
+			setState(NodeState.SHUTTING_DOWN);
+			throw new NodeStateException(NodeState.SHUTTING_DOWN);
+		}
+		else{
+			//Unknown node state
+			setState(NodeState.UNKNOWN);
+			throw new NodeStateException(NodeState.UNKNOWN);
+		}
+	}
+	
+	/**
+	 * <p>Performs {@link #getKnownNodes()} using the text protocol.</p>
+	 *
+	 * @return The nodes known to the node.
+	 * @throws IOException
+	 * @throws NodeStateException
+	 */
+	List<RemoteNode> legacyGetKnownNodes() throws IOException, NodeStateException{
 		ArrayList<RemoteNode> ret = new ArrayList<RemoteNode>();
-
+		
 		Connection c = null;
 		try {
 			//Try to create socket
 			c = node.getConnectionFactory().getConnection(this); //Could throw a ConnectionException
+			legacyCheckAlive(c);
+			c.write("Who do you know?".getBytes());
 			
-			//See if node is active
+			//The list ends with a blank line. Nodes that do not end it that way are read until they stop sending.
+			ByteArrayOutputStream list = new ByteArrayOutputStream();
 			byte buffer[] = new byte[1500];
-			c.write("Are you alive?".getBytes());
-			c.read(buffer);
+			boolean ended = false;
+			try{
+				int read, last = 0;
+				while((read = c.read(buffer)) > 0){
+					list.write(buffer, 0, read);
+					int prev = read > 1 ? buffer[read - 2] : last;
+					last = buffer[read - 1];
+					if(ended = prev == '\n' && last == '\n')
+						break;
+					c.setReadTimeout(node.getConfigManager().getSetting("RemoteNode", "negotiationTimeout", int.class));
+				}
+			}
+			catch(SocketTimeoutException e){
+				if(list.size() == 0)
+					throw e;
+			}
+			String[] nodeStrings = new String(list.toByteArray(), "ASCII").trim().split("\n");
 			
-			if(new String(buffer, "ASCII").trim().equals("I'm not dead yet.")){
-				setState(NodeState.RUNNING);
-				c.write("Who do you know?".getBytes());
-				buffer = new byte[1500];
-				c.read(buffer);
-				String[] nodeStrings = new String(buffer, "ASCII").trim().split("\n");
+			//Parse the node list from this node
+			for(String ns : nodeStrings){
+				if(!ns.matches("\\d{1,3}\\.\\d{1,3}\\.\\d{1,3}\\.\\d{1,3}:\\d+"))
+					continue; //TODO: Should this throw a malformed data exception?
+				String[] pair = ns.split(":");
+				RemoteNode rn = new RemoteNode(node, pair[0], Integer.valueOf(pair[1]));
 				
-				//Parse the node list from this node
-				for(String ns : nodeStrings){
-					if(!ns.matches("\\d{1,3}\\.\\d{1,3}\\.\\d{1,3}\\.\\d{1,3}:\\d+"))
-						continue; //TODO: Should this throw a malformed data exception?
-					String[] pair = ns.split(":");
-					RemoteNode rn = new RemoteNode(node, pair[0], Integer.valueOf(pair[1]));
-					
-					//Add the new node to this node's active node list
-					if(!ret.contains(rn)){
-						ret.add(rn);
-						node.announceFoundNode(rn);
-					}
+				//Add the new node to this node's active node list
+				if(!ret.contains(rn)){
+					ret.add(rn);
+					node.announceFoundNode(rn);
 				}
 			}
 			
-			else if(new String(buffer, "ASCII").trim().equals("I'm bleeding out.")){
-				//Node is shutting down
-				setState(NodeState.SHUTTING_DOWN);
-				throw new NodeStateException(NodeState.SHUTTING_DOWN);
+			//Allow the server to close the connection. A list that was read until the node stopped sending ended in a timeout,
+			//which has already closed the connection.
+			if(ended){
+				c.setReadTimeout(0);
+				c.write("Goodbye.".getBytes());
 			}
-			else{
-				//Unknown node state
-				setState(NodeState.UNKNOWN);
-				throw new NodeStateException(NodeState.UNKNOWN);
-			}
-				
-			//Allow the server to close the connection
-			c.write("Goodbye.".getBytes());
 		} catch (IOException e) {
 			//Communication error of some sort. Throw exception and fall through to the socket closure.
 			nodeConnectionFailed();
@@ -264,62 +869,53 @@ public final class RemoteNode {
 		finally{
 			//Close the socket
 			if(c != null)
-				c.release();
+				c.close(); //The text protocol ends the session
 		}
-		
 		return ret;
 	}
 	
 	/**
-	 * Sends a unit of data to a specific job on the remote node.
-	 * 
+	 * <p>Performs {@link #sendData(String, byte[])} using the text protocol.</p>
+	 *
 	 * @param destTid The thread id of the job receiving the data.
 	 * @param data The data to send.
-	 * 
-	 * @throws ConnectException
-	 * @throws IOException 
-	 * @throws NodeStateException 
+	 * @throws IOException
+	 * @throws NodeStateException
 	 */
-	//TODO: Abstract the data storage and account for size and performance issues automatically
-	//TODO: This method should be merged with RemoteJob.sendData(byte[])
-	public synchronized void sendData(String destTid, byte[] data) throws IOException, NodeStateException{
+	void legacySendData(String destTid, byte[] data) throws IOException, NodeStateException{
+		legacySendData(destTid, Thread.currentThread().getId(), Payload.wrap(data));
+	}
+	
+	/**
+	 * <p>Performs {@link #sendData(String, Payload)} using the text protocol, identifying the data as originating from the
+	 * given job.</p>
+	 *
+	 * @param destTid The thread id of the job receiving the data.
+	 * @param sourceTid The thread id of the job sending the data.
+	 * @param data The data to send.
+	 * @throws IOException
+	 * @throws NodeStateException
+	 */
+	void legacySendData(String destTid, long sourceTid, Payload data) throws IOException, NodeStateException{
 		Connection c = null;
 		try {
 			//Try to create socket
 			c = node.getConnectionFactory().getConnection(this);
-			
+			legacyCheckAlive(c);
 			byte buffer[] = new byte[1500];
+			c.write("I have results.".getBytes());
+			c.read(buffer); //What did you find?
 			
-			//See if node is active
-			c.write("Are you alive?".getBytes());
-			c.read(buffer);
+			//Send the listening port for this node to allow node identification
+			c.write((node.getServer().getCurrentPort() + "\n").getBytes());
 			
-			if(new String(buffer, "ASCII").trim().equals("I'm not dead yet.")){
-				setState(NodeState.RUNNING);
-				c.write("I have results.".getBytes());
-				c.read(buffer); //What did you find?
-				
-				//Send the listening port for this node to allow node identification
-				c.write((node.getServer().getCurrentPort() + "\n").getBytes());
-				
-				//Send the remote(parent) process id, local process id
-				c.write((destTid + "\n").getBytes());
-				c.write((Thread.currentThread().getId() + "\n").getBytes()); //TODO: This assumes that the thread calling this method is the one that runs the LocalJob
-				
-				//Send the result length and data
-				c.write((data.length + "\n").getBytes());
-				c.write(data);
-			}
-			else if(new String(buffer, "ASCII").trim().equals("I'm bleeding out.")){
-				//Node is shutting down
-				setState(NodeState.SHUTTING_DOWN);
-				throw new NodeStateException(NodeState.SHUTTING_DOWN);
-			}
-			else{
-				//Unknown node state
-				setState(NodeState.UNKNOWN);
-				throw new NodeStateException(NodeState.UNKNOWN);
-			}
+			//Send the remote(parent) process id, local process id
+			c.write((destTid + "\n").getBytes());
+			c.write((sourceTid + "\n").getBytes());
+			
+			//Send the result length and data
+			c.write((data.length() + "\n").getBytes());
+			data.transferTo(c);
 			c.write("Goodbye.".getBytes());
 		} catch (IOException e) {
 			//Communication error of some sort. Throw exception and fall through to the socket closure.
@@ -329,86 +925,57 @@ public final class RemoteNode {
 		finally{
 			//Close the socket
 			if(c != null)
-				c.release();
+				c.close(); //The text protocol ends the session
 		}
 	}
 	
 	/**
-	 * Sends a job to be run on the RemoteNode. This will automatically register the RemoteNode with the Watchdog. Upon completion,
-	 * a corresponding call to releaseWatchdogReceiver() should occur with this node.
-	 * 
+	 * <p>Performs {@link #sendJob(long, File, byte[])} using the text protocol.</p>
+	 *
 	 * @param ownerTid The thread id of the job that will be the parent of the started job.
 	 * @param worker A file pointing to the class file to send.
 	 * @param params Initialization parameters for the new LocalJob.
 	 * @return The remote thread id of the new job.
-	 * 
-	 * @throws ConnectException
 	 * @throws IOException
-	 * @throws NodeStateException 
+	 * @throws NodeStateException
 	 */
-	//TODO: Automatically derive ownerTid.
-	//TODO: Abstract param and worker storage and account for performance and space issues automatically.
-	//TODO: This should return a RemoteJob
-	//TODO: An additional parameter should be provided to allow the Watchdog functionality to be toggled
-	//TODO: Add job state tracking.
-	public synchronized long sendJob(long ownerTid, File worker, byte[] params) throws IOException, NodeStateException{
-		long ret = 0;
-		
+	long legacySendJob(long ownerTid, File worker, byte[] params) throws IOException, NodeStateException{
 		Connection c = null;
 		try {
 			//Try to create socket
 			c = node.getConnectionFactory().getConnection(this);
-			
+			legacyCheckAlive(c);
 			byte buffer[] = new byte[1500];
+			c.write("I have a job for you.".getBytes());
+			c.read(buffer); //What will I need?
 			
-			//See if node is active
-			c.write("Are you alive?".getBytes());
-			c.read(buffer);
+			//Send the listening port
+			c.write((node.getServer().getCurrentPort() + "\n").getBytes());
 			
-			if(new String(buffer, "ASCII").trim().equals("I'm not dead yet.")){
-				setState(NodeState.RUNNING);
-				c.write("I have a job for you.".getBytes());
-				c.read(buffer); //What will I need?
-				
-				//Send the listening port
-				c.write((node.getServer().getCurrentPort() + "\n").getBytes());
-				
-				//Send the local process id and worker class name
-				c.write((ownerTid + "\n").getBytes());
-				c.write((worker.getName().replaceFirst("\\.class$", "") + "\n").getBytes());
-				
-				//Send worker and param size
-				int pl = params.length;
-				long fl = worker.length();
-				c.write((pl + "\n").getBytes());
-				c.write((fl + "\n").getBytes());
-				
-				//Send worker and params
-				c.write(params);
-				BufferedInputStream fin = new BufferedInputStream(new FileInputStream(worker));
-				byte fbuffer[] = new byte[4096];
-				int read = 0;
-				while((read = fin.read(fbuffer)) != -1)
-					c.write(fbuffer, 0, read);
-				fin.close();
-				
-				//Await remote process id
-				buffer = new byte[1500];
-				c.read(buffer);
-				ret = Long.valueOf(new String(buffer, "ASCII").trim());
-				//node.getWatchdog().registerReceiver(this);
-			}
-			else if(new String(buffer, "ASCII").trim().equals("I'm bleeding out.")){
-				//Node is shutting down
-				setState(NodeState.SHUTTING_DOWN);
-				throw new NodeStateException(NodeState.SHUTTING_DOWN);
+			//Send the local process id and worker class name
+			c.write((ownerTid + "\n").getBytes());
+			c.write((worker.getName().replaceFirst("\\.class$", "") + "\n").getBytes());
+			
+			//Send worker and param size
+			c.write((params.length + "\n").getBytes());
+			c.write((worker.length() + "\n").getBytes());
+			
+			//Send worker and params
+			c.write(params);
+			FileInputStream fin = new FileInputStream(worker);
+			try{
+				c.transferFrom(fin.getChannel(), 0, worker.length());
 			}
-			else{
-				//Unknown node state
-				setState(NodeState.UNKNOWN);
-				throw new NodeStateException(NodeState.UNKNOWN);
+			finally{
+				fin.close();
 			}
+			
+			//Await remote process id
+			buffer = new byte[1500];
+			c.read(buffer);
+			long ret = Long.valueOf(new String(buffer, "ASCII").trim());
 			c.write("Goodbye.".getBytes());
+			return ret;
 		} catch (IOException e) {
 			//Communication error of some sort. Throw exception and fall through to the socket closure.
 			nodeConnectionFailed();
@@ -417,45 +984,25 @@ public final class RemoteNode {
 		finally{
 			//Close the socket
 			if(c != null)
-				c.release();
+				c.close(); //The text protocol ends the session
 		}
-		return ret;
 	}
-
+	
 	/**
-	 * <p>Alerts the RemoteNode to the presence of this node. This is used to join into a network and to
-	 * alert the RemoteNode that the current node is still active.</p>
-	 * 
-	 * @throws IOException 
-	 * @throws NodeStateException 
+	 * <p>Performs {@link #beacon()} using the text protocol.</p>
+	 *
+	 * @throws IOException
+	 * @throws NodeStateException
 	 */
-	public synchronized void beacon() throws IOException, NodeStateException{
+	void legacyBeacon() throws IOException, NodeStateException{
 		Connection c = null;
 		try {
 			//Try to create socket
 			c = node.getConnectionFactory().getConnection(this);
-			
-			//See if node is active
+			legacyCheckAlive(c);
 			byte buffer[] = new byte[1500];
-			c.write("Are you alive?".getBytes());
-			c.read(buffer);
-				
-			//Announce presence
-			if(new String(buffer, "ASCII").trim().equals("I'm not dead yet.")){
-				setState(NodeState.RUNNING);
-				c.write(("I'm here.\n" + node.getServer().getCurrentPort()).getBytes());
-				
-				//TODO: should this actually be read? It tells whether the other node knew of this one.
-				c.read(buffer); //To ensure flow control
-			}
-			else if(String.valueOf(buffer).trim().equals("I'm bleeding out.")){
-				setState(NodeState.SHUTTING_DOWN);
-				throw new NodeStateException(NodeState.SHUTTING_DOWN);
-			}
-			else{
-				setState(NodeState.UNKNOWN);
-				throw new NodeStateException(NodeState.UNKNOWN);
-			}
+			c.write(("I'm here.\n" + node.getServer().getCurrentPort()).getBytes());
+			c.read(buffer); //To ensure flow control
 			c.write("Goodbye.".getBytes());
 		} catch (IOException e) {
 			//The connection was interrupted for some reason...
@@ -465,10 +1012,10 @@ public final class RemoteNode {
 		finally{
 			//Close the socket
 			if(c != null)
-				c.release();
+				c.close(); //The text protocol ends the session
 		}
 	}
-	
+
 	/**
 	 * <p>Registers a RemoteNode.EventListener for this RemoteNode.</p>
 	 * 
@@ -493,7 +1040,7 @@ public final class RemoteNode {
 	 * 
 	 * @param state The new node state.
 	 */
-	private synchronized void setState(NodeState state){
+	synchronized void setState(NodeState state){
 		NodeState old = this.state;
 		this.state = state;
 		if(old != state)
@@ -518,7 +1065,10 @@ public final class RemoteNode {
 	 * receive the current event if it is added during the event callback. The new collection of EventListeners
 	 * will take effect upon completion of this method.</p>
 	 */
-	private synchronized void nodeConnectionFailed(){
+	synchronized void nodeConnectionFailed(){
+		//The node may have restarted with a different version
+		node.setCapabilities(this, null);
+		
 		Vector<EventListener> temp = new Vector<EventListener>(listeners);
 		for(EventListener e : temp)
 			e.nodeConnectionFailed(this);
@@ -0,0 +1,256 @@
+package com.github.uberroot.ncjbot;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.github.uberroot.ncjbot.protocol.Opcode;
+import com.github.uberroot.ncjbot.protocol.Protocol;
+
+/**
+ * <p>A long-lived stream of data to a job on a RemoteNode, opened with {@link RemoteJob#openStream()}. The receiving job reads
+ * the data as an InputStream in {@link com.github.uberroot.ncjbot.api.LocalJob#streamReceived(RemoteNode, String, java.io.InputStream)}.</p>
+ *
+ * <p>Data is buffered up to RemoteNode.streamChunk bytes and sent as a {@link Opcode#STREAM_DATA} frame whenever the buffer
+ * fills or the stream is flushed. The receiving node holds at most ServerSessionHandler.streamBuffer bytes that the job has
+ * not read, so a producer that outpaces the job blocks in {@link #write(byte[], int, int)} rather than exhausting memory on
+ * either node.</p>
+ *
+ * <p>The stream holds a connection to the node until it is closed. Closing the stream sends the remaining data and waits
+ * until the node has received it.</p>
+ *
+ * @author Carter Waxman
+ *
+ */
+public final class RemoteStream extends OutputStream implements WritableByteChannel {
+	/**
+	 * <p>The node receiving the stream.</p>
+	 */
+	private final RemoteNode remote;
+	
+	/**
+	 * <p>The session carrying the stream.</p>
+	 */
+	private final PeerSession session;
+	
+	/**
+	 * <p>The data not yet sent.</p>
+	 */
+	private final byte buffer[];
+	
+	/**
+	 * <p>The number of bytes in the buffer.</p>
+	 */
+	private int count;
+	
+	/**
+	 * <p>Whether the stream has been closed.</p>
+	 */
+	private boolean closed;
+	
+	/**
+	 * <p>Held while the stream is written. A lock is used rather than a monitor so that a virtual thread blocked on a slow
+	 * receiver does not pin its carrier thread.</p>
+	 */
+	private final ReentrantLock lock;
+	
+	/**
+	 * <p>Creates a stream over a session on which the stream has been accepted. This should only be called by
+	 * {@link RemoteNode#openStream(String)}.</p>
+	 *
+	 * @param remote The node receiving the stream.
+	 * @param session The session carrying the stream.
+	 * @param chunkSize The largest amount of data to send in one frame.
+	 */
+	RemoteStream(RemoteNode remote, PeerSession session, int chunkSize){
+		this.remote = remote;
+		this.session = session;
+		buffer = new byte[chunkSize];
+		count = 0;
+		closed = false;
+		lock = new ReentrantLock();
+	}
+	
+	@Override
+	public void write(int b) throws IOException {
+		lock.lock();
+		try{
+			ensureOpen();
+			buffer[count++] = (byte)b;
+			if(count == buffer.length)
+				drain();
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	@Override
+	public void write(byte[] data, int off, int len) throws IOException {
+		lock.lock();
+		try{
+			ensureOpen();
+			while(len > 0){
+				//Whole chunks are sent straight from the caller's array
+				if(count == 0 && len >= buffer.length){
+					sendChunk(data, off, buffer.length);
+					off += buffer.length;
+					len -= buffer.length;
+					continue;
+				}
+				int n = Math.min(len, buffer.length - count);
+				System.arraycopy(data, off, buffer, count, n);
+				count += n;
+				off += n;
+				len -= n;
+				if(count == buffer.length)
+					drain();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		lock.lock();
+		try{
+			ensureOpen();
+			int written = src.remaining();
+			while(src.hasRemaining()){
+				int n = Math.min(src.remaining(), buffer.length - count);
+				src.get(buffer, count, n);
+				count += n;
+				if(count == buffer.length)
+					drain();
+			}
+			return written;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * <p>Sends all buffered data to the node.</p>
+	 *
+	 * @throws IOException
+	 */
+	@Override
+	public void flush() throws IOException {
+		lock.lock();
+		try{
+			ensureOpen();
+			drain();
+			try {
+				session.out.flush();
+			} catch (IOException e) {
+				throw fail(e);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	@Override
+	public boolean isOpen() {
+		lock.lock();
+		try{
+			return !closed;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * <p>Sends the remaining data and ends the stream, waiting until the node has received all of the data.</p>
+	 *
+	 * @throws IOException If the data could not be sent, or if the job closed its end of the stream before reading all of it.
+	 */
+	@Override
+	public void close() throws IOException {
+		lock.lock();
+		try{
+			if(closed)
+				return;
+			drain();
+			boolean read;
+			try {
+				session.out.beginFrame(Opcode.STREAM_END, 0, 0, 0);
+				session.out.flush();
+				if(!session.in.readHeader(session.header))
+					throw new EOFException("The node closed the connection before the end of the stream");
+				if(session.header.getOpcode() != Opcode.ACK)
+					throw new ProtocolException("Expected " + Opcode.ACK + " but received " + session.header.getOpcode());
+				read = !session.header.hasFlag(Protocol.FLAG_FAILED);
+			} catch (IOException e) {
+				throw fail(e);
+			}
+			closed = true;
+			session.release();
+			if(!read)
+				throw new IOException("The job on " + remote + " closed the stream before reading all of it");
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * <p>Sends the buffered data as a frame, without flushing it.</p>
+	 *
+	 * @throws IOException
+	 */
+	private void drain() throws IOException{
+		if(count == 0)
+			return;
+		sendChunk(buffer, 0, count);
+		count = 0;
+	}
+	
+	/**
+	 * <p>Sends data as a frame, without flushing it.</p>
+	 *
+	 * @param data The array holding the data.
+	 * @param off The offset of the data in the array.
+	 * @param len The length of the data.
+	 * @throws IOException
+	 */
+	private void sendChunk(byte[] data, int off, int len) throws IOException{
+		try {
+			session.out.beginFrame(Opcode.STREAM_DATA, 0, 0, len);
+			session.out.writeBytes(data, off, len);
+		} catch (IOException e) {
+			throw fail(e);
+		}
+	}
+	
+	/**
+	 * <p>Ensures that the stream has not been closed.</p>
+	 *
+	 * @throws IOException If the stream has been closed.
+	 */
+	private void ensureOpen() throws IOException{
+		if(closed)
+			throw new IOException("The stream has been closed");
+	}
+	
+	/**
+	 * <p>Handles a communication failure by closing the stream and its connection. A connection closed by the node is not a
+	 * failure of the node, which may have closed it on purpose, such as when it shuts down. Whether the node can still be
+	 * reached is left to the next attempt to connect to it.</p>
+	 *
+	 * @param e The cause of the failure.
+	 * @return The cause of the failure, to be rethrown.
+	 */
+	private IOException fail(IOException e){
+		if(!closed){
+			closed = true;
+			session.connection.close();
+			if(!(e instanceof EOFException))
+				remote.nodeConnectionFailed();
+		}
+		return e;
+	}
+}
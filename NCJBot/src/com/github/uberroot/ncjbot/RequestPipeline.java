@@ -0,0 +1,1129 @@
+package com.github.uberroot.ncjbot;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import com.github.uberroot.ncjbot.protocol.Capabilities;
+import com.github.uberroot.ncjbot.protocol.Compression;
+import com.github.uberroot.ncjbot.protocol.FrameHeader;
+import com.github.uberroot.ncjbot.protocol.FrameReader;
+import com.github.uberroot.ncjbot.protocol.FrameWriter;
+import com.github.uberroot.ncjbot.protocol.Opcode;
+import com.github.uberroot.ncjbot.protocol.Protocol;
+
+/**
+ * <p>Sends several requests to a RemoteNode over a single connection without waiting for each reply. Requests are
+ * buffered as they are made and sent on {@link #flush()}. Replies are matched to their requests by request id as they
+ * are read in {@link #await()}, completing the Future returned for each request.</p>
+ *
+ * <p>A successful reply implies that the node is running, so no separate liveness exchange is performed. If the node is not
+ * running, the Future for the request fails with a {@link NodeStateException}. A communication failure fails every outstanding
+ * request with the IOException and ends the pipeline.</p>
+ *
+ * <p>Nodes that only speak the text protocol cannot pipeline requests. With such nodes, each request is performed
+ * immediately on its own connection, and the returned Future is already complete.</p>
+ *
+ * <pre>RequestPipeline p = remoteNode.pipeline();
+ *try{
+ *	Future&lt;Void&gt; a = p.sendData(tid, first);
+ *	Future&lt;Void&gt; b = p.sendData(tid, second);
+ *	p.await();
+ *	RequestPipeline.getResult(a);
+ *	RequestPipeline.getResult(b);
+ *}
+ *finally{
+ *	p.close();
+ *}</pre>
+ *
+ * @author Carter Waxman
+ *
+ */
+public final class RequestPipeline implements Closeable{
+	/**
+	 * <p>The running LocalNode instance.</p>
+	 */
+	private final LocalNode node;
+	
+	/**
+	 * <p>The node receiving the requests.</p>
+	 */
+	private final RemoteNode remote;
+	
+	/**
+	 * <p>The binary session with the node, or null if the node only speaks the text protocol.</p>
+	 */
+	private final PeerSession session;
+	
+	/**
+	 * <p>The requests awaiting replies, keyed by request id.</p>
+	 */
+	private final HashMap<Integer, Request<?>> pending;
+	
+	/**
+	 * <p>The id to use for the next request.</p>
+	 */
+	private int nextId;
+	
+	/**
+	 * <p>Whether the pipeline has been closed.</p>
+	 */
+	private boolean closed;
+	
+	/**
+	 * <p>Held while requests are written or replies are read. A lock is used rather than a monitor so that a virtual thread
+	 * blocked on the session does not pin its carrier thread.</p>
+	 */
+	private final ReentrantLock lock;
+	
+	/**
+	 * <p>Identifies the node to the compression policy and the class store.</p>
+	 */
+	private final String peer;
+	
+	/**
+	 * <p>The frame being gathered for compression, or null if the current frame is written directly to the session.</p>
+	 */
+	private DeferredFrame deferred;
+	
+	/**
+	 * <p>The length of the payload of the current frame, if it is written directly to the session.</p>
+	 */
+	private long directLength;
+	
+	/**
+	 * <p>A frame whose payload is compressed into memory as it is written, so that the length of the compressed payload is
+	 * known before the frame is sent.</p>
+	 */
+	private static final class DeferredFrame{
+		/**
+		 * <p>The header fields of the frame.</p>
+		 */
+		private final Opcode opcode;
+		private final int flags;
+		private final int id;
+		
+		/**
+		 * <p>The length of the payload before compression.</p>
+		 */
+		private final int length;
+		
+		/**
+		 * <p>The compressor.</p>
+		 */
+		private final Deflater deflater;
+		
+		/**
+		 * <p>The compressed payload.</p>
+		 */
+		private final ByteArrayOutputStream packed;
+		
+		/**
+		 * <p>The stream compressing the payload.</p>
+		 */
+		private final DeflaterOutputStream compressor;
+		
+		/**
+		 * <p>The writer for the payload.</p>
+		 */
+		private final FrameWriter writer;
+		
+		private DeferredFrame(Opcode opcode, int flags, int id, int level, int length){
+			this.opcode = opcode;
+			this.flags = flags;
+			this.id = id;
+			this.length = length;
+			deflater = new Deflater(level);
+			packed = new ByteArrayOutputStream(8192);
+			compressor = new DeflaterOutputStream(packed, deflater, 8192);
+			writer = new FrameWriter(compressor);
+		}
+	}
+	
+	/**
+	 * <p>A request awaiting its reply.</p>
+	 *
+	 * @param <T> The type of result for the request.
+	 */
+	private abstract class Request<T>{
+		/**
+		 * <p>The Future completed when the reply arrives.</p>
+		 */
+		private final CompletableFuture<T> future = new CompletableFuture<T>();
+		
+		/**
+		 * <p>The operation expected in the reply.</p>
+		 */
+		private final Opcode reply;
+		
+		/**
+		 * <p>The number of bytes sent for the request, or 0 if the request is not measured.</p>
+		 */
+		private volatile long sent;
+		
+		/**
+		 * <p>The time the request was sent, in nanoseconds.</p>
+		 */
+		private volatile long started;
+		
+		private Request(Opcode reply){
+			this.reply = reply;
+		}
+		
+		/**
+		 * <p>Decodes the payload of the reply.</p>
+		 *
+		 * @param h The header of the reply.
+		 * @param in The reader, positioned at the start of the payload.
+		 * @return The result of the request.
+		 * @throws IOException
+		 */
+		protected abstract T decode(FrameHeader h, FrameReader in) throws IOException;
+		
+		/**
+		 * <p>Determines whether the request must be sent again rather than completed by the reply. A request that returns
+		 * true must have queued itself again.</p>
+		 *
+		 * @param h The header of the reply.
+		 * @return True if the request was queued again.
+		 * @throws IOException
+		 */
+		protected boolean resend(FrameHeader h) throws IOException{
+			return false;
+		}
+		
+		/**
+		 * <p>Determines whether the reply is only part of the reply, in which case the request keeps waiting for the rest.
+		 * A request that returns true must have read the payload of the part.</p>
+		 *
+		 * @param h The header of the reply.
+		 * @param in The reader, positioned at the start of the payload.
+		 * @return True if more of the reply follows.
+		 * @throws IOException
+		 */
+		protected boolean partial(FrameHeader h, FrameReader in) throws IOException{
+			return false;
+		}
+		
+		/**
+		 * <p>Completes the request with the reply.</p>
+		 *
+		 * @param h The header of the reply.
+		 * @param in The reader, positioned at the start of the payload.
+		 * @throws IOException If the reply was malformed.
+		 */
+		private void complete(FrameHeader h, FrameReader in) throws IOException{
+			if(h.getOpcode() == Opcode.STATUS){
+				//The node refused the request
+				NodeState state = Protocol.decodeState(in.readByte());
+				if(state == NodeState.RUNNING)
+					state = NodeState.UNKNOWN;
+				remote.setState(state);
+				future.completeExceptionally(new NodeStateException(state));
+			}
+			else if(h.getOpcode() == reply){
+				if(resend(h))
+					return;
+				T result = decode(h, in);
+				if(sent > 0)
+					node.getCompression().recordTransfer(peer, sent, System.nanoTime() - started);
+				remote.setState(NodeState.RUNNING);
+				future.complete(result);
+			}
+			else
+				throw new ProtocolException("Expected " + reply + " but received " + h.getOpcode());
+		}
+	}
+	
+	/**
+	 * <p>Creates a pipeline. This should only be called by {@link RemoteNode#pipeline()}.</p>
+	 *
+	 * @param node The running LocalNode instance.
+	 * @param remote The node receiving the requests.
+	 * @param session The binary session with the node, or null if the node only speaks the text protocol.
+	 */
+	RequestPipeline(LocalNode node, RemoteNode remote, PeerSession session){
+		this.node = node;
+		this.remote = remote;
+		this.session = session;
+		pending = new HashMap<Integer, Request<?>>();
+		nextId = 1;
+		closed = false;
+		lock = new ReentrantLock();
+		peer = remote.getIpAddress().getHostAddress() + ":" + remote.getListeningPort();
+		deferred = null;
+		directLength = 0;
+		
+		//A node that stops answering fails the pipeline rather than holding it forever
+		if(session != null)
+			session.watch.arm();
+	}
+	
+	/**
+	 * <p>Gets the result of a request made through a pipeline, translating failures back into the exceptions
+	 * thrown by the corresponding RemoteNode method.</p>
+	 *
+	 * @param <T> The type of result.
+	 * @param future The Future returned for the request.
+	 * @return The result of the request.
+	 * @throws IOException
+	 * @throws NodeStateException
+	 */
+	public static <T> T getResult(Future<T> future) throws IOException, NodeStateException{
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while awaiting a reply");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException)
+				throw (IOException)cause;
+			if(cause instanceof NodeStateException)
+				throw (NodeStateException)cause;
+			if(cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			throw new IOException(cause);
+		}
+	}
+	
+	/**
+	 * <p>Queues a request for the list of nodes known to the RemoteNode.</p>
+	 *
+	 * @return A Future for the known nodes.
+	 * @throws IOException
+	 * @see RemoteNode#getKnownNodes()
+	 */
+	public Future<List<RemoteNode>> getKnownNodes() throws IOException{
+		lock.lock();
+		try{
+			if(session == null)
+				return legacy(new Callable<List<RemoteNode>>(){
+					@Override
+					public List<RemoteNode> call() throws Exception {
+						return remote.legacyGetKnownNodes();
+					}
+				});
+		
+			if(session.capabilities.supports(Capabilities.MEMBERSHIP_DELTAS))
+				return getKnownNodeChanges();
+		
+			Request<List<RemoteNode>> r = new Request<List<RemoteNode>>(Opcode.NODE_LIST){
+				@Override
+				protected List<RemoteNode> decode(FrameHeader h, FrameReader in) throws IOException {
+					ArrayList<RemoteNode> ret = new ArrayList<RemoteNode>();
+					int count = in.readInt();
+					for(int i = 0; i < count; i++){
+						RemoteNode rn = new RemoteNode(node, in.readAddress(), in.readInt());
+					
+						//Add the new node to this node's active node list
+						if(!ret.contains(rn)){
+							ret.add(rn);
+							node.announceFoundNode(rn);
+						}
+					}
+					return ret;
+				}
+			};
+			try {
+				session.out.beginFrame(Opcode.KNOWN_NODES, 0, register(r), 0);
+			} catch (IOException e) {
+				throw fail(e);
+			}
+			return r.future;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * <p>Queues a request for the changes to the list of nodes known to the RemoteNode since the list last received from it.
+	 * The node sends the whole list instead, in as many frames as it takes, if it no longer knows the changes.</p>
+	 *
+	 * @return A Future for the known nodes, including those received before.
+	 * @throws IOException
+	 */
+	private Future<List<RemoteNode>> getKnownNodeChanges() throws IOException{
+		final PeerMembership view = node.getPeerMembership(remote);
+		long position[] = view.getPosition();
+		Request<List<RemoteNode>> r = new Request<List<RemoteNode>>(Opcode.NODE_LIST){
+			/**
+			 * <p>The nodes listed, or added, in the frames received so far.</p>
+			 */
+			private final ArrayList<RemoteNode> added = new ArrayList<RemoteNode>();
+			
+			/**
+			 * <p>The nodes removed in the frames received so far.</p>
+			 */
+			private final ArrayList<RemoteNode> removed = new ArrayList<RemoteNode>();
+			
+			@Override
+			protected boolean partial(FrameHeader h, FrameReader in) throws IOException {
+				if(h.getOpcode() != Opcode.NODE_LIST || (h.getFlags() & Protocol.FLAG_MORE) == 0)
+					return false;
+				read(h, in);
+				return true;
+			}
+			
+			@Override
+			protected List<RemoteNode> decode(FrameHeader h, FrameReader in) throws IOException {
+				long position[] = read(h, in);
+				List<RemoteNode> ret = view.apply(position[0], position[1], (h.getFlags() & Protocol.FLAG_DELTA) != 0, added, removed);
+				
+				//Add the new nodes to this node's active node list
+				for(RemoteNode rn : added)
+					node.announceFoundNode(rn);
+				return ret;
+			}
+			
+			/**
+			 * <p>Reads one frame of the list.</p>
+			 *
+			 * @param h The header of the frame.
+			 * @param in The reader, positioned at the start of the payload.
+			 * @return The epoch and version of the list.
+			 * @throws IOException
+			 */
+			private long[] read(FrameHeader h, FrameReader in) throws IOException{
+				long position[] = new long[]{in.readVarint(), in.readVarint()};
+				boolean delta = (h.getFlags() & Protocol.FLAG_DELTA) != 0;
+				int count = in.readInt();
+				for(int i = 0; i < count; i++){
+					boolean add = !delta || in.readByte() != 0;
+					RemoteNode rn = new RemoteNode(node, in.readAddress(), in.readInt());
+					(add ? added : removed).add(rn);
+				}
+				return position;
+			}
+		};
+		try {
+			session.out.beginFrame(Opcode.KNOWN_NODES, 0, register(r), FrameWriter.varintSize(position[0]) + FrameWriter.varintSize(position[1]));
+			session.out.writeVarint(position[0]);
+			session.out.writeVarint(position[1]);
+		} catch (IOException e) {
+			throw fail(e);
+		}
+		return r.future;
+	}
+	
+	/**
+	 * <p>Queues a presence announcement for the RemoteNode.</p>
+	 *
+	 * @return A Future that completes when the announcement is acknowledged.
+	 * @throws IOException
+	 * @see RemoteNode#beacon()
+	 */
+	public Future<Void> beacon() throws IOException{
+		lock.lock();
+		try{
+			if(session == null)
+				return legacy(new Callable<Void>(){
+					@Override
+					public Void call() throws Exception {
+						remote.legacyBeacon();
+						return null;
+					}
+				});
+		
+			Request<Void> r = new Request<Void>(Opcode.PRESENCE_ACK){
+				@Override
+				protected Void decode(FrameHeader h, FrameReader in) throws IOException {
+					//TODO: should this actually be read? It tells whether the other node knew of this one.
+					return null;
+				}
+			};
+			try {
+				int port = node.getServer().getCurrentPort();
+				session.out.beginFrame(Opcode.PRESENCE, 0, register(r), FrameWriter.varintSize(port));
+				session.out.writeVarint(port);
+			} catch (IOException e) {
+				throw fail(e);
+			}
+			return r.future;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * <p>Queues a gossip probe for the RemoteNode, carrying membership updates. Nodes that do not take part in gossip are sent
+	 * a presence announcement instead, and answer with no updates.</p>
+	 *
+	 * @param updates The updates to send.
+	 * @return A Future for the updates sent back by the node.
+	 * @throws IOException
+	 * @see RemoteNode#ping(List)
+	 */
+	public Future<List<MemberUpdate>> ping(List<MemberUpdate> updates) throws IOException{
+		lock.lock();
+		try{
+			if(session == null || !session.capabilities.supports(Capabilities.GOSSIP))
+				return ((CompletableFuture<Void>)beacon()).thenApply(new Function<Void, List<MemberUpdate>>(){
+					@Override
+					public List<MemberUpdate> apply(Void v) {
+						return Collections.emptyList();
+					}
+				});
+		
+			Request<List<MemberUpdate>> r = new Request<List<MemberUpdate>>(Opcode.PING_ACK){
+				@Override
+				protected List<MemberUpdate> decode(FrameHeader h, FrameReader in) throws IOException {
+					return MemberUpdate.read(in, remote.getIpAddress());
+				}
+			};
+			try {
+				int port = node.getServer().getCurrentPort();
+				session.out.beginFrame(Opcode.PING, 0, register(r), FrameWriter.varintSize(port) + MemberUpdate.size(updates));
+				session.out.writeVarint(port);
+				MemberUpdate.write(session.out, updates);
+			} catch (IOException e) {
+				throw fail(e);
+			}
+			return r.future;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * <p>Queues a request for the RemoteNode to probe another node on behalf of this one, carrying membership updates.</p>
+	 *
+	 * @param target The node to probe.
+	 * @param timeout The number of milliseconds the RemoteNode should wait for the target to answer.
+	 * @param updates The updates to send.
+	 * @return A Future for the updates sent back by the RemoteNode, which will be null if the target did not answer. The
+	 * Future fails if the RemoteNode does not take part in gossip.
+	 * @throws IOException
+	 * @see RemoteNode#pingRequest(RemoteNode, int, List)
+	 */
+	public Future<List<MemberUpdate>> pingRequest(RemoteNode target, int timeout, List<MemberUpdate> updates) throws IOException{
+		lock.lock();
+		try{
+			if(session == null || !session.capabilities.supports(Capabilities.GOSSIP)){
+				CompletableFuture<List<MemberUpdate>> f = new CompletableFuture<List<MemberUpdate>>();
+				f.completeExceptionally(new IOException(remote + " does not take part in gossip"));
+				return f;
+			}
+		
+			Request<List<MemberUpdate>> r = new Request<List<MemberUpdate>>(Opcode.PING_ACK){
+				@Override
+				protected List<MemberUpdate> decode(FrameHeader h, FrameReader in) throws IOException {
+					List<MemberUpdate> updates = MemberUpdate.read(in, remote.getIpAddress());
+					return h.hasFlag(Protocol.FLAG_FAILED) ? null : updates;
+				}
+			};
+			try {
+				int port = node.getServer().getCurrentPort();
+				InetAddress address = target.getIpAddress();
+				int targetPort = target.getListeningPort();
+				long len = FrameWriter.varintSize(port) + FrameWriter.addressSize(address) + FrameWriter.varintSize(targetPort) + FrameWriter.varintSize(timeout) + MemberUpdate.size(updates);
+				session.out.beginFrame(Opcode.PING_REQ, 0, register(r), len);
+				session.out.writeVarint(port);
+				session.out.writeAddress(address);
+				session.out.writeVarint(targetPort);
+				session.out.writeVarint(timeout);
+				MemberUpdate.write(session.out, updates);
+			} catch (IOException e) {
+				throw fail(e);
+			}
+			return r.future;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * <p>Queues a unit of data for a specific job on the RemoteNode. The data is identified as originating from the
+	 * thread calling this method.</p>
+	 *
+	 * @param destTid The thread id of the job receiving the data.
+	 * @param data The data to send.
+	 * @return A Future that completes when the data has been received.
+	 * @throws IOException
+	 * @see RemoteNode#sendData(String, byte[])
+	 */
+	public Future<Void> sendData(String destTid, byte[] data) throws IOException{
+		lock.lock();
+		try{
+			return sendData(destTid, Thread.currentThread().getId(), data); //TODO: This assumes that the thread calling this method is the one that runs the LocalJob
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * <p>Queues a unit of data for a specific job on the RemoteNode, identifying the data as originating from the given job.</p>
+	 *
+	 * @param destTid The thread id of the job receiving the data.
+	 * @param source The thread id of the job sending the data.
+	 * @param data The data to send.
+	 * @return A Future that completes when the data has been received.
+	 * @throws IOException
+	 */
+	Future<Void> sendData(String destTid, long source, byte[] data) throws IOException{
+		lock.lock();
+		try{
+			return sendData(destTid, source, Payload.wrap(data));
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * <p>Queues a unit of data for a specific job on the RemoteNode. The data is identified as originating from the
+	 * thread calling this method.</p>
+	 *
+	 * @param destTid The thread id of the job receiving the data.
+	 * @param data The data to send, which must not be closed until the data has been sent.
+	 * @return A Future that completes when the data has been received.
+	 * @throws IOException
+	 * @see RemoteNode#sendData(String, Payload)
+	 */
+	public Future<Void> sendData(String destTid, Payload data) throws IOException{
+		lock.lock();
+		try{
+			return sendData(destTid, Thread.currentThread().getId(), data); //TODO: This assumes that the thread calling this method is the one that runs the LocalJob
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * <p>Queues a unit of data for a specific job on the RemoteNode, identifying the data as originating from the given job.
+	 * Data held in a file of at least RemoteNode.directTransferThreshold bytes is sent straight from the file, without being
+	 * read into the heap.</p>
+	 *
+	 * @param destTid The thread id of the job receiving the data.
+	 * @param source The thread id of the job sending the data.
+	 * @param data The data to send, which must not be closed until the data has been sent.
+	 * @return A Future that completes when the data has been received.
+	 * @throws IOException
+	 */
+	Future<Void> sendData(final String destTid, final long source, final Payload data) throws IOException{
+		lock.lock();
+		try{
+			if(session == null)
+				return legacy(new Callable<Void>(){
+					@Override
+					public Void call() throws Exception {
+						remote.legacySendData(destTid, source, data);
+						return null;
+					}
+				});
+		
+			Request<Void> r = new Request<Void>(Opcode.ACK){
+				@Override
+				protected Void decode(FrameHeader h, FrameReader in) throws IOException {
+					return null;
+				}
+			};
+			try {
+				//Send the listening port for this node to allow node identification, the remote(parent) process id, and the local process id
+				int port = node.getServer().getCurrentPort();
+				long dest = Long.parseLong(destTid);
+				long len = data.length();
+			
+				//Large files are sent straight from the file, and so are not compressed
+				boolean direct = data.isFile() && len >= node.getConfigManager().getSetting("RemoteNode", "directTransferThreshold", long.class);
+				FrameWriter out = beginPayload(Opcode.DATA, 0, register(r), FrameWriter.varintSize(port) + FrameWriter.varintSize(dest) + FrameWriter.varintSize(source) + len, direct ? 0 : len);
+				try{
+					out.writeVarint(port);
+					out.writeVarint(dest);
+					out.writeVarint(source);
+			
+					//The data fills the rest of the frame
+					if(direct){
+						session.out.flush();
+						session.watch.beginWrite();
+						try{
+							data.transferTo(session.connection);
+						}
+						finally{
+							session.watch.endWrite();
+						}
+					}
+					else
+						data.writeTo(out);
+					measure(r, endPayload());
+				}
+				finally{
+					abortPayload();
+				}
+			} catch (IOException e) {
+				throw fail(e);
+			}
+			return r.future;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * <p>Queues several units of data for a specific job on the RemoteNode, to be delivered in order. Nodes that accept
+	 * batches receive the units in a single frame. Otherwise, each unit is queued as if by
+	 * {@link #sendData(String, long, byte[])}.</p>
+	 *
+	 * @param destTid The thread id of the job receiving the data.
+	 * @param source The thread id of the job sending the data.
+	 * @param data The units of data to send.
+	 * @return A Future that completes when all of the data has been received.
+	 * @throws IOException
+	 * @see RemoteNode#sendBatch(String, long, List)
+	 */
+	public Future<Void> sendBatch(String destTid, long source, List<byte[]> data) throws IOException{
+		lock.lock();
+		try{
+			if(session == null || !session.capabilities.supports(Capabilities.BATCHING)){
+				CompletableFuture<?> units[] = new CompletableFuture<?>[data.size()];
+				for(int i = 0; i < units.length; i++)
+					units[i] = (CompletableFuture<Void>)sendData(destTid, source, data.get(i));
+				return CompletableFuture.allOf(units);
+			}
+		
+			Request<Void> r = new Request<Void>(Opcode.ACK){
+				@Override
+				protected Void decode(FrameHeader h, FrameReader in) throws IOException {
+					return null;
+				}
+			};
+			try {
+				//Send the listening port for this node to allow node identification, the remote(parent) process id, and the local process id
+				int port = node.getServer().getCurrentPort();
+				long dest = Long.parseLong(destTid);
+				long len = FrameWriter.varintSize(port) + FrameWriter.varintSize(dest) + FrameWriter.varintSize(source) + FrameWriter.varintSize(data.size());
+				for(byte unit[] : data)
+					len += FrameWriter.blobSize(unit.length);
+				FrameWriter out = beginPayload(Opcode.DATA_BATCH, 0, register(r), len, len);
+				try{
+					out.writeVarint(port);
+					out.writeVarint(dest);
+					out.writeVarint(source);
+					out.writeVarint(data.size());
+					for(byte unit[] : data)
+						out.writeBlob(unit);
+					measure(r, endPayload());
+				}
+				finally{
+					abortPayload();
+				}
+			} catch (IOException e) {
+				throw fail(e);
+			}
+			return r.future;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * <p>Queues a job to be run on the RemoteNode.</p>
+	 *
+	 * @param ownerTid The thread id of the job that will be the parent of the started job.
+	 * @param worker A file pointing to the class file to send.
+	 * @param params Initialization parameters for the new LocalJob.
+	 * @return A Future for the remote thread id of the new job, which will be -1 if the job could not be started.
+	 * @throws IOException
+	 * @see RemoteNode#sendJob(long, File, byte[])
+	 */
+	public Future<Long> sendJob(long ownerTid, File worker, byte[] params) throws IOException{
+		lock.lock();
+		try{
+			return sendJob(ownerTid, worker, null, params);
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * <p>Queues a job to be run on the RemoteNode from a worker that has already been read into memory.</p>
+	 *
+	 * @param image The worker.
+	 * @return A Future for the remote thread id of the new job, which will be -1 if the job could not be started.
+	 * @throws IOException
+	 * @see LocalNode#dispatchJob(long, File, byte[], java.util.Collection)
+	 */
+	Future<Long> sendJob(WorkerImage image) throws IOException{
+		lock.lock();
+		try{
+			return sendJob(image.getOwnerTid(), image.getFile(), image, image.getParams());
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * <p>Queues a job to be run on the RemoteNode, sending the worker from memory if it has been read, or from its file if not.</p>
+	 *
+	 * @param ownerTid The thread id of the job that will be the parent of the started job.
+	 * @param worker A file pointing to the class file to send.
+	 * @param image The worker read into memory, or null to read it from the file.
+	 * @param params Initialization parameters for the new LocalJob.
+	 * @return A Future for the remote thread id of the new job, which will be -1 if the job could not be started.
+	 * @throws IOException
+	 */
+	private Future<Long> sendJob(final long ownerTid, final File worker, final WorkerImage image, final byte[] params) throws IOException{
+		if(session == null)
+			return legacy(new Callable<Long>(){
+				@Override
+				public Long call() throws Exception {
+					return remote.legacySendJob(ownerTid, worker, params);
+				}
+			});
+		
+		try {
+			//Nodes that cache classes are only sent the hash of a class they have already received from this node
+			final byte hash[] = !session.capabilities.supports(Capabilities.CLASS_HASH_DEDUP) ? null : image != null ? image.getHash() : node.getClassStore().hash(worker);
+			Request<Long> r = new Request<Long>(Opcode.JOB_ID){
+				@Override
+				protected boolean resend(FrameHeader h) throws IOException {
+					if(!h.hasFlag(Protocol.FLAG_CLASS_MISSING))
+						return false;
+					
+					//The node no longer has the class, so it is sent in full
+					node.getClassStore().setSent(peer, hash, false);
+					measure(this, image != null ? writeJob(register(this), image, hash != null, true) : writeJob(register(this), ownerTid, worker, params, hash, true));
+					session.out.flush();
+					return true;
+				}
+				
+				@Override
+				protected Long decode(FrameHeader h, FrameReader in) throws IOException {
+					if(h.hasFlag(Protocol.FLAG_FAILED))
+						return -1L;
+					if(hash != null)
+						node.getClassStore().setSent(peer, hash, true);
+					return in.readVarint();
+				}
+			};
+			boolean withClass = hash == null || !node.getClassStore().wasSent(peer, hash);
+			measure(r, image != null ? writeJob(register(r), image, hash != null, withClass) : writeJob(register(r), ownerTid, worker, params, hash, withClass));
+			return r.future;
+		} catch (IOException e) {
+			throw fail(e);
+		}
+	}
+	
+	/**
+	 * <p>Writes a {@link Opcode#JOB} frame.</p>
+	 *
+	 * @param id The id of the request.
+	 * @param ownerTid The thread id of the job that will be the parent of the started job.
+	 * @param worker A file pointing to the class file to send.
+	 * @param params Initialization parameters for the new LocalJob.
+	 * @param hash The hash of the class, or null if the node does not cache classes.
+	 * @param withClass Whether to send the class. If false, the node must already hold it.
+	 * @return The number of bytes sent.
+	 * @throws IOException
+	 */
+	private long writeJob(int id, long ownerTid, File worker, byte[] params, byte[] hash, boolean withClass) throws IOException{
+		//Send the listening port, the local process id, the worker class name, the params, and the hash
+		int port = node.getServer().getCurrentPort();
+		byte name[] = worker.getName().replaceFirst("\\.class$", "").getBytes("UTF-8");
+		long fl = withClass ? worker.length() : 0;
+		long len = FrameWriter.varintSize(port) + FrameWriter.varintSize(ownerTid) + FrameWriter.blobSize(name.length) + FrameWriter.blobSize(params.length) + (hash == null ? 0 : hash.length) + fl;
+		
+		//Large workers are sent straight from the file, and so are not compressed
+		boolean direct = fl >= node.getConfigManager().getSetting("RemoteNode", "directTransferThreshold", long.class);
+		FrameWriter out = beginPayload(Opcode.JOB, hash == null ? 0 : Protocol.FLAG_CLASS_HASH, id, len, direct ? 0 : params.length + fl);
+		try{
+			out.writeVarint(port);
+			out.writeVarint(ownerTid);
+			out.writeBlob(name);
+			out.writeBlob(params);
+			if(hash != null)
+				out.writeBytes(hash, 0, hash.length);
+		
+			//The worker fills the rest of the frame
+			if(fl > 0){
+				FileInputStream fin = new FileInputStream(worker);
+				try{
+					if(direct){
+						session.out.flush();
+						session.watch.beginWrite();
+						try{
+							session.connection.transferFrom(fin.getChannel(), 0, fl);
+						}
+						finally{
+							session.watch.endWrite();
+						}
+					}
+					else
+						out.writeFrom(fin, fl);
+				}
+				finally{
+					fin.close();
+				}
+			}
+			return endPayload();
+		}
+		finally{
+			abortPayload();
+		}
+	}
+	
+	/**
+	 * <p>Writes a {@link Opcode#JOB} frame from a worker that has already been read into memory. The payload is encoded, and
+	 * compressed if the policy calls for it, only once for all nodes the worker is sent to.</p>
+	 *
+	 * @param id The id of the request.
+	 * @param image The worker.
+	 * @param hashed Whether to send the hash of the class.
+	 * @param withClass Whether to send the class. If false, the node must already hold it.
+	 * @return The number of bytes sent.
+	 * @throws IOException
+	 */
+	private long writeJob(int id, WorkerImage image, boolean hashed, boolean withClass) throws IOException{
+		int flags = hashed ? Protocol.FLAG_CLASS_HASH : 0;
+		byte payload[] = image.getPayload(hashed, withClass);
+		
+		//Large workers are not compressed, as they would not be if sent from the file
+		boolean direct = withClass && image.getClassLength() >= node.getConfigManager().getSetting("RemoteNode", "directTransferThreshold", long.class);
+		int level = !direct && session.capabilities.supports(Capabilities.COMPRESSION) ? node.getCompression().chooseLevel(peer, payload.length) : Compression.NONE;
+		if(level != Compression.NONE){
+			byte packed[] = image.getPacked(hashed, withClass, level);
+			if(packed != null)
+				return writeCompressed(Opcode.JOB, flags, id, payload.length, packed);
+		}
+		session.out.beginFrame(Opcode.JOB, flags, id, payload.length);
+		session.out.writeBytes(payload, 0, payload.length);
+		return payload.length;
+	}
+	
+	/**
+	 * <p>Begins a frame, compressing its payload into memory if the node accepts compressed payloads and the compression policy
+	 * calls for it. The payload must be written to the returned writer and then finished with {@link #endPayload()}.</p>
+	 *
+	 * @param opcode The operation carried by the frame.
+	 * @param flags The flags for the frame.
+	 * @param id The id of the request.
+	 * @param length The exact length of the payload.
+	 * @param compressible The number of payload bytes that are worth compressing, or 0 if the payload must not be compressed.
+	 * @return The writer for the payload.
+	 * @throws IOException
+	 */
+	private FrameWriter beginPayload(Opcode opcode, int flags, int id, long length, long compressible) throws IOException{
+		int level = compressible > 0 && session.capabilities.supports(Capabilities.COMPRESSION) ? node.getCompression().chooseLevel(peer, compressible) : Compression.NONE;
+		if(level == Compression.NONE || !node.getCompression().fits(length)){
+			session.out.beginFrame(opcode, flags, id, length);
+			deferred = null;
+			directLength = length;
+			return session.out;
+		}
+		deferred = new DeferredFrame(opcode, flags, id, level, (int)length);
+		return deferred.writer;
+	}
+	
+	/**
+	 * <p>Finishes a frame begun with {@link #beginPayload(Opcode, int, int, long, long)}, sending the compressed payload if it
+	 * was compressed. The payload is sent compressed even if it did not shrink, since the original is not kept.</p>
+	 *
+	 * @return The number of bytes sent for the frame.
+	 * @throws IOException
+	 */
+	private long endPayload() throws IOException{
+		DeferredFrame f = deferred;
+		if(f == null)
+			return directLength;
+		deferred = null;
+		byte packed[];
+		try{
+			f.writer.flush();
+			f.compressor.finish();
+			packed = f.packed.toByteArray();
+		}
+		finally{
+			f.deflater.end();
+		}
+		return writeCompressed(f.opcode, f.flags, f.id, f.length, packed);
+	}
+	
+	/**
+	 * <p>Abandons a frame begun with {@link #beginPayload(Opcode, int, int, long, long)} whose payload could not be written,
+	 * releasing its compressor. This does nothing once the frame has been finished with {@link #endPayload()}.</p>
+	 */
+	private void abortPayload(){
+		DeferredFrame f = deferred;
+		if(f == null)
+			return;
+		deferred = null;
+		f.deflater.end();
+	}
+	
+	/**
+	 * <p>Writes a frame with a compressed payload.</p>
+	 *
+	 * @param opcode The operation carried by the frame.
+	 * @param flags The flags for the frame, without {@link Protocol#FLAG_COMPRESSED}.
+	 * @param id The id of the request.
+	 * @param inflated The length of the payload before compression.
+	 * @param packed The compressed payload.
+	 * @return The number of bytes sent for the frame.
+	 * @throws IOException
+	 */
+	private long writeCompressed(Opcode opcode, int flags, int id, int inflated, byte[] packed) throws IOException{
+		long length = FrameWriter.varintSize(inflated) + packed.length;
+		session.out.beginFrame(opcode, flags | Protocol.FLAG_COMPRESSED, id, length);
+		session.out.writeVarint(inflated);
+		session.out.writeBytes(packed, 0, packed.length);
+		return length;
+	}
+	
+	/**
+	 * <p>Records the size of a request and starts timing it once it has been written, so that the throughput to the node can
+	 * be measured when the reply arrives. Compression time is not counted against the link.</p>
+	 *
+	 * @param r The request.
+	 * @param sent The number of bytes sent for the request.
+	 */
+	private void measure(Request<?> r, long sent){
+		r.started = System.nanoTime();
+		r.sent = sent;
+	}
+	
+	/**
+	 * <p>Sends all queued requests to the RemoteNode.</p>
+	 *
+	 * @throws IOException
+	 */
+	public void flush() throws IOException{
+		lock.lock();
+		try{
+			if(session == null || closed)
+				return;
+			try {
+				session.out.flush();
+			} catch (IOException e) {
+				throw fail(e);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * <p>Sends all queued requests and reads replies until every request has been answered.</p>
+	 *
+	 * @throws IOException If communication with the node failed. All outstanding requests will have failed as well.
+	 */
+	public void await() throws IOException{
+		lock.lock();
+		try{
+			if(session == null)
+				return;
+			flush();
+			try {
+				while(!pending.isEmpty()){
+					if(!session.in.readHeader(session.header))
+						throw new EOFException("The node closed the connection with " + pending.size() + " requests outstanding");
+					Request<?> r = pending.get(session.header.getRequestId());
+					if(r == null)
+						throw new ProtocolException("Reply to an unknown request: " + session.header);
+					if(r.partial(session.header, session.in))
+						continue;
+					pending.remove(session.header.getRequestId());
+					r.complete(session.header, session.in);
+				}
+			} catch (IOException e) {
+				throw fail(e);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * <p>Releases the connection used by the pipeline. Any requests that have not been answered will fail, and the connection
+	 * will be closed rather than released since their replies may still arrive.</p>
+	 */
+	@Override
+	public void close(){
+		lock.lock();
+		try{
+			if(closed)
+				return;
+			closed = true;
+			if(session == null)
+				return;
+			session.watch.disarm();
+			if(pending.isEmpty())
+				session.release();
+			else{
+				for(Request<?> r : pending.values())
+					r.future.completeExceptionally(new IOException("The pipeline was closed before a reply was received"));
+				pending.clear();
+				session.connection.close();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * <p>Assigns an id to a request and records it as awaiting a reply.</p>
+	 *
+	 * @param r The request.
+	 * @return The id for the request.
+	 * @throws IOException If the pipeline has been closed.
+	 */
+	private int register(Request<?> r) throws IOException{
+		if(closed)
+			throw new IOException("The pipeline has been closed");
+		int id = nextId++;
+		r.sent = 0;
+		pending.put(id, r);
+		return id;
+	}
+	
+	/**
+	 * <p>Handles a communication failure by failing all outstanding requests and closing the pipeline.</p>
+	 *
+	 * @param e The cause of the failure.
+	 * @return The cause of the failure, to be rethrown.
+	 */
+	private IOException fail(IOException e){
+		if(!closed){
+			closed = true;
+			session.watch.disarm();
+			for(Request<?> r : pending.values())
+				r.future.completeExceptionally(e);
+			pending.clear();
+			session.connection.close();
+			remote.nodeConnectionFailed();
+		}
+		return e;
+	}
+	
+	/**
+	 * <p>Performs a request immediately using the text protocol.</p>
+	 *
+	 * @param <T> The type of result for the request.
+	 * @param op The operation to perform.
+	 * @return A completed Future holding the result or failure of the operation.
+	 */
+	private <T> Future<T> legacy(Callable<T> op){
+		CompletableFuture<T> f = new CompletableFuture<T>();
+		try {
+			f.complete(op.call());
+		} catch (Exception e) {
+			f.completeExceptionally(e);
+		}
+		return f;
+	}
+}
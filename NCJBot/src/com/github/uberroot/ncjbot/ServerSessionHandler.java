@@ -1,12 +1,45 @@
 package com.github.uberroot.ncjbot;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.net.InetAddress;
+import java.net.ProtocolException;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.github.uberroot.ncjbot.modapi.MembershipGossip;
+import com.github.uberroot.ncjbot.modapi.OverlayManager;
+
+import com.github.uberroot.ncjbot.protocol.Capabilities;
+import com.github.uberroot.ncjbot.protocol.FrameHeader;
+import com.github.uberroot.ncjbot.protocol.FrameReader;
+import com.github.uberroot.ncjbot.protocol.FrameWriter;
+import com.github.uberroot.ncjbot.protocol.Multiplexer;
+import com.github.uberroot.ncjbot.protocol.Opcode;
+import com.github.uberroot.ncjbot.protocol.Protocol;
+import com.github.uberroot.ncjbot.protocol.TextReader;
 
 /**
  * <p>Handles communications from a client and closes the session when finished.</p>
@@ -14,11 +47,9 @@ import java.util.Random;
  * @author Carter Waxman
  *
  */
-//TODO: Implement SO_TIMEOUTs and SO_KEEPALIVEs
 //TODO: The multithreaded approach may be replaced with socket channels
-//TODO: This shouldn't be a Thread subclass as it exposes public methods through thread enumeration
 //TODO: There should be a hook for each protocol method
-public final class ServerSessionHandler extends Thread{
+public final class ServerSessionHandler implements Runnable{
 	/**
 	 * <p>The running LocalNode instance.</p>
 	 */
@@ -29,11 +60,110 @@ public final class ServerSessionHandler extends Thread{
 	 */
 	private static int idcount = 0;
 	
+	/**
+	 * <p>The phrase that ends a text session.</p>
+	 */
+	private static final byte GOODBYE[] = TextReader.encode("Goodbye.");
+	
+	/**
+	 * <p>The commands of the text protocol. Phrases that carry an argument end with the newline preceding it.</p>
+	 */
+	private static final byte ARE_YOU_ALIVE[] = TextReader.encode("Are you alive?");
+	private static final byte WHO_DO_YOU_KNOW[] = TextReader.encode("Who do you know?");
+	private static final byte I_M_HERE[] = TextReader.encode("I'm here.\n");
+	private static final byte I_JUST_MET[] = TextReader.encode("I just met\n");
+	private static final byte I_HAVE_A_JOB[] = TextReader.encode("I have a job for you.");
+	private static final byte I_HAVE_RESULTS[] = TextReader.encode("I have results.");
+	
+	/**
+	 * <p>The responses of the text protocol.</p>
+	 */
+	private static final byte NOT_DEAD_YET[] = TextReader.encode("I'm not dead yet.");
+	private static final byte BLEEDING_OUT[] = TextReader.encode("I'm bleeding out.");
+	private static final byte NOT_OKAY[] = TextReader.encode("I'm not okay.");
+	private static final byte GOT_IT[] = TextReader.encode("Got it.");
+	private static final byte I_KNOW_YOU[] = TextReader.encode("Hey I know you.");
+	private static final byte WHAT_WILL_I_NEED[] = TextReader.encode("What will I need?");
+	private static final byte WHAT_DID_YOU_FIND[] = TextReader.encode("What did you find?");
+	
 	/**
 	 * <p>A socket allowing communication with the client</p>
 	 */
 	private Socket clientSock;
 	
+	/**
+	 * <p>The name identifying this session.</p>
+	 */
+	private final String name;
+	
+	/**
+	 * <p>The stream replies are written to, or null if replies are written to the socket.</p>
+	 */
+	private final OutputStream output;
+	
+	/**
+	 * <p>The logical stream carrying this session, or null if the session has the socket to itself.</p>
+	 */
+	private final Closeable stream;
+	
+	/**
+	 * <p>The channel underlying the socket, from which payloads are read directly when the session is read straight from
+	 * the socket, or null if the session must be read through its stream.</p>
+	 */
+	private ReadableByteChannel channel;
+	
+	/**
+	 * <p>Enforces the timeouts of a session that has the socket to itself, or null if the session is carried by a stream.</p>
+	 */
+	private SessionTimer.Watch watch;
+	
+	/**
+	 * <p>Enforces the idle timeout of the connection carrying the session, or null if it is not watched. This is held while
+	 * the client awaits something begun by one of its requests, so that the connection is not closed as idle.</p>
+	 */
+	private SessionTimer.Watch connectionWatch;
+	
+	/**
+	 * <p>The watch held while a stream is open, or null if none is held.</p>
+	 */
+	private final AtomicReference<SessionTimer.Watch> incomingHold = new AtomicReference<SessionTimer.Watch>();
+	
+	/**
+	 * <p>The stream being received by the session, or null if no stream is open. This is volatile since the session may be
+	 * ended by a thread other than the one handling its frames.</p>
+	 */
+	private volatile StreamPipe incoming;
+	
+	/**
+	 * <p>Whether the job receiving the open stream has accepted all of the data so far.</p>
+	 */
+	private boolean incomingAccepted;
+	
+	/**
+	 * <p>The buffer used to pass stream data to the receiving job.</p>
+	 */
+	private byte incomingChunk[];
+	
+	/**
+	 * <p>Writes the replies completed after their frames have been handled, or null if such replies are written in place.</p>
+	 */
+	private volatile ReplyWriter replies;
+	
+	/**
+	 * <p>Writes replies that are completed after the frame requesting them has been handled, such as the answers to calls.
+	 * Servers that handle frames with {@link ServerSessionHandler#handleFrame(FrameHeader, FrameReader, FrameWriter)} should
+	 * provide one with {@link ServerSessionHandler#setReplyWriter(ReplyWriter)}.</p>
+	 */
+	public interface ReplyWriter{
+		/**
+		 * <p>Writes a reply to the client. This may be called on any thread, and must not interleave the reply with another.</p>
+		 *
+		 * @param frame The whole frame of the reply.
+		 * @throws IOException
+		 */
+		public void writeReply(byte[] frame) throws IOException;
+	}
+	
 	/**
 	 * <p>Instantiates a ServerSessionHandler with a socket to use for client communication.</p>
 	 * 
@@ -43,44 +173,1093 @@ public final class ServerSessionHandler extends Thread{
 	public ServerSessionHandler(LocalNode node, Socket clientSock){
 		this.node = node;
 		this.clientSock = clientSock;
-		setName("Server Session Handler " + idcount++ + " (" + clientSock.getInetAddress() + ":" + clientSock.getPort() + ")");
+		output = null;
+		stream = null;
+		channel = null;
+		name = "Server Session Handler " + nextId() + " (" + clientSock.getInetAddress() + ":" + clientSock.getPort() + ")";
+	}
+	
+	/**
+	 * <p>Instantiates a ServerSessionHandler for a binary session carried by one stream of a multiplexed connection. The
+	 * socket identifies the client, but the session is read from and written to the stream, and only the stream is closed when
+	 * the session ends.</p>
+	 * 
+	 * @param node The running LocalNode instance.
+	 * @param clientSock The socket carrying the multiplexed connection.
+	 * @param stream The stream carrying the session.
+	 */
+	public ServerSessionHandler(LocalNode node, Socket clientSock, Multiplexer.Stream stream){
+		this.node = node;
+		this.clientSock = clientSock;
+		this.output = stream.getOutputStream();
+		this.stream = stream;
+		channel = null;
+		name = "Server Session Handler " + nextId() + " (" + clientSock.getInetAddress() + ":" + clientSock.getPort() + " stream " + stream.getId() + ")";
 	}
 	
 	/**
-	 * <p>Runs the protocol handling loop for accepting commands and responding accordingly.</p>
+	 * <p>Gets the next session id.</p>
+	 * 
+	 * @return The next session id.
+	 */
+	private static synchronized int nextId(){
+		return idcount++;
+	}
+	
+	/**
+	 * <p>Gets the name identifying this session. This should be used to name the thread running the session.</p>
+	 * 
+	 * @return The name identifying this session.
+	 */
+	public String getName(){
+		return name;
+	}
+	
+	/**
+	 * <p>Determines which protocol the client speaks and runs the matching protocol handling loop.</p>
 	 */
-	//TODO: The text-based protocol will likely be replaced with a leaner binary protocol
 	@Override
 	public void run(){
-		InputStream in = null;
 		try {
-			in = clientSock.getInputStream();//new BufferedReader(new InputStreamReader(clientSock.getInputStream()));
-		} catch (IOException e2) {}
-		while(true){
-			char cBuffer[] = new char[1500];
-			byte buffer[] = new byte[1500];
+			channel = clientSock.getChannel();
+			run(clientSock.getInputStream());
+		} catch (IOException e) {
+			System.err.println("Session ended abnormally: " + e.getMessage());
 			try {
-				int r = in.read(buffer);
-				if(r == -1)
-					break;
-				for(int i = 0; i < 1500; i++)
-					cBuffer[i] = (char)buffer[i];
+				clientSock.close();
 			} catch (IOException e1) {}
-			if(String.valueOf(cBuffer).trim().equals("Goodbye."))
+		}
+	}
+	
+	/**
+	 * <p>Determines which protocol the client speaks and runs the matching protocol handling loop, reading from the given
+	 * stream rather than the socket. This allows a session to be continued from data that has already been read from the
+	 * socket. The socket is closed when the session ends.</p>
+	 * 
+	 * @param is The stream from the client.
+	 */
+	public void run(InputStream is){
+		//The socket is closed if the client stalls or stays idle too long
+		if(stream == null){
+			watch = node.getSessionTimer().watch(clientSock, name,
+					node.getConfigManager().getSetting("ServerSessionHandler", "readTimeout", int.class),
+					node.getConfigManager().getSetting("ServerSessionHandler", "writeTimeout", int.class),
+					node.getConfigManager().getSetting("ServerSessionHandler", "idleTimeout", int.class));
+			watch.awaitData();
+			connectionWatch = watch;
+			is = watch.watch(is);
+			channel = watch.watch(channel);
+			watch.arm();
+		}
+		try {
+			//A binary session begins with a byte that can never begin a text phrase
+			PushbackInputStream in = new PushbackInputStream(is);
+			int first = in.read();
+			if(first == Protocol.PREAMBLE)
+				runBinary(in);
+			else if(stream != null){
+				if(first != -1)
+					throw new ProtocolException("Multiplexed streams must carry binary sessions");
+			}
+			else if(first == Protocol.MUX_PREAMBLE)
+				runMultiplexed(in);
+			else if(first != -1){
+				in.unread(first);
+				runText(in);
+			}
+		} catch (IOException e) {
+			System.err.println("Session ended abnormally: " + e.getMessage());
+		}
+		endSession();
+		if(watch != null)
+			watch.disarm();
+		try {
+			if(stream != null)
+				stream.close();
+			else
+				clientSock.close();
+		} catch (IOException e) {}
+	}
+	
+	/**
+	 * <p>Accepts streams from a multiplexed connection until the client closes it, running a separate session for each
+	 * stream.</p>
+	 * 
+	 * @param is The stream from the client, positioned after the preamble.
+	 * @throws IOException
+	 */
+	private void runMultiplexed(InputStream is) throws IOException{
+		//The streams time their own requests, so the connection is only closed once it has been quiet too long
+		setIdle(true);
+		Multiplexer mux = new Multiplexer(is, socketOutput(), clientSock, false, new Multiplexer.StreamListener() {
+			@Override
+			public void streamOpened(Multiplexer m, final Multiplexer.Stream stream) {
+				final ServerSessionHandler handler = new ServerSessionHandler(node, clientSock, stream);
+				handler.setConnectionWatch(watch);
+				node.createThread(new Runnable(){
+					@Override
+					public void run() {
+						handler.run(stream.getInputStream());
+					}
+				}, handler.getName()).start();
+			}
+		});
+		mux.run();
+	}
+	
+	/**
+	 * <p>Runs the protocol handling loop for binary sessions, accepting frames and responding accordingly. Clients may send
+	 * several requests without awaiting replies, so each reply carries the id of its request, and replies are only flushed
+	 * once no further requests are waiting to be read.</p>
+	 *
+	 * @param is The stream from the client, positioned after the preamble.
+	 * @throws IOException
+	 */
+	private void runBinary(InputStream is) throws IOException{
+		FrameReader in = new FrameReader(is, channel, 8192);
+		final FrameWriter out = new FrameWriter(output != null ? output : socketOutput());
+		FrameHeader h = new FrameHeader();
+		
+		//Held while the session is written, as a Lock so that a virtual thread writing to a slow peer does not pin its carrier
+		final ReentrantLock writing = new ReentrantLock();
+		
+		//Late replies are written between frames
+		setReplyWriter(new ReplyWriter(){
+			@Override
+			public void writeReply(byte[] frame) throws IOException {
+				writing.lock();
+				try{
+					out.writeBytes(frame, 0, frame.length);
+					out.flush();
+				} finally {
+					writing.unlock();
+				}
+			}
+		});
+		while(true){
+			//Waiting for the next request is idle, but the rest of a request must arrive promptly
+			awaitRequest();
+			if(!in.readHeader(h))
+				break;
+			setIdle(false);
+			writing.lock();
+			try{
+				if(!handleFrame(h, in, out))
+					break;
+				
+				//Replies to pipelined requests are sent together
+				if(in.available() == 0)
+					out.flush();
+			} finally {
+				writing.unlock();
+			}
+		}
+		writing.lock();
+		try{
+			out.flush();
+		} finally {
+			writing.unlock();
+		}
+	}
+	
+	/**
+	 * <p>Gets the stream to the client when the session has the socket to itself.</p>
+	 * 
+	 * @return The stream to the client, watched if the session is.
+	 * @throws IOException
+	 */
+	private OutputStream socketOutput() throws IOException{
+		OutputStream out = clientSock.getOutputStream();
+		return watch != null ? watch.watch(out) : out;
+	}
+	
+	/**
+	 * <p>Marks the session idle until the client begins a new request.</p>
+	 */
+	private void awaitRequest(){
+		if(watch != null)
+			watch.awaitData();
+	}
+	
+	/**
+	 * <p>Marks whether the session is waiting for the client to begin a new request.</p>
+	 * 
+	 * @param idle Whether the session is idle.
+	 */
+	private void setIdle(boolean idle){
+		if(watch != null)
+			watch.setIdle(idle);
+	}
+	
+	/**
+	 * <p>Sets the writer for replies that are completed after their frames have been handled. Without one, such replies are
+	 * completed before the frame requesting them has been handled.</p>
+	 * 
+	 * @param replies The writer for late replies.
+	 */
+	public void setReplyWriter(ReplyWriter replies){
+		this.replies = replies;
+	}
+	
+	/**
+	 * <p>Sets the watch enforcing the idle timeout of the connection carrying the session. The watch is held while the client
+	 * awaits the answer to a call or has a stream open, so that the connection is not closed as idle. Servers that handle
+	 * frames with {@link ServerSessionHandler#handleFrame(FrameHeader, FrameReader, FrameWriter)} and time their connections
+	 * should provide it.</p>
+	 * 
+	 * @param watch The watch on the connection.
+	 */
+	public void setConnectionWatch(SessionTimer.Watch watch){
+		connectionWatch = watch;
+	}
+	
+	/**
+	 * <p>Keeps the connection carrying the session from being closed as idle until the watch returned is released.</p>
+	 * 
+	 * @return The watch held, which must be released, or null if the connection is not watched.
+	 */
+	private SessionTimer.Watch holdConnection(){
+		SessionTimer.Watch w = connectionWatch;
+		if(w != null)
+			w.hold();
+		return w;
+	}
+	
+	/**
+	 * <p>Releases the hold on the connection taken for the open stream, if there is one.</p>
+	 */
+	private void releaseIncoming(){
+		SessionTimer.Watch w = incomingHold.getAndSet(null);
+		if(w != null)
+			w.release();
+	}
+	
+	/**
+	 * <p>Handles a single frame from a binary session, writing any reply without flushing it.</p>
+	 * 
+	 * @param h The header of the frame.
+	 * @param in The reader, positioned at the start of the payload.
+	 * @param out The writer for the reply.
+	 * @return False if the client ended the session.
+	 * @throws IOException
+	 */
+	public boolean handleFrame(FrameHeader h, FrameReader in, FrameWriter out) throws IOException{
+		int id = h.getRequestId();
+		if(h.hasFlag(Protocol.FLAG_COMPRESSED)){
+			//Handle the original frame as it is decompressed
+			InputStream frame = node.getCompression().inflate(h, in);
+			try{
+				FrameReader fr = new FrameReader(frame, 8192);
+				FrameHeader fh = new FrameHeader();
+				if(!fr.readHeader(fh))
+					throw new EOFException();
+				return handleFrame(fh, fr, out);
+			}
+			finally{
+				frame.close();
+			}
+		}
+		switch(h.getOpcode()){
+			case GOODBYE:
+				return false;
+			case HELLO:{
+				//Agree on the highest version and the features both nodes support
+				Capabilities caps = Capabilities.negotiate(in.readInt(), in.readInt());
+				out.beginFrame(Opcode.HELLO, 0, id, FrameWriter.varintSize(caps.getVersion()) + FrameWriter.varintSize(caps.getMask()));
+				out.writeVarint(caps.getVersion());
+				out.writeVarint(caps.getMask());
+				break;
+			}
+			case ALIVE:{
+				writeStatus(out, id);
+				break;
+			}
+			case KNOWN_NODES:{
+				if(!checkRunning(in, out, id))
+					break;
+				if(in.remaining() > 0){
+					//The node asks for the changes since the list it last received
+					long epoch = in.readVarint();
+					writeNodeList(out, id, epoch, in.readVarint());
+					System.out.println("Active node list retreived for " + clientSock.getInetAddress().getHostAddress() + ":" + clientSock.getPort());
+					break;
+				}
+				List<RemoteNode> nodes = new ArrayList<RemoteNode>(node.getOverlayManager().getActiveNodes());
+				long len = FrameWriter.varintSize(nodes.size());
+				for(RemoteNode n : nodes)
+					len += FrameWriter.addressSize(n.getIpAddress()) + FrameWriter.varintSize(n.getListeningPort());
+				out.beginFrame(Opcode.NODE_LIST, 0, id, len);
+				out.writeVarint(nodes.size());
+				for(RemoteNode n : nodes){
+					out.writeAddress(n.getIpAddress());
+					out.writeVarint(n.getListeningPort());
+				}
+				System.out.println("Active node list retreived for " + clientSock.getInetAddress().getHostAddress() + ":" + clientSock.getPort());
+				break;
+			}
+			case PRESENCE:{
+				if(!checkRunning(in, out, id))
+					break;
+				RemoteNode rn = new RemoteNode(node, clientSock.getInetAddress(), in.readInt());
+				boolean added = node.addDiscoveredNode(rn);
+				if(added)
+					System.out.println("Found new node: " + rn);
+				out.beginFrame(Opcode.PRESENCE_ACK, added ? Protocol.FLAG_NEW : 0, id, 0);
+				break;
+			}
+			case INTRODUCE:{
+				if(!checkRunning(in, out, id))
+					break;
+				RemoteNode rn = new RemoteNode(node, in.readAddress(), in.readInt());
+				boolean added = node.addDiscoveredNode(rn);
+				if(added)
+					System.out.println("Found new node: " + rn);
+				out.beginFrame(Opcode.PRESENCE_ACK, added ? Protocol.FLAG_NEW : 0, id, 0);
+				break;
+			}
+			case PING:{
+				if(!checkRunning(in, out, id))
+					break;
+				RemoteNode rn = new RemoteNode(node, clientSock.getInetAddress(), in.readInt());
+				List<MemberUpdate> updates = MemberUpdate.read(in, clientSock.getInetAddress());
+				MembershipGossip gossip = getGossip();
+				if(gossip != null)
+					gossip.merge(rn, updates);
+				node.addDiscoveredNode(rn);
+				writePingAck(out, id, 0, gossip != null ? gossip.getPiggyback() : Collections.<MemberUpdate>emptyList());
+				break;
+			}
+			case PING_REQ:{
+				if(checkRunning(in, out, id))
+					probeFor(in, out, id);
+				break;
+			}
+			case JOB:{
+				if(checkRunning(in, out, id))
+					receiveJob(in, out, id, h.hasFlag(Protocol.FLAG_CLASS_HASH));
+				break;
+			}
+			case DATA:{
+				if(checkRunning(in, out, id))
+					receiveData(in, out, id);
+				break;
+			}
+			case DATA_BATCH:{
+				if(checkRunning(in, out, id))
+					receiveBatch(in, out, id);
+				break;
+			}
+			case CALL:{
+				if(checkRunning(in, out, id))
+					receiveCall(in, out, id);
+				break;
+			}
+			case STREAM:{
+				if(checkRunning(in, out, id))
+					openStream(in, out, id);
 				break;
-			if(String.valueOf(cBuffer).trim().equals("Are you alive?")){
+			}
+			case STREAM_DATA:{
+				if(incoming == null)
+					throw new ProtocolException("Stream data received with no stream open");
+				
+				//Data for a job that has stopped reading is discarded
+				StreamPipe pipe = incoming;
+				while(in.remaining() > 0){
+					int n = (int)Math.min(incomingChunk.length, in.remaining());
+					in.readFully(incomingChunk, 0, n);
+					if(incomingAccepted)
+						incomingAccepted = pipe.write(incomingChunk, 0, n);
+				}
+				break;
+			}
+			case STREAM_END:{
+				StreamPipe pipe = incoming;
+				if(pipe == null)
+					throw new ProtocolException("Stream ended with no stream open");
+				if(!pipe.end())
+					incomingAccepted = false;
+				incoming = null;
+				releaseIncoming();
+				out.beginFrame(Opcode.ACK, incomingAccepted ? 0 : Protocol.FLAG_FAILED, id, 0);
+				break;
+			}
+			default:
+				throw new ProtocolException("Unexpected operation from client: " + h);
+		}
+		return true;
+	}
+	
+	/**
+	 * <p>Writes a {@link Opcode#STATUS} frame carrying the current state of this node.</p>
+	 *
+	 * @param out The writer for the reply.
+	 * @param id The id of the request being answered.
+	 * @throws IOException
+	 */
+	private void writeStatus(FrameWriter out, int id) throws IOException{
+		out.beginFrame(Opcode.STATUS, 0, id, 1);
+		out.writeByte(Protocol.encodeState(node.getState()));
+	}
+	
+	/**
+	 * <p>Ensures this node is running before a request is handled. If it is not, the request is discarded and
+	 * answered with a {@link Opcode#STATUS} frame in place of its normal reply.</p>
+	 *
+	 * @param in The reader, positioned at the start of the payload.
+	 * @param out The writer for the reply.
+	 * @param id The id of the request being handled.
+	 * @return True if the request should be handled.
+	 * @throws IOException
+	 */
+	private boolean checkRunning(FrameReader in, FrameWriter out, int id) throws IOException{
+		if(node.getState() == NodeState.RUNNING)
+			return true;
+		in.skip(in.remaining());
+		writeStatus(out, id);
+		return false;
+	}
+	
+	/**
+	 * <p>Answers a versioned {@link Opcode#KNOWN_NODES} request with the changes to the active node list since the version
+	 * the node last received, or with the whole list if those changes are no longer known. The reply is split into frames of
+	 * at most ServerSessionHandler.nodeListChunk nodes.</p>
+	 *
+	 * @param out The writer for the reply.
+	 * @param id The id of the request being handled.
+	 * @param epoch The epoch of the list the node last received, or 0 if it has received none.
+	 * @param since The version of the list the node last received.
+	 * @throws IOException
+	 */
+	private void writeNodeList(FrameWriter out, int id, long epoch, long since) throws IOException{
+		MembershipLog log = node.getMembershipLog();
+		MembershipLog.Delta delta = log.since(epoch, since);
+		long version;
+		int flags;
+		ArrayList<InetAddress> addresses = new ArrayList<InetAddress>();
+		ArrayList<Integer> ports = new ArrayList<Integer>();
+		ArrayList<Boolean> added = new ArrayList<Boolean>();
+		if(delta != null){
+			version = delta.getVersion();
+			flags = Protocol.FLAG_DELTA;
+			for(MembershipLog.Change c : delta.getChanges()){
+				addresses.add(c.getAddress());
+				ports.add(c.getPort());
+				added.add(c.isAdded());
+			}
+		}
+		else{
+			//The version is read first so that the list is at least as new as it claims to be
+			version = log.getVersion();
+			flags = 0;
+			for(RemoteNode n : node.getOverlayManager().getActiveNodes()){
+				addresses.add(n.getIpAddress());
+				ports.add(n.getListeningPort());
+				added.add(true);
+			}
+		}
+		
+		int chunk = Math.max(1, node.getConfigManager().getSetting("ServerSessionHandler", "nodeListChunk", int.class));
+		int start = 0;
+		do{
+			int end = Math.min(addresses.size(), start + chunk);
+			long len = FrameWriter.varintSize(log.getEpoch()) + FrameWriter.varintSize(version) + FrameWriter.varintSize(end - start);
+			for(int i = start; i < end; i++)
+				len += (delta != null ? 1 : 0) + FrameWriter.addressSize(addresses.get(i)) + FrameWriter.varintSize(ports.get(i));
+			out.beginFrame(Opcode.NODE_LIST, flags | (end < addresses.size() ? Protocol.FLAG_MORE : 0), id, len);
+			out.writeVarint(log.getEpoch());
+			out.writeVarint(version);
+			out.writeVarint(end - start);
+			for(int i = start; i < end; i++){
+				if(delta != null)
+					out.writeByte(added.get(i) ? 1 : 0);
+				out.writeAddress(addresses.get(i));
+				out.writeVarint(ports.get(i));
+			}
+			start = end;
+		}while(start < addresses.size());
+	}
+	
+	/**
+	 * <p>Handles a {@link Opcode#JOB} frame, storing the worker and starting the job.</p>
+	 *
+	 * @param in The reader, positioned at the start of the payload.
+	 * @param out The writer for the reply.
+	 * @param id The id of the request being handled.
+	 * @param hashed Whether the hash of the class follows the initialization data.
+	 * @throws IOException
+	 */
+	private void receiveJob(FrameReader in, FrameWriter out, int id, boolean hashed) throws IOException{
+		//Add the remote node to the known list if it does not exist
+		RemoteNode rn = new RemoteNode(node, clientSock.getInetAddress(), in.readInt());
+		node.addDiscoveredNode(rn);
+		
+		//Get the remote process id and the name of the worker class
+		long remoteId = in.readVarint();
+		String workerName = new String(in.readBlob(), "UTF-8");
+		
+		//Download the initialization data
+		byte params[] = in.readBlob();
+		
+		//The class may have been omitted in favor of a cached copy
+		byte hash[] = null;
+		byte worker[] = null;
+		if(hashed){
+			hash = new byte[ClassStore.HASH_LENGTH];
+			in.readFully(hash, 0, hash.length);
+			if(in.remaining() == 0){
+				worker = node.getClassStore().get(hash);
+				if(worker == null){
+					out.beginFrame(Opcode.JOB_ID, Protocol.FLAG_CLASS_MISSING, id, 0);
+					return;
+				}
+			}
+		}
+		
+		//Small workers are loaded straight from memory, so their directory is only created if they ask for it
+		Random rand = new Random();
+		String dirLoc = "workers/" + System.currentTimeMillis() + "_" + remoteId + "_" + rand.nextLong() + "/";
+		long tid;
+		if(worker != null)
+			tid = node.startJob(dirLoc, workerName, ByteBuffer.wrap(worker).asReadOnlyBuffer(), rn, Long.toString(remoteId), ByteBuffer.wrap(params), true);
+		else if(in.remaining() <= node.getConfigManager().getSetting("ServerSessionHandler", "maxInMemoryWorker", long.class)){
+			worker = new byte[(int)in.remaining()];
+			in.readFully(worker, 0, worker.length);
+			if(hash != null){
+				if(!Arrays.equals(hash, ClassStore.hash(worker)))
+					throw new ProtocolException("The worker " + workerName + " does not match its hash");
+				node.getClassStore().put(hash, worker);
+			}
+			tid = node.startJob(dirLoc, workerName, ByteBuffer.wrap(worker), rn, Long.toString(remoteId), ByteBuffer.wrap(params), true);
+		}
+		else
+			tid = receiveWorker(in, rn, remoteId, workerName, dirLoc, params);
+		
+		//Return the id
+		if(tid == -1)
+			out.beginFrame(Opcode.JOB_ID, Protocol.FLAG_FAILED, id, 0);
+		else{
+			out.beginFrame(Opcode.JOB_ID, 0, id, FrameWriter.varintSize(tid));
+			out.writeVarint(tid);
+		}
+	}
+	
+	/**
+	 * <p>Stores a worker and its initialization data in a directory and starts the job from there. This is used for workers
+	 * too large to hold in memory.</p>
+	 * 
+	 * @param in The reader, positioned at the start of the class, which fills the rest of the frame.
+	 * @param rn The node that sent the job.
+	 * @param remoteId The remote process id.
+	 * @param workerName The name of the worker class.
+	 * @param dirLoc The directory to store the worker in.
+	 * @param params The initialization data.
+	 * @return The id of the new job, or -1 on failure.
+	 * @throws IOException
+	 */
+	private long receiveWorker(FrameReader in, RemoteNode rn, long remoteId, String workerName, String dirLoc, byte[] params) throws IOException{
+		//Make a place for the class
+		if(!(new File(dirLoc)).mkdirs())
+			System.err.println("unable to make " + dirLoc);
+		
+		//Store the initialization data
+		FileOutputStream fos = new FileOutputStream(dirLoc + "initData");
+		try{
+			fos.write(params);
+		}
+		finally{
+			fos.close();
+		}
+		
+		//Download the class, which fills the rest of the frame
+		fos = new FileOutputStream(dirLoc + workerName + ".class");
+		try{
+			in.transferTo(fos.getChannel(), in.remaining());
+		}
+		finally{
+			fos.close();
+		}
+		
+		//Run the job
+		return node.startJob(dirLoc, workerName, rn, Long.toString(remoteId), new File(dirLoc + "initData"), true);
+	}
+	
+	/**
+	 * <p>Handles a {@link Opcode#DATA} frame, delivering the data to the destination job. The data is acknowledged once
+	 * it has been received, before it is delivered.</p>
+	 *
+	 * @param in The reader, positioned at the start of the payload.
+	 * @param out The writer for the reply.
+	 * @param id The id of the request being handled.
+	 * @throws IOException
+	 */
+	private void receiveData(FrameReader in, FrameWriter out, int id) throws IOException{
+		//Add the remote node to the known list if it does not exist
+		RemoteNode rn = new RemoteNode(node, clientSock.getInetAddress(), in.readInt());
+		node.addDiscoveredNode(rn);
+		
+		//Get the destination and source process ids
+		long destTid = in.readVarint();
+		long sourceTid = in.readVarint();
+		
+		//Download the data, which fills the rest of the frame
+		Payload data = receivePayload(in, in.remaining(), rn, Long.toString(destTid), Long.toString(sourceTid));
+		out.beginFrame(Opcode.ACK, 0, id, 0);
+		out.flush();
+		
+		//Send the data to the process
+		try{
+			node.sendData(Long.toString(destTid), Long.toString(sourceTid), rn, data);
+		}
+		finally{
+			//Cleanup the file
+			data.close();
+		}
+	}
+	
+	/**
+	 * <p>Handles a {@link Opcode#DATA_BATCH} frame, delivering each unit of data to the destination job in order. Each unit is
+	 * downloaded in the same way as the data of a {@link Opcode#DATA} frame and delivered before the next is read, so a batch
+	 * never holds more than one unit in memory. The batch is only acknowledged once it has been delivered, so that the next
+	 * batch from the sender, which may arrive on another session, cannot overtake it.</p>
+	 *
+	 * @param in The reader, positioned at the start of the payload.
+	 * @param out The writer for the reply.
+	 * @param id The id of the request being handled.
+	 * @throws IOException
+	 */
+	private void receiveBatch(FrameReader in, FrameWriter out, int id) throws IOException{
+		//Add the remote node to the known list if it does not exist
+		RemoteNode rn = new RemoteNode(node, clientSock.getInetAddress(), in.readInt());
+		node.addDiscoveredNode(rn);
+		
+		//Get the destination and source process ids
+		String destTid = Long.toString(in.readVarint());
+		String sourceTid = Long.toString(in.readVarint());
+		
+		//Download each unit and send it to the process, the units filling the rest of the frame
+		long count = in.readVarint();
+		for(long i = 0; i < count; i++){
+			int len = in.readInt();
+			if(len > in.remaining())
+				throw new ProtocolException("Unit of " + len + " bytes in a batch with " + in.remaining() + " bytes left");
+			Payload unit = receivePayload(in, len, rn, destTid, sourceTid);
+			try{
+				node.sendData(destTid, sourceTid, rn, unit);
+			}
+			finally{
+				//Cleanup the file
+				unit.close();
+			}
+		}
+		out.beginFrame(Opcode.ACK, 0, id, 0);
+	}
+	
+	/**
+	 * <p>Handles a {@link Opcode#CALL} frame, passing the request to the destination job on a thread of
+	 * ServerSessionHandler.callThreadPool and sending its reply once it has answered.</p>
+	 *
+	 * @param in The reader, positioned at the start of the payload.
+	 * @param out The writer for the reply.
+	 * @param id The id of the request being handled.
+	 * @throws IOException
+	 */
+	private void receiveCall(FrameReader in, FrameWriter out, final int id) throws IOException{
+		//Add the remote node to the known list if it does not exist
+		final RemoteNode rn = new RemoteNode(node, clientSock.getInetAddress(), in.readInt());
+		node.addDiscoveredNode(rn);
+		
+		//Get the destination and source process ids
+		final String destTid = Long.toString(in.readVarint());
+		final String sourceTid = Long.toString(in.readVarint());
+		
+		//Calls are held in memory, so large ones are refused
+		if(in.remaining() > node.getConfigManager().getSetting("ServerSessionHandler", "maxInMemoryData", long.class)){
+			in.skip(in.remaining());
+			byte frame[] = encodeResult(id, Protocol.FLAG_FAILED, ByteBuffer.wrap("The request is too large".getBytes("UTF-8")));
+			out.writeBytes(frame, 0, frame.length);
+			return;
+		}
+		byte request[] = new byte[(int)in.remaining()];
+		in.readFully(request, 0, request.length);
+		final ByteBuffer data = ByteBuffer.wrap(request).asReadOnlyBuffer();
+		
+		final ReplyWriter replies = this.replies;
+		if(replies == null){
+			byte frame[] = answerCall(id, destTid, sourceTid, rn, data);
+			out.writeBytes(frame, 0, frame.length);
+			return;
+		}
+		
+		//The client is not idle while it awaits the answer
+		final SessionTimer.Watch held = holdConnection();
+		try{
+			node.getExecutor(node.getConfigManager().getSetting("ServerSessionHandler", "callThreadPool", int.class)).execute(new Runnable(){
+				@Override
+				public void run() {
+					try {
+						replies.writeReply(answerCall(id, destTid, sourceTid, rn, data));
+					} catch (IOException e) {
+						System.err.println("Unable to answer call from " + rn + ": " + e.getMessage());
+					}
+					finally{
+						if(held != null)
+							held.release();
+					}
+				}
+			});
+		} catch(RejectedExecutionException e){
+			if(held != null)
+				held.release();
+			throw e;
+		}
+	}
+	
+	/**
+	 * <p>Passes a call to the destination job and encodes its reply.</p>
+	 *
+	 * @param id The id of the call.
+	 * @param destTid The thread id of the job receiving the call.
+	 * @param sourceTid The thread id of the job making the call.
+	 * @param rn The node that made the call.
+	 * @param request The request.
+	 * @return The {@link Opcode#RESULT} frame.
+	 * @throws IOException
+	 */
+	private byte[] answerCall(int id, String destTid, String sourceTid, RemoteNode rn, ByteBuffer request) throws IOException{
+		ByteBuffer reply;
+		try{
+			reply = node.sendCall(destTid, sourceTid, rn, request);
+			if(reply == null)
+				reply = ByteBuffer.allocate(0);
+		} catch(Exception e){
+			String reason = e.getMessage() != null ? e.getMessage() : e.toString();
+			return encodeResult(id, Protocol.FLAG_FAILED, ByteBuffer.wrap(reason.getBytes("UTF-8")));
+		}
+		return encodeResult(id, 0, reply);
+	}
+	
+	/**
+	 * <p>Encodes a {@link Opcode#RESULT} frame.</p>
+	 *
+	 * @param id The id of the call.
+	 * @param flags The flags for the frame.
+	 * @param reply The reply, from its position to its limit.
+	 * @return The frame.
+	 * @throws IOException
+	 */
+	private static byte[] encodeResult(int id, int flags, ByteBuffer reply) throws IOException{
+		byte data[] = new byte[reply.remaining()];
+		reply.duplicate().get(data);
+		ByteArrayOutputStream frame = new ByteArrayOutputStream(data.length + 16);
+		FrameWriter fw = new FrameWriter(frame, 16);
+		fw.beginFrame(Opcode.RESULT, flags, id, data.length);
+		fw.writeBytes(data, 0, data.length);
+		fw.flush();
+		return frame.toByteArray();
+	}
+	
+	/**
+	 * <p>Gets the OverlayManager if it spreads membership by gossip.</p>
+	 *
+	 * @return The OverlayManager, or null if it does not take part in gossip.
+	 */
+	private MembershipGossip getGossip(){
+		OverlayManager om = node.getOverlayManager();
+		return om instanceof MembershipGossip ? (MembershipGossip)om : null;
+	}
+	
+	/**
+	 * <p>Writes a {@link Opcode#PING_ACK} frame.</p>
+	 *
+	 * @param out The writer for the reply.
+	 * @param id The id of the request being answered.
+	 * @param flags The flags for the frame.
+	 * @param updates The membership updates to carry.
+	 * @throws IOException
+	 */
+	private static void writePingAck(FrameWriter out, int id, int flags, List<MemberUpdate> updates) throws IOException{
+		out.beginFrame(Opcode.PING_ACK, flags, id, MemberUpdate.size(updates));
+		MemberUpdate.write(out, updates);
+	}
+	
+	/**
+	 * <p>Handles a {@link Opcode#PING_REQ} frame, probing a node on behalf of the client. Since the probe may take as long as
+	 * the client allows, up to ServerSessionHandler.maxProbeTimeout milliseconds, it is answered later when the server provides
+	 * a {@link ReplyWriter}.</p>
+	 *
+	 * @param in The reader, positioned at the start of the payload.
+	 * @param out The writer for the reply.
+	 * @param id The id of the request being handled.
+	 * @throws IOException
+	 */
+	private void probeFor(FrameReader in, FrameWriter out, final int id) throws IOException{
+		final RemoteNode rn = new RemoteNode(node, clientSock.getInetAddress(), in.readInt());
+		final RemoteNode target = new RemoteNode(node, in.readAddress(), in.readInt());
+		final int timeout = Math.max(0, Math.min(in.readInt(), node.getConfigManager().getSetting("ServerSessionHandler", "maxProbeTimeout", int.class)));
+		List<MemberUpdate> updates = MemberUpdate.read(in, clientSock.getInetAddress());
+		final MembershipGossip gossip = getGossip();
+		if(gossip != null)
+			gossip.merge(rn, updates);
+		node.addDiscoveredNode(rn);
+		
+		final ReplyWriter replies = this.replies;
+		if(replies == null){
+			byte frame[] = answerProbe(id, gossip, target, timeout, probePool());
+			out.writeBytes(frame, 0, frame.length);
+			return;
+		}
+		node.getExecutor(node.getConfigManager().getSetting("ServerSessionHandler", "callThreadPool", int.class)).execute(new Runnable(){
+			@Override
+			public void run() {
+				try {
+					replies.writeReply(answerProbe(id, gossip, target, timeout, probePool()));
+				} catch (IOException e) {
+					System.err.println("Unable to answer probe request from " + rn + ": " + e.getMessage());
+				}
+			}
+		});
+	}
+	
+	/**
+	 * <p>Gets the thread pool given by ServerSessionHandler.probeThreadPool, on which probes for clients are made.</p>
+	 *
+	 * @return The thread pool.
+	 */
+	private ScheduledThreadPoolExecutor probePool(){
+		return node.getExecutor(node.getConfigManager().getSetting("ServerSessionHandler", "probeThreadPool", int.class));
+	}
+	
+	/**
+	 * <p>Probes a node on behalf of a client and encodes the answer. The time allowed only starts once the probe is taken up
+	 * by a thread, and the probe is abandoned if it is not taken up within the same time.</p>
+	 *
+	 * @param id The id of the request.
+	 * @param gossip The OverlayManager, or null if it does not take part in gossip.
+	 * @param target The node to probe.
+	 * @param timeout The number of milliseconds to wait for the target to answer.
+	 * @param pool The thread pool to probe on.
+	 * @return The {@link Opcode#PING_ACK} frame.
+	 * @throws IOException
+	 */
+	private static byte[] answerProbe(int id, MembershipGossip gossip, final RemoteNode target, int timeout, Executor pool) throws IOException{
+		List<MemberUpdate> none = Collections.emptyList();
+		final List<MemberUpdate> updates = gossip != null ? gossip.getPiggyback() : none;
+		boolean answered = false;
+		try {
+			List<MemberUpdate> reply = new TimedTask<List<MemberUpdate>>(new Callable<List<MemberUpdate>>(){
+				@Override
+				public List<MemberUpdate> call() throws Exception {
+					return target.ping(updates);
+				}
+			}, timeout).submit(pool).get(timeout);
+			if(gossip != null)
+				gossip.merge(target, reply);
+			answered = true;
+		} catch (ExecutionException e) {
+		} catch (TimeoutException e) {
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		
+		ByteArrayOutputStream frame = new ByteArrayOutputStream(64);
+		FrameWriter fw = new FrameWriter(frame, 16);
+		writePingAck(fw, id, answered ? 0 : Protocol.FLAG_FAILED, gossip != null ? gossip.getPiggyback() : none);
+		fw.flush();
+		return frame.toByteArray();
+	}
+	
+	/**
+	 * <p>Handles a {@link Opcode#STREAM} frame, delivering a new stream to the destination job.</p>
+	 *
+	 * @param in The reader, positioned at the start of the payload.
+	 * @param out The writer for the reply.
+	 * @param id The id of the request being handled.
+	 * @throws IOException
+	 */
+	private void openStream(FrameReader in, FrameWriter out, int id) throws IOException{
+		if(incoming != null)
+			throw new ProtocolException("A stream was opened while another was open");
+		
+		//Add the remote node to the known list if it does not exist
+		RemoteNode rn = new RemoteNode(node, clientSock.getInetAddress(), in.readInt());
+		node.addDiscoveredNode(rn);
+		
+		//Get the destination and source process ids
+		long destTid = in.readVarint();
+		long sourceTid = in.readVarint();
+		
+		//Give the job its end of the stream
+		StreamPipe pipe = new StreamPipe(node.getConfigManager().getSetting("ServerSessionHandler", "streamBuffer", int.class));
+		if(!node.sendStream(Long.toString(destTid), Long.toString(sourceTid), rn, pipe.getInputStream())){
+			out.beginFrame(Opcode.ACK, Protocol.FLAG_FAILED, id, 0);
+			return;
+		}
+		incoming = pipe;
+		incomingAccepted = true;
+		
+		//A producer may go quiet for long periods, so the connection is not closed as idle while the stream is open
+		incomingHold.set(holdConnection());
+		if(incomingChunk == null)
+			incomingChunk = new byte[8192];
+		out.beginFrame(Opcode.ACK, 0, id, 0);
+	}
+	
+	/**
+	 * <p>Ends the session, failing any stream that was still being received.</p>
+	 */
+	public void endSession(){
+		StreamPipe pipe = incoming;
+		incoming = null;
+		releaseIncoming();
+		if(pipe != null)
+			pipe.fail(new EOFException("The session ended before the end of the stream"));
+	}
+	
+	/**
+	 * <p>Creates a file to spool data too large to hold in memory.</p>
+	 * 
+	 * @param rn The node that sent the data.
+	 * @param destTid The thread id of the job receiving the data.
+	 * @param sourceTid The thread id of the job that sent the data.
+	 * @return The file to spool to.
+	 */
+	private File spoolFile(RemoteNode rn, String destTid, String sourceTid){
+		//Make a place for the returned data
+		Random rand = new Random();
+		String dirLoc = "results/" + rn.getIpAddress().getHostAddress() + "_" + rn.getListeningPort() + "/";
+		if(!new File(dirLoc).exists())
+			if(!(new File(dirLoc)).mkdirs())
+				System.err.println("unable to make " + dirLoc);
+		return new File(dirLoc + System.currentTimeMillis() + "_" + destTid + "_" + sourceTid + "_" + rand.nextLong());
+	}
+	
+	/**
+	 * <p>Downloads data from a frame. Data no longer than ServerSessionHandler.maxInMemoryData is held on the heap, data no
+	 * longer than ServerSessionHandler.maxOffHeapData is held in a direct buffer, and anything larger is spooled to the disk.</p>
+	 * 
+	 * @param in The reader, positioned at the start of the data.
+	 * @param len The length of the data.
+	 * @param rn The node that sent the data.
+	 * @param destTid The thread id of the job receiving the data.
+	 * @param sourceTid The thread id of the job that sent the data.
+	 * @return The data, which must be closed once delivered.
+	 * @throws IOException
+	 */
+	private Payload receivePayload(FrameReader in, long len, RemoteNode rn, String destTid, String sourceTid) throws IOException{
+		if(len <= node.getConfigManager().getSetting("ServerSessionHandler", "maxInMemoryData", long.class)){
+			byte buffer[] = new byte[(int)len];
+			in.readFully(buffer, 0, buffer.length);
+			return Payload.wrap(buffer);
+		}
+		if(len <= node.getConfigManager().getSetting("ServerSessionHandler", "maxOffHeapData", long.class)){
+			ByteBuffer buffer = ByteBuffer.allocateDirect((int)len);
+			in.transferTo(bufferStream(buffer), len);
+			buffer.flip();
+			return Payload.wrap(buffer);
+		}
+		File dataFile = spoolFile(rn, destTid, sourceTid);
+		FileOutputStream fos = new FileOutputStream(dataFile);
+		try{
+			in.transferTo(fos.getChannel(), len);
+		}
+		catch(IOException e){
+			fos.close();
+			dataFile.delete();
+			throw e;
+		}
+		fos.close();
+		return Payload.spooled(dataFile, len);
+	}
+	
+	/**
+	 * <p>Downloads data from a text session, in the same way as {@link #receivePayload(FrameReader, long, RemoteNode, String, String)}.</p>
+	 * 
+	 * @param in The reader, positioned at the start of the data.
+	 * @param len The length of the data.
+	 * @param rn The node that sent the data.
+	 * @param destTid The thread id of the job receiving the data.
+	 * @param sourceTid The thread id of the job that sent the data.
+	 * @return The data, which must be closed once delivered.
+	 * @throws IOException
+	 */
+	private Payload receivePayload(TextReader in, long len, RemoteNode rn, String destTid, String sourceTid) throws IOException{
+		if(len <= node.getConfigManager().getSetting("ServerSessionHandler", "maxInMemoryData", long.class)){
+			byte buffer[] = new byte[(int)len];
+			in.readFully(buffer, 0, buffer.length);
+			return Payload.wrap(buffer);
+		}
+		if(len <= node.getConfigManager().getSetting("ServerSessionHandler", "maxOffHeapData", long.class)){
+			ByteBuffer buffer = ByteBuffer.allocateDirect((int)len);
+			in.transferTo(bufferStream(buffer), len);
+			buffer.flip();
+			return Payload.wrap(buffer);
+		}
+		File dataFile = spoolFile(rn, destTid, sourceTid);
+		FileOutputStream fos = new FileOutputStream(dataFile);
+		try{
+			in.transferTo(fos, len);
+		}
+		catch(IOException e){
+			fos.close();
+			dataFile.delete();
+			throw e;
+		}
+		fos.close();
+		return Payload.spooled(dataFile, len);
+	}
+	
+	/**
+	 * <p>Creates a stream that fills a buffer.</p>
+	 * 
+	 * @param buffer The buffer, which must have room for everything written.
+	 * @return The stream.
+	 */
+	private static OutputStream bufferStream(final ByteBuffer buffer){
+		return new OutputStream(){
+			@Override
+			public void write(int b) throws IOException {
+				buffer.put((byte)b);
+			}
+			
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				buffer.put(b, off, len);
+			}
+		};
+	}
+
+	/**
+	 * <p>Runs the protocol handling loop for text sessions, accepting commands and responding accordingly.
+	 * This allows clients that predate the binary protocol to continue to operate. Commands are decoded in place by a
+	 * {@link TextReader} kept for the whole session, and responses are written from pre-encoded phrases.</p>
+	 * 
+	 * @param is The stream from the client.
+	 * @throws IOException If the client could not be read.
+	 */
+	private void runText(InputStream is) throws IOException{
+		TextReader in = new TextReader(is);
+		OutputStream out = socketOutput();
+		while(true){
+			awaitRequest();
+			if(!in.readPhrase())
+				break;
+			setIdle(false);
+			if(in.phraseIs(GOODBYE))
+				break;
+			if(in.phraseIs(ARE_YOU_ALIVE)){
 				try {
 					switch(node.getState()){
 						case RUNNING:{
-							clientSock.getOutputStream().write("I'm not dead yet.".getBytes());
+							out.write(NOT_DEAD_YET);
 							break;
 						}
 						case SHUTTING_DOWN:{
-							clientSock.getOutputStream().write("I'm bleeding out.".getBytes());
+							out.write(BLEEDING_OUT);
 							break;
 						}
 						case UNKNOWN:{
-							clientSock.getOutputStream().write("I'm not okay.".getBytes());
+							out.write(NOT_OKAY);
 							break;
 						}
 					}
@@ -88,67 +1267,69 @@ public final class ServerSessionHandler extends Thread{
 					System.err.println("Unable to respond");
 				}
 			}
-			else if(String.valueOf(cBuffer).trim().equals("Who do you know?")){
+			else if(in.phraseIs(WHO_DO_YOU_KNOW)){
 				try {
 					List<RemoteNode> nodes = node.getOverlayManager().getActiveNodes();
-					String toSend = "\n";
+					StringBuilder toSend = new StringBuilder("\n");
 					for(RemoteNode n : nodes)
-						toSend += n.getIpAddress().getHostAddress() + ":" + n.getListeningPort() + "\n";
-					clientSock.getOutputStream().write(toSend.getBytes());
+						toSend.append(n.getIpAddress().getHostAddress()).append(':').append(n.getListeningPort()).append('\n');
+					toSend.append('\n');	//Ends the list, which may take several reads
+					out.write(TextReader.encode(toSend.toString()));
 					System.out.println("Active node list retreived for " + clientSock.getInetAddress().getHostAddress() + ":" + clientSock.getPort());
 				} catch (IOException e) {
 					System.err.println("Unable to respond.");
 				}
 			}
-			else if(String.valueOf(cBuffer).trim().matches("I'm here.\n\\d+")){
-				String port = String.valueOf(cBuffer).trim().split("\n")[1];
+			else if(in.phraseStartsWith(I_M_HERE) && in.phraseNumber(I_M_HERE.length) != -1){
+				int port = (int)in.phraseNumber(I_M_HERE.length);
 				try {
-					RemoteNode rn = new RemoteNode(node, clientSock.getInetAddress().getHostAddress(), Integer.valueOf(port));
+					RemoteNode rn = new RemoteNode(node, clientSock.getInetAddress().getHostAddress(), port);
 					if(node.addDiscoveredNode(rn)){
 						System.out.println("Found new node: " + rn.getIpAddress().toString() + ":" + port);
-						clientSock.getOutputStream().write("Got it.".getBytes());
+						out.write(GOT_IT);
 					}
 					else
-						clientSock.getOutputStream().write("Hey I know you.".getBytes());
-				} catch (NumberFormatException e) {
+						out.write(I_KNOW_YOU);
 				} catch (UnknownHostException e) {
 				} catch (IOException e) {
 					System.err.println("Unable to respond.");
 				}
 			}
-			else if(String.valueOf(cBuffer).trim().matches("I just met\n\\d{1,3}\\.\\d{1,3}\\.\\d{1,3}\\.\\d{1,3}:\\d+")){
-				String connString = String.valueOf(cBuffer).trim().split("\n")[1];
+			else if(in.phraseStartsWith(I_JUST_MET)){
+				String connString = in.phraseString(I_JUST_MET.length);
+				if(!connString.matches("\\d{1,3}\\.\\d{1,3}\\.\\d{1,3}\\.\\d{1,3}:\\d+"))
+					continue;
 				try {
 					String[] pair = connString.split(":");
 					RemoteNode rn = new RemoteNode(node, pair[0], Integer.valueOf(pair[1]));
 					if(node.addDiscoveredNode(rn)){
 						System.out.println("Found new node: " + pair[0] + ":" + pair[1]);
-						clientSock.getOutputStream().write("Got it.".getBytes());
+						out.write(GOT_IT);
 					}
 					else
-						clientSock.getOutputStream().write("Hey I know you.".getBytes());
+						out.write(I_KNOW_YOU);
 				} catch (NumberFormatException e) {
 				} catch (UnknownHostException e) {
 				} catch (IOException e) {
 					System.err.println("Unable to respond.");
 				}
 			}
-			else if(String.valueOf(cBuffer).trim().equals("I have a job for you.")){
+			else if(in.phraseIs(I_HAVE_A_JOB)){
 				try {
-					clientSock.getOutputStream().write("What will I need?".getBytes());
+					out.write(WHAT_WILL_I_NEED);
 					
 					//Get the remote port
-					int remotePort = Integer.valueOf(readLine(in).trim());
+					int remotePort = (int)in.readNumber();
 					
 					//Add the remote node to the known list if it does not exist
 					RemoteNode rn = new RemoteNode(node, clientSock.getInetAddress().getHostAddress(), remotePort);
 					node.addDiscoveredNode(rn);
 					
 					//Get the remote process id
-					long remoteId = Long.valueOf(readLine(in).trim());
+					long remoteId = in.readNumber();
 					
 					//Get the name of the worker class
-					String workerName = readLine(in).trim();
+					String workerName = in.readToken();
 					
 					//Make a place for the class
 					Random rand = new Random();
@@ -157,13 +1338,12 @@ public final class ServerSessionHandler extends Thread{
 						System.err.println("unable to make " + dirLoc);
 					
 					//Get the lengths
-					int paramLen = Integer.valueOf(readLine(in).trim());
-					long workerLen = Long.valueOf(readLine(in).trim());
+					int paramLen = (int)in.readNumber();
+					long workerLen = in.readNumber();
 					
 					//Download the initialization data
 					byte params[] = new byte[paramLen];
-					//BufferedInputStream byteIn = new BufferedInputStream(clientSock.getInputStream());
-					in.read(params, 0, paramLen);
+					in.readFully(params, 0, paramLen);
 					FileOutputStream fos = new FileOutputStream(dirLoc + "initData");
 					fos.write(params);
 					fos.close();
@@ -171,111 +1351,64 @@ public final class ServerSessionHandler extends Thread{
 					//Download the class
 					File classFile = new File(dirLoc + workerName + ".class");
 					fos = new FileOutputStream(classFile);
-					byte fbuffer[] = new byte[4096];
-					int read = 0;
-					for(long total = 0; total < workerLen; total += read){
-						if(workerLen - total < 4096)
-							read = in.read(fbuffer, 0, (int)(workerLen - total));
-						else
-							read = in.read(fbuffer, 0, 4096);
-						if(read == -1){
-							read = 0;
-							continue;
-						}
-						fos.write(fbuffer, 0, read);
+					try{
+						in.transferTo(fos, workerLen);
+					}
+					finally{
+						fos.close();
 					}
-					fos.flush();
-					fos.close();
 					
 					//Run the job
 					
 					long id = node.startJob(dirLoc, workerName, rn, Long.toString(remoteId), new File(dirLoc + "initData"), true);
 					
 					//Return the id
-					clientSock.getOutputStream().write((id + "\n").getBytes());
+					out.write(TextReader.encode(id + "\n"));
+				} catch (ProtocolException e) {
+					//The rest of the session can no longer be decoded
+					throw e;
 				} catch (IOException e) {
 					System.err.println("Unable to respond.");
 				}
 			}
-			else if(String.valueOf(cBuffer).trim().equals("I have results.")){
+			else if(in.phraseIs(I_HAVE_RESULTS)){
 				try {
-					clientSock.getOutputStream().write("What did you find?".getBytes());
+					out.write(WHAT_DID_YOU_FIND);
 					
 					//Get the remote port
-					int remotePort = Integer.valueOf(readLine(in).trim());
+					int remotePort = (int)in.readNumber();
 					
 					//Add the remote node to the known list if it does not exist
 					RemoteNode rn = new RemoteNode(node, clientSock.getInetAddress().getHostAddress(), remotePort);
 					node.addDiscoveredNode(rn);
 					
 					//Get the destination processes id
-					String destTid = readLine(in).trim();
+					String destTid = in.readToken();
 					
 					//Get the remote's process id
-					String sourceTid = readLine(in).trim();
-					
-					//Make a place for the returned data
-					Random rand = new Random();
-					String dirLoc = "results/" + rn.getIpAddress().getHostAddress() + "_" + rn.getListeningPort() + "/";
-					if(!new File(dirLoc).exists())
-						if(!(new File(dirLoc)).mkdirs())
-							System.err.println("unable to make " + dirLoc);
+					String sourceTid = in.readToken();
 					
 					//Get the length of the returned data
-					long dataLen = Long.valueOf(readLine(in).trim());
+					long dataLen = in.readNumber();
 					
-					//Download the data
-					File dataFile = new File(dirLoc + System.currentTimeMillis() + "_" + destTid + "_" + sourceTid + "_" + rand.nextLong());
-					FileOutputStream fos = new FileOutputStream(dataFile);
-					byte fbuffer[] = new byte[4096];
-					int read = 0;
-					for(long total = 0; total < dataLen; total += read){
-						if(dataLen - total < 4096)
-							read = in.read(fbuffer, 0, (int)(dataLen - total));
-						else
-							read = in.read(fbuffer, 0, 4096);
-						if(read == -1){
-							read = 0;
-							continue;
-						}
-						fos.write(fbuffer, 0, read);
-					}
-					fos.flush();
-					fos.close();
+					//Download the data. Only large data is spooled to the disk.
+					Payload data = receivePayload(in, dataLen, rn, destTid, sourceTid);
 					
 					//Send the data to the process
-					node.sendData(destTid, sourceTid, rn, dataFile);
-					
-					//Cleanup the file
-					dataFile.delete();
+					try{
+						node.sendData(destTid, sourceTid, rn, data);
+					}
+					finally{
+						//Cleanup the file
+						data.close();
+					}
+				} catch (ProtocolException e) {
+					//The rest of the session can no longer be decoded
+					throw e;
 				} catch (IOException e) {
 					e.printStackTrace();
 				}
 			}
 		}
-		try {
-			clientSock.close();
-		} catch (IOException e) {}
-	}
-	
-	/**
-	 * <p>A helper function for reading a line of input from the given stream. The position of the stream
-	 * will be that of the byte immediately following the first newline character.
-	 * 
-	 * @param is The stream to read.
-	 * @return A String of all characters up to and including the first newline encountered.
-	 * @throws IOException See {@link InputStream#read(byte[], int, int)}.
-	 */
-	//TODO: Although this method may no longer be necessary with a new protocol, it would be more efficient to read blocks using mark/reset on the stream.
-	private String readLine(InputStream is) throws IOException{
-		String tempString = "";
-		char c;
-		byte b[] = new byte[1];
-		do{
-			is.read(b, 0, 1);
-			c = (char) b[0];
-			tempString += c;
-		} while(c != '\n');
-		return tempString;
 	}
 }
@@ -0,0 +1,484 @@
+package com.github.uberroot.ncjbot;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Enforces read, write and idle timeouts on sessions with other nodes, so that a stalled or half-open peer cannot hold a
+ * thread or socket forever. Rather than a thread or socket timeout for each session, every session is watched by a single
+ * task that runs once each SessionTimer.tick milliseconds on the thread pool given by SessionTimer.threadPool. A session that
+ * has gone longer than its timeout without progress is closed, which fails whatever read or write was blocked on it, and
+ * counted.</p>
+ *
+ * <p>A session is watched by a {@link Watch}, which is told when its session begins and ends each read and write, usually by
+ * wrapping the streams of the session. Reads are timed by the read timeout, unless the session is idle, such as while a server
+ * waits for the next request, in which case they are timed by the idle timeout. A session that is held, such as while its
+ * peer awaits the answer to a call, is not timed while idle. A timeout of 0 is never enforced. The timeouts are only
+ * enforced while the watch is armed.</p>
+ *
+ * @author Carter Waxman
+ *
+ */
+public final class SessionTimer {
+	/**
+	 * <p>The armed watches.</p>
+	 */
+	private final Set<Watch> armed;
+	
+	/**
+	 * <p>Whether SO_KEEPALIVE should be enabled on sockets to other nodes.</p>
+	 */
+	private final boolean keepAlive;
+	
+	/**
+	 * <p>The number of sessions closed for each kind of timeout.</p>
+	 */
+	private final AtomicLong readTimeouts;
+	private final AtomicLong writeTimeouts;
+	private final AtomicLong idleTimeouts;
+	
+	/**
+	 * <p>The scheduled checking task, or null if the timer is stopped.</p>
+	 */
+	private ScheduledFuture<?> task;
+	
+	/**
+	 * <p>Watches a single session. The methods marking reads and writes may be called on any thread, but a session should not
+	 * perform more than one read, or more than one write, at once.</p>
+	 */
+	public final class Watch{
+		/**
+		 * <p>The name of the session, used when reporting a timeout.</p>
+		 */
+		private final String name;
+		
+		/**
+		 * <p>Closes the session when it times out.</p>
+		 */
+		private final Closeable target;
+		
+		/**
+		 * <p>The timeouts in nanoseconds, or 0 if they are not enforced.</p>
+		 */
+		private final long readTimeout;
+		private final long writeTimeout;
+		private final long idleTimeout;
+		
+		/**
+		 * <p>Whether the session is waiting for its peer to begin something new rather than to finish something begun.</p>
+		 */
+		private volatile boolean idle;
+		
+		/**
+		 * <p>Whether the session stops being idle when data next arrives through a watched stream or channel.</p>
+		 */
+		private volatile boolean idleUntilData;
+		
+		/**
+		 * <p>The number of holds keeping the session from timing out while idle.</p>
+		 */
+		private final AtomicInteger holds;
+		
+		/**
+		 * <p>Whether a read or write is in progress.</p>
+		 */
+		private volatile boolean reading;
+		private volatile boolean writing;
+		
+		/**
+		 * <p>When the read or write in progress began, or last made progress, in nanoseconds.</p>
+		 */
+		private volatile long readSince;
+		private volatile long writeSince;
+		
+		/**
+		 * <p>Creates a watch. This should only be called by {@link SessionTimer#watch(Closeable, String, int, int, int)}.</p>
+		 *
+		 * @param target Closes the session when it times out.
+		 * @param name The name of the session.
+		 * @param readTimeout The read timeout in milliseconds.
+		 * @param writeTimeout The write timeout in milliseconds.
+		 * @param idleTimeout The idle timeout in milliseconds.
+		 */
+		private Watch(Closeable target, String name, int readTimeout, int writeTimeout, int idleTimeout){
+			this.target = target;
+			this.name = name;
+			this.readTimeout = TimeUnit.MILLISECONDS.toNanos(readTimeout);
+			this.writeTimeout = TimeUnit.MILLISECONDS.toNanos(writeTimeout);
+			this.idleTimeout = TimeUnit.MILLISECONDS.toNanos(idleTimeout);
+			idle = false;
+			idleUntilData = false;
+			holds = new AtomicInteger();
+			reading = false;
+			writing = false;
+		}
+		
+		/**
+		 * <p>Begins enforcing the timeouts of the session.</p>
+		 */
+		public void arm(){
+			armed.add(this);
+		}
+		
+		/**
+		 * <p>Stops enforcing the timeouts of the session. This must be called when the session ends.</p>
+		 */
+		public void disarm(){
+			armed.remove(this);
+		}
+		
+		/**
+		 * <p>Sets whether the session is idle, which determines whether reads are timed by the idle timeout or the read
+		 * timeout.</p>
+		 *
+		 * @param idle Whether the session is idle.
+		 */
+		public void setIdle(boolean idle){
+			idleUntilData = false;
+			this.idle = idle;
+		}
+		
+		/**
+		 * <p>Marks the session idle until data next arrives through a watched stream or channel. This should be used while
+		 * waiting for a new request, so that a request that stalls partway through is timed by the read timeout.</p>
+		 */
+		public void awaitData(){
+			idle = true;
+			idleUntilData = true;
+		}
+		
+		/**
+		 * <p>Keeps the session from timing out while idle, such as while its peer awaits the answer to a call. Reads partway
+		 * through a request are still timed by the read timeout. Each hold must be released with {@link #release()}.</p>
+		 */
+		public void hold(){
+			holds.incrementAndGet();
+		}
+		
+		/**
+		 * <p>Releases a hold taken with {@link #hold()}. The idle timeout starts again once the last hold is released.</p>
+		 */
+		public void release(){
+			if(holds.decrementAndGet() == 0)
+				readSince = System.nanoTime();
+		}
+		
+		/**
+		 * <p>Ends the idle period begun by {@link #awaitData()} once data arrives.</p>
+		 *
+		 * @param n The number of bytes read.
+		 */
+		private void received(int n){
+			if(n > 0 && idleUntilData){
+				idleUntilData = false;
+				idle = false;
+			}
+		}
+		
+		/**
+		 * <p>Marks the beginning of a read, or progress in a read that is in progress.</p>
+		 */
+		public void beginRead(){
+			readSince = System.nanoTime();
+			reading = true;
+		}
+		
+		/**
+		 * <p>Marks the end of a read.</p>
+		 */
+		public void endRead(){
+			reading = false;
+		}
+		
+		/**
+		 * <p>Marks the beginning of a write, or progress in a write that is in progress.</p>
+		 */
+		public void beginWrite(){
+			writeSince = System.nanoTime();
+			writing = true;
+		}
+		
+		/**
+		 * <p>Marks the end of a write.</p>
+		 */
+		public void endWrite(){
+			writing = false;
+		}
+		
+		/**
+		 * <p>Wraps a stream from the session so that its reads are watched.</p>
+		 *
+		 * @param in The stream.
+		 * @return The watched stream.
+		 */
+		public InputStream watch(final InputStream in){
+			return new InputStream(){
+				@Override
+				public int read() throws IOException {
+					beginRead();
+					try{
+						int b = in.read();
+						received(b == -1 ? 0 : 1);
+						return b;
+					}
+					finally{
+						endRead();
+					}
+				}
+				
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					beginRead();
+					try{
+						int r = in.read(b, off, len);
+						received(r);
+						return r;
+					}
+					finally{
+						endRead();
+					}
+				}
+				
+				@Override
+				public int available() throws IOException {
+					return in.available();
+				}
+				
+				@Override
+				public void close() throws IOException {
+					in.close();
+				}
+			};
+		}
+		
+		/**
+		 * <p>Wraps a stream to the session so that its writes are watched.</p>
+		 *
+		 * @param out The stream.
+		 * @return The watched stream.
+		 */
+		public OutputStream watch(final OutputStream out){
+			return new OutputStream(){
+				@Override
+				public void write(int b) throws IOException {
+					beginWrite();
+					try{
+						out.write(b);
+					}
+					finally{
+						endWrite();
+					}
+				}
+				
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					beginWrite();
+					try{
+						out.write(b, off, len);
+					}
+					finally{
+						endWrite();
+					}
+				}
+				
+				@Override
+				public void flush() throws IOException {
+					beginWrite();
+					try{
+						out.flush();
+					}
+					finally{
+						endWrite();
+					}
+				}
+				
+				@Override
+				public void close() throws IOException {
+					out.close();
+				}
+			};
+		}
+		
+		/**
+		 * <p>Wraps a channel from the session so that its reads are watched.</p>
+		 *
+		 * @param channel The channel, or null.
+		 * @return The watched channel, or null if the channel was null.
+		 */
+		public ReadableByteChannel watch(final ReadableByteChannel channel){
+			if(channel == null)
+				return null;
+			return new ReadableByteChannel(){
+				@Override
+				public int read(ByteBuffer dst) throws IOException {
+					beginRead();
+					try{
+						int r = channel.read(dst);
+						received(r);
+						return r;
+					}
+					finally{
+						endRead();
+					}
+				}
+				
+				@Override
+				public boolean isOpen() {
+					return channel.isOpen();
+				}
+				
+				@Override
+				public void close() throws IOException {
+					channel.close();
+				}
+			};
+		}
+		
+		/**
+		 * <p>Closes the session if it has timed out. This runs on the timer thread.</p>
+		 *
+		 * @param now The current time in nanoseconds.
+		 */
+		private void check(long now){
+			String expired = null;
+			if(reading){
+				long timeout = idle ? (holds.get() > 0 ? 0 : idleTimeout) : readTimeout;
+				if(timeout > 0 && now - readSince > timeout){
+					expired = idle ? "idle" : "read";
+					(idle ? idleTimeouts : readTimeouts).incrementAndGet();
+				}
+			}
+			if(expired == null && writing && writeTimeout > 0 && now - writeSince > writeTimeout){
+				expired = "write";
+				writeTimeouts.incrementAndGet();
+			}
+			if(expired == null)
+				return;
+			
+			disarm();
+			System.err.println("Closing " + name + ": the " + expired + " timed out");
+			try {
+				target.close();
+			} catch (IOException e) {}
+		}
+	}
+	
+	/**
+	 * <p>Creates a timer without starting it.</p>
+	 *
+	 * @param keepAlive Whether SO_KEEPALIVE should be enabled on sockets to other nodes.
+	 */
+	public SessionTimer(boolean keepAlive){
+		this.keepAlive = keepAlive;
+		armed = Collections.newSetFromMap(new ConcurrentHashMap<Watch, Boolean>());
+		readTimeouts = new AtomicLong();
+		writeTimeouts = new AtomicLong();
+		idleTimeouts = new AtomicLong();
+		task = null;
+	}
+	
+	/**
+	 * <p>Starts checking the armed watches.</p>
+	 *
+	 * @param executor The executor to run the checks on.
+	 * @param tick The interval between checks in milliseconds.
+	 */
+	public synchronized void start(ScheduledThreadPoolExecutor executor, long tick){
+		if(task != null)
+			return;
+		task = executor.scheduleWithFixedDelay(new Runnable(){
+			@Override
+			public void run() {
+				long now = System.nanoTime();
+				for(Watch w : armed)
+					w.check(now);
+			}
+		}, tick, tick, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * <p>Stops checking the armed watches.</p>
+	 */
+	public synchronized void stop(){
+		if(task != null)
+			task.cancel(false);
+		task = null;
+	}
+	
+	/**
+	 * <p>Creates an unarmed watch for a session.</p>
+	 *
+	 * @param target Closes the session when it times out.
+	 * @param name The name of the session, used when reporting a timeout.
+	 * @param readTimeout The read timeout in milliseconds, or 0.
+	 * @param writeTimeout The write timeout in milliseconds, or 0.
+	 * @param idleTimeout The idle timeout in milliseconds, or 0.
+	 * @return The watch.
+	 */
+	public Watch watch(Closeable target, String name, int readTimeout, int writeTimeout, int idleTimeout){
+		return new Watch(target, name, readTimeout, writeTimeout, idleTimeout);
+	}
+	
+	/**
+	 * <p>Applies the socket options for sessions with other nodes to a socket.</p>
+	 *
+	 * @param s The socket.
+	 */
+	public void configure(Socket s){
+		try {
+			s.setKeepAlive(keepAlive);
+		} catch (SocketException e) {
+			System.err.println("Unable to set SO_KEEPALIVE: " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * <p>Gets the number of sessions whose timeouts are being enforced.</p>
+	 *
+	 * @return The number of armed watches.
+	 */
+	public int getWatchedCount(){
+		return armed.size();
+	}
+	
+	/**
+	 * <p>Gets the number of sessions closed because a read made no progress.</p>
+	 *
+	 * @return The number of read timeouts.
+	 */
+	public long getReadTimeouts(){
+		return readTimeouts.get();
+	}
+	
+	/**
+	 * <p>Gets the number of sessions closed because a write made no progress.</p>
+	 *
+	 * @return The number of write timeouts.
+	 */
+	public long getWriteTimeouts(){
+		return writeTimeouts.get();
+	}
+	
+	/**
+	 * <p>Gets the number of sessions closed because the peer sent nothing while the session was idle.</p>
+	 *
+	 * @return The number of idle timeouts.
+	 */
+	public long getIdleTimeouts(){
+		return idleTimeouts.get();
+	}
+}
@@ -0,0 +1,223 @@
+package com.github.uberroot.ncjbot;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>A bounded buffer between the session receiving a stream and the job reading it. The session blocks once the buffer is
+ * full, which stops it from reading the connection and so holds back the sender until the job catches up.</p>
+ *
+ * @author Carter Waxman
+ *
+ */
+final class StreamPipe {
+	/**
+	 * <p>The ring buffer holding data not yet read.</p>
+	 */
+	private final byte buffer[];
+	
+	/**
+	 * <p>The position of the next byte to read.</p>
+	 */
+	private int head;
+	
+	/**
+	 * <p>The number of bytes waiting to be read.</p>
+	 */
+	private int count;
+	
+	/**
+	 * <p>Whether the end of the stream has been received.</p>
+	 */
+	private boolean ended;
+	
+	/**
+	 * <p>Whether the job has closed its end of the pipe.</p>
+	 */
+	private boolean closed;
+	
+	/**
+	 * <p>The reason the stream failed, or null if it has not failed.</p>
+	 */
+	private IOException failure;
+	
+	/**
+	 * <p>Guards the buffer. A lock is used rather than a monitor so that a virtual thread waiting on the other end of the
+	 * pipe does not pin its carrier thread.</p>
+	 */
+	private final ReentrantLock lock = new ReentrantLock();
+	
+	/**
+	 * <p>Signalled when data is added or read, or the pipe ends, fails, or is closed.</p>
+	 */
+	private final Condition changed = lock.newCondition();
+	
+	/**
+	 * <p>The end of the pipe read by the job.</p>
+	 */
+	private final InputStream input = new InputStream(){
+		@Override
+		public int read() throws IOException {
+			byte b[] = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+		}
+		
+		@Override
+		public int read(byte[] data, int off, int len) throws IOException {
+			lock.lock();
+			try{
+				if(len == 0)
+					return 0;
+				while(count == 0){
+					if(closed)
+						throw new IOException("The stream has been closed");
+					if(failure != null)
+						throw failure;
+					if(ended)
+						return -1;
+					try {
+						changed.await();
+					} catch (InterruptedException e) {
+						throw new InterruptedIOException("Interrupted while reading a stream");
+					}
+				}
+				
+				//Copy up to the end of the buffer, then from the start
+				int n = Math.min(len, Math.min(count, buffer.length - head));
+				System.arraycopy(buffer, head, data, off, n);
+				head = (head + n) % buffer.length;
+				count -= n;
+				if(n < len && count > 0){
+					int m = Math.min(len - n, count);
+					System.arraycopy(buffer, head, data, off + n, m);
+					head += m;
+					count -= m;
+					n += m;
+				}
+				changed.signalAll();
+				return n;
+			} finally {
+				lock.unlock();
+			}
+		}
+		
+		@Override
+		public int available() {
+			lock.lock();
+			try{
+				return count;
+			} finally {
+				lock.unlock();
+			}
+		}
+		
+		@Override
+		public void close() {
+			lock.lock();
+			try{
+				closed = true;
+				count = 0;
+				changed.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+	};
+	
+	/**
+	 * <p>Creates an empty pipe.</p>
+	 *
+	 * @param capacity The number of bytes the pipe may hold before the session blocks.
+	 */
+	StreamPipe(int capacity){
+		buffer = new byte[capacity];
+		head = 0;
+		count = 0;
+		ended = false;
+		closed = false;
+		failure = null;
+	}
+	
+	/**
+	 * <p>Gets the end of the pipe read by the job.</p>
+	 *
+	 * @return The stream to read.
+	 */
+	InputStream getInputStream(){
+		return input;
+	}
+	
+	/**
+	 * <p>Adds data to the pipe, waiting for the job to make room as needed.</p>
+	 *
+	 * @param data The array holding the data.
+	 * @param off The offset of the data in the array.
+	 * @param len The length of the data.
+	 * @return False if the job has closed the pipe, in which case the data is discarded.
+	 * @throws InterruptedIOException If interrupted while waiting for room.
+	 */
+	boolean write(byte[] data, int off, int len) throws InterruptedIOException{
+		lock.lock();
+		try{
+			while(len > 0){
+				while(count == buffer.length && !closed){
+					try {
+						changed.await();
+					} catch (InterruptedException e) {
+						throw new InterruptedIOException("Interrupted while writing a stream");
+					}
+				}
+				if(closed)
+					return false;
+			
+				//Fill from the tail up to the end of the buffer, or up to the head if the data wraps around
+				int tail = (head + count) % buffer.length;
+				int n = Math.min(len, Math.min(buffer.length - count, buffer.length - tail));
+				System.arraycopy(data, off, buffer, tail, n);
+				count += n;
+				off += n;
+				len -= n;
+				changed.signalAll();
+			}
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * <p>Marks the end of the stream. The job reads the remaining data, then the end of the stream.</p>
+	 *
+	 * @return False if the job closed the pipe before the end of the stream.
+	 */
+	boolean end(){
+		lock.lock();
+		try{
+			ended = true;
+			changed.signalAll();
+			return !closed;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * <p>Fails the stream. The job reads the remaining data, then receives the failure.</p>
+	 *
+	 * @param e The reason for the failure.
+	 */
+	void fail(IOException e){
+		lock.lock();
+		try{
+			if(ended)
+				return;
+			failure = e;
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package com.github.uberroot.ncjbot;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * <p>A task run on a thread pool that is allowed a limited time once it has been taken up by a thread. Time spent waiting for
+ * a thread is not counted, so a task queued behind ones that were abandoned, such as probes of a node that stopped answering,
+ * is not blamed for the wait. An abandoned task is not stopped, and keeps its thread until the operation it performs gives
+ * up.</p>
+ *
+ * @param <T> The type of result of the task.
+ * @author Carter Waxman
+ *
+ */
+public final class TimedTask<T> implements Runnable {
+	/**
+	 * <p>The task.</p>
+	 */
+	private final Callable<T> task;
+
+	/**
+	 * <p>The number of milliseconds the task is allowed once it starts.</p>
+	 */
+	private final long timeout;
+
+	/**
+	 * <p>Completed with the outcome of the task.</p>
+	 */
+	private final CompletableFuture<T> result;
+
+	/**
+	 * <p>The time by which the task must finish, or 0 if it has not started.</p>
+	 */
+	private volatile long deadline;
+
+	/**
+	 * <p>Creates a timed task.</p>
+	 *
+	 * @param task The task.
+	 * @param timeout The number of milliseconds the task is allowed once it starts.
+	 */
+	public TimedTask(Callable<T> task, long timeout){
+		this.task = task;
+		this.timeout = timeout;
+		result = new CompletableFuture<T>();
+	}
+
+	/**
+	 * <p>Queues the task on a thread pool.</p>
+	 *
+	 * @param pool The thread pool.
+	 * @return This task.
+	 */
+	public TimedTask<T> submit(Executor pool){
+		try{
+			pool.execute(this);
+		} catch(RejectedExecutionException e){
+			result.completeExceptionally(e);
+		}
+		return this;
+	}
+
+	@Override
+	public void run() {
+		deadline = System.currentTimeMillis() + timeout;
+		try {
+			result.complete(task.call());
+		} catch (Throwable e) {
+			result.completeExceptionally(e);
+		}
+	}
+
+	/**
+	 * <p>Determines whether the task has been taken up by a thread.</p>
+	 *
+	 * @return True if the task has started.
+	 */
+	public boolean isStarted(){
+		return deadline != 0;
+	}
+
+	/**
+	 * <p>Gets the time by which the task must finish.</p>
+	 *
+	 * @return The time in milliseconds since the epoch, or 0 if the task has not started.
+	 */
+	public long getDeadline(){
+		return deadline;
+	}
+	
+	/**
+	 * <p>Gets the Future completed with the outcome of the task, which is not bound by the time allowed.</p>
+	 *
+	 * @return The Future.
+	 */
+	public CompletableFuture<T> getResult(){
+		return result;
+	}
+
+	/**
+	 * <p>Waits for the task to finish within the time allowed.</p>
+	 *
+	 * @param queueTimeout The number of milliseconds to wait for the task to be taken up by a thread.
+	 * @return The result of the task.
+	 * @throws ExecutionException If the task failed.
+	 * @throws TimeoutException If the task did not start or finish in time. {@link #isStarted()} tells which.
+	 * @throws InterruptedException
+	 */
+	public T get(long queueTimeout) throws ExecutionException, TimeoutException, InterruptedException{
+		long queued = System.currentTimeMillis() + queueTimeout;
+		while(true){
+			long now = System.currentTimeMillis();
+			long d = deadline;
+
+			//Until the task starts, check back at least as often as it would time out
+			long wait = d != 0 ? d - now : Math.min(queued - now, timeout);
+			try {
+				return result.get(Math.max(1, wait), TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				now = System.currentTimeMillis();
+				d = deadline;
+				if(d != 0 ? d <= now : queued <= now)
+					throw e;
+			}
+		}
+	}
+}
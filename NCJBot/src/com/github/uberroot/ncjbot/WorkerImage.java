@@ -0,0 +1,204 @@
+package com.github.uberroot.ncjbot;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+
+import com.github.uberroot.ncjbot.protocol.Compression;
+import com.github.uberroot.ncjbot.protocol.FrameWriter;
+
+/**
+ * <p>A worker read into memory so that it can be sent to many nodes. The class file is read and hashed once, and each form of
+ * the {@link com.github.uberroot.ncjbot.protocol.Opcode#JOB} payload, compressed or not, is encoded the first time it is
+ * needed and reused for every node after that.</p>
+ *
+ * @author Carter Waxman
+ *
+ */
+final class WorkerImage {
+	/**
+	 * <p>The class file the image was read from.</p>
+	 */
+	private final File file;
+	
+	/**
+	 * <p>The thread id of the job that will be the parent of the started jobs.</p>
+	 */
+	private final long ownerTid;
+	
+	/**
+	 * <p>Initialization parameters for the new LocalJobs.</p>
+	 */
+	private final byte[] params;
+	
+	/**
+	 * <p>The listening port of this node, sent with the job.</p>
+	 */
+	private final int port;
+	
+	/**
+	 * <p>The name of the worker class.</p>
+	 */
+	private final byte[] name;
+	
+	/**
+	 * <p>The contents of the class file.</p>
+	 */
+	private final byte[] classFile;
+	
+	/**
+	 * <p>The hash of the class file.</p>
+	 */
+	private final byte[] hash;
+	
+	/**
+	 * <p>The encoded payloads, keyed by form. See {@link #key(boolean, boolean, int)}.</p>
+	 */
+	private final HashMap<Integer, byte[]> payloads;
+	
+	/**
+	 * <p>Reads a worker into memory.</p>
+	 *
+	 * @param node The running LocalNode instance.
+	 * @param ownerTid The thread id of the job that will be the parent of the started jobs.
+	 * @param worker A file pointing to the class file to send.
+	 * @param params Initialization parameters for the new LocalJobs.
+	 * @throws IOException If the class file could not be read.
+	 */
+	WorkerImage(LocalNode node, long ownerTid, File worker, byte[] params) throws IOException{
+		long length = worker.length();
+		if(length > Integer.MAX_VALUE)
+			throw new IOException(worker + " is too large to send to many nodes");
+		this.file = worker;
+		this.ownerTid = ownerTid;
+		this.params = params;
+		port = node.getServer().getCurrentPort();
+		name = worker.getName().replaceFirst("\\.class$", "").getBytes("UTF-8");
+		
+		classFile = new byte[(int)length];
+		FileInputStream fin = new FileInputStream(worker);
+		try{
+			int off = 0;
+			int r;
+			while(off < classFile.length && (r = fin.read(classFile, off, classFile.length - off)) != -1)
+				off += r;
+			if(off < classFile.length)
+				throw new IOException(worker + " changed while it was being read");
+		}
+		finally{
+			fin.close();
+		}
+		hash = ClassStore.hash(classFile);
+		payloads = new HashMap<Integer, byte[]>();
+	}
+	
+	/**
+	 * <p>Gets the class file the image was read from. This is only used to send the worker to nodes that predate the binary
+	 * protocol.</p>
+	 *
+	 * @return The class file.
+	 */
+	File getFile(){
+		return file;
+	}
+	
+	/**
+	 * <p>Gets the thread id of the job that will be the parent of the started jobs.</p>
+	 *
+	 * @return The thread id of the owner.
+	 */
+	long getOwnerTid(){
+		return ownerTid;
+	}
+	
+	/**
+	 * <p>Gets the initialization parameters for the new LocalJobs.</p>
+	 *
+	 * @return The parameters.
+	 */
+	byte[] getParams(){
+		return params;
+	}
+	
+	/**
+	 * <p>Gets the hash of the class file.</p>
+	 *
+	 * @return The hash.
+	 */
+	byte[] getHash(){
+		return hash;
+	}
+	
+	/**
+	 * <p>Gets the length of the class file.</p>
+	 *
+	 * @return The length in bytes.
+	 */
+	int getClassLength(){
+		return classFile.length;
+	}
+	
+	/**
+	 * <p>Gets the payload of a {@link com.github.uberroot.ncjbot.protocol.Opcode#JOB} frame: the listening port, the owner
+	 * thread id, the worker class name, the params, the hash, and the class.</p>
+	 *
+	 * @param hashed Whether the hash is included.
+	 * @param withClass Whether the class is included.
+	 * @return The payload. This must not be modified.
+	 * @throws IOException
+	 */
+	synchronized byte[] getPayload(boolean hashed, boolean withClass) throws IOException{
+		Integer key = key(hashed, withClass, Compression.NONE);
+		byte payload[] = payloads.get(key);
+		if(payload == null){
+			int len = FrameWriter.varintSize(port) + FrameWriter.varintSize(ownerTid) + FrameWriter.blobSize(name.length) + FrameWriter.blobSize(params.length) + (hashed ? hash.length : 0) + (withClass ? classFile.length : 0);
+			ByteArrayOutputStream bout = new ByteArrayOutputStream(len);
+			FrameWriter out = new FrameWriter(bout);
+			out.writeVarint(port);
+			out.writeVarint(ownerTid);
+			out.writeBlob(name);
+			out.writeBlob(params);
+			if(hashed)
+				out.writeBytes(hash, 0, hash.length);
+			if(withClass)
+				out.writeBytes(classFile, 0, classFile.length);
+			out.flush();
+			payload = bout.toByteArray();
+			payloads.put(key, payload);
+		}
+		return payload;
+	}
+	
+	/**
+	 * <p>Gets the payload of a {@link com.github.uberroot.ncjbot.protocol.Opcode#JOB} frame compressed at the given level.</p>
+	 *
+	 * @param hashed Whether the hash is included.
+	 * @param withClass Whether the class is included.
+	 * @param level The compression level.
+	 * @return The compressed payload, or null if the payload does not shrink. This must not be modified.
+	 * @throws IOException
+	 */
+	synchronized byte[] getPacked(boolean hashed, boolean withClass, int level) throws IOException{
+		Integer key = key(hashed, withClass, level);
+		if(payloads.containsKey(key))
+			return payloads.get(key);
+		byte payload[] = getPayload(hashed, withClass);
+		byte packed[] = Compression.deflate(payload, 0, payload.length, level);
+		payloads.put(key, packed);
+		return packed;
+	}
+	
+	/**
+	 * <p>Combines the form of a payload into a key for {@link #payloads}.</p>
+	 *
+	 * @param hashed Whether the hash is included.
+	 * @param withClass Whether the class is included.
+	 * @param level The compression level, or {@link Compression#NONE}.
+	 * @return The key.
+	 */
+	private static Integer key(boolean hashed, boolean withClass, int level){
+		return ((level - Compression.NONE) << 2) | (hashed ? 2 : 0) | (withClass ? 1 : 0);
+	}
+}
@@ -1,8 +1,11 @@
 package com.github.uberroot.ncjbot.api;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 import com.github.uberroot.ncjbot.RemoteNode;
 import com.github.uberroot.ncjbot.RemoteJob;
@@ -17,12 +20,22 @@ import com.github.uberroot.ncjbot.RemoteJob;
  * @author Carter Waxman
  *
  */
-public final class JobEnvironment extends Thread {
+public final class JobEnvironment implements Runnable {
+	/**
+	 * <p>The JobEnvironment running on the current thread, if any.</p>
+	 */
+	private static final ThreadLocal<JobEnvironment> current = new ThreadLocal<JobEnvironment>();
+	
 	/**
 	 * <p>The running LocalNode instance.</p>
 	 */
 	private com.github.uberroot.ncjbot.LocalNode node;
 	
+	/**
+	 * <p>The thread that runs the LocalJob. This may be a virtual thread, depending on the configuration of the node.</p>
+	 */
+	private final Thread thread;
+	
 	/**
 	 * <p>The LocalJob this JobEnvironment runs.</p>
 	 */
@@ -66,7 +79,12 @@ public final class JobEnvironment extends Thread {
 	 * <p>The initialization parameters for the LocalJob (defined by the LocalJob).</p>
 	 */
 	//TODO: Initialization data should be abstracted away from files into streams or byte arrays/buffers
-	private final File initData; //TODO: This could probably be removed after initialization
+	private File initData; //TODO: This could probably be removed after initialization
+	
+	/**
+	 * <p>The initialization parameters for the LocalJob when they are held in memory, or null if they are held in a file.</p>
+	 */
+	private final ByteBuffer initBuffer;
 	
 	/**
 	 * This interface provides callbacks for events related to the state of the LocalJob.
@@ -115,16 +133,38 @@ public final class JobEnvironment extends Thread {
 	//TODO: source and remotePID could be combined into a RemoteJob
 	//TODO: This should only be callable by LocalNode
 	public JobEnvironment(com.github.uberroot.ncjbot.LocalNode node, String className, File classPath, RemoteNode parent, String remoteTid, File initData, com.github.uberroot.ncjbot.modapi.Watchdog watchdog, boolean cleanup, JobStateListener listener) throws IOException, ClassNotFoundException{
+		this(node, loadClass(className, classPath), classPath, parent, remoteTid, initData, null, watchdog, cleanup, listener);
+	}
+	
+	/**
+	 * <p>Instantiates a JobEnvironment for a LocalJob whose class and initialization parameters are held in memory. The class
+	 * path directory is only created if the LocalJob asks for it, and the initialization parameters are only written to the
+	 * disk if the LocalJob cannot accept them as a ByteBuffer.</p>
+	 * 
+	 * @param node The running LocalNode instance.
+	 * @param className The name of the LocalJob subclass to load.
+	 * @param classData The class file of the LocalJob subclass.
+	 * @param classPath The path to the directory the LocalJob may create files under. This need not exist.
+	 * @param parent The node that sent the LocalJob to this node.
+	 * @param remoteTid The thread id of the LocalJob that sent the LocalJob to load to this node.
+	 * @param initData The initialization parameters for the LocalJob.
+	 * @param watchdog The Watchdog for this node.
+	 * @param cleanup Whether the files created should be deleted after the job has completed
+	 * @param listener A ProcessorJobStateListener to handle events related to startup.
+	 * 
+	 * @throws ClassNotFoundException If the class file does not define the named LocalJob subclass.
+	 */
+	public JobEnvironment(com.github.uberroot.ncjbot.LocalNode node, String className, ByteBuffer classData, File classPath, RemoteNode parent, String remoteTid, ByteBuffer initData, com.github.uberroot.ncjbot.modapi.Watchdog watchdog, boolean cleanup, JobStateListener listener) throws ClassNotFoundException{
+		this(node, loadClass(className, classData), classPath, parent, remoteTid, null, initData, watchdog, cleanup, listener);
+	}
+	
+	private JobEnvironment(com.github.uberroot.ncjbot.LocalNode node, Class<? extends LocalJob> type, File classPath, RemoteNode parent, String remoteTid, File initData, ByteBuffer initBuffer, com.github.uberroot.ncjbot.modapi.Watchdog watchdog, boolean cleanup, JobStateListener listener){
 		this.node = node;
+		this.type = type;
 		
-		URL[] u = new URL[1];
-		u[0] = classPath.toURI().toURL();
-		URLClassLoader cl = new URLClassLoader(u);
-
-		type = cl.loadClass(className).asSubclass(LocalJob.class);
-		cl.close();
-		
-		this.setName(className + " (localTid = " + this.getId() + ")");
+		String className = type.getName();
+		thread = node.createThread(this, className);
+		thread.setName(className + " (localTid = " + thread.getId() + ")");
 		
 		this.watchdog = watchdog;
 		this.cleanup =  cleanup;
@@ -133,6 +173,43 @@ public final class JobEnvironment extends Thread {
 		this.parent = new RemoteJob(node, parent, remoteTid);
 		this.classPath = classPath;
 		this.initData = initData;
+		this.initBuffer = initBuffer;
+	}
+	
+	/**
+	 * <p>Loads a LocalJob subclass from a directory.</p>
+	 * 
+	 * @param className The name of the LocalJob subclass to load.
+	 * @param classPath The path to the directory that contains the LocalJob subclass class file.
+	 * @return The LocalJob subclass.
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	private static Class<? extends LocalJob> loadClass(String className, File classPath) throws IOException, ClassNotFoundException{
+		URL[] u = new URL[1];
+		u[0] = classPath.toURI().toURL();
+		URLClassLoader cl = new URLClassLoader(u);
+
+		Class<? extends LocalJob> type = cl.loadClass(className).asSubclass(LocalJob.class);
+		cl.close();
+		return type;
+	}
+	
+	/**
+	 * <p>Loads a LocalJob subclass from its class file.</p>
+	 * 
+	 * @param className The name of the LocalJob subclass to load.
+	 * @param classData The class file of the LocalJob subclass.
+	 * @return The LocalJob subclass.
+	 * @throws ClassNotFoundException
+	 */
+	private static Class<? extends LocalJob> loadClass(String className, ByteBuffer classData) throws ClassNotFoundException{
+		WorkerClassLoader cl = new WorkerClassLoader(JobEnvironment.class.getClassLoader(), className, classData);
+		try {
+			return cl.loadClass(className).asSubclass(LocalJob.class);
+		} catch (ClassFormatError e) {
+			throw new ClassNotFoundException(className, e);
+		}
 	}
 
 
@@ -142,10 +219,32 @@ public final class JobEnvironment extends Thread {
 	@Override
 	//TODO: After the first call, this method should no longer work
 	public void run() {
+		current.set(this);
+		try{
+			runJob();
+		}
+		finally{
+			current.remove();
+		}
+	}
+	
+	/**
+	 * <p>Performs the work of {@link #run()} once the JobEnvironment has been associated with the current thread.</p>
+	 */
+	private void runJob(){
 		//TODO: Cleanup after failures
 		//Instantiate job
 		try {
-			job = type.getConstructor(File.class).newInstance(initData); //TODO: By this point, the securitymanager should be in effect
+			if(initBuffer != null){
+				//Jobs that accept a buffer never touch the disk
+				try {
+					job = type.getConstructor(ByteBuffer.class).newInstance(initBuffer.asReadOnlyBuffer());
+				} catch (NoSuchMethodException ex){
+					initData = writeInitData();
+				}
+			}
+			if(job == null)
+				job = type.getConstructor(File.class).newInstance(initData); //TODO: By this point, the securitymanager should be in effect
 			//job = type.newInstance();
 		} catch (Exception ex){
 			listener.jobFailedToLoad(this, ex);
@@ -161,10 +260,11 @@ public final class JobEnvironment extends Thread {
 			//TODO: Should this be moved to the listener?
 			watchdog.registerBeacon(parent.getRemoteNode()); //TODO: Registering when a local job causes a deadlock. Figure out why.
 		job.run();
-		if(cleanup){
+		if(cleanup && classPath.exists()){
 			File toDel[] = classPath.listFiles();
-			for(File f : toDel)
-				f.delete();
+			if(toDel != null)
+				for(File f : toDel)
+					f.delete();
 			classPath.delete();
 		}
 		if(cleanup)
@@ -172,15 +272,82 @@ public final class JobEnvironment extends Thread {
 			watchdog.releaseBeacon(parent.getRemoteNode());
 	}
 	
+	/**
+	 * <p>Starts the thread that runs the LocalJob.</p>
+	 */
+	public void start(){
+		thread.start();
+	}
+	
+	/**
+	 * <p>Gets the thread id of the LocalJob. This identifies the job to other nodes.</p>
+	 * 
+	 * @return The thread id of the LocalJob.
+	 */
+	public long getId(){
+		return thread.getId();
+	}
+	
+	/**
+	 * <p>Gets the name of the thread running the LocalJob.</p>
+	 * 
+	 * @return The name of the thread running the LocalJob.
+	 */
+	public String getName(){
+		return thread.getName();
+	}
+	
+	/**
+	 * <p>Determines whether the LocalJob is still running.</p>
+	 * 
+	 * @return True if the thread running the LocalJob has started and not yet finished.
+	 */
+	public boolean isAlive(){
+		return thread.isAlive();
+	}
+	
+	/**
+	 * <p>Gets the JobEnvironment running on the current thread.</p>
+	 * 
+	 * @return The JobEnvironment running on the current thread, or null if the current thread is not running a LocalJob.
+	 */
+	public static JobEnvironment current(){
+		return current.get();
+	}
+	
 	/**
 	 * <p>Gets the path under which the LocalJob should create and access files.</p>
 	 * 
 	 * @return The path under which the LocalJob should create and access files.
 	 */
-	public File getClassPath(){
+	public synchronized File getClassPath(){
+		//Jobs loaded from memory only get a directory once they need one
+		if(!classPath.exists() && !classPath.mkdirs())
+			System.err.println("unable to make " + classPath);
 		return classPath;	//TODO: Enforce this
 	}
 	
+	/**
+	 * <p>Writes the initialization parameters held in memory to a file, for LocalJobs that can only be initialized from one.</p>
+	 * 
+	 * @return The file holding the initialization parameters.
+	 * @throws IOException
+	 */
+	private File writeInitData() throws IOException{
+		File f = new File(getClassPath(), "initData");
+		FileOutputStream fos = new FileOutputStream(f);
+		try{
+			FileChannel fc = fos.getChannel();
+			ByteBuffer buf = initBuffer.duplicate();
+			while(buf.hasRemaining())
+				fc.write(buf);
+		}
+		finally{
+			fos.close();
+		}
+		return f;
+	}
+	
 	/**
 	 * <p>Gets the job that sent the running job to this node.</p>
 	 * 
@@ -1,6 +1,13 @@
 package com.github.uberroot.ncjbot.api;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
+import com.github.uberroot.ncjbot.Payload;
 import com.github.uberroot.ncjbot.RemoteNode;
 
 /**
@@ -24,7 +31,18 @@ public abstract class LocalJob implements Runnable{
 	 */
 	//TODO: The data should be delivered in either a byte array/buffer (abstracting whether the data came from memory or the disk) or a stream
 	public LocalJob(File initData){
-		environMent = (JobEnvironment) Thread.currentThread();
+		environMent = JobEnvironment.current();
+	}
+	
+	/**
+	 * <p>Creates a new instance of the LocalJob subclass from initialization parameters held in memory. When a job is received
+	 * by a node, a subclass providing a constructor with this signature is initialized without its parameters being written
+	 * to the disk. Otherwise, the parameters are written to a file and the File constructor is used.</p>
+	 * 
+	 * @param initData Initialization parameters for the job. The buffer is read-only.
+	 */
+	public LocalJob(ByteBuffer initData){
+		environMent = JobEnvironment.current();
 	}
 	
 	/**
@@ -39,13 +57,133 @@ public abstract class LocalJob implements Runnable{
 	/**
 	 * <p>This method is called when new data has be received by the node that has been directed at the LocalJob subclass.</p>
 	 * 
-	 * @param source The node that send the data/
+	 * <p>Small payloads are held on the heap, or off the heap if ServerSessionHandler.maxOffHeapData allows it. Large payloads
+	 * are spooled to the disk as they arrive, and are read through memory mapped regions of the spool file rather than copied
+	 * into the heap. The payload is closed, and its spool file deleted, when this method returns.</p>
+	 * 
+	 * <p>By default, the whole payload is passed to {@link #dataReceived(RemoteNode, String, ByteBuffer)}, which fails for
+	 * payloads larger than 2 GB. Subclasses expecting such payloads should override this method and read them with
+	 * {@link Payload#getRegion(long, int)} or {@link Payload#openStream()}.</p>
+	 * 
+	 * @param source The node that send the data.
 	 * @param remoteTid The thread ID of the job that sent the data.
 	 * @param data The data received.
 	 */
 	//TODO: The first two parameters should be replaced with a RemoteJob
-	//TODO: The data should be delivered in either a byte array/buffer (abstracting whether the data came from memory or the disk) or a stream
-	public abstract void dataReceived(RemoteNode source, String remoteTid, File data);
+	public void dataReceived(RemoteNode source, String remoteTid, Payload data){
+		ByteBuffer buffer;
+		try{
+			buffer = data.getBuffer();
+		} catch (IOException e) {
+			System.err.println("Unable to read data from " + source + " for " + getEnvironment().getName() + ": " + e.getMessage());
+			return;
+		}
+		dataReceived(source, remoteTid, buffer);
+	}
+	
+	/**
+	 * <p>This method is called with the data received by {@link #dataReceived(RemoteNode, String, Payload)} unless that method
+	 * is overridden.</p>
+	 * 
+	 * <p>Small payloads are delivered in memory. Large payloads are spooled to the disk as they arrive and delivered as a
+	 * memory mapped region of the spool file. In either case, the buffer is read-only and must not be used after this method
+	 * returns.</p>
+	 * 
+	 * <p>By default, the data is written to a temporary file in the class path of the job and passed to
+	 * {@link #dataReceived(RemoteNode, String, File)}. Subclasses should override this method instead to avoid the file.</p>
+	 * 
+	 * @param source The node that send the data.
+	 * @param remoteTid The thread ID of the job that sent the data.
+	 * @param data The data received.
+	 */
+	//TODO: The first two parameters should be replaced with a RemoteJob
+	public void dataReceived(RemoteNode source, String remoteTid, ByteBuffer data){
+		File f = null;
+		try{
+			f = File.createTempFile("data_", null, getEnvironment().getClassPath());
+			FileOutputStream fos = new FileOutputStream(f);
+			try{
+				FileChannel fc = fos.getChannel();
+				while(data.hasRemaining())
+					fc.write(data);
+			}
+			finally{
+				fos.close();
+			}
+			dataReceived(source, remoteTid, f);
+		} catch (IOException e) {
+			System.err.println("Unable to store data from " + source + " for " + getEnvironment().getName() + ": " + e.getMessage());
+		}
+		finally{
+			if(f != null)
+				f.delete();
+		}
+	}
+	
+	/**
+	 * <p>This method is called with the data received by {@link #dataReceived(RemoteNode, String, ByteBuffer)} unless that method
+	 * is overridden. The file is deleted when this method returns.</p>
+	 * 
+	 * @param source The node that send the data.
+	 * @param remoteTid The thread ID of the job that sent the data.
+	 * @param data The data received.
+	 * @deprecated Override {@link #dataReceived(RemoteNode, String, ByteBuffer)} instead.
+	 */
+	@Deprecated
+	public void dataReceived(RemoteNode source, String remoteTid, File data){
+		//Subclasses overriding the ByteBuffer method need not implement this
+	}
+	
+	/**
+	 * <p>This method is called on a new thread when a remote job opens a stream to the LocalJob subclass with
+	 * {@link com.github.uberroot.ncjbot.RemoteJob#openStream()}. The stream may be read on any thread, and must be read to its
+	 * end or closed. The sender is held back while the node holds ServerSessionHandler.streamBuffer bytes of the stream that
+	 * have not been read.</p>
+	 * 
+	 * <p>By default, the whole stream is read into memory and passed to {@link #dataReceived(RemoteNode, String, Payload)}.
+	 * Subclasses expecting large streams should override this method.</p>
+	 * 
+	 * @param source The node that sent the stream.
+	 * @param remoteTid The thread ID of the job that sent the stream.
+	 * @param data The stream.
+	 */
+	//TODO: The first two parameters should be replaced with a RemoteJob
+	public void streamReceived(RemoteNode source, String remoteTid, InputStream data){
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		try{
+			byte buffer[] = new byte[8192];
+			int r;
+			while((r = data.read(buffer)) != -1)
+				bos.write(buffer, 0, r);
+		} catch (IOException e) {
+			System.err.println("Unable to read stream from " + source + " for " + getEnvironment().getName() + ": " + e.getMessage());
+			return;
+		}
+		finally{
+			try {
+				data.close();
+			} catch (IOException e) {}
+		}
+		dataReceived(source, remoteTid, Payload.wrap(bos.toByteArray()));
+	}
+	
+	/**
+	 * <p>This method is called when a remote job calls the LocalJob subclass with
+	 * {@link com.github.uberroot.ncjbot.RemoteJob#call(byte[])}, and its result is sent back as the reply. Calls are answered on
+	 * a pool of threads shared by all jobs, so several calls may be answered at once, and a call should not block for long.</p>
+	 * 
+	 * <p>By default, calls are refused.</p>
+	 * 
+	 * @param source The node that made the call.
+	 * @param remoteTid The thread ID of the job that made the call.
+	 * @param request The request. The buffer is read-only, and is only valid until this method returns.
+	 * @return The reply.
+	 * @throws Exception If the call could not be answered. The caller receives the message of the exception.
+	 */
+	//TODO: The first two parameters should be replaced with a RemoteJob
+	public ByteBuffer callReceived(RemoteNode source, String remoteTid, ByteBuffer request) throws Exception{
+		throw new UnsupportedOperationException(getEnvironment().getName() + " does not accept calls");
+	}
 	
 	/**
 	 * <p>This method is called when a new node has been discovered by this node.</p>
@@ -1,6 +1,13 @@
 package com.github.uberroot.ncjbot.api;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.CompletionService;
+
 import com.github.uberroot.ncjbot.NodeState;
+import com.github.uberroot.ncjbot.RemoteJob;
+import com.github.uberroot.ncjbot.RemoteNode;
 
 /**
  * <p>A public-safe wrapper for {@link com.github.uberroot.ncjbot.LocalNode}.</p>
@@ -49,4 +56,19 @@ public final class LocalNode {
 	public Watchdog getWatchdog(){
 		return node.getWatchdog().getSafeObject();
 	}
+	
+	/**
+	 * <p>Sends a job to many nodes at once.</p>
+	 * 
+	 * @param ownerTid The thread id of the job that will be the parent of the started jobs.
+	 * @param worker A file pointing to the class file to send.
+	 * @param params Initialization parameters for the new LocalJobs.
+	 * @param targets The nodes to start the job on.
+	 * @return The started jobs, in the order they were started.
+	 * @throws IOException If the worker could not be read.
+	 * @see com.github.uberroot.ncjbot.LocalNode#dispatchJob(long, File, byte[], Collection)
+	 */
+	public CompletionService<RemoteJob> dispatchJob(long ownerTid, File worker, byte[] params, Collection<RemoteNode> targets) throws IOException{
+		return node.dispatchJob(ownerTid, worker, params, targets);
+	}
 }
@@ -0,0 +1,46 @@
+package com.github.uberroot.ncjbot.api;
+
+import java.nio.ByteBuffer;
+
+/**
+ * <p>Loads a worker class straight from the bytes received with a job, so that the class never has to be written to the
+ * disk. All other classes are loaded by the parent loader.</p>
+ *
+ * @author Carter Waxman
+ *
+ */
+final class WorkerClassLoader extends ClassLoader {
+	/**
+	 * <p>The binary name of the worker class.</p>
+	 */
+	private final String className;
+	
+	/**
+	 * <p>The class file of the worker, or null once the class has been defined.</p>
+	 */
+	private ByteBuffer classData;
+	
+	/**
+	 * <p>Creates a loader for a single worker class.</p>
+	 *
+	 * @param parent The loader for all other classes.
+	 * @param className The binary name of the worker class.
+	 * @param classData The class file of the worker.
+	 */
+	WorkerClassLoader(ClassLoader parent, String className, ByteBuffer classData){
+		super(parent);
+		this.className = className;
+		this.classData = classData;
+	}
+	
+	@Override
+	protected synchronized Class<?> findClass(String name) throws ClassNotFoundException {
+		if(!name.equals(className) || classData == null)
+			throw new ClassNotFoundException(name);
+		
+		//The bytes are not needed once the class is defined
+		Class<?> c = defineClass(name, classData, null);
+		classData = null;
+		return c;
+	}
+}
@@ -1,7 +1,10 @@
 package com.github.uberroot.ncjbot.modapi;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.channels.FileChannel;
 
 import com.github.uberroot.ncjbot.RemoteNode;
 
@@ -65,6 +68,17 @@ public interface ConnectionFactory extends Exclusive<ConnectionFactory>{
 		 */
 		public void write(byte[] data, int off, int len) throws IOException;
 		
+		/**
+		 * <p>Writes a range of a file to the stream destined for the RemoteNode. A connection backed by a socket channel
+		 * should pass the data from the file to the socket directly, so that it is not copied through the Java heap.</p>
+		 * 
+		 * @param src The file to send from. Its position is not changed.
+		 * @param position The position in the file of the first byte to send.
+		 * @param count The number of bytes to send.
+		 * @throws IOException If the file ends early or the data could not be sent.
+		 */
+		public void transferFrom(FileChannel src, long position, long count) throws IOException;
+		
 		/**
 		 * <p>Reads data from the stream into the provided byte array. This method may return before the byte array is filled.</p>
 		 * 
@@ -74,6 +88,42 @@ public interface ConnectionFactory extends Exclusive<ConnectionFactory>{
 		 */
 		public int read(byte[] data) throws IOException;
 		
+		/**
+		 * <p>Reads data from the stream into the provided range of the byte array. This method may return before the range is filled.</p>
+		 * 
+		 * @param data The destination for the stream data.
+		 * @param off The offset in the array at which to store data.
+		 * @param len The maximum number of bytes to read.
+		 * @return The number of bytes of data read, or -1 if the stream has ended.
+		 * @throws IOException
+		 */
+		public int read(byte[] data, int off, int len) throws IOException;
+		
+		/**
+		 * <p>Sets the maximum time a read may block before failing with a {@link java.net.SocketTimeoutException}.
+		 * A timeout does not close the connection.</p>
+		 * 
+		 * @param millis The timeout in milliseconds, or 0 to block indefinitely.
+		 * @throws IOException
+		 */
+		public void setReadTimeout(int millis) throws IOException;
+		
+		/**
+		 * <p>Gets a stream that reads from the connection. Reads through the stream behave as calls to
+		 * {@link #read(byte[], int, int)}.</p>
+		 * 
+		 * @return A stream that reads from the connection.
+		 */
+		public InputStream getInputStream();
+		
+		/**
+		 * <p>Gets a stream that writes to the connection. Writes through the stream behave as calls to
+		 * {@link #write(byte[], int, int)}.</p>
+		 * 
+		 * @return A stream that writes to the connection.
+		 */
+		public OutputStream getOutputStream();
+		
 		/**
 		 * <p>Adds a listener for connection events to the connection.</p>
 		 * 
@@ -94,9 +144,32 @@ public interface ConnectionFactory extends Exclusive<ConnectionFactory>{
 		public void retain();
 		
 		/**
-		 * <p>Releases the connection so it may be closed if necessary.</p>
+		 * <p>Releases the connection so it may be closed if necessary. A ConnectionFactory may keep a fully released connection
+		 * open and return it from a later call to {@link ConnectionFactory#getConnection(RemoteNode)}.</p>
 		 */
 		public void release();
+		
+		/**
+		 * <p>Closes the connection immediately, regardless of the retain count. This should be used instead of
+		 * {@link #release()} when the connection is left in a state that prevents further use, such as after a protocol
+		 * error or after the remote node has ended the session.</p>
+		 */
+		public void close();
+		
+		/**
+		 * <p>Attaches an object to the connection. This allows state tied to the connection, such as a protocol session,
+		 * to be recovered when the connection is reused.</p>
+		 * 
+		 * @param attachment The object to attach, or null to remove the attachment.
+		 */
+		public void setAttachment(Object attachment);
+		
+		/**
+		 * <p>Gets the object attached to the connection.</p>
+		 * 
+		 * @return The attached object, or null if there is none.
+		 */
+		public Object getAttachment();
 	};
 	
 	/**
@@ -0,0 +1,32 @@
+package com.github.uberroot.ncjbot.modapi;
+
+import java.util.List;
+
+import com.github.uberroot.ncjbot.MemberUpdate;
+import com.github.uberroot.ncjbot.RemoteNode;
+
+/**
+ * <p>An interface for OverlayManagers that spread the membership of the network by gossip. Membership updates are carried
+ * on the probes that nodes send each other and on their answers. When the OverlayManager implements this interface, the
+ * server passes it the updates received with each probe and asks it for the updates to send back.</p>
+ * 
+ * @author Carter Waxman
+ *
+ */
+public interface MembershipGossip {
+	/**
+	 * <p>Applies membership updates received from another node.</p>
+	 * 
+	 * @param sender The node the updates were received from.
+	 * @param updates The updates.
+	 */
+	public void merge(RemoteNode sender, List<MemberUpdate> updates);
+	
+	/**
+	 * <p>Gets the membership updates to carry on the next message sent to another node. Each call counts as sending the
+	 * updates returned.</p>
+	 * 
+	 * @return The updates, including one announcing that this node is alive.
+	 */
+	public List<MemberUpdate> getPiggyback();
+}
@@ -1,9 +1,19 @@
 package com.github.uberroot.ncjbot.modules;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 import java.util.Vector;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.github.uberroot.ncjbot.LocalNode;
 import com.github.uberroot.ncjbot.RemoteNode;
@@ -15,11 +25,27 @@ public class BasicConnector extends AbstractModule implements ConnectionFactory
 		private Socket socket;
 		private int retainCount;
 		
+		/**
+		 * <p>The object attached to the connection.</p>
+		 */
+		private Object attachment;
+		
 		/**
 		 * <p>The vector for holding all event listeners</p>
 		 */
 		private Vector<EventListener> listeners;
 		
+		/**
+		 * <p>Held while reading, so that reads are not interleaved. Reading and writing may proceed at once. A Lock
+		 * rather than a monitor, so that a virtual thread blocked on the socket does not pin its carrier thread.</p>
+		 */
+		private final Lock readLock = new ReentrantLock();
+		
+		/**
+		 * <p>Held while writing, so that writes are not interleaved.</p>
+		 */
+		private final Lock writeLock = new ReentrantLock();
+		
 		private BasicConnection(Socket s){
 			retainCount = 1;
 			socket = s;
@@ -28,41 +54,161 @@ public class BasicConnector extends AbstractModule implements ConnectionFactory
 		
 		private BasicConnection(InetAddress addr, int port) throws IOException{
 			retainCount = 1;
-			socket = new Socket(addr, port);
+			//A socket opened through a channel allows files to be sent without copying
+			socket = SocketChannel.open(new InetSocketAddress(addr, port)).socket();
+			node.getSessionTimer().configure(socket);
 			listeners = new Vector<EventListener>();
 		}
 
 		@Override
-		public synchronized void write(byte[] data) throws IOException {
+		public void write(byte[] data) throws IOException {
+			writeLock.lock();
 			try{
-				socket.getOutputStream().write(data);
+				try{
+					socket.getOutputStream().write(data);
+				}
+				catch(IOException ex){
+					socket.close();
+					retainCount = 0;
+					
+					Vector<EventListener> temp = new Vector<EventListener>(listeners);
+					for(EventListener l : temp)
+						l.connectionFailed(this);
+					
+					throw ex;
+				}
+			} finally {
+				writeLock.unlock();
 			}
-			catch(IOException ex){
-				socket.close();
-				retainCount = 0;
-				
-				Vector<EventListener> temp = new Vector<EventListener>(listeners);
-				for(EventListener l : temp)
-					l.connectionFailed(this);
-				
-				throw ex;
+		}
+
+		@Override
+		public int read(byte[] data) throws IOException {
+			readLock.lock();
+			try{
+				try{
+					return socket.getInputStream().read(data);
+				}
+				catch(IOException ex){
+					socket.close();
+					retainCount = 0;
+					
+					Vector<EventListener> temp = new Vector<EventListener>(listeners);
+					for(EventListener l : temp)
+						l.connectionFailed(this);
+					
+					throw ex;
+				}
+			} finally {
+				readLock.unlock();
 			}
 		}
 
 		@Override
-		public synchronized int read(byte[] data) throws IOException {
+		public int read(byte[] data, int off, int len) throws IOException {
+			readLock.lock();
 			try{
-				return socket.getInputStream().read(data);
+				try{
+					return socket.getInputStream().read(data, off, len);
+				}
+				catch(IOException ex){
+					socket.close();
+					retainCount = 0;
+					
+					Vector<EventListener> temp = new Vector<EventListener>(listeners);
+					for(EventListener l : temp)
+						l.connectionFailed(this);
+					
+					throw ex;
+				}
+			} finally {
+				readLock.unlock();
 			}
-			catch(IOException ex){
-				socket.close();
-				retainCount = 0;
+		}
+		
+		@Override
+		public void setReadTimeout(int millis) throws IOException {
+			socket.setSoTimeout(millis);
+		}
+		
+		@Override
+		public InputStream getInputStream() {
+			return new InputStream(){
+				@Override
+				public int read() throws IOException {
+					byte b[] = new byte[1];
+					int r;
+					do{
+						r = BasicConnection.this.read(b, 0, 1);
+					} while(r == 0);
+					return r == -1 ? -1 : b[0] & 0xFF;
+				}
 				
-				Vector<EventListener> temp = new Vector<EventListener>(listeners);
-				for(EventListener l : temp)
-					l.connectionFailed(this);
+				@Override
+				public int read(byte[] data, int off, int len) throws IOException {
+					return BasicConnection.this.read(data, off, len);
+				}
+			};
+		}
+		
+		@Override
+		public OutputStream getOutputStream() {
+			return new OutputStream(){
+				@Override
+				public void write(int b) throws IOException {
+					BasicConnection.this.write(new byte[]{(byte)b}, 0, 1);
+				}
 				
-				throw ex;
+				@Override
+				public void write(byte[] data, int off, int len) throws IOException {
+					BasicConnection.this.write(data, off, len);
+				}
+			};
+		}
+
+		@Override
+		public void transferFrom(FileChannel src, long position, long count) throws IOException {
+			writeLock.lock();
+			try{
+				try{
+					SocketChannel channel = socket.getChannel();
+					if(channel != null){
+						while(count > 0){
+							long n = src.transferTo(position, count, channel);
+							if(n <= 0 && position >= src.size())
+								throw new EOFException();
+							position += n;
+							count -= n;
+						}
+					}
+					else{
+						//Sockets registered by a server may not have a channel
+						ByteBuffer buf = ByteBuffer.allocate((int)Math.min(count, 65536));
+						OutputStream out = socket.getOutputStream();
+						while(count > 0){
+							buf.clear();
+							buf.limit((int)Math.min(count, buf.capacity()));
+							int r = src.read(buf, position);
+							if(r == -1)
+								throw new EOFException();
+							out.write(buf.array(), 0, r);
+							position += r;
+							count -= r;
+						}
+					}
+				}
+				catch(IOException ex){
+					socket.close();
+					retainCount = 0;
+					
+					Vector<EventListener> temp = new Vector<EventListener>(listeners);
+					for(EventListener l : temp)
+						l.connectionFailed(this);
+					
+					throw ex;
+				}
+			} finally {
+				writeLock.unlock();
 			}
 		}
 
@@ -96,19 +242,81 @@ public class BasicConnector extends AbstractModule implements ConnectionFactory
 		}
 
 		@Override
-		public synchronized void write(byte[] data, int off, int len) throws IOException {
+		public synchronized void close() {
+			if(socket.isClosed())
+				return;
+			retainCount = 0;
+			try {
+				socket.close();
+			} catch (IOException e) {}
+			Vector<EventListener> temp = new Vector<EventListener>(listeners);
+			for(EventListener l : temp)
+				l.connectionClosed(this);
+		}
+		
+		@Override
+		public void setAttachment(Object attachment) {
+			this.attachment = attachment;
+		}
+		
+		@Override
+		public Object getAttachment() {
+			return attachment;
+		}
+		
+		/**
+		 * <p>Determines whether the connection can still be used. A connection that is no longer in use by this node may have
+		 * been closed by the remote node, which can only be detected by reading from it. This waits up to a millisecond
+		 * for data to confirm that the connection is open and idle.</p>
+		 * 
+		 * @return False if the connection was closed by either end or unexpected data was received.
+		 */
+		public boolean isUsable() {
+			readLock.lock();
 			try{
-				socket.getOutputStream().write(data, off, len);
+				if(socket.isClosed())
+					return false;
+				try {
+					InputStream in = socket.getInputStream();
+					if(in.available() > 0)
+						return false; //The session is out of step
+					int timeout = socket.getSoTimeout();
+					socket.setSoTimeout(1);
+					try {
+						in.read();
+						return false; //Either the end of the stream or unexpected data
+					} catch (SocketTimeoutException e) {
+						return true;
+					} finally {
+						socket.setSoTimeout(timeout);
+					}
+				} catch (IOException e) {
+					return false;
+				}
+			} finally {
+				readLock.unlock();
 			}
-			catch(IOException ex){
-				socket.close();
-				retainCount = 0;
-				
-				Vector<EventListener> temp = new Vector<EventListener>(listeners);
-				for(EventListener l : temp)
-					l.connectionFailed(this);
-				
-				throw ex;
+		}
+		
+		@Override
+		public void write(byte[] data, int off, int len) throws IOException {
+			writeLock.lock();
+			try{
+				try{
+					socket.getOutputStream().write(data, off, len);
+				}
+				catch(IOException ex){
+					socket.close();
+					retainCount = 0;
+					
+					Vector<EventListener> temp = new Vector<EventListener>(listeners);
+					for(EventListener l : temp)
+						l.connectionFailed(this);
+					
+					throw ex;
+				}
+			} finally {
+				writeLock.unlock();
 			}
 		}
 		
@@ -1,9 +1,11 @@
 package com.github.uberroot.ncjbot.modules;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
 import com.github.uberroot.ncjbot.LocalNode;
 import com.github.uberroot.ncjbot.ServerSessionHandler;
 import com.github.uberroot.ncjbot.modapi.RunningModule;
@@ -99,11 +101,30 @@ public class BasicServer extends RunningModule implements Server {
 		return socket.getLocalPort();
 	}
 
+	/**
+	 * <p>Opens a server socket through a channel, so that accepted sockets have channels that session handlers may use to
+	 * receive payloads directly.</p>
+	 * 
+	 * @param port The port to listen on.
+	 * @return The open server socket.
+	 * @throws IOException If the port could not be bound.
+	 */
+	private static ServerSocket openSocket(int port) throws IOException{
+		ServerSocketChannel channel = ServerSocketChannel.open();
+		try {
+			channel.socket().bind(new InetSocketAddress(port));
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return channel.socket();
+	}
+	
 	@Override
 	protected void doStart() throws IOException {
 		//Try to create socket
 		try {
-			socket = new ServerSocket(port);
+			socket = openSocket(port);
 			System.out.println("The server socket has been opened on port " + port);
 		} catch (IOException e) {
 			System.err.println("Unable to create server socket on port " + port);
@@ -111,7 +132,7 @@ public class BasicServer extends RunningModule implements Server {
 			int listenPort = minPort;
 			while(socket == null && port <= maxPort){
 				try {
-					socket = new ServerSocket(listenPort);
+					socket = openSocket(listenPort);
 					System.out.println("The server socket has been opened on port " + listenPort);
 				} catch (IOException e1) {
 					System.err.println("Unable to create server socket on port " + listenPort);
@@ -159,9 +180,10 @@ public class BasicServer extends RunningModule implements Server {
 					//Dispatch the incoming connection to a new session handler
 					Connection c = null;
 					try{
+						node.getSessionTimer().configure(clientSock);
 						c = node.getConnectionFactory().registerConnection(clientSock);
 						ServerSessionHandler handler = new ServerSessionHandler(node, clientSock);
-						handler.start();
+						node.createThread(handler, handler.getName()).start();
 					} catch(OutOfMemoryError e){//Autorecover from resource consumption
 						System.err.println("Unable to create thread for new connection");
 						c.release();
@@ -0,0 +1,898 @@
+package com.github.uberroot.ncjbot.modules;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.github.uberroot.ncjbot.ConfigManager;
+import com.github.uberroot.ncjbot.LocalNode;
+import com.github.uberroot.ncjbot.MemberState;
+import com.github.uberroot.ncjbot.MemberUpdate;
+import com.github.uberroot.ncjbot.NodeState;
+import com.github.uberroot.ncjbot.NodeStateException;
+import com.github.uberroot.ncjbot.RemoteNode;
+import com.github.uberroot.ncjbot.TimedTask;
+import com.github.uberroot.ncjbot.modapi.MembershipGossip;
+import com.github.uberroot.ncjbot.modapi.OverlayManager;
+import com.github.uberroot.ncjbot.modapi.RunningModule;
+
+/**
+ * <p>Keeps track of the other nodes in the network using SWIM-style gossip, so that the cost to each node of watching the
+ * network does not grow with its size. Rather than beaconing every known node, this node probes one member each
+ * GossipOverlayManager.interval milliseconds, taking the members in a shuffled round-robin order. A member that does not answer
+ * within GossipOverlayManager.probeTimeout milliseconds is probed through GossipOverlayManager.indirectProbes other members,
+ * so that a congested link between two nodes is not mistaken for a failure. A member that cannot be reached either way is
+ * suspected, and is declared dead if it does not refute the suspicion within GossipOverlayManager.suspicionMultiplier times
+ * log N probe intervals.</p>
+ *
+ * <p>Changes in membership are not sent as messages of their own. They are carried on the probes and their answers, each
+ * change being retransmitted GossipOverlayManager.retransmitMultiplier times log N times, so that every member learns of it
+ * within O(log N) probe intervals. At most GossipOverlayManager.maxPiggyback updates are carried by each message, and spare
+ * room is filled with the states of randomly chosen members so that the full membership eventually reaches every node. A
+ * member may refute a suspicion about itself by announcing a higher incarnation.</p>
+ *
+ * <p>The full membership is used only for probing. The nodes given to jobs and to other nodes asking for known nodes are a
+ * neighbor set of at most GossipOverlayManager.maxNeighbors live members, which is refilled from the membership as neighbors
+ * fail. Dead members are remembered for GossipOverlayManager.deadRetention milliseconds so that stale gossip does not bring
+ * them back. When the module stops, it announces that this node is leaving the network.</p>
+ *
+ * @author Carter Waxman
+ *
+ */
+public final class GossipOverlayManager extends RunningModule implements OverlayManager, MembershipGossip{
+	/**
+	 * <p>The state of a member of the network, as known to this node.</p>
+	 */
+	private static final class Member{
+		/**
+		 * <p>The member.</p>
+		 */
+		private final RemoteNode node;
+		
+		/**
+		 * <p>The address and port of the member, kept so that the member need not be locked to identify it.</p>
+		 */
+		private final InetAddress address;
+		private final int port;
+		
+		/**
+		 * <p>The key of the member in {@link GossipOverlayManager#members}.</p>
+		 */
+		private final String key;
+		
+		/**
+		 * <p>The state of the member, and the incarnation it applies to.</p>
+		 */
+		private MemberState state;
+		private long incarnation;
+		
+		/**
+		 * <p>When the state last changed, in nanoseconds.</p>
+		 */
+		private long since;
+		
+		/**
+		 * <p>Whether the member is in the neighbor set.</p>
+		 */
+		private boolean neighbor;
+		
+		/**
+		 * <p>Creates a member.</p>
+		 *
+		 * @param node The member.
+		 * @param address The address of the member.
+		 * @param port The listening port of the member.
+		 * @param state The state of the member.
+		 * @param incarnation The incarnation the state applies to.
+		 */
+		private Member(RemoteNode node, InetAddress address, int port, MemberState state, long incarnation){
+			this.node = node;
+			this.address = address;
+			this.port = port;
+			this.key = address.getHostAddress() + ":" + port;
+			this.state = state;
+			this.incarnation = incarnation;
+			since = System.nanoTime();
+			neighbor = false;
+		}
+		
+		/**
+		 * <p>Determines whether the member is thought to be running.</p>
+		 *
+		 * @return True if the member is alive or suspected.
+		 */
+		private boolean isLive(){
+			return state == MemberState.ALIVE || state == MemberState.SUSPECT;
+		}
+		
+		/**
+		 * <p>Gets an update stating the current state of the member.</p>
+		 *
+		 * @return The update.
+		 */
+		private MemberUpdate toUpdate(){
+			return new MemberUpdate(address, port, state, incarnation);
+		}
+	}
+	
+	/**
+	 * <p>An update waiting to be carried to other nodes.</p>
+	 */
+	private static final class Rumor{
+		/**
+		 * <p>The update.</p>
+		 */
+		private final MemberUpdate update;
+		
+		/**
+		 * <p>The number of messages that have carried the update.</p>
+		 */
+		private int sent;
+		
+		/**
+		 * <p>Creates a rumor that has not yet been carried.</p>
+		 *
+		 * @param update The update.
+		 */
+		private Rumor(MemberUpdate update){
+			this.update = update;
+			sent = 0;
+		}
+	}
+	
+	/**
+	 * <p>Orders rumors so that those carried least often are sent first.</p>
+	 */
+	private static final Comparator<Rumor> LEAST_SENT = new Comparator<Rumor>(){
+		@Override
+		public int compare(Rumor a, Rumor b) {
+			return Integer.compare(a.sent, b.sent);
+		}
+	};
+	
+	/**
+	 * <p>Every member known to this node, including dead members that are still remembered, keyed by address and port. This
+	 * also guards the other membership state of the module.</p>
+	 */
+	private final HashMap<String, Member> members;
+	
+	/**
+	 * <p>The live members given to jobs and to other nodes.</p>
+	 */
+	private final ArrayList<Member> neighbors;
+	
+	/**
+	 * <p>The updates waiting to be carried to other nodes, keyed by the member they are about.</p>
+	 */
+	private final LinkedHashMap<String, Rumor> rumors;
+	
+	/**
+	 * <p>The order in which members are probed, and the position of the next member to probe.</p>
+	 */
+	private final ArrayList<String> probeOrder;
+	private int probeIndex;
+	
+	/**
+	 * <p>Whether each address, by its string form, belongs to this host.</p>
+	 */
+	private final HashMap<String, Boolean> localAddresses;
+	
+	/**
+	 * <p>The seed nodes that answered, which are probed as soon as the module starts to announce this node.</p>
+	 */
+	private final ArrayList<RemoteNode> seeds;
+	
+	/**
+	 * <p>Chooses the members to probe and to gossip about.</p>
+	 */
+	private final Random random;
+	
+	/**
+	 * <p>The incarnation of this node. This starts at the time the node started, so that a restarted node overrides what the
+	 * network remembers of its previous life.</p>
+	 */
+	private long incarnation;
+	
+	/**
+	 * <p>Whether this node is leaving the network.</p>
+	 */
+	private volatile boolean leaving;
+	
+	/**
+	 * <p>The listening port of this node, kept from when the module started since it cannot be read once the server has
+	 * stopped, or 0 until then.</p>
+	 */
+	private volatile int port;
+	
+	/**
+	 * <p>The settings of the module. See the class description.</p>
+	 */
+	private long interval;
+	private int probeTimeout;
+	private int indirectProbes;
+	private int maxNeighbors;
+	private int maxPiggyback;
+	private int retransmitMultiplier;
+	private int suspicionMultiplier;
+	private long deadRetention;
+	
+	/**
+	 * <p>The ScheduledFuture for the probe timer.</p>
+	 */
+	private ScheduledFuture<?> future;
+	
+	/**
+	 * <p>Creates the OverlayManager. The seed nodes are contacted when the module is linked.</p>
+	 *
+	 * @param node The running LocalNode instance.
+	 */
+	public GossipOverlayManager(LocalNode node){
+		super(node);
+		members = new HashMap<String, Member>();
+		neighbors = new ArrayList<Member>();
+		rumors = new LinkedHashMap<String, Rumor>();
+		probeOrder = new ArrayList<String>();
+		probeIndex = 0;
+		localAddresses = new HashMap<String, Boolean>();
+		seeds = new ArrayList<RemoteNode>();
+		random = new Random();
+		incarnation = System.currentTimeMillis();
+		leaving = false;
+	}
+	
+	/**
+	 * <p>Retrieves a copy of the neighbor set.</p>
+	 *
+	 * @return The neighbors of this node.
+	 */
+	//TODO: This should return unmodifiable RemoteNodes
+	@Override
+	public List<RemoteNode> getActiveNodes() {
+		synchronized(members){
+			ArrayList<RemoteNode> ret = new ArrayList<RemoteNode>(neighbors.size());
+			for(Member m : neighbors)
+				ret.add(m.node);
+			return Collections.unmodifiableList(ret);
+		}
+	}
+	
+	/**
+	 * <p>Adds a node that contacted this node directly to the membership, if it was not already known. Its incarnation is not
+	 * known, so it is recorded as alive in its earliest incarnation until gossip from the node says otherwise.</p>
+	 *
+	 * @param rn the node to add
+	 * @return True if the node was not already a member.
+	 */
+	@Override
+	public boolean addDiscoveredNode(RemoteNode rn){
+		InetAddress address = rn.getIpAddress();
+		int port = rn.getListeningPort();
+		if(isSelf(address, port))
+			return false;
+		ArrayList<RemoteNode> found = new ArrayList<RemoteNode>();
+		synchronized(members){
+			if(members.containsKey(address.getHostAddress() + ":" + port))
+				return false;
+			Member m = addMember(rn, address, port, MemberState.ALIVE, 0, found);
+			spread(m.toUpdate());
+		}
+		announce(found, null);
+		return true;
+	}
+	
+	/**
+	 * <p>Finds a randomly selected neighbor other than the node given. If there are no other neighbors, this method will
+	 * return null.</p>
+	 *
+	 * @param r The node to replace.
+	 * @return A randomly selected neighbor.
+	 */
+	//TODO: This should return unmodifiable RemoteNodes
+	@Override
+	public RemoteNode getReplacement(RemoteNode r){
+		String key = r == null ? null : r.toString();
+		synchronized(members){
+			ArrayList<Member> pool = new ArrayList<Member>(neighbors.size());
+			for(Member m : neighbors)
+				if(!m.key.equals(key))
+					pool.add(m);
+			return pool.isEmpty() ? null : pool.get(random.nextInt(pool.size())).node;
+		}
+	}
+	
+	/**
+	 * <p>Gets requested number of neighbors, wrapping the list around when not enough are known to create a list of unique
+	 * nodes. As with {@link LazyOverlayManager#getNodes(int)}, this node fills the place of a node each time the list wraps.</p>
+	 *
+	 * @param count The number of nodes to retrieve. A value of -1 indicates the entire neighbor set should be retrieved.
+	 * @return A list of <i>count</i> remote nodes.
+	 */
+	//TODO: This should return unmodifiable RemoteNodes
+	@Override
+	public List<RemoteNode> getNodes(int count){
+		List<RemoteNode> ans = getActiveNodes();
+		if(count == -1)
+			return ans;
+		RemoteNode self;
+		try {
+			self = new RemoteNode(node, "127.0.0.1", node.getServer().getCurrentPort());
+		} catch (UnknownHostException e) {
+			//THIS WILL NEVER HAPPEN
+			throw new IllegalStateException(e);
+		}
+		ArrayList<RemoteNode> ret = new ArrayList<RemoteNode>(count);
+		for(int i = 0; ret.size() < count; i = (i + 1) % (ans.size() + 1))
+			ret.add(i < ans.size() ? ans.get(i) : self);
+		return Collections.unmodifiableList(ret);
+	}
+	
+	@Override
+	public com.github.uberroot.ncjbot.api.OverlayManager getSafeObject() {
+		return new com.github.uberroot.ncjbot.api.OverlayManager(this);
+	}
+	
+	@Override
+	public void merge(RemoteNode sender, List<MemberUpdate> updates) {
+		ArrayList<RemoteNode> found = new ArrayList<RemoteNode>();
+		ArrayList<RemoteNode> failed = new ArrayList<RemoteNode>();
+		synchronized(members){
+			for(MemberUpdate u : updates)
+				apply(u, found, failed);
+		}
+		announce(found, failed);
+	}
+	
+	@Override
+	public List<MemberUpdate> getPiggyback() {
+		synchronized(members){
+			ArrayList<MemberUpdate> ret = new ArrayList<MemberUpdate>(maxPiggyback + 1);
+			ret.add(new MemberUpdate(null, port, leaving ? MemberState.LEFT : MemberState.ALIVE, incarnation));
+			
+			//Send the rumors carried least often first, forgetting those that have been carried enough
+			int limit = retransmitMultiplier * log2(members.size() + 1);
+			ArrayList<Rumor> pending = new ArrayList<Rumor>(rumors.values());
+			Collections.sort(pending, LEAST_SENT);
+			for(int i = 0; i < pending.size() && ret.size() <= maxPiggyback; i++){
+				Rumor r = pending.get(i);
+				ret.add(r.update);
+				if(++r.sent >= limit)
+					rumors.remove(r.update.getKey());
+			}
+			
+			//Fill the remaining room with random live members
+			if(ret.size() <= maxPiggyback && !members.isEmpty()){
+				ArrayList<Member> pool = new ArrayList<Member>(members.values());
+				for(int i = 0; i < pool.size() && ret.size() <= maxPiggyback; i++){
+					Collections.swap(pool, i, i + random.nextInt(pool.size() - i));
+					Member m = pool.get(i);
+					if(m.state == MemberState.ALIVE && !rumors.containsKey(m.key))
+						ret.add(m.toUpdate());
+				}
+			}
+			return ret;
+		}
+	}
+	
+	/**
+	 * <p>Applies a single membership update. This must be called while holding the lock on {@link #members}.</p>
+	 *
+	 * @param u The update.
+	 * @param found Receives the nodes that joined the neighbor set.
+	 * @param failed Receives the nodes that left the neighbor set because they failed.
+	 */
+	private void apply(MemberUpdate u, List<RemoteNode> found, List<RemoteNode> failed){
+		if(isSelf(u.getAddress(), u.getPort())){
+			//Refute any suspicion about this node by moving to a newer incarnation
+			if(!leaving && u.getState() != MemberState.ALIVE && u.getIncarnation() >= incarnation){
+				incarnation = u.getIncarnation() + 1;
+				System.out.println("Refuting " + u.getState() + " rumor about this node");
+			}
+			return;
+		}
+		
+		Member m = members.get(u.getKey());
+		if(m == null){
+			//Dead members that were never known are remembered only so that stale gossip cannot revive them
+			m = addMember(new RemoteNode(node, u.getAddress(), u.getPort()), u.getAddress(), u.getPort(), u.getState(), u.getIncarnation(), found);
+			if(m.isLive())
+				spread(u);
+			return;
+		}
+		
+		boolean overrides;
+		switch(u.getState()){
+			case ALIVE:
+				overrides = u.getIncarnation() > m.incarnation;
+				break;
+			case SUSPECT:
+				overrides = u.getIncarnation() > m.incarnation || (u.getIncarnation() == m.incarnation && m.state == MemberState.ALIVE);
+				break;
+			case DEAD:
+			case LEFT:
+			default:
+				overrides = m.isLive() ? u.getIncarnation() >= m.incarnation : u.getIncarnation() > m.incarnation;
+				break;
+		}
+		if(!overrides)
+			return;
+		
+		boolean wasLive = m.isLive();
+		if(m.state != u.getState())
+			m.since = System.nanoTime();
+		m.state = u.getState();
+		m.incarnation = u.getIncarnation();
+		spread(u);
+		if(wasLive && !m.isLive()){
+			System.out.println("Member " + m.key + " is " + m.state);
+			removeNeighbor(m, failed, found);
+		}
+		else if(!wasLive && m.isLive()){
+			probeOrder.add(probeIndex + random.nextInt(probeOrder.size() - probeIndex + 1), m.key);
+			addNeighbor(m, found);
+		}
+	}
+	
+	/**
+	 * <p>Adds a member to the membership. This must be called while holding the lock on {@link #members}.</p>
+	 *
+	 * @param rn The member.
+	 * @param address The address of the member.
+	 * @param port The listening port of the member.
+	 * @param state The state of the member.
+	 * @param incarnation The incarnation the state applies to.
+	 * @param found Receives the member if it joined the neighbor set.
+	 * @return The new member.
+	 */
+	private Member addMember(RemoteNode rn, InetAddress address, int port, MemberState state, long incarnation, List<RemoteNode> found){
+		Member m = new Member(rn, address, port, state, incarnation);
+		members.put(m.key, m);
+		if(m.isLive()){
+			//New members are probed at a random point in the current round
+			probeOrder.add(probeIndex + random.nextInt(probeOrder.size() - probeIndex + 1), m.key);
+			addNeighbor(m, found);
+		}
+		return m;
+	}
+	
+	/**
+	 * <p>Adds a live member to the neighbor set if there is room. This must be called while holding the lock on
+	 * {@link #members}.</p>
+	 *
+	 * @param m The member.
+	 * @param found Receives the member if it was added.
+	 */
+	private void addNeighbor(Member m, List<RemoteNode> found){
+		if(m.neighbor || neighbors.size() >= maxNeighbors)
+			return;
+		m.neighbor = true;
+		neighbors.add(m);
+		node.getMembershipLog().record(m.address, m.port, true);
+		found.add(m.node);
+	}
+	
+	/**
+	 * <p>Removes a member that has failed or left from the neighbor set, and refills the set from the live members. This must
+	 * be called while holding the lock on {@link #members}.</p>
+	 *
+	 * @param m The member.
+	 * @param failed Receives the member if it was a neighbor and failed rather than leaving.
+	 * @param found Receives the members added in its place.
+	 */
+	private void removeNeighbor(Member m, List<RemoteNode> failed, List<RemoteNode> found){
+		if(!m.neighbor)
+			return;
+		m.neighbor = false;
+		neighbors.remove(m);
+		node.getMembershipLog().record(m.address, m.port, false);
+		if(m.state == MemberState.DEAD)
+			failed.add(m.node);
+		
+		ArrayList<Member> pool = new ArrayList<Member>();
+		for(Member c : members.values())
+			if(c.state == MemberState.ALIVE && !c.neighbor)
+				pool.add(c);
+		Collections.shuffle(pool, random);
+		for(int i = 0; i < pool.size() && neighbors.size() < maxNeighbors; i++)
+			addNeighbor(pool.get(i), found);
+	}
+	
+	/**
+	 * <p>Queues an update to be carried to other nodes, replacing any older update about the same member. This must be called
+	 * while holding the lock on {@link #members}.</p>
+	 *
+	 * @param u The update.
+	 */
+	private void spread(MemberUpdate u){
+		rumors.remove(u.getKey());
+		rumors.put(u.getKey(), new Rumor(u));
+	}
+	
+	/**
+	 * <p>Alerts the jobs of this node to changes in the neighbor set. This must not be called while holding the lock on
+	 * {@link #members}.</p>
+	 *
+	 * @param found The nodes that joined the neighbor set, or null.
+	 * @param failed The nodes that failed, or null.
+	 */
+	private void announce(List<RemoteNode> found, List<RemoteNode> failed){
+		if(found != null)
+			for(RemoteNode rn : found)
+				node.announceFoundNode(rn);
+		if(failed != null)
+			for(RemoteNode rn : failed)
+				node.announceNodeFailure(rn);
+	}
+	
+	/**
+	 * <p>Determines whether an address and port belong to this node.</p>
+	 *
+	 * @param address The address, or null for this node.
+	 * @param port The port.
+	 * @return True if the address and port are those of this node.
+	 */
+	private boolean isSelf(InetAddress address, int port){
+		if(address == null)
+			return true;
+		if(port != this.port)
+			return false;
+		synchronized(localAddresses){
+			Boolean local = localAddresses.get(address.getHostAddress());
+			if(local == null){
+				try {
+					local = address.isAnyLocalAddress() || address.isLoopbackAddress() || NetworkInterface.getByInetAddress(address) != null;
+				} catch (SocketException e) {
+					local = false;
+				}
+				localAddresses.put(address.getHostAddress(), local);
+			}
+			return local;
+		}
+	}
+	
+	/**
+	 * <p>Computes the rounded up base 2 logarithm used to scale retransmission and suspicion with the size of the network.</p>
+	 *
+	 * @param n The size of the network.
+	 * @return The logarithm, at least 1.
+	 */
+	private static int log2(int n){
+		return Math.max(1, 32 - Integer.numberOfLeadingZeros(n - 1));
+	}
+	
+	/**
+	 * <p>Chooses the next member to probe, shuffling the members into a new order once every member has been probed.</p>
+	 *
+	 * @return The member, or null if no live members are known.
+	 */
+	private Member nextTarget(){
+		synchronized(members){
+			while(true){
+				if(probeIndex >= probeOrder.size()){
+					probeOrder.clear();
+					probeIndex = 0;
+					for(Member m : members.values())
+						if(m.isLive())
+							probeOrder.add(m.key);
+					if(probeOrder.isEmpty())
+						return null;
+					Collections.shuffle(probeOrder, random);
+				}
+				Member m = members.get(probeOrder.get(probeIndex++));
+				if(m != null && m.isLive())
+					return m;
+			}
+		}
+	}
+	
+	/**
+	 * <p>Probes a member, first directly and then through other members. Probes are made on the thread pool given by
+	 * GossipOverlayManager.probeThreadPool, and their time only starts once they are taken up by a thread. A probe that
+	 * cannot be taken up within a probe interval says nothing about the member, so the member is not suspected.</p>
+	 *
+	 * @param target The member.
+	 * @return True if the member answered or could not be probed, or false if it should be suspected.
+	 */
+	private boolean probe(final Member target){
+		ScheduledThreadPoolExecutor pool = node.getExecutor(node.getConfigManager().getSetting(name, "probeThreadPool", int.class));
+		final List<MemberUpdate> piggyback = getPiggyback();
+		TimedTask<List<MemberUpdate>> direct = new TimedTask<List<MemberUpdate>>(new Callable<List<MemberUpdate>>(){
+			@Override
+			public List<MemberUpdate> call() throws Exception {
+				return target.node.ping(piggyback);
+			}
+		}, probeTimeout).submit(pool);
+		try {
+			merge(target.node, direct.get(interval));
+			return true;
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof NodeStateException && ((NodeStateException)e.getCause()).getState() == NodeState.SHUTTING_DOWN){
+				markLeft(target);
+				return true;
+			}
+		} catch (TimeoutException e) {
+			if(!direct.isStarted())
+				return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return true;
+		}
+		
+		//Ask other members to try, in case only the link between the two nodes is at fault
+		ArrayList<Member> helpers = new ArrayList<Member>();
+		synchronized(members){
+			for(Member m : members.values())
+				if(m.state == MemberState.ALIVE && m != target)
+					helpers.add(m);
+		}
+		if(helpers.isEmpty())
+			return false;
+		Collections.shuffle(helpers, random);
+		List<Member> chosen = helpers.subList(0, Math.min(indirectProbes, helpers.size()));
+		
+		//The helpers are allowed their own probe of the member as well as the round trip
+		ArrayList<TimedTask<List<MemberUpdate>>> indirect = new ArrayList<TimedTask<List<MemberUpdate>>>();
+		for(final Member h : chosen){
+			final List<MemberUpdate> updates = getPiggyback();
+			indirect.add(new TimedTask<List<MemberUpdate>>(new Callable<List<MemberUpdate>>(){
+				@Override
+				public List<MemberUpdate> call() throws Exception {
+					List<MemberUpdate> reply = h.node.pingRequest(target.node, probeTimeout, updates);
+					if(reply != null)
+						merge(h.node, reply);
+					return reply;
+				}
+			}, probeTimeout * 2L).submit(pool));
+		}
+		
+		//The helpers run at once, so waiting on each in turn takes no longer than waiting on the slowest
+		boolean asked = false;
+		for(TimedTask<List<MemberUpdate>> t : indirect){
+			try {
+				if(t.get(interval) != null)
+					return true;
+				asked = true;
+			} catch (ExecutionException e) {
+				asked = true;
+			} catch (TimeoutException e) {
+				asked |= t.isStarted();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return true;
+			}
+		}
+		return !asked;
+	}
+	
+	/**
+	 * <p>Suspects a member that could not be probed, unless news of it arrived while it was being probed.</p>
+	 *
+	 * @param target The member.
+	 */
+	private void suspect(Member target){
+		synchronized(members){
+			if(target.state != MemberState.ALIVE || members.get(target.key) != target)
+				return;
+			target.state = MemberState.SUSPECT;
+			target.since = System.nanoTime();
+			spread(target.toUpdate());
+		}
+		System.err.println("Suspecting " + target.key);
+	}
+	
+	/**
+	 * <p>Records that a member is leaving the network.</p>
+	 *
+	 * @param target The member.
+	 */
+	private void markLeft(Member target){
+		ArrayList<RemoteNode> found = new ArrayList<RemoteNode>();
+		synchronized(members){
+			if(!target.isLive())
+				return;
+			target.state = MemberState.LEFT;
+			target.since = System.nanoTime();
+			spread(target.toUpdate());
+			removeNeighbor(target, null, found);
+		}
+		announce(found, null);
+	}
+	
+	/**
+	 * <p>Declares dead the members suspected for too long, and forgets the members that have been dead for long enough.</p>
+	 */
+	private void expire(){
+		ArrayList<RemoteNode> found = new ArrayList<RemoteNode>();
+		ArrayList<RemoteNode> failed = new ArrayList<RemoteNode>();
+		synchronized(members){
+			long now = System.nanoTime();
+			long suspicion = TimeUnit.MILLISECONDS.toNanos(suspicionMultiplier * log2(members.size() + 1) * interval);
+			long retention = TimeUnit.MILLISECONDS.toNanos(deadRetention);
+			for(Iterator<Member> i = members.values().iterator(); i.hasNext();){
+				Member m = i.next();
+				if(m.state == MemberState.SUSPECT && now - m.since > suspicion){
+					m.state = MemberState.DEAD;
+					m.since = now;
+					spread(m.toUpdate());
+					System.err.println("Member " + m.key + " is DEAD");
+					removeNeighbor(m, failed, found);
+				}
+				else if(!m.isLive() && now - m.since > retention)
+					i.remove();
+			}
+		}
+		announce(found, failed);
+	}
+	
+	@Override
+	public void link() {
+		ConfigManager c = node.getConfigManager();
+		synchronized(c){
+			interval = c.getSetting(name, "interval", long.class);
+			probeTimeout = c.getSetting(name, "probeTimeout", int.class);
+			indirectProbes = c.getSetting(name, "indirectProbes", int.class);
+			maxNeighbors = c.getSetting(name, "maxNeighbors", int.class);
+			maxPiggyback = c.getSetting(name, "maxPiggyback", int.class);
+			retransmitMultiplier = c.getSetting(name, "retransmitMultiplier", int.class);
+			suspicionMultiplier = c.getSetting(name, "suspicionMultiplier", int.class);
+			deadRetention = c.getSetting(name, "deadRetention", long.class);
+		}
+		
+		//Query seed nodes for node lists
+		System.out.println("Attempting to connect to seed nodes...");
+		for(String s : c.getSetting(name, "seedNodes").split(",")){
+			String seed[] = s.trim().split(":");
+			RemoteNode n;
+			try{
+				n = new RemoteNode(node, seed[0], Integer.valueOf(seed[1]));
+			}
+			catch(UnknownHostException e){
+				//Ignore the seed
+				System.err.println("Bad seed hostname in configuration: " + s);
+				continue;
+			}
+			
+			System.out.print("Attempting " + n + "...\t");
+			List<RemoteNode> l;
+			try{
+				l = n.getKnownNodes();
+			} catch (IOException e) {
+				System.out.println("Failed");
+				continue;
+			} catch (NodeStateException e) {
+				System.out.println("Failed");
+				continue;
+			}
+			System.out.println("Success");
+			seeds.add(n);
+			
+			//The seed has already announced the nodes it knows to the running jobs
+			ArrayList<RemoteNode> found = new ArrayList<RemoteNode>();
+			ArrayList<RemoteNode> all = new ArrayList<RemoteNode>(l);
+			all.add(n);
+			for(RemoteNode rn : all){
+				InetAddress address = rn.getIpAddress();
+				int port = rn.getListeningPort();
+				if(isSelf(address, port))
+					continue;
+				synchronized(members){
+					if(!members.containsKey(address.getHostAddress() + ":" + port))
+						addMember(rn, address, port, MemberState.ALIVE, 0, found);
+				}
+			}
+		}
+		
+		//Are there nodes?
+		if(seeds.isEmpty())
+			System.out.println("No active nodes found. Starting as lone node.");
+	}
+	
+	@Override
+	public synchronized void doStart(){
+		leaving = false;
+		port = node.getServer().getCurrentPort();
+		
+		//The seeds may have listed this node, which could not be recognized before the server had started
+		synchronized(members){
+			for(Iterator<Member> i = members.values().iterator(); i.hasNext();){
+				Member m = i.next();
+				if(isSelf(m.address, m.port)){
+					i.remove();
+					if(neighbors.remove(m))
+						node.getMembershipLog().record(m.address, m.port, false);
+				}
+			}
+		}
+		
+		if(future == null){
+			future = executor.scheduleWithFixedDelay(new Runnable(){
+				@Override
+				public void run() {
+					try{
+						//Announce this node to the seeds before probing the network at large
+						if(!seeds.isEmpty()){
+							for(RemoteNode s : seeds)
+								try {
+									merge(s, s.ping(getPiggyback()));
+								} catch (IOException e) {
+								} catch (NodeStateException e) {
+								}
+							seeds.clear();
+						}
+						
+						Member target = nextTarget();
+						if(target != null && !probe(target))
+							suspect(target);
+						expire();
+					} catch(RuntimeException e){
+						//Keep probing after a bug rather than silently stopping the timer
+						e.printStackTrace();
+					}
+				}
+			}, 0, interval, TimeUnit.MILLISECONDS);
+		}
+	}
+	
+	/**
+	 * <p>Stops probing without leaving the network.</p>
+	 */
+	@Override
+	public synchronized void doPause() {
+		if(future != null)
+			future.cancel(false);
+		future = null;
+	}
+	
+	@Override
+	public synchronized void doResume() {
+		doStart();
+	}
+	
+	/**
+	 * <p>Stops probing and announces to a few live members that this node is leaving the network, so that the network need
+	 * not wait for it to be suspected.</p>
+	 */
+	@Override
+	public synchronized void doStop() {
+		doPause();
+		leaving = true;
+		ArrayList<Member> pool = new ArrayList<Member>();
+		synchronized(members){
+			for(Member m : members.values())
+				if(m.state == MemberState.ALIVE)
+					pool.add(m);
+		}
+		Collections.shuffle(pool, random);
+		ArrayList<CompletableFuture<List<MemberUpdate>>> sent = new ArrayList<CompletableFuture<List<MemberUpdate>>>();
+		for(int i = 0; i < pool.size() && i < indirectProbes; i++)
+			sent.add(pool.get(i).node.pingAsync(getPiggyback()));
+		for(CompletableFuture<List<MemberUpdate>> f : sent)
+			try {
+				f.get(probeTimeout, TimeUnit.MILLISECONDS);
+			} catch (ExecutionException e) {
+			} catch (TimeoutException e) {
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+	}
+	
+	@Override
+	public void unlink() {
+	}
+}
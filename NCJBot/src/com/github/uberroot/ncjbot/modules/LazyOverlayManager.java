@@ -1,19 +1,32 @@
 package com.github.uberroot.ncjbot.modules;
-import java.io.IOException;
 import java.net.ConnectException;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
 
 import com.github.uberroot.ncjbot.ConfigManager;
 import com.github.uberroot.ncjbot.LocalNode;
 import com.github.uberroot.ncjbot.NodeState;
 import com.github.uberroot.ncjbot.NodeStateException;
 import com.github.uberroot.ncjbot.RemoteNode;
+import com.github.uberroot.ncjbot.TimedTask;
 import com.github.uberroot.ncjbot.modapi.OverlayManager;
 import com.github.uberroot.ncjbot.modapi.RunningModule;
 
@@ -65,15 +78,132 @@ import com.github.uberroot.ncjbot.modapi.RunningModule;
 //TODO: There should be a method for internal removal of nodes
 public final class LazyOverlayManager extends RunningModule implements OverlayManager, RemoteNode.EventListener{
 	/**
-	 * <p>The list of all nodes known to be active on the network.</p>
+	 * <p>The nodes known to be active on the network, indexed by address and port. Nodes are added and removed in constant
+	 * time without locking the manager or the nodes. Readers are given an unmodifiable snapshot of the nodes, which is shared
+	 * by all readers until the nodes next change, so that reading never waits on a writer and a snapshot may be iterated
+	 * while the nodes change.</p>
 	 */
-	private ArrayList<RemoteNode> activeNodes;
+	private static final class Registry{
+		/**
+		 * <p>The nodes, keyed by address and port.</p>
+		 */
+		private final ConcurrentHashMap<String, RemoteNode> index = new ConcurrentHashMap<String, RemoteNode>();
+		
+		/**
+		 * <p>Counts the changes to the nodes. This is incremented after each change.</p>
+		 */
+		private final AtomicLong version = new AtomicLong();
+		
+		/**
+		 * <p>The last snapshot taken, and the version it was taken at.</p>
+		 */
+		private final AtomicReference<Snapshot> snapshot = new AtomicReference<Snapshot>(new Snapshot(0, Collections.<RemoteNode>emptyList()));
+		
+		/**
+		 * <p>A snapshot of the nodes.</p>
+		 */
+		private static final class Snapshot{
+			/**
+			 * <p>The version of the nodes when the snapshot was taken. The snapshot includes every change up to it.</p>
+			 */
+			private final long version;
+			
+			/**
+			 * <p>The nodes.</p>
+			 */
+			private final List<RemoteNode> nodes;
+			
+			/**
+			 * <p>Creates a snapshot.</p>
+			 * 
+			 * @param version The version of the nodes.
+			 * @param nodes The nodes, which must not be modified.
+			 */
+			private Snapshot(long version, List<RemoteNode> nodes){
+				this.version = version;
+				this.nodes = nodes;
+			}
+		}
+		
+		/**
+		 * <p>Adds a node.</p>
+		 * 
+		 * @param rn The node.
+		 * @return True if the node was not already known.
+		 */
+		private boolean add(RemoteNode rn){
+			if(index.putIfAbsent(rn.toString(), rn) != null)
+				return false;
+			version.incrementAndGet();
+			return true;
+		}
+		
+		/**
+		 * <p>Removes a node.</p>
+		 * 
+		 * @param rn The node.
+		 * @return True if the node was known.
+		 */
+		private boolean remove(RemoteNode rn){
+			if(index.remove(rn.toString()) == null)
+				return false;
+			version.incrementAndGet();
+			return true;
+		}
+		
+		/**
+		 * <p>Gets the number of nodes.</p>
+		 * 
+		 * @return The number of nodes.
+		 */
+		private int size(){
+			return index.size();
+		}
+		
+		/**
+		 * <p>Gets a snapshot of the nodes. A new snapshot is only taken if the nodes have changed since the last one.</p>
+		 * 
+		 * @return An unmodifiable list of the nodes.
+		 */
+		private List<RemoteNode> list(){
+			Snapshot last = snapshot.get();
+			long v = version.get();
+			if(last.version == v)
+				return last.nodes;
+			
+			//The version is read first, so the new snapshot includes at least the changes up to it. If another reader has
+			//replaced the last snapshot in the meantime, its snapshot is at least as new and is kept.
+			Snapshot taken = new Snapshot(v, Collections.unmodifiableList(new ArrayList<RemoteNode>(index.values())));
+			snapshot.compareAndSet(last, taken);
+			return taken.nodes;
+		}
+	}
+	
+	/**
+	 * <p>The nodes known to be active on the network.</p>
+	 */
+	private final Registry activeNodes = new Registry();
 	
 	/**
 	 * <p>The ScheduledFuture for handling the beacon timer</p>
 	 */
 	private ScheduledFuture<?> future;
 	
+	/**
+	 * <p>Chooses the delays between rounds of presence announcements.</p>
+	 */
+	private final Random random = new Random();
+	
+	/**
+	 * <p>The time taken by the last round of presence announcements, in milliseconds.</p>
+	 */
+	private volatile long lastRoundTime;
+	
+	/**
+	 * <p>The number of rounds of presence announcements completed.</p>
+	 */
+	private final AtomicLong rounds = new AtomicLong();
+	
 	
 	/**
 	 * <p>Initializes the OverlayManager with the given seed nodes. Each of the seed nodes will be contacted and queried for a
@@ -94,8 +224,8 @@ public final class LazyOverlayManager extends RunningModule implements OverlayMa
 	 */
 	//TODO: Randomization for load balancing (this could be done in getNodes() instead)
 	//TODO: This should return unmodifiable RemoteNodes
-	public synchronized List<RemoteNode> getActiveNodes() {
-		return Collections.unmodifiableList(activeNodes);
+	public List<RemoteNode> getActiveNodes() {
+		return activeNodes.list();
 	}
 	
 	/**
@@ -106,17 +236,12 @@ public final class LazyOverlayManager extends RunningModule implements OverlayMa
 	 * @return True if the node was an addition to the list, false if the node was already known.
 	 */
 	public boolean addDiscoveredNode(RemoteNode rn){
-		synchronized(rn){
-			synchronized(activeNodes){
-				if(!activeNodes.contains(rn)){
-					activeNodes.add(rn);
-					rn.addEventListener(this);
-					node.announceFoundNode(rn);
-					return true;
-				}
-				return false;
-			}
-		}
+		if(!activeNodes.add(rn))
+			return false;
+		node.getMembershipLog().added(rn);
+		rn.addEventListener(this);
+		node.announceFoundNode(rn);
+		return true;
 	}
 	
 	/**
@@ -128,15 +253,18 @@ public final class LazyOverlayManager extends RunningModule implements OverlayMa
 	 * @return A randomly selected node from the active node list.
 	 */
 	//TODO: This should return unmodifiable RemoteNodes
-	public synchronized RemoteNode getReplacement(RemoteNode r){		
-		//Select a new node
-		Random rand = new Random();
-		ArrayList<RemoteNode> pool = new ArrayList<RemoteNode>(activeNodes);
-		pool.remove(r);
-		if(pool.size() > 0)
-			return pool.get(rand.nextInt(pool.size()));
-		else
+	public RemoteNode getReplacement(RemoteNode r){		
+		//Select a new node, choosing again from the others if the node to replace is chosen
+		List<RemoteNode> pool = activeNodes.list();
+		Random rand = ThreadLocalRandom.current();
+		if(pool.size() == 0)
 			return null;
+		int i = rand.nextInt(pool.size());
+		if(!pool.get(i).equals(r))
+			return pool.get(i);
+		if(pool.size() == 1)
+			return null;
+		return pool.get((i + 1 + rand.nextInt(pool.size() - 1)) % pool.size());
 	}
 	
 	/**
@@ -146,7 +274,7 @@ public final class LazyOverlayManager extends RunningModule implements OverlayMa
 	 * @return A list of <i>count</i> remote nodes.
 	 */
 	//TODO: This should return unmodifiable RemoteNodes
-	public synchronized List<RemoteNode> getNodes(int count){
+	public List<RemoteNode> getNodes(int count){
 		if(count == -1)
 			return getActiveNodes();
 		List<RemoteNode> ans = getActiveNodes();
@@ -187,11 +315,11 @@ public final class LazyOverlayManager extends RunningModule implements OverlayMa
 
 	@Override
 	//TODO: Handling of these state changes should be re-examined.
-	public synchronized void nodeStateChanged(RemoteNode node, NodeState state) {
+	public void nodeStateChanged(RemoteNode node, NodeState state) {
 		switch(state){
 			case SHUTTING_DOWN:
 				node.removeEventListener(this);
-				activeNodes.remove(node);
+				removeActive(node);
 				break;
 			case RUNNING:
 			case UNKNOWN:
@@ -201,18 +329,16 @@ public final class LazyOverlayManager extends RunningModule implements OverlayMa
 	}
 
 	@Override
-	public synchronized void nodeConnectionFailed(RemoteNode node) {
+	public void nodeConnectionFailed(RemoteNode node) {
 		// TODO A connection error could be indicative of a node changing IP / Port numbers. Should there be a grace period before removing? (Shouldn't matter until node ID's are implemented)
 		node.removeEventListener(this);
-		activeNodes.remove(node);
+		removeActive(node);
 		System.err.println("Removing unreliable node: " + node);
 	}
 	
 	@Override
 	public synchronized void link() {
 
-		activeNodes = new ArrayList<RemoteNode>();
-		
 		//Query seed nodes for node lists
 		System.out.println("Attempting to connect to seed nodes...");
 		
@@ -229,120 +355,265 @@ public final class LazyOverlayManager extends RunningModule implements OverlayMa
 			}
 		}
 		
-		for(int i = 0; i < seedNodes.size(); i++){
-			RemoteNode n = seedNodes.get(i);
-			
-			System.out.print("Attempting " + n.getIpAddress() + ":" + n.getListeningPort() + "...\t");
-			List<RemoteNode> l = null;
-			try{
-				l = n.getKnownNodes();
-			}
-			catch(ConnectException e){
-				//Unable to connect to seed node. Don't add it.
-				System.out.println("Failed");
-				continue;
-			} catch (IOException e) {
-				//Communication is not reliable. Ignore this node.
-				System.out.println("Failed");
-				continue;
-			} catch (NodeStateException e) {
-				switch(e.getState()){
-					case SHUTTING_DOWN:{
-						//Don't add it, it won't be useful
-						System.out.println("Failed");
-						break;
-					}
-					case RUNNING:
-					case UNKNOWN:{
-						//Unknown or running. Either way, track it.
-						activeNodes.add(n);
-						
-						//Register as the RemoteNode.EventListener
-						n.addEventListener(this);
-						
-						System.out.println("Partial Success");
-						break;
-					}
+		//Query the seeds at once, merging their lists as they answer. Startup continues once enough of them have answered, or
+		//the deadline passes, and seeds that answer later are still merged.
+		int quorum = Math.max(1, Math.min(seedNodes.size(), node.getConfigManager().getSetting(name, "bootstrapQuorum", int.class)));
+		long deadline = System.currentTimeMillis() + node.getConfigManager().getSetting(name, "bootstrapTimeout", long.class);
+		final LinkedBlockingQueue<Boolean> results = new LinkedBlockingQueue<Boolean>();
+		for(final RemoteNode n : seedNodes){
+			System.out.println("Attempting " + n.getIpAddress() + ":" + n.getListeningPort() + "...");
+			n.getKnownNodesAsync().whenComplete(new BiConsumer<List<RemoteNode>, Throwable>(){
+				@Override
+				public void accept(List<RemoteNode> l, Throwable e) {
+					results.add(addSeed(n, l, e));
 				}
-				continue;
+			});
+		}
+		int answered = 0;
+		try {
+			for(int done = 0; answered < quorum && done < seedNodes.size(); done++){
+				long wait = deadline - System.currentTimeMillis();
+				Boolean result = wait > 0 ? results.poll(wait, TimeUnit.MILLISECONDS) : null;
+				if(result == null)
+					break;
+				if(result)
+					answered++;
 			}
-			
-			//No exceptions, add the seed node
-			activeNodes.add(n);
-			System.out.println("Success");
-			
-			//Add the retrieved nodes
-			for(RemoteNode n1 : l)
-				if(!activeNodes.contains(n1)){
-					activeNodes.add(n1);
-					node.announceFoundNode(n1);
-					
-					//Register as the RemoteNode.EventListener
-					n1.addEventListener(this);
-				}
-			
-			//Register as the RemoteNode.EventListener
-			n.addEventListener(this);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 		}
+		if(answered < quorum && seedNodes.size() > 0)
+			System.out.println(answered + " of " + quorum + " seed nodes answered in time. Continuing without the rest.");
 		
 		//Are there nodes?
 		if(activeNodes.size() == 0)
 			System.out.println("No active nodes found. Starting as lone node.");
 	}
 	
+	/**
+	 * <p>Merges the answer of a seed node into the active node list. The seed is added if it answered, even if only to say it
+	 * is not ready, along with the nodes it listed.</p>
+	 * 
+	 * @param n The seed node.
+	 * @param l The nodes known to the seed, or null if the query failed.
+	 * @param e The reason the query failed, or null if it succeeded.
+	 * @return True if the seed answered.
+	 */
+	private boolean addSeed(RemoteNode n, List<RemoteNode> l, Throwable e){
+		if(e instanceof CompletionException)
+			e = e.getCause();
+		if(e != null){
+			if(!(e instanceof NodeStateException) || ((NodeStateException)e).getState() == NodeState.SHUTTING_DOWN){
+				//Unable to connect, communication is not reliable, or the node won't be useful. Don't add it.
+				System.out.println("Seed " + n + " failed");
+				return false;
+			}
+			
+			//Unknown or running. Either way, track it.
+			l = Collections.emptyList();
+			System.out.println("Seed " + n + " partially succeeded");
+		}
+		else
+			System.out.println("Seed " + n + " succeeded");
+		
+		if(activeNodes.add(n)){
+			node.getMembershipLog().added(n);
+			
+			//Register as the RemoteNode.EventListener
+			n.addEventListener(this);
+		}
+		for(RemoteNode n1 : l)
+			if(activeNodes.add(n1)){
+				node.getMembershipLog().added(n1);
+				node.announceFoundNode(n1);
+				n1.addEventListener(this);
+			}
+		return true;
+	}
+	
 	@Override
 	public synchronized void doStart(){
 		
 		if(future == null){
-			ConfigManager c = node.getConfigManager();
-			synchronized(c){
-				Long interval = c.getSetting(name, "interval", long.class);
-				String unit = c.getSetting(name, "intervalUnit");
-				future = executor.scheduleAtFixedRate(new Runnable(){
+			//Nodes started together should not announce themselves together
+			long delay = (long)(random.nextDouble() * node.getConfigManager().getSetting(name, "startJitter", long.class));
+			future = executor.schedule(new Runnable(){
+				@Override
+				public void run() {
+					announce();
+					
+					//Schedule the next round unless announcements were stopped in the meantime
+					ConfigManager c = node.getConfigManager();
+					long interval, jitter;
+					synchronized(c){
+						interval = TimeUnit.valueOf(c.getSetting(name, "intervalUnit")).toMillis(c.getSetting(name, "interval", long.class));
+						jitter = (long)(interval * c.getSetting(name, "jitter", double.class));
+					}
+					synchronized(LazyOverlayManager.this){
+						if(future != null)
+							future = executor.schedule(this, interval - jitter + (long)(random.nextDouble() * 2 * jitter), TimeUnit.MILLISECONDS);
+					}
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+            //TODO: This should throw an exception. Add exceptions for bad component states
+		}
+	}
+	
+	/**
+	 * <p>Announces the presence of this node to every node in the active node list. Up to LazyOverlayManager.beaconParallelism
+	 * announcements are made at once, so that a node that is slow to answer does not hold up the announcements to the rest.
+	 * A node that does not answer within LazyOverlayManager.beaconTimeout milliseconds of its announcement starting is treated
+	 * as unreliable. Announcements are made on the thread pool given by LazyOverlayManager.beaconThreadPool, so abandoned
+	 * announcements cannot hold up other I/O.</p>
+	 */
+	private void announce(){
+		System.out.println("Announcing presence...");
+		long started = System.nanoTime();
+		List<RemoteNode> nodes = activeNodes.list();
+		
+		int parallelism = Math.max(1, node.getConfigManager().getSetting(name, "beaconParallelism", int.class));
+		long timeout = node.getConfigManager().getSetting(name, "beaconTimeout", long.class);
+		ScheduledThreadPoolExecutor pool = node.getExecutor(node.getConfigManager().getSetting(name, "beaconThreadPool", int.class));
+		ArrayList<TimedTask<Void>> waiting = new ArrayList<TimedTask<Void>>();
+		ArrayList<RemoteNode> targets = new ArrayList<RemoteNode>();
+		int next = 0;
+		while(next < nodes.size() || !waiting.isEmpty()){
+			//Fill the free slots
+			while(waiting.size() < parallelism && next < nodes.size()){
+				final RemoteNode n = nodes.get(next++);
+				
+				//Temporarily remove self from the listener to fix synchronization issues.
+				//TODO: This is to fix synchronization issues.
+				n.removeEventListener(this);
+				waiting.add(new TimedTask<Void>(new Callable<Void>(){
 					@Override
-					public void run() {
-						System.out.println("Announcing presence...");
-						for(int i = 0; i < activeNodes.size(); i++){
-							RemoteNode n = activeNodes.get(i);
-							try {
-								//Temporarily remove self from the listener to fix synchronization issues.
-								//TODO: This is to fix synchronization issues.
-								n.removeEventListener(LazyOverlayManager.this);
-								n.beacon();
-								//Begin listening again
-								//TODO: This is to fix synchronization issues.
-								n.addEventListener(LazyOverlayManager.this);
-							}
-							catch (ConnectException e) { //Could not connect
-								//If here, either host doesn't exist, or is not listening on the port
-								System.err.println("Unable to connect: " + n);
-								node.announceNodeFailure(activeNodes.remove(i--));
-							}
-							catch (IOException e) {
-								//If here, communication is not reliable
-								System.err.println("Unreliable: " + n);
-								node.announceNodeFailure(activeNodes.remove(i--));
-							}
-							catch (NodeStateException e) {
-								switch(e.getState()){
-									case SHUTTING_DOWN:{
-										//TODO: This isn't a failure, but should this be announced via LocalNode?
-										activeNodes.remove(i--);
-										break;
-									}
-									case RUNNING:
-									case UNKNOWN:{
-										//TODO: This isn't a failure, but should this be announced via LocalNode?
-										break;
-									}
-								}
-							}
-						}
+					public Void call() throws Exception {
+						n.beacon();
+						return null;
 					}
-				}, 0, interval, TimeUnit.valueOf(unit));
+				}, timeout).submit(pool));
+				targets.add(n);
 			}
-            //TODO: This should throw an exception. Add exceptions for bad component states
+			
+			//Wait for an announcement to complete or the first started one to run out of time
+			long now = System.currentTimeMillis();
+			long wait = timeout;
+			CompletableFuture<?> results[] = new CompletableFuture<?>[waiting.size()];
+			for(int i = 0; i < results.length; i++){
+				TimedTask<Void> b = waiting.get(i);
+				results[i] = b.getResult();
+				if(b.isStarted())
+					wait = Math.min(wait, b.getDeadline() - now);
+			}
+			try {
+				CompletableFuture.anyOf(results).get(Math.max(0, wait), TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (ExecutionException e) {
+			} catch (TimeoutException e) {
+			}
+			
+			now = System.currentTimeMillis();
+			for(int i = 0; i < waiting.size(); i++){
+				TimedTask<Void> b = waiting.get(i);
+				CompletableFuture<Void> f = b.getResult();
+				if(!f.isDone() && (!b.isStarted() || b.getDeadline() > now))
+					continue;
+				waiting.remove(i);
+				RemoteNode n = targets.remove(i--);
+				
+				Throwable error = null;
+				if(!f.isDone())
+					error = new SocketTimeoutException("No answer within " + timeout + " ms");
+				else if(f.isCompletedExceptionally()){
+					try {
+						f.join();
+					} catch (CompletionException e) {
+						error = e.getCause();
+					}
+				}
+				beaconed(n, error);
+			}
+		}
+		
+		lastRoundTime = (System.nanoTime() - started) / 1000000;
+		rounds.incrementAndGet();
+	}
+	
+	/**
+	 * <p>Handles the outcome of a presence announcement to a node, removing the node from the active node list if it
+	 * failed.</p>
+	 * 
+	 * @param n The node.
+	 * @param e The reason the announcement failed, or null if it succeeded.
+	 */
+	private void beaconed(RemoteNode n, Throwable e){
+		if(e == null){
+			//Begin listening again
+			//TODO: This is to fix synchronization issues.
+			n.addEventListener(this);
+			return;
+		}
+		else if(e instanceof ConnectException){ //Could not connect
+			//If here, either host doesn't exist, or is not listening on the port
+			System.err.println("Unable to connect: " + n);
+			if(removeActive(n))
+				node.announceNodeFailure(n);
 		}
+		else if(e instanceof NodeStateException){
+			switch(((NodeStateException)e).getState()){
+				case SHUTTING_DOWN:{
+					//TODO: This isn't a failure, but should this be announced via LocalNode?
+					removeActive(n);
+					break;
+				}
+				case RUNNING:
+				case UNKNOWN:
+				default:{
+					//TODO: This isn't a failure, but should this be announced via LocalNode?
+					n.addEventListener(this);
+					break;
+				}
+			}
+		}
+		else{
+			//If here, communication is not reliable
+			System.err.println("Unreliable: " + n);
+			if(removeActive(n))
+				node.announceNodeFailure(n);
+		}
+	}
+	
+	/**
+	 * <p>Removes a node from the active node list.</p>
+	 * 
+	 * @param n The node.
+	 * @return True if the node was in the list.
+	 */
+	private boolean removeActive(RemoteNode n){
+		if(!activeNodes.remove(n))
+			return false;
+		node.getMembershipLog().removed(n);
+		return true;
+	}
+	
+	/**
+	 * <p>Gets the time taken by the last round of presence announcements.</p>
+	 * 
+	 * @return The time in milliseconds, or 0 if no round has completed.
+	 */
+	public long getLastRoundTime(){
+		return lastRoundTime;
+	}
+	
+	/**
+	 * <p>Gets the number of rounds of presence announcements completed.</p>
+	 * 
+	 * @return The number of rounds.
+	 */
+	public long getRoundCount(){
+		return rounds.get();
 	}
 
 	@Override
@@ -358,11 +629,9 @@ public final class LazyOverlayManager extends RunningModule implements OverlayMa
 	//TODO: Graceful network removal should occur, but may not be necessary for the current lazy communication model
 	@Override
 	public synchronized void doStop() {
-		synchronized(future){
-			if(future != null)
-				future.cancel(false);
-			future = null;
-		}
+		if(future != null)
+			future.cancel(false);
+		future = null;
 	}
 
 	@Override
@@ -0,0 +1,353 @@
+package com.github.uberroot.ncjbot.modules;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Vector;
+
+import com.github.uberroot.ncjbot.LocalNode;
+import com.github.uberroot.ncjbot.RemoteNode;
+import com.github.uberroot.ncjbot.modapi.ConnectionFactory;
+import com.github.uberroot.ncjbot.protocol.Capabilities;
+import com.github.uberroot.ncjbot.protocol.Multiplexer;
+import com.github.uberroot.ncjbot.protocol.Protocol;
+
+/**
+ * <p>A ConnectionFactory that carries all connections to a node over a single socket. Each connection is a stream of a
+ * {@link Multiplexer}, so opening one costs no TCP handshake, and concurrent operations with the same node share the socket
+ * without blocking one another.</p>
+ *
+ * <p>Streams are only used with nodes known to accept multiplexed connections. Until the capabilities of a node are known,
+ * or if it does not accept them, sockets are created as in {@link BasicConnector}. A multiplexed socket that has carried no
+ * streams for MultiplexingConnector.idleTimeout milliseconds is closed. If the socket fails, all of its streams fail and the
+ * next connection opens a new socket.</p>
+ *
+ * @author Carter Waxman
+ *
+ */
+public class MultiplexingConnector extends BasicConnector implements ConnectionFactory {
+	/**
+	 * <p>The time, in milliseconds, after which an idle socket is closed.</p>
+	 */
+	private final long idleTimeout;
+	
+	/**
+	 * <p>The multiplexed socket for each node, keyed by address. Nodes are not used as keys because their comparison
+	 * requires their locks, which callers may already hold for other nodes.</p>
+	 */
+	private final Hashtable<InetSocketAddress, Multiplexer> muxes;
+	
+	/**
+	 * <p>The last time sockets were checked for expiration.</p>
+	 */
+	private long lastSweep;
+	
+	/**
+	 * <p>A connection carried by a single stream of a multiplexed socket.</p>
+	 */
+	private final class StreamConnection implements Connection{
+		/**
+		 * <p>The address of the node the connection is with.</p>
+		 */
+		private final InetSocketAddress peer;
+		
+		/**
+		 * <p>The socket carrying the stream.</p>
+		 */
+		private final Multiplexer mux;
+		
+		/**
+		 * <p>The stream.</p>
+		 */
+		private final Multiplexer.Stream stream;
+		
+		/**
+		 * <p>The vector for holding all event listeners</p>
+		 */
+		private final Vector<EventListener> listeners;
+		
+		/**
+		 * <p>The retain count.</p>
+		 */
+		private int retainCount;
+		
+		/**
+		 * <p>Whether the stream has been closed.</p>
+		 */
+		private boolean closed;
+		
+		/**
+		 * <p>The object attached to the connection.</p>
+		 */
+		private Object attachment;
+		
+		private StreamConnection(InetSocketAddress peer, Multiplexer mux, Multiplexer.Stream stream){
+			this.peer = peer;
+			this.mux = mux;
+			this.stream = stream;
+			listeners = new Vector<EventListener>();
+			retainCount = 1;
+			closed = false;
+		}
+		
+		@Override
+		public void write(byte[] data) throws IOException {
+			write(data, 0, data.length);
+		}
+		
+		@Override
+		public void write(byte[] data, int off, int len) throws IOException {
+			try{
+				stream.write(data, off, len);
+			}
+			catch(IOException ex){
+				failed();
+				throw ex;
+			}
+		}
+		
+		@Override
+		public void transferFrom(FileChannel src, long position, long count) throws IOException {
+			//Streams share the socket, so the file is sent in chunks like any other data
+			ByteBuffer buf = ByteBuffer.allocate((int)Math.min(count, Multiplexer.MAX_CHUNK));
+			while(count > 0){
+				buf.clear();
+				buf.limit((int)Math.min(count, buf.capacity()));
+				int r = src.read(buf, position);
+				if(r == -1)
+					throw new EOFException();
+				write(buf.array(), 0, r);
+				position += r;
+				count -= r;
+			}
+		}
+		
+		@Override
+		public int read(byte[] data) throws IOException {
+			return read(data, 0, data.length);
+		}
+		
+		@Override
+		public int read(byte[] data, int off, int len) throws IOException {
+			try{
+				return stream.read(data, off, len);
+			}
+			catch(IOException ex){
+				//A timeout leaves the stream usable
+				if(!(ex instanceof SocketTimeoutException))
+					failed();
+				throw ex;
+			}
+		}
+		
+		@Override
+		public void setReadTimeout(int millis) {
+			stream.setReadTimeout(millis);
+		}
+		
+		@Override
+		public InputStream getInputStream() {
+			return new InputStream(){
+				@Override
+				public int read() throws IOException {
+					byte b[] = new byte[1];
+					return StreamConnection.this.read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+				}
+				
+				@Override
+				public int read(byte[] data, int off, int len) throws IOException {
+					return StreamConnection.this.read(data, off, len);
+				}
+			};
+		}
+		
+		@Override
+		public OutputStream getOutputStream() {
+			return new OutputStream(){
+				@Override
+				public void write(int b) throws IOException {
+					StreamConnection.this.write(new byte[]{(byte)b}, 0, 1);
+				}
+				
+				@Override
+				public void write(byte[] data, int off, int len) throws IOException {
+					StreamConnection.this.write(data, off, len);
+				}
+			};
+		}
+		
+		@Override
+		public void addListener(EventListener listener) {
+			listeners.add(listener);
+		}
+		
+		@Override
+		public void removeListener(EventListener listener) {
+			listeners.remove(listener);
+		}
+		
+		@Override
+		public synchronized void retain() {
+			retainCount++;
+		}
+		
+		@Override
+		public void release() {
+			synchronized(this){
+				retainCount--;
+				if(retainCount > 0)
+					return;
+			}
+			close();
+		}
+		
+		@Override
+		public void close() {
+			synchronized(this){
+				if(closed)
+					return;
+				closed = true;
+				retainCount = 0;
+			}
+			stream.close();
+			Vector<EventListener> temp = new Vector<EventListener>(listeners);
+			for(EventListener l : temp)
+				l.connectionClosed(this);
+			sweep();
+		}
+		
+		@Override
+		public void setAttachment(Object attachment) {
+			this.attachment = attachment;
+		}
+		
+		@Override
+		public Object getAttachment() {
+			return attachment;
+		}
+		
+		/**
+		 * <p>Closes the stream after a failure and notifies the listeners. The socket is discarded if it has failed.</p>
+		 */
+		private void failed(){
+			synchronized(this){
+				if(closed)
+					return;
+				closed = true;
+				retainCount = 0;
+			}
+			stream.close();
+			if(!mux.isOpen())
+				discard(peer, mux);
+			Vector<EventListener> temp = new Vector<EventListener>(listeners);
+			for(EventListener l : temp)
+				l.connectionFailed(this);
+		}
+	}
+	
+	public MultiplexingConnector(LocalNode node) {
+		super(node);
+		idleTimeout = node.getConfigManager().getSetting(name, "idleTimeout", long.class);
+		muxes = new Hashtable<InetSocketAddress, Multiplexer>();
+		lastSweep = System.currentTimeMillis();
+	}
+	
+	@Override
+	public Connection getConnection(RemoteNode node) throws IOException {
+		Capabilities caps = this.node.getCapabilities(node);
+		if(caps == null || !caps.supports(Capabilities.MULTIPLEXING))
+			return super.getConnection(node);
+		
+		//A socket may fail between lookup and use, in which case a new one is opened
+		InetSocketAddress peer = new InetSocketAddress(node.getIpAddress(), node.getListeningPort());
+		for(int attempt = 0; ; attempt++){
+			Multiplexer mux = getMultiplexer(peer);
+			try {
+				return new StreamConnection(peer, mux, mux.openStream());
+			} catch (IOException e) {
+				discard(peer, mux);
+				if(attempt > 0)
+					throw e;
+			}
+		}
+	}
+	
+	/**
+	 * <p>Gets the multiplexed socket for a node, opening one if necessary.</p>
+	 *
+	 * @param peer The address of the node.
+	 * @return The multiplexed socket.
+	 * @throws IOException If a socket could not be opened.
+	 */
+	private Multiplexer getMultiplexer(InetSocketAddress peer) throws IOException{
+		Multiplexer mux = muxes.get(peer);
+		if(mux != null && mux.isOpen())
+			return mux;
+		
+		//Connect outside the lock so other nodes are not held up
+		Socket s = new Socket(peer.getAddress(), peer.getPort());
+		s.setTcpNoDelay(true);
+		node.getSessionTimer().configure(s);
+		s.getOutputStream().write(Protocol.MUX_PREAMBLE);
+		Multiplexer created = new Multiplexer(s.getInputStream(), s.getOutputStream(), s, true, null);
+		synchronized(muxes){
+			mux = muxes.get(peer);
+			if(mux == null || !mux.isOpen()){
+				muxes.put(peer, created);
+				mux = created;
+				created = null;
+			}
+		}
+		if(created != null)
+			created.close(); //Another thread connected first
+		else
+			node.createThread(mux, "Multiplexer (" + peer.getAddress().getHostAddress() + ":" + peer.getPort() + ")").start();
+		return mux;
+	}
+	
+	/**
+	 * <p>Closes a multiplexed socket and forgets it.</p>
+	 *
+	 * @param peer The address of the node the socket is with.
+	 * @param mux The socket.
+	 */
+	private void discard(InetSocketAddress peer, Multiplexer mux){
+		synchronized(muxes){
+			if(muxes.get(peer) == mux)
+				muxes.remove(peer);
+		}
+		mux.close();
+	}
+	
+	/**
+	 * <p>Closes sockets that have carried no streams for longer than the idle timeout. Sockets are swept at most once per second.</p>
+	 */
+	private void sweep(){
+		long now = System.currentTimeMillis();
+		LinkedList<Multiplexer> expired = new LinkedList<Multiplexer>();
+		synchronized(muxes){
+			if(now - lastSweep < 1000)
+				return;
+			lastSweep = now;
+			for(Iterator<Map.Entry<InetSocketAddress, Multiplexer>> i = muxes.entrySet().iterator(); i.hasNext();){
+				Multiplexer mux = i.next().getValue();
+				if(!mux.isOpen() || mux.getIdleTime() > idleTimeout){
+					expired.add(mux);
+					i.remove();
+				}
+			}
+		}
+		for(Multiplexer mux : expired)
+			mux.close();
+	}
+}
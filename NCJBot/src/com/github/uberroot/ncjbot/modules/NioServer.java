@@ -0,0 +1,793 @@
+package com.github.uberroot.ncjbot.modules;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.SequenceInputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.github.uberroot.ncjbot.LocalNode;
+import com.github.uberroot.ncjbot.ServerSessionHandler;
+import com.github.uberroot.ncjbot.SessionTimer;
+import com.github.uberroot.ncjbot.modapi.RunningModule;
+import com.github.uberroot.ncjbot.modapi.Server;
+import com.github.uberroot.ncjbot.protocol.FrameHeader;
+import com.github.uberroot.ncjbot.protocol.FrameReader;
+import com.github.uberroot.ncjbot.protocol.FrameWriter;
+import com.github.uberroot.ncjbot.protocol.Opcode;
+import com.github.uberroot.ncjbot.protocol.Protocol;
+
+/**
+ * <p>A server that multiplexes all connections over a small number of selector threads rather than dedicating a thread to
+ * each connection. Idle connections consume no threads.</p>
+ *
+ * <p>The selector threads read from binary sessions until an entire frame has been received. Complete frames are handed to a
+ * bounded pool of worker threads for handling, and the replies are written back by the selector threads. Frames from a single
+ * connection are handled one at a time and in order. When the worker pool is saturated, reading from connections with
+ * waiting frames is suspended until the pool catches up.</p>
+ *
+ * <p>Clients using the text protocol or multiplexing are switched to blocking mode and given a thread of their own for the
+ * rest of the session, as BasicServer does. So are binary sessions that send a frame longer than NioServer.maxFrameLength,
+ * once their earlier frames have been handled, so that long payloads are read straight from the socket and spooled rather than
+ * buffered whole in the heap, and binary sessions that open a stream, since writing to a job that has fallen behind blocks
+ * until it catches up. The worker pool is only ever used for single frames that do not wait on anything, so long lived
+ * sessions cannot starve it.</p>
+ *
+ * @author Carter Waxman
+ *
+ */
+public class NioServer extends RunningModule implements Server {
+	/**
+	 * <p>The default port to use for accepting connections.</p>
+	 */
+	private int port;
+	
+	/**
+	 * <p>In the event the default port could not be used, the lowest port in the backup pool to try.</p>
+	 */
+	private int minPort;
+	
+	/**
+	 * <p>In the event the default port could not be used, the highest port in the backup pool to try.</p>
+	 */
+	private int maxPort;
+	
+	/**
+	 * <p>In the event the default port could not be used, the increment to use while iterating ports in the backup pool.</p>
+	 */
+	private int listenPortIncrement;
+	
+	/**
+	 * <p>The number of selector threads to run.</p>
+	 */
+	private final int eventLoopCount;
+	
+	/**
+	 * <p>The number of worker threads handling frames.</p>
+	 */
+	private final int workerCount;
+	
+	/**
+	 * <p>The number of frames that may wait for a worker before reading is suspended.</p>
+	 */
+	private final int workQueueLength;
+	
+	/**
+	 * <p>The length of the longest frame that will be buffered in memory.</p>
+	 */
+	private final int maxFrameLength;
+	
+	/**
+	 * <p>The running server socket channel.</p>
+	 */
+	private ServerSocketChannel socket;
+	
+	/**
+	 * <p>The selector threads. The first also accepts new connections.</p>
+	 */
+	private ArrayList<EventLoop> loops;
+	
+	/**
+	 * <p>The pool of threads handling frames.</p>
+	 */
+	private ThreadPoolExecutor workers;
+	
+	/**
+	 * <p>The index of the selector thread that will receive the next connection.</p>
+	 */
+	private int nextLoop;
+	
+	/**
+	 * <p>Whether the NioServer should continue to run.</p>
+	 */
+	private volatile boolean shouldRun;
+	
+	/**
+	 * <p>Whether the NioServer should temporarily stop accepting connections.</p>
+	 */
+	private volatile boolean shouldPause;
+	
+	/**
+	 * <p>The number of selector threads that are still running. This is not guarded by the server, since the server is locked
+	 * while {@link #doStop()} waits for it to reach 0.</p>
+	 */
+	private final AtomicInteger running = new AtomicInteger();
+	
+	/**
+	 * <p>A connection and its buffers. Fields other than the frame queue are only used by the owning selector thread.</p>
+	 */
+	private final class Session{
+		/**
+		 * <p>The channel to the client.</p>
+		 */
+		private final SocketChannel channel;
+		
+		/**
+		 * <p>The selector thread that owns the connection.</p>
+		 */
+		private final EventLoop loop;
+		
+		/**
+		 * <p>The handler that interprets the frames received.</p>
+		 */
+		private final ServerSessionHandler handler;
+		
+		/**
+		 * <p>The registration of the channel with the selector.</p>
+		 */
+		private SelectionKey key;
+		
+		/**
+		 * <p>The data received that does not yet form a complete frame.</p>
+		 */
+		private ByteBuffer in;
+		
+		/**
+		 * <p>The replies waiting to be written.</p>
+		 */
+		private final LinkedList<ByteBuffer> outbound;
+		
+		/**
+		 * <p>The complete frames waiting to be handled.</p>
+		 */
+		private final LinkedList<byte[]> frames;
+		
+		/**
+		 * <p>Whether a worker is handling frames for the connection.</p>
+		 */
+		private boolean busy;
+		
+		/**
+		 * <p>Whether the preamble of a binary session has been received.</p>
+		 */
+		private boolean binary;
+		
+		/**
+		 * <p>Whether the connection should be closed once all frames have been handled and all replies written.</p>
+		 */
+		private boolean closing;
+		
+		/**
+		 * <p>Whether the connection should be given its own thread once all frames have been handled and all replies written,
+		 * because the next frame is too long to buffer or opens a stream.</p>
+		 */
+		private boolean spilling;
+		
+		/**
+		 * <p>Enforces the timeouts of the connection. The connection is always reading, and is idle when no partial frame has
+		 * been received.</p>
+		 */
+		private final SessionTimer.Watch watch;
+		
+		private Session(SocketChannel channel, EventLoop loop){
+			this.channel = channel;
+			this.loop = loop;
+			handler = new ServerSessionHandler(node, channel.socket());
+			in = ByteBuffer.allocate(8192);
+			outbound = new LinkedList<ByteBuffer>();
+			frames = new LinkedList<byte[]>();
+			busy = false;
+			binary = false;
+			closing = false;
+			spilling = false;
+			
+			//A connection that times out is closed by the selector thread
+			watch = node.getSessionTimer().watch(new Closeable(){
+				@Override
+				public void close() {
+					Session.this.loop.execute(new Runnable(){
+						@Override
+						public void run() {
+							NioServer.this.close(Session.this);
+						}
+					});
+				}
+			}, handler.getName(),
+					node.getConfigManager().getSetting("ServerSessionHandler", "readTimeout", int.class),
+					node.getConfigManager().getSetting("ServerSessionHandler", "writeTimeout", int.class),
+					node.getConfigManager().getSetting("ServerSessionHandler", "idleTimeout", int.class));
+			watch.setIdle(true);
+			watch.beginRead();
+			handler.setConnectionWatch(watch);
+			
+			//Late replies join the queue and are written by the selector thread
+			handler.setReplyWriter(new ServerSessionHandler.ReplyWriter(){
+				@Override
+				public void writeReply(byte[] frame) {
+					synchronized(Session.this){
+						outbound.add(ByteBuffer.wrap(frame));
+					}
+					Session.this.loop.execute(new Runnable(){
+						@Override
+						public void run() {
+							if(key != null && key.isValid())
+								key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+						}
+					});
+				}
+			});
+		}
+	}
+	
+	/**
+	 * <p>A selector thread servicing a set of connections.</p>
+	 */
+	private final class EventLoop implements Runnable{
+		/**
+		 * <p>The selector for the connections.</p>
+		 */
+		private final Selector selector;
+		
+		/**
+		 * <p>Tasks submitted by other threads to be run on the selector thread.</p>
+		 */
+		private final ConcurrentLinkedQueue<Runnable> tasks;
+		
+		/**
+		 * <p>Connections with frames that could not be handed to the worker pool.</p>
+		 */
+		private final LinkedList<Session> stalled;
+		
+		/**
+		 * <p>Whether new connections are currently being accepted. This is only used by the first selector thread.</p>
+		 */
+		private volatile boolean accepting;
+		
+		private EventLoop() throws IOException{
+			selector = Selector.open();
+			tasks = new ConcurrentLinkedQueue<Runnable>();
+			stalled = new LinkedList<Session>();
+			accepting = false;
+		}
+		
+		/**
+		 * <p>Runs a task on the selector thread.</p>
+		 *
+		 * @param task The task to run.
+		 */
+		private void execute(Runnable task){
+			tasks.add(task);
+			selector.wakeup();
+		}
+		
+		@Override
+		public void run() {
+			try{
+				while(shouldRun){
+					//Follow pause requests
+					if(this == loops.get(0) && accepting == shouldPause){
+						accepting = !shouldPause;
+						socket.keyFor(selector).interestOps(accepting ? SelectionKey.OP_ACCEPT : 0);
+					}
+					
+					//Retry stalled connections periodically
+					selector.select(stalled.isEmpty() ? 0 : 100);
+					Runnable task;
+					while((task = tasks.poll()) != null)
+						task.run();
+					for(Iterator<Session> i = stalled.iterator(); i.hasNext();){
+						Session s = i.next();
+						if(dispatch(s)){
+							i.remove();
+							if(s.key.isValid() && !s.spilling)
+								s.key.interestOps(s.key.interestOps() | SelectionKey.OP_READ);
+						}
+					}
+					
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while(keys.hasNext()){
+						SelectionKey key = keys.next();
+						keys.remove();
+						if(!key.isValid())
+							continue;
+						if(key.isAcceptable()){
+							accept();
+							continue;
+						}
+						Session s = (Session)key.attachment();
+						try{
+							if(key.isReadable())
+								read(s);
+							if(key.isValid() && key.isWritable())
+								write(s);
+						} catch(IOException e){
+							System.err.println("Session ended abnormally: " + e.getMessage());
+							close(s);
+						}
+					}
+				}
+			} catch(IOException e){
+				e.printStackTrace();
+			}
+			finally{
+				//Close all connections owned by this thread
+				for(SelectionKey key : selector.keys()){
+					if(key.attachment() instanceof Session)
+						close((Session)key.attachment());
+				}
+				try {
+					selector.close();
+				} catch (IOException e) {}
+				running.decrementAndGet();
+			}
+		}
+		
+		/**
+		 * <p>Accepts a pending connection and assigns it to a selector thread.</p>
+		 */
+		private void accept(){
+			SocketChannel c;
+			try {
+				c = socket.accept();
+				if(c == null)
+					return;
+				c.configureBlocking(false);
+				c.socket().setTcpNoDelay(true);
+				node.getSessionTimer().configure(c.socket());
+			} catch (IOException e) {
+				System.err.println("Unable to accept connection from client.");
+				return;
+			}
+			
+			final EventLoop loop = loops.get(nextLoop);
+			nextLoop = (nextLoop + 1) % loops.size();
+			final Session s = new Session(c, loop);
+			loop.execute(new Runnable(){
+				@Override
+				public void run() {
+					try {
+						s.key = s.channel.register(loop.selector, SelectionKey.OP_READ, s);
+						s.watch.arm();
+					} catch (IOException e) {
+						System.err.println("Unable to register connection from client.");
+						close(s);
+					}
+				}
+			});
+		}
+		
+		/**
+		 * <p>Reads available data from a connection and queues any complete frames for handling.</p>
+		 *
+		 * @param s The connection.
+		 * @throws IOException
+		 */
+		private void read(Session s) throws IOException{
+			int r = s.channel.read(s.in);
+			if(r == -1){
+				//The client will send nothing more
+				s.key.interestOps(s.key.interestOps() & ~SelectionKey.OP_READ);
+				s.closing = true;
+				closeIfDone(s);
+				return;
+			}
+			if(r > 0)
+				s.watch.beginRead();
+			
+			s.in.flip();
+			if(!s.binary && s.in.hasRemaining()){
+				if((s.in.get(s.in.position()) & 0xFF) != Protocol.PREAMBLE){
+					handOff(s, false);
+					return;
+				}
+				s.in.get();
+				s.binary = true;
+			}
+			
+			//Separate complete frames
+			long needed = 0;
+			boolean queued = false;
+			while(s.in.hasRemaining()){
+				long len = FrameReader.frameLength(s.in);
+				if(len > maxFrameLength || (s.in.get(s.in.position()) & 0xFF) == Opcode.STREAM.getCode()){
+					//Stop reading until the connection can be given its own thread
+					s.spilling = true;
+					s.key.interestOps(s.key.interestOps() & ~SelectionKey.OP_READ);
+					break;
+				}
+				if(len == -1 || len > s.in.remaining()){
+					needed = len;
+					break;
+				}
+				byte frame[] = new byte[(int)len];
+				s.in.get(frame);
+				synchronized(s){
+					s.frames.add(frame);
+				}
+				queued = true;
+			}
+			s.in.compact();
+			s.watch.setIdle(s.in.position() == 0);
+			
+			//Make room for the rest of a long frame
+			if(!s.spilling && needed > s.in.capacity()){
+				ByteBuffer larger = ByteBuffer.allocate((int)needed);
+				s.in.flip();
+				larger.put(s.in);
+				s.in = larger;
+			}
+			
+			if(queued && !dispatch(s)){
+				//Stop reading until the worker pool catches up
+				s.key.interestOps(s.key.interestOps() & ~SelectionKey.OP_READ);
+				stalled.add(s);
+			}
+			spillIfDone(s);
+		}
+		
+		/**
+		 * <p>Writes queued replies to a connection.</p>
+		 *
+		 * @param s The connection.
+		 * @throws IOException
+		 */
+		private void write(Session s) throws IOException{
+			synchronized(s){
+				while(!s.outbound.isEmpty()){
+					ByteBuffer b = s.outbound.getFirst();
+					s.channel.write(b);
+					if(b.hasRemaining()){
+						s.watch.beginWrite();
+						return;
+					}
+					s.outbound.removeFirst();
+				}
+			}
+			s.watch.endWrite();
+			s.key.interestOps(s.key.interestOps() & ~SelectionKey.OP_WRITE);
+			closeIfDone(s);
+			spillIfDone(s);
+		}
+		
+		/**
+		 * <p>Gives a binary connection whose next frame is too long to buffer or opens a stream its own thread once all of its
+		 * earlier frames have been handled and their replies written.</p>
+		 *
+		 * @param s The connection.
+		 * @throws IOException
+		 */
+		private void spillIfDone(Session s) throws IOException{
+			if(!s.spilling || s.closing || !s.key.isValid())
+				return;
+			synchronized(s){
+				if(s.busy || !s.frames.isEmpty() || !s.outbound.isEmpty())
+					return;
+			}
+			s.in.flip();
+			handOff(s, true);
+		}
+		
+		/**
+		 * <p>Switches a session to blocking mode and gives it its own thread for the rest of the session.</p>
+		 *
+		 * @param s The connection.
+		 * @param binary Whether the preamble of a binary session has already been taken from the data received.
+		 * @throws IOException
+		 */
+		private void handOff(final Session s, boolean binary) throws IOException{
+			final byte[] received = new byte[s.in.remaining() + (binary ? 1 : 0)];
+			if(binary)
+				received[0] = (byte)Protocol.PREAMBLE;
+			s.in.get(received, binary ? 1 : 0, s.in.remaining());
+			s.watch.disarm(); //The handler watches the rest of the session
+			s.key.cancel();
+			selector.selectNow(); //Completes the deregistration
+			s.channel.configureBlocking(true);
+			try{
+				node.createThread(new Runnable(){
+					@Override
+					public void run() {
+						try {
+							s.handler.run(new SequenceInputStream(new ByteArrayInputStream(received), s.channel.socket().getInputStream()));
+						} catch (IOException e) {
+							System.err.println("Session ended abnormally: " + e.getMessage());
+							close(s);
+						}
+					}
+				}, s.handler.getName()).start();
+			} catch(OutOfMemoryError e){//Autorecover from resource consumption
+				System.err.println("Unable to create thread for session");
+				close(s);
+			}
+		}
+	}
+	
+	public NioServer(LocalNode node) {
+		super(node);
+		port = node.getConfigManager().getSetting(name, "listenPort", int.class);
+		minPort = node.getConfigManager().getSetting(name, "minListenPort", int.class);
+		maxPort = node.getConfigManager().getSetting(name, "maxListenPort", int.class);
+		listenPortIncrement = node.getConfigManager().getSetting(name, "listenPortIncrement", int.class);
+		eventLoopCount = node.getConfigManager().getSetting(name, "eventLoops", int.class);
+		workerCount = node.getConfigManager().getSetting(name, "workers", int.class);
+		workQueueLength = node.getConfigManager().getSetting(name, "workQueue", int.class);
+		maxFrameLength = node.getConfigManager().getSetting(name, "maxFrameLength", int.class);
+		socket = null;
+	}
+	
+	@Override
+	public synchronized void setPort(int port, boolean immediate) {
+		if(port >= 0){
+			this.port = port;
+			if(immediate){
+				try {
+					stop();
+					start();
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+	
+	@Override
+	public synchronized int getConfiguredPort() {
+		return port;
+	}
+	
+	@Override
+	public synchronized int getCurrentPort() {
+		if(socket == null)
+			return -1;
+		return socket.socket().getLocalPort();
+	}
+	
+	/**
+	 * <p>Opens a server socket channel on the given port.</p>
+	 *
+	 * @param port The port to listen on.
+	 * @return The open channel.
+	 * @throws IOException If the port could not be used.
+	 */
+	private static ServerSocketChannel open(int port) throws IOException{
+		ServerSocketChannel c = ServerSocketChannel.open();
+		try{
+			c.socket().bind(new InetSocketAddress(port));
+			c.configureBlocking(false);
+		} catch(IOException e){
+			c.close();
+			throw e;
+		}
+		return c;
+	}
+	
+	@Override
+	protected void doStart() throws IOException {
+		//Try to create socket
+		try {
+			socket = open(port);
+			System.out.println("The server socket has been opened on port " + port);
+		} catch (IOException e) {
+			System.err.println("Unable to create server socket on port " + port);
+			//Try the range if the default port failed
+			int listenPort = minPort;
+			while(socket == null){
+				try {
+					socket = open(listenPort);
+					System.out.println("The server socket has been opened on port " + listenPort);
+				} catch (IOException e1) {
+					System.err.println("Unable to create server socket on port " + listenPort);
+					if(listenPort < maxPort)
+						listenPort += listenPortIncrement;
+					else
+						throw new IOException("Unable to create server socket on ports " + port + ", " + listenPort, e1);
+				}
+			}
+		}
+		
+		workers = new ThreadPoolExecutor(workerCount, workerCount, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(workQueueLength));
+		loops = new ArrayList<EventLoop>();
+		for(int i = 0; i < eventLoopCount; i++)
+			loops.add(new EventLoop());
+		socket.register(loops.get(0).selector, 0);
+		nextLoop = 0;
+		shouldRun = true;
+		shouldPause = false;
+		running.set(loops.size());
+		
+		//Run the selector threads
+		for(EventLoop l : loops)
+			executor.execute(l);
+	}
+	
+	@Override
+	protected void doPause() {
+		shouldPause = true;
+		loops.get(0).selector.wakeup();
+		while(loops.get(0).accepting)
+			Thread.yield();
+	}
+	
+	@Override
+	protected void doResume() {
+		shouldPause = false;
+		loops.get(0).selector.wakeup();
+		while(!loops.get(0).accepting)
+			Thread.yield();
+	}
+	
+	@Override
+	protected void doStop() throws IOException {
+		shouldRun = false;
+		for(EventLoop l : loops)
+			l.selector.wakeup();
+		while(running.get() > 0)
+			Thread.yield();
+		workers.shutdown();
+		socket.close();
+		socket = null;
+	}
+	
+	/**
+	 * <p>Hands the waiting frames of a connection to a worker, unless a worker is already handling them.</p>
+	 *
+	 * @param s The connection.
+	 * @return False if the worker pool is saturated.
+	 */
+	private boolean dispatch(final Session s){
+		synchronized(s){
+			if(s.busy || s.frames.isEmpty())
+				return true;
+			s.busy = true;
+		}
+		try{
+			workers.execute(new Runnable(){
+				@Override
+				public void run() {
+					handleFrames(s);
+				}
+			});
+		} catch(RejectedExecutionException e){
+			synchronized(s){
+				s.busy = false;
+			}
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * <p>Handles the waiting frames of a connection in order and queues the replies. This runs on a worker thread.</p>
+	 *
+	 * @param s The connection.
+	 */
+	private void handleFrames(final Session s){
+		FrameHeader h = new FrameHeader();
+		ByteArrayOutputStream replies = new ByteArrayOutputStream();
+		boolean more = true;
+		try{
+			while(more){
+				byte frame[];
+				synchronized(s){
+					frame = s.frames.poll();
+					if(frame == null)
+						break;
+				}
+				FrameReader in = new FrameReader(new ByteArrayInputStream(frame), Math.min(frame.length, 8192));
+				FrameWriter out = new FrameWriter(replies, 512);
+				in.readHeader(h);
+				more = s.handler.handleFrame(h, in, out);
+				out.flush();
+			}
+		} catch(IOException e){
+			System.err.println("Session ended abnormally: " + e.getMessage());
+			more = false;
+		}
+		
+		final ByteBuffer reply = replies.size() > 0 ? ByteBuffer.wrap(replies.toByteArray()) : null;
+		final boolean done = !more;
+		synchronized(s){
+			if(reply != null)
+				s.outbound.add(reply);
+			s.busy = false;
+		}
+		
+		//Frames may have arrived since the queue was emptied, and the replies must be written by the selector thread
+		s.loop.execute(new Runnable(){
+			@Override
+			public void run() {
+				if(!s.key.isValid())
+					return;
+				if(done){
+					s.closing = true;
+					s.key.interestOps(s.key.interestOps() & ~SelectionKey.OP_READ);
+					synchronized(s){
+						s.frames.clear();
+					}
+				}
+				if(reply != null)
+					s.key.interestOps(s.key.interestOps() | SelectionKey.OP_WRITE);
+				else{
+					closeIfDone(s);
+					try {
+						s.loop.spillIfDone(s);
+					} catch (IOException e) {
+						System.err.println("Session ended abnormally: " + e.getMessage());
+						close(s);
+					}
+				}
+				if(!done && !s.loop.stalled.contains(s) && !dispatch(s)){
+					s.key.interestOps(s.key.interestOps() & ~SelectionKey.OP_READ);
+					s.loop.stalled.add(s);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * <p>Closes a connection that is closing once all of its frames have been handled and its replies written.
+	 * This must be called on the selector thread.</p>
+	 *
+	 * @param s The connection.
+	 */
+	private void closeIfDone(Session s){
+		if(!s.closing)
+			return;
+		synchronized(s){
+			if(s.busy || !s.frames.isEmpty() || !s.outbound.isEmpty())
+				return;
+		}
+		close(s);
+	}
+	
+	/**
+	 * <p>Closes a connection.</p>
+	 *
+	 * @param s The connection.
+	 */
+	private void close(Session s){
+		s.watch.disarm();
+		if(s.key != null)
+			s.key.cancel();
+		s.handler.endSession();
+		try {
+			s.channel.close();
+		} catch (IOException e) {}
+	}
+	
+	@Override
+	public void link() {
+	
+	}
+	
+	@Override
+	public void unlink() {
+	
+	}
+
+}
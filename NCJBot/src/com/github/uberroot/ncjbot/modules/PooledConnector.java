@@ -0,0 +1,317 @@
+package com.github.uberroot.ncjbot.modules;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Vector;
+
+import com.github.uberroot.ncjbot.LocalNode;
+import com.github.uberroot.ncjbot.RemoteNode;
+import com.github.uberroot.ncjbot.modapi.ConnectionFactory;
+
+/**
+ * <p>A ConnectionFactory that keeps fully released connections open so that later operations with the same node can reuse them,
+ * avoiding a new TCP handshake for every operation. Sockets are created and driven as in {@link BasicConnector}.</p>
+ *
+ * <p>Up to PooledConnector.maxIdlePerPeer idle connections are kept for each node, and connections left idle for longer than
+ * PooledConnector.idleTimeout milliseconds are closed. A connection that has been idle for longer than
+ * PooledConnector.validationInterval milliseconds is checked before it is handed out, so connections closed by the other node
+ * are discarded. A connection that fails is never reused, and the failure causes all idle connections to the same node to be
+ * discarded.</p>
+ *
+ * <p>The retain count behaves as with any other connection. A connection is only returned to the pool once it is fully released,
+ * and a call to {@link Connection#close()} closes it for good.</p>
+ *
+ * @author Carter Waxman
+ *
+ */
+public class PooledConnector extends BasicConnector implements ConnectionFactory {
+	/**
+	 * <p>The maximum number of idle connections to keep for each node.</p>
+	 */
+	private final int maxIdlePerPeer;
+	
+	/**
+	 * <p>The time, in milliseconds, after which an idle connection is closed.</p>
+	 */
+	private final long idleTimeout;
+	
+	/**
+	 * <p>The time, in milliseconds, after which an idle connection is checked before it is reused.</p>
+	 */
+	private final long validationInterval;
+	
+	/**
+	 * <p>The idle connections for each node, with the most recently used last.</p>
+	 */
+	private final Hashtable<RemoteNode, LinkedList<PooledConnection>> idle;
+	
+	/**
+	 * <p>The last time idle connections were checked for expiration.</p>
+	 */
+	private long lastSweep;
+	
+	/**
+	 * <p>A connection that returns to the pool when fully released. The underlying connection is retained by the pool
+	 * for as long as it is open.</p>
+	 */
+	private final class PooledConnection implements Connection, Connection.EventListener{
+		/**
+		 * <p>The node the connection is with.</p>
+		 */
+		private final RemoteNode peer;
+		
+		/**
+		 * <p>The underlying connection.</p>
+		 */
+		private final BasicConnection connection;
+		
+		/**
+		 * <p>The listeners registered by the current user of the connection.</p>
+		 */
+		private final Vector<EventListener> listeners;
+		
+		/**
+		 * <p>The retain count for the current user of the connection.</p>
+		 */
+		private int retainCount;
+		
+		/**
+		 * <p>Whether the underlying connection has been closed.</p>
+		 */
+		private boolean closed;
+		
+		/**
+		 * <p>The time at which the connection was last returned to the pool.</p>
+		 */
+		private long idleSince;
+		
+		/**
+		 * <p>The object attached to the connection. This persists while the connection is idle.</p>
+		 */
+		private Object attachment;
+		
+		private PooledConnection(RemoteNode peer, BasicConnection connection){
+			this.peer = peer;
+			this.connection = connection;
+			listeners = new Vector<EventListener>();
+			retainCount = 1;
+			closed = false;
+			connection.addListener(this);
+		}
+		
+		@Override
+		public void write(byte[] data) throws IOException {
+			connection.write(data);
+		}
+		
+		@Override
+		public void write(byte[] data, int off, int len) throws IOException {
+			connection.write(data, off, len);
+		}
+		
+		@Override
+		public void transferFrom(FileChannel src, long position, long count) throws IOException {
+			connection.transferFrom(src, position, count);
+		}
+		
+		@Override
+		public int read(byte[] data) throws IOException {
+			return connection.read(data);
+		}
+		
+		@Override
+		public int read(byte[] data, int off, int len) throws IOException {
+			return connection.read(data, off, len);
+		}
+		
+		@Override
+		public void setReadTimeout(int millis) throws IOException {
+			connection.setReadTimeout(millis);
+		}
+		
+		@Override
+		public InputStream getInputStream() {
+			return connection.getInputStream();
+		}
+		
+		@Override
+		public OutputStream getOutputStream() {
+			return connection.getOutputStream();
+		}
+		
+		@Override
+		public void addListener(EventListener listener) {
+			listeners.add(listener);
+		}
+		
+		@Override
+		public void removeListener(EventListener listener) {
+			listeners.remove(listener);
+		}
+		
+		@Override
+		public synchronized void retain() {
+			retainCount++;
+		}
+		
+		@Override
+		public void release() {
+			synchronized(this){
+				retainCount--;
+				if(retainCount > 0 || closed)
+					return;
+			}
+			
+			//The user is finished, so its listeners no longer apply
+			Vector<EventListener> temp = new Vector<EventListener>(listeners);
+			listeners.clear();
+			for(EventListener l : temp)
+				l.connectionClosed(this);
+			checkIn(this);
+		}
+		
+		@Override
+		public void close() {
+			synchronized(this){
+				if(closed)
+					return;
+				closed = true;
+			}
+			connection.close();
+		}
+		
+		@Override
+		public void setAttachment(Object attachment) {
+			this.attachment = attachment;
+		}
+		
+		@Override
+		public Object getAttachment() {
+			return attachment;
+		}
+		
+		@Override
+		public void connectionFailed(Connection c) {
+			synchronized(this){
+				closed = true;
+			}
+			discardIdle(peer);
+			Vector<EventListener> temp = new Vector<EventListener>(listeners);
+			for(EventListener l : temp)
+				l.connectionFailed(this);
+		}
+		
+		@Override
+		public void connectionClosed(Connection c) {
+			synchronized(this){
+				closed = true;
+			}
+			Vector<EventListener> temp = new Vector<EventListener>(listeners);
+			for(EventListener l : temp)
+				l.connectionClosed(this);
+		}
+	}
+	
+	public PooledConnector(LocalNode node) {
+		super(node);
+		maxIdlePerPeer = node.getConfigManager().getSetting(name, "maxIdlePerPeer", int.class);
+		idleTimeout = node.getConfigManager().getSetting(name, "idleTimeout", long.class);
+		validationInterval = node.getConfigManager().getSetting(name, "validationInterval", long.class);
+		idle = new Hashtable<RemoteNode, LinkedList<PooledConnection>>();
+		lastSweep = System.currentTimeMillis();
+	}
+	
+	@Override
+	public Connection getConnection(RemoteNode node) throws IOException {
+		sweep();
+		
+		//Reuse the most recently used connection that is still usable
+		while(true){
+			PooledConnection c;
+			synchronized(idle){
+				LinkedList<PooledConnection> l = idle.get(node);
+				if(l == null || l.isEmpty())
+					break;
+				c = l.removeLast();
+			}
+			if(System.currentTimeMillis() - c.idleSince < validationInterval || c.connection.isUsable()){
+				synchronized(c){
+					if(!c.closed){
+						c.retainCount = 1;
+						return c;
+					}
+				}
+			}
+			c.close();
+		}
+		
+		return new PooledConnection(node, (BasicConnection)super.getConnection(node));
+	}
+	
+	/**
+	 * <p>Returns a fully released connection to the pool, or closes it if the pool for the node is full.</p>
+	 *
+	 * @param c The released connection.
+	 */
+	private void checkIn(PooledConnection c){
+		c.idleSince = System.currentTimeMillis();
+		synchronized(idle){
+			LinkedList<PooledConnection> l = idle.get(c.peer);
+			if(l == null){
+				l = new LinkedList<PooledConnection>();
+				idle.put(c.peer, l);
+			}
+			if(l.size() < maxIdlePerPeer){
+				l.addLast(c);
+				c = null;
+			}
+		}
+		if(c != null)
+			c.close();
+		sweep();
+	}
+	
+	/**
+	 * <p>Closes all idle connections to a node.</p>
+	 *
+	 * @param peer The node.
+	 */
+	private void discardIdle(RemoteNode peer){
+		LinkedList<PooledConnection> l;
+		synchronized(idle){
+			l = idle.remove(peer);
+		}
+		if(l != null){
+			for(PooledConnection c : l)
+				c.close();
+		}
+	}
+	
+	/**
+	 * <p>Closes connections that have been idle for longer than the idle timeout. The pool is swept at most once per second.</p>
+	 */
+	private void sweep(){
+		long now = System.currentTimeMillis();
+		LinkedList<PooledConnection> expired = new LinkedList<PooledConnection>();
+		synchronized(idle){
+			if(now - lastSweep < 1000)
+				return;
+			lastSweep = now;
+			for(Iterator<LinkedList<PooledConnection>> i = idle.values().iterator(); i.hasNext();){
+				LinkedList<PooledConnection> l = i.next();
+				//The oldest connections are first
+				while(!l.isEmpty() && now - l.getFirst().idleSince > idleTimeout)
+					expired.add(l.removeFirst());
+				if(l.isEmpty())
+					i.remove();
+			}
+		}
+		for(PooledConnection c : expired)
+			c.close();
+	}
+}
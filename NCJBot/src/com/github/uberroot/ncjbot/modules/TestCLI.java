@@ -9,9 +9,12 @@ import java.util.List;
 import java.util.Scanner;
 import java.util.Set;
 
+import com.github.uberroot.ncjbot.ClassStore;
 import com.github.uberroot.ncjbot.ConfigManager;
 import com.github.uberroot.ncjbot.LocalNode;
 import com.github.uberroot.ncjbot.RemoteNode;
+import com.github.uberroot.ncjbot.SessionTimer;
+import com.github.uberroot.ncjbot.modapi.OverlayManager;
 import com.github.uberroot.ncjbot.modapi.RunningModule;
 import com.github.uberroot.ncjbot.modapi.Server;
 
@@ -94,6 +97,26 @@ public class TestCLI extends RunningModule {
 							out += n.getIpAddress().toString() + ":" + n.getListeningPort() + "\n";
 						cout.print(out);
 					}
+					else if(command.equalsIgnoreCase("GET CLASSES")){
+						ClassStore cs = node.getClassStore();
+						cout.println(cs.getCount() + " worker classes are cached (" + cs.getSize() + " bytes)");
+						cout.println(cs.getHits() + " hits, " + cs.getMisses() + " misses");
+					}
+					else if(command.equalsIgnoreCase("GET SESSIONS")){
+						SessionTimer st = node.getSessionTimer();
+						cout.println(st.getWatchedCount() + " sessions are being watched");
+						cout.println(st.getReadTimeouts() + " read, " + st.getWriteTimeouts() + " write, " + st.getIdleTimeouts() + " idle timeouts");
+					}
+					else if(command.equalsIgnoreCase("GET BEACONS")){
+						OverlayManager om = node.getOverlayManager();
+						if(om instanceof LazyOverlayManager){
+							LazyOverlayManager lom = (LazyOverlayManager)om;
+							cout.println(lom.getRoundCount() + " rounds of presence announcements completed");
+							cout.println("The last round took " + lom.getLastRoundTime() + " ms");
+						}
+						else
+							cerr.println("The overlay manager does not announce presence in rounds");
+					}
 					//TODO: Gracefully disconnect.
 					else if(command.equalsIgnoreCase("STOP SERVER")){
 						Server s = node.getServer();
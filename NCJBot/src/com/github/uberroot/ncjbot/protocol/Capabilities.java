@@ -0,0 +1,154 @@
+package com.github.uberroot.ncjbot.protocol;
+
+/**
+ * <p>The outcome of a protocol negotiation with a peer: the protocol version both nodes agreed on and the features
+ * both nodes support. Instances are immutable.</p>
+ *
+ * <p>A peer that does not answer the negotiation is assumed to predate the binary protocol and is represented by
+ * {@link #LEGACY}, in which case only the text protocol may be used.</p>
+ *
+ * @author Carter Waxman
+ *
+ */
+public final class Capabilities {
+	/**
+	 * <p>The latest protocol version understood by this node.</p>
+	 */
+	public static final int VERSION = 1;
+
+	/**
+	 * <p>The peer understands binary framing.</p>
+	 */
+	public static final int BINARY_FRAMING = 1 << 0;
+
+	/**
+	 * <p>The peer accepts compressed payloads.</p>
+	 */
+	public static final int COMPRESSION = 1 << 1;
+
+	/**
+	 * <p>The peer keeps sessions open between requests, allowing connections to be pooled.</p>
+	 */
+	public static final int POOLED_CONNECTIONS = 1 << 2;
+
+	/**
+	 * <p>The peer caches worker classes by content hash, allowing repeated uploads to be skipped.</p>
+	 */
+	public static final int CLASS_HASH_DEDUP = 1 << 3;
+
+	/**
+	 * <p>The peer accepts multiplexed connections carrying many sessions over one socket.</p>
+	 */
+	public static final int MULTIPLEXING = 1 << 4;
+	
+	/**
+	 * <p>The peer accepts streams of data to running jobs.</p>
+	 */
+	public static final int STREAMS = 1 << 5;
+	
+	/**
+	 * <p>The peer accepts batches of data for running jobs.</p>
+	 */
+	public static final int BATCHING = 1 << 6;
+	
+	/**
+	 * <p>The peer accepts calls to running jobs, answering them out of order.</p>
+	 */
+	public static final int CALLS = 1 << 7;
+	
+	/**
+	 * <p>The peer takes part in gossip about the membership of the network, answering probes and carrying membership
+	 * updates.</p>
+	 */
+	public static final int GOSSIP = 1 << 8;
+	
+	/**
+	 * <p>The peer keeps a versioned membership log and can answer a request for known nodes with only the changes since a
+	 * given version.</p>
+	 */
+	public static final int MEMBERSHIP_DELTAS = 1 << 9;
+
+	/**
+	 * <p>The features implemented by this node.</p>
+	 */
+	public static final int LOCAL = BINARY_FRAMING | COMPRESSION | POOLED_CONNECTIONS | MULTIPLEXING | CLASS_HASH_DEDUP | STREAMS | BATCHING | CALLS | GOSSIP | MEMBERSHIP_DELTAS;
+
+	/**
+	 * <p>Represents a peer that only speaks the text protocol.</p>
+	 */
+	public static final Capabilities LEGACY = new Capabilities(0, 0);
+
+	/**
+	 * <p>The agreed protocol version.</p>
+	 */
+	private final int version;
+
+	/**
+	 * <p>The features supported by both nodes.</p>
+	 */
+	private final int mask;
+
+	/**
+	 * <p>Creates the outcome of a negotiation.</p>
+	 *
+	 * @param version The agreed protocol version.
+	 * @param mask The features supported by both nodes.
+	 */
+	public Capabilities(int version, int mask){
+		this.version = version;
+		this.mask = mask;
+	}
+
+	/**
+	 * <p>Agrees on the capabilities to use with a peer that offered the given version and features.</p>
+	 *
+	 * @param version The version offered by the peer.
+	 * @param mask The features offered by the peer.
+	 * @return The capabilities supported by both nodes.
+	 */
+	public static Capabilities negotiate(int version, int mask){
+		return new Capabilities(Math.min(version, VERSION), mask & LOCAL);
+	}
+
+	/**
+	 * <p>Gets the agreed protocol version.</p>
+	 *
+	 * @return The agreed protocol version, or 0 for a legacy peer.
+	 */
+	public int getVersion(){
+		return version;
+	}
+
+	/**
+	 * <p>Gets the features supported by both nodes.</p>
+	 *
+	 * @return The bit mask of features supported by both nodes.
+	 */
+	public int getMask(){
+		return mask;
+	}
+
+	/**
+	 * <p>Determines whether both nodes support all of the given features.</p>
+	 *
+	 * @param feature The feature bits to test.
+	 * @return True if all of the features are supported.
+	 */
+	public boolean supports(int feature){
+		return (mask & feature) == feature;
+	}
+
+	/**
+	 * <p>Determines whether the peer only speaks the text protocol.</p>
+	 *
+	 * @return True if the peer only speaks the text protocol.
+	 */
+	public boolean isLegacy(){
+		return !supports(BINARY_FRAMING);
+	}
+
+	@Override
+	public String toString(){
+		return isLegacy() ? "legacy" : "v" + version + " (features = 0x" + Integer.toHexString(mask) + ")";
+	}
+}
@@ -0,0 +1,215 @@
+package com.github.uberroot.ncjbot.protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.ProtocolException;
+import java.util.Hashtable;
+import java.util.zip.Deflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * <p>Chooses how to compress payloads sent to each node, and compresses and decompresses them. Compressed frames carry
+ * {@link Protocol#FLAG_COMPRESSED}, and are only sent to nodes that support {@link Capabilities#COMPRESSION}.</p>
+ *
+ * <p>Payloads smaller than Compression.minBytes are never compressed, since the saving would not cover the cost. Otherwise, the
+ * level is chosen by the throughput measured to the node. Links faster than Compression.fastLink bytes per second are faster
+ * than compression itself, so nothing is compressed. Links slower than Compression.slowLink bytes per second are worth the
+ * extra time for the best ratio. Everything else, including nodes not yet measured, is compressed for speed. Payloads longer
+ * than Compression.maxInflated are never compressed, since the node would refuse to decompress them.</p>
+ *
+ * <p>Payloads are compressed as they are written and decompressed as they are read, so neither side holds the original
+ * payload in memory alongside the compressed one.</p>
+ *
+ * @author Carter Waxman
+ *
+ */
+public final class Compression {
+	/**
+	 * <p>The level indicating that a payload should not be compressed.</p>
+	 */
+	public static final int NONE = -2;
+	
+	/**
+	 * <p>The smallest payload measured for throughput. Smaller transfers are dominated by latency.</p>
+	 */
+	private static final long MIN_MEASURED = 16384;
+	
+	/**
+	 * <p>The weight given to each new throughput measurement.</p>
+	 */
+	private static final double ALPHA = 0.25;
+	
+	/**
+	 * <p>The smallest payload to compress.</p>
+	 */
+	private final long minBytes;
+	
+	/**
+	 * <p>The throughput, in bytes per second, below which payloads are compressed for the best ratio.</p>
+	 */
+	private final long slowLink;
+	
+	/**
+	 * <p>The throughput, in bytes per second, above which payloads are not compressed.</p>
+	 */
+	private final long fastLink;
+	
+	/**
+	 * <p>The largest payload that may be compressed or decompressed.</p>
+	 */
+	private final long maxInflated;
+	
+	/**
+	 * <p>The moving average of the throughput to each node, in bytes per second, keyed by address and port.</p>
+	 */
+	private final Hashtable<String, Double> throughput;
+	
+	/**
+	 * <p>Creates a compression policy.</p>
+	 *
+	 * @param minBytes The smallest payload to compress.
+	 * @param slowLink The throughput, in bytes per second, below which payloads are compressed for the best ratio.
+	 * @param fastLink The throughput, in bytes per second, above which payloads are not compressed.
+	 * @param maxInflated The largest payload that may be compressed or decompressed.
+	 */
+	public Compression(long minBytes, long slowLink, long fastLink, long maxInflated){
+		this.minBytes = minBytes;
+		this.slowLink = slowLink;
+		this.fastLink = fastLink;
+		this.maxInflated = maxInflated;
+		throughput = new Hashtable<String, Double>();
+	}
+	
+	/**
+	 * <p>Chooses the compression level for a payload.</p>
+	 *
+	 * @param peer Identifies the node receiving the payload.
+	 * @param length The number of bytes that would be compressed.
+	 * @return A {@link Deflater} level, or {@link #NONE}.
+	 */
+	public int chooseLevel(String peer, long length){
+		if(length < minBytes || !fits(length))
+			return NONE;
+		Double t = throughput.get(peer);
+		if(t == null)
+			return Deflater.BEST_SPEED;
+		if(t > fastLink)
+			return NONE;
+		if(t < slowLink)
+			return Deflater.BEST_COMPRESSION;
+		return Deflater.BEST_SPEED;
+	}
+	
+	/**
+	 * <p>Determines whether a payload is short enough to be compressed. Nodes refuse to decompress payloads longer than
+	 * Compression.maxInflated.</p>
+	 *
+	 * @param length The length of the payload before compression.
+	 * @return True if the payload may be compressed.
+	 */
+	public boolean fits(long length){
+		return length <= maxInflated && length <= Integer.MAX_VALUE;
+	}
+	
+	/**
+	 * <p>Records the time taken to send a payload to a node and receive the reply.</p>
+	 *
+	 * @param peer Identifies the node.
+	 * @param bytes The number of bytes sent.
+	 * @param nanos The time taken, in nanoseconds.
+	 */
+	public void recordTransfer(String peer, long bytes, long nanos){
+		if(bytes < MIN_MEASURED || nanos <= 0)
+			return;
+		double sample = bytes * 1000000000.0 / nanos;
+		synchronized(throughput){
+			Double t = throughput.get(peer);
+			throughput.put(peer, t == null ? sample : t + ALPHA * (sample - t));
+		}
+	}
+	
+	/**
+	 * <p>Gets the measured throughput to a node.</p>
+	 *
+	 * @param peer Identifies the node.
+	 * @return The throughput in bytes per second, or -1 if it has not been measured.
+	 */
+	public double getThroughput(String peer){
+		Double t = throughput.get(peer);
+		return t == null ? -1 : t;
+	}
+	
+	/**
+	 * <p>Compresses a payload.</p>
+	 *
+	 * @param data The array holding the payload.
+	 * @param off The offset of the payload in the array.
+	 * @param len The length of the payload.
+	 * @param level The {@link Deflater} level.
+	 * @return The compressed payload, or null if it would be no smaller.
+	 */
+	public static byte[] deflate(byte[] data, int off, int len, int level){
+		Deflater d = new Deflater(level);
+		try{
+			d.setInput(data, off, len);
+			d.finish();
+			byte out[] = new byte[len];
+			int n = 0;
+			while(!d.finished() && n < out.length)
+				n += d.deflate(out, n, out.length - n);
+			if(!d.finished() || n >= len)
+				return null;
+			byte ret[] = new byte[n];
+			System.arraycopy(out, 0, ret, 0, n);
+			return ret;
+		}
+		finally{
+			d.end();
+		}
+	}
+	
+	/**
+	 * <p>Decompresses a compressed frame as it is read. The payload of a compressed frame is the varint length of the original
+	 * payload followed by the compressed payload. The returned stream yields the original frame, header included, and must be
+	 * closed once it has been handled.</p>
+	 *
+	 * @param h The header of the compressed frame.
+	 * @param in The reader, positioned at the start of the payload.
+	 * @return The original frame.
+	 * @throws IOException If the payload is malformed or too large.
+	 */
+	public InputStream inflate(FrameHeader h, final FrameReader in) throws IOException{
+		long len = in.readVarint();
+		if(len > maxInflated)
+			throw new ProtocolException("Compressed payload too large: " + len);
+		
+		//Even incompressible data grows by only a few bytes per block
+		if(in.remaining() > len + (len >>> 10) + 64)
+			throw new ProtocolException("Compressed payload longer than the original: " + in.remaining());
+		
+		ByteArrayOutputStream header = new ByteArrayOutputStream(16);
+		FrameWriter fw = new FrameWriter(header, 16);
+		fw.beginFrame(h.getOpcode(), h.getFlags() & ~Protocol.FLAG_COMPRESSED, h.getRequestId(), len);
+		fw.flush();
+		
+		InputStream packed = new InputStream(){
+			@Override
+			public int read() throws IOException {
+				return in.remaining() == 0 ? -1 : in.readByte();
+			}
+			
+			@Override
+			public int read(byte[] b, int off, int n) throws IOException {
+				if(in.remaining() == 0)
+					return -1;
+				n = (int)Math.min(n, in.remaining());
+				in.readFully(b, off, n);
+				return n;
+			}
+		};
+		return new SequenceInputStream(new ByteArrayInputStream(header.toByteArray()), new InflaterInputStream(packed));
+	}
+}
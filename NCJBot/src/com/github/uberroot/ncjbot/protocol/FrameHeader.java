@@ -0,0 +1,95 @@
+package com.github.uberroot.ncjbot.protocol;
+
+/**
+ * <p>The decoded header of a single frame. Instances are mutable so that a reader may reuse one header for an entire session.</p>
+ *
+ * @author Carter Waxman
+ *
+ */
+public final class FrameHeader {
+	/**
+	 * <p>The operation carried by the frame.</p>
+	 */
+	private Opcode opcode;
+
+	/**
+	 * <p>The flags set on the frame.</p>
+	 */
+	private int flags;
+
+	/**
+	 * <p>The id of the request the frame belongs to.</p>
+	 */
+	private int requestId;
+
+	/**
+	 * <p>The length of the payload following the header.</p>
+	 */
+	private long length;
+
+	/**
+	 * <p>Sets all fields of the header.</p>
+	 *
+	 * @param opcode The operation carried by the frame.
+	 * @param flags The flags set on the frame.
+	 * @param requestId The id of the request the frame belongs to.
+	 * @param length The length of the payload.
+	 */
+	void set(Opcode opcode, int flags, int requestId, long length){
+		this.opcode = opcode;
+		this.flags = flags;
+		this.requestId = requestId;
+		this.length = length;
+	}
+
+	/**
+	 * <p>Gets the operation carried by the frame.</p>
+	 *
+	 * @return The operation carried by the frame.
+	 */
+	public Opcode getOpcode(){
+		return opcode;
+	}
+
+	/**
+	 * <p>Gets the flags set on the frame.</p>
+	 *
+	 * @return The flags set on the frame.
+	 */
+	public int getFlags(){
+		return flags;
+	}
+
+	/**
+	 * <p>Determines whether all of the given flags are set on the frame.</p>
+	 *
+	 * @param flag The flags to test.
+	 * @return True if all of the flags are set.
+	 */
+	public boolean hasFlag(int flag){
+		return (flags & flag) == flag;
+	}
+
+	/**
+	 * <p>Gets the id of the request the frame belongs to. A reply carries the id of the request it answers.</p>
+	 *
+	 * @return The request id.
+	 */
+	public int getRequestId(){
+		return requestId;
+	}
+
+	/**
+	 * <p>Gets the length of the payload following the header.</p>
+	 *
+	 * @return The length of the payload.
+	 */
+	public long getLength(){
+		return length;
+	}
+
+	@Override
+	public String toString(){
+		return opcode + " (flags = " + flags + ", request = " + requestId + ", length = " + length + ")";
+	}
+}
@@ -0,0 +1,418 @@
+package com.github.uberroot.ncjbot.protocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * <p>Decodes frames of the binary protocol from a stream. The reader buffers the underlying stream and decodes headers and
+ * numeric fields in place, so no Strings or intermediate arrays are created for the protocol itself.</p>
+ *
+ * <p>The reader keeps track of the unread portion of the current frame. Reading past the end of a frame results in a
+ * {@link ProtocolException}, and any unread portion of a frame is skipped when the next header is read.</p>
+ *
+ * @author Carter Waxman
+ *
+ */
+public final class FrameReader {
+	/**
+	 * <p>The stream being decoded.</p>
+	 */
+	private final InputStream in;
+
+	/**
+	 * <p>The channel underlying the stream, or null if there is none.</p>
+	 */
+	private final ReadableByteChannel channel;
+
+	/**
+	 * <p>The buffer holding data read from the stream.</p>
+	 */
+	private final byte[] buffer;
+
+	/**
+	 * <p>The position of the next unread byte in the buffer.</p>
+	 */
+	private int pos;
+
+	/**
+	 * <p>The number of valid bytes in the buffer.</p>
+	 */
+	private int limit;
+
+	/**
+	 * <p>The number of payload bytes of the current frame that have not been read.</p>
+	 */
+	private long remaining;
+
+	/**
+	 * <p>Creates a reader with an 8 KB buffer.</p>
+	 *
+	 * @param in The stream to decode.
+	 */
+	public FrameReader(InputStream in){
+		this(in, 8192);
+	}
+
+	/**
+	 * <p>Creates a reader with the given buffer size.</p>
+	 *
+	 * @param in The stream to decode.
+	 * @param bufferSize The size of the read buffer.
+	 */
+	public FrameReader(InputStream in, int bufferSize){
+		this(in, null, bufferSize);
+	}
+
+	/**
+	 * <p>Creates a reader for a stream backed by a channel. Payloads copied to a file with
+	 * {@link #transferTo(FileChannel, long)} are read from the channel directly rather than through the buffer. Nothing may
+	 * read from the channel other than through the stream or this reader.</p>
+	 *
+	 * @param in The stream to decode.
+	 * @param channel The channel underlying the stream, or null if there is none.
+	 * @param bufferSize The size of the read buffer.
+	 */
+	public FrameReader(InputStream in, ReadableByteChannel channel, int bufferSize){
+		this.in = in;
+		this.channel = channel;
+		this.buffer = new byte[bufferSize];
+		pos = 0;
+		limit = 0;
+		remaining = 0;
+	}
+
+	/**
+	 * <p>Determines the total length of the frame beginning at the position of a buffer, including its header. This allows
+	 * frames to be separated from a stream of data before they are decoded. The buffer is not modified.</p>
+	 *
+	 * @param buf The buffer holding the start of the frame.
+	 * @return The length of the frame, or -1 if the buffer does not yet hold the entire header.
+	 * @throws ProtocolException If the header is malformed.
+	 */
+	public static long frameLength(ByteBuffer buf) throws ProtocolException{
+		//Skip the opcode and flags
+		int p = buf.position() + 2;
+
+		//Skip the request id and decode the payload length
+		long length = 0;
+		for(int field = 0; field < 2; field++){
+			length = 0;
+			for(int shift = 0; ; shift += 7){
+				if(shift >= 64)
+					throw new ProtocolException("Malformed varint");
+				if(p >= buf.limit())
+					return -1;
+				int b = buf.get(p++) & 0xFF;
+				length |= (long)(b & 0x7F) << shift;
+				if((b & 0x80) == 0)
+					break;
+			}
+		}
+		if(length < 0)
+			throw new ProtocolException("Bad frame length: " + length);
+		return (p - buf.position()) + length;
+	}
+
+	/**
+	 * <p>Refills the buffer from the stream. This should only be called when the buffer is empty.</p>
+	 *
+	 * @return False if the end of the stream was reached.
+	 * @throws IOException
+	 */
+	private boolean fill() throws IOException{
+		int r;
+		do{
+			r = in.read(buffer, 0, buffer.length);
+		} while(r == 0);
+		if(r == -1)
+			return false;
+		pos = 0;
+		limit = r;
+		return true;
+	}
+
+	/**
+	 * <p>Reads a byte without regard to frame boundaries.</p>
+	 *
+	 * @return The byte read (0 - 255).
+	 * @throws IOException
+	 */
+	private int rawByte() throws IOException{
+		if(pos == limit && !fill())
+			throw new EOFException();
+		return buffer[pos++] & 0xFF;
+	}
+
+	/**
+	 * <p>Reads an unsigned varint without regard to frame boundaries.</p>
+	 *
+	 * @return The value read.
+	 * @throws IOException
+	 */
+	private long rawVarint() throws IOException{
+		long value = 0;
+		for(int shift = 0; shift < 64; shift += 7){
+			int b = rawByte();
+			value |= (long)(b & 0x7F) << shift;
+			if((b & 0x80) == 0)
+				return value;
+		}
+		throw new ProtocolException("Malformed varint");
+	}
+
+	/**
+	 * <p>Ensures that the given number of bytes may still be read from the current frame.</p>
+	 *
+	 * @param count The number of bytes about to be read.
+	 * @throws ProtocolException If the read would pass the end of the frame.
+	 */
+	private void consume(long count) throws ProtocolException{
+		if(count > remaining)
+			throw new ProtocolException("Read past the end of the frame");
+		remaining -= count;
+	}
+
+	/**
+	 * <p>Reads the preamble byte that begins a binary session.</p>
+	 *
+	 * @return The byte read (0 - 255).
+	 * @throws IOException
+	 */
+	public int readPreamble() throws IOException{
+		return rawByte();
+	}
+
+	/**
+	 * <p>Reads the next frame header, skipping any unread portion of the previous frame.</p>
+	 *
+	 * @param header The header to populate.
+	 * @return False if the stream ended cleanly before a new frame, true if a header was read.
+	 * @throws IOException If the stream ended within a frame or the header was malformed.
+	 */
+	public boolean readHeader(FrameHeader header) throws IOException{
+		if(remaining > 0)
+			skip(remaining);
+		if(pos == limit && !fill())
+			return false;
+		int code = rawByte();
+		Opcode opcode = Opcode.valueOf(code);
+		if(opcode == null)
+			throw new ProtocolException("Unknown opcode: " + code);
+		int flags = rawByte();
+		long requestId = rawVarint();
+		if(requestId > Integer.MAX_VALUE)
+			throw new ProtocolException("Bad request id: " + requestId);
+		long length = rawVarint();
+		header.set(opcode, flags, (int)requestId, length);
+		remaining = length;
+		return true;
+	}
+
+	/**
+	 * <p>Reads a single byte from the current frame.</p>
+	 *
+	 * @return The byte read (0 - 255).
+	 * @throws IOException
+	 */
+	public int readByte() throws IOException{
+		consume(1);
+		return rawByte();
+	}
+
+	/**
+	 * <p>Reads an unsigned varint from the current frame.</p>
+	 *
+	 * @return The value read.
+	 * @throws IOException
+	 */
+	public long readVarint() throws IOException{
+		long value = 0;
+		for(int shift = 0; shift < 64; shift += 7){
+			int b = readByte();
+			value |= (long)(b & 0x7F) << shift;
+			if((b & 0x80) == 0)
+				return value;
+		}
+		throw new ProtocolException("Malformed varint");
+	}
+
+	/**
+	 * <p>Reads an unsigned varint from the current frame that must fit within an int.</p>
+	 *
+	 * @return The value read.
+	 * @throws IOException
+	 */
+	public int readInt() throws IOException{
+		long value = readVarint();
+		if(value > Integer.MAX_VALUE)
+			throw new ProtocolException("Value out of range: " + value);
+		return (int)value;
+	}
+
+	/**
+	 * <p>Fills the given range of the array with data from the current frame.</p>
+	 *
+	 * @param data The destination array.
+	 * @param off The offset in the array.
+	 * @param len The number of bytes to read.
+	 * @throws IOException
+	 */
+	public void readFully(byte[] data, int off, int len) throws IOException{
+		consume(len);
+		while(len > 0){
+			if(pos == limit){
+				//Large reads bypass the buffer
+				if(len >= buffer.length){
+					int r = in.read(data, off, len);
+					if(r == -1)
+						throw new EOFException();
+					off += r;
+					len -= r;
+					continue;
+				}
+				if(!fill())
+					throw new EOFException();
+			}
+			int n = Math.min(len, limit - pos);
+			System.arraycopy(buffer, pos, data, off, n);
+			pos += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * <p>Reads a varint length followed by that many bytes.</p>
+	 *
+	 * @return The bytes read.
+	 * @throws IOException
+	 */
+	public byte[] readBlob() throws IOException{
+		int len = readInt();
+		if(len > remaining)
+			throw new ProtocolException("Read past the end of the frame");
+		byte[] data = new byte[len];
+		readFully(data, 0, len);
+		return data;
+	}
+
+	/**
+	 * <p>Reads an address encoded as a length byte followed by the raw address.</p>
+	 *
+	 * @return The address read.
+	 * @throws IOException
+	 */
+	public InetAddress readAddress() throws IOException{
+		int len = readByte();
+		if(len != 4 && len != 16)
+			throw new ProtocolException("Bad address length: " + len);
+		byte[] addr = new byte[len];
+		readFully(addr, 0, len);
+		return InetAddress.getByAddress(addr);
+	}
+
+	/**
+	 * <p>Copies the given number of bytes from the current frame to a stream.</p>
+	 *
+	 * @param out The destination stream.
+	 * @param len The number of bytes to copy.
+	 * @throws IOException
+	 */
+	public void transferTo(OutputStream out, long len) throws IOException{
+		consume(len);
+		while(len > 0){
+			if(pos == limit && !fill())
+				throw new EOFException();
+			int n = (int)Math.min(len, limit - pos);
+			out.write(buffer, pos, n);
+			pos += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * <p>Copies the given number of bytes from the current frame to the end of a file. Once the buffered data has been
+	 * written, the rest is transferred from the underlying channel, if there is one, without passing through the buffer.</p>
+	 *
+	 * @param dest The destination file.
+	 * @param len The number of bytes to copy.
+	 * @throws IOException
+	 */
+	public void transferTo(FileChannel dest, long len) throws IOException{
+		consume(len);
+
+		//Write out what has already been read
+		int n = (int)Math.min(len, limit - pos);
+		ByteBuffer buf = ByteBuffer.wrap(buffer, pos, n);
+		while(buf.hasRemaining())
+			dest.write(buf);
+		pos += n;
+		len -= n;
+
+		if(channel != null){
+			long position = dest.position();
+			while(len > 0){
+				long t = dest.transferFrom(channel, position, len);
+				if(t == 0)
+					throw new EOFException();
+				position += t;
+				len -= t;
+			}
+			dest.position(position);
+			return;
+		}
+		while(len > 0){
+			if(!fill())
+				throw new EOFException();
+			n = (int)Math.min(len, limit - pos);
+			buf = ByteBuffer.wrap(buffer, pos, n);
+			while(buf.hasRemaining())
+				dest.write(buf);
+			pos += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * <p>Discards the given number of bytes from the current frame.</p>
+	 *
+	 * @param len The number of bytes to discard.
+	 * @throws IOException
+	 */
+	public void skip(long len) throws IOException{
+		consume(len);
+		while(len > 0){
+			if(pos == limit && !fill())
+				throw new EOFException();
+			int n = (int)Math.min(len, limit - pos);
+			pos += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * <p>Gets an estimate of the number of bytes that can be read without blocking, including data already buffered.</p>
+	 *
+	 * @return The number of bytes available.
+	 * @throws IOException
+	 */
+	public int available() throws IOException{
+		return (limit - pos) + in.available();
+	}
+
+	/**
+	 * <p>Gets the number of payload bytes of the current frame that have not been read.</p>
+	 *
+	 * @return The number of unread payload bytes.
+	 */
+	public long remaining(){
+		return remaining;
+	}
+}
@@ -0,0 +1,228 @@
+package com.github.uberroot.ncjbot.protocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+
+/**
+ * <p>Encodes frames of the binary protocol to a stream. Headers and small fields are gathered in a buffer so that a frame is
+ * written to the stream with as few writes as possible. Nothing is guaranteed to reach the stream until {@link #flush()} is called.</p>
+ *
+ * <p>The length given to {@link #beginFrame(Opcode, int, int, long)} must match the number of payload bytes that follow. The static
+ * size methods may be used to calculate the length ahead of time.</p>
+ *
+ * @author Carter Waxman
+ *
+ */
+public final class FrameWriter {
+	/**
+	 * <p>The destination stream.</p>
+	 */
+	private final OutputStream out;
+
+	/**
+	 * <p>The buffer holding data that has not been written to the stream.</p>
+	 */
+	private final byte[] buffer;
+
+	/**
+	 * <p>The number of valid bytes in the buffer.</p>
+	 */
+	private int count;
+
+	/**
+	 * <p>Creates a writer with an 8 KB buffer.</p>
+	 *
+	 * @param out The destination stream.
+	 */
+	public FrameWriter(OutputStream out){
+		this(out, 8192);
+	}
+
+	/**
+	 * <p>Creates a writer with the given buffer size.</p>
+	 *
+	 * @param out The destination stream.
+	 * @param bufferSize The size of the write buffer.
+	 */
+	public FrameWriter(OutputStream out, int bufferSize){
+		this.out = out;
+		this.buffer = new byte[bufferSize];
+		count = 0;
+	}
+
+	/**
+	 * <p>Gets the number of bytes needed to encode a value as a varint.</p>
+	 *
+	 * @param value The value to encode.
+	 * @return The encoded size.
+	 */
+	public static int varintSize(long value){
+		int size = 1;
+		while((value & ~0x7FL) != 0){
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	/**
+	 * <p>Gets the number of bytes needed to encode a blob of the given length.</p>
+	 *
+	 * @param length The length of the blob.
+	 * @return The encoded size.
+	 */
+	public static int blobSize(int length){
+		return varintSize(length) + length;
+	}
+
+	/**
+	 * <p>Gets the number of bytes needed to encode an address.</p>
+	 *
+	 * @param addr The address to encode.
+	 * @return The encoded size.
+	 */
+	public static int addressSize(InetAddress addr){
+		return 1 + addr.getAddress().length;
+	}
+
+	/**
+	 * <p>Writes the buffered data to the stream without flushing the stream.</p>
+	 *
+	 * @throws IOException
+	 */
+	private void drain() throws IOException{
+		if(count > 0){
+			out.write(buffer, 0, count);
+			count = 0;
+		}
+	}
+
+	/**
+	 * <p>Writes the preamble byte that begins a binary session.</p>
+	 *
+	 * @throws IOException
+	 */
+	public void writePreamble() throws IOException{
+		writeByte(Protocol.PREAMBLE);
+	}
+
+	/**
+	 * <p>Writes a frame header.</p>
+	 *
+	 * @param opcode The operation carried by the frame.
+	 * @param flags The flags for the frame.
+	 * @param requestId The id of the request the frame belongs to.
+	 * @param length The exact length of the payload that will follow.
+	 * @throws IOException
+	 */
+	public void beginFrame(Opcode opcode, int flags, int requestId, long length) throws IOException{
+		writeByte(opcode.getCode());
+		writeByte(flags);
+		writeVarint(requestId);
+		writeVarint(length);
+	}
+
+	/**
+	 * <p>Writes a single byte.</p>
+	 *
+	 * @param b The byte to write.
+	 * @throws IOException
+	 */
+	public void writeByte(int b) throws IOException{
+		if(count == buffer.length)
+			drain();
+		buffer[count++] = (byte)b;
+	}
+
+	/**
+	 * <p>Writes an unsigned varint.</p>
+	 *
+	 * @param value The value to write. This must not be negative.
+	 * @throws IOException
+	 */
+	public void writeVarint(long value) throws IOException{
+		if(value < 0)
+			throw new IllegalArgumentException("Negative varint: " + value);
+		while((value & ~0x7FL) != 0){
+			writeByte((int)((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		writeByte((int)value);
+	}
+
+	/**
+	 * <p>Writes a range of bytes.</p>
+	 *
+	 * @param data The array holding the data.
+	 * @param off The offset of the data in the array.
+	 * @param len The length of the data.
+	 * @throws IOException
+	 */
+	public void writeBytes(byte[] data, int off, int len) throws IOException{
+		if(len > buffer.length - count){
+			drain();
+			//Large writes bypass the buffer
+			if(len >= buffer.length){
+				out.write(data, off, len);
+				return;
+			}
+		}
+		System.arraycopy(data, off, buffer, count, len);
+		count += len;
+	}
+
+	/**
+	 * <p>Writes a varint length followed by the given bytes.</p>
+	 *
+	 * @param data The bytes to write.
+	 * @throws IOException
+	 */
+	public void writeBlob(byte[] data) throws IOException{
+		writeVarint(data.length);
+		writeBytes(data, 0, data.length);
+	}
+
+	/**
+	 * <p>Writes an address as a length byte followed by the raw address.</p>
+	 *
+	 * @param addr The address to write.
+	 * @throws IOException
+	 */
+	public void writeAddress(InetAddress addr) throws IOException{
+		byte[] raw = addr.getAddress();
+		writeByte(raw.length);
+		writeBytes(raw, 0, raw.length);
+	}
+
+	/**
+	 * <p>Copies the given number of bytes from a stream.</p>
+	 *
+	 * @param in The source stream.
+	 * @param len The number of bytes to copy.
+	 * @throws IOException If the stream ends early or cannot be read.
+	 */
+	public void writeFrom(InputStream in, long len) throws IOException{
+		while(len > 0){
+			if(count == buffer.length)
+				drain();
+			int r = in.read(buffer, count, (int)Math.min(len, buffer.length - count));
+			if(r == -1)
+				throw new EOFException();
+			count += r;
+			len -= r;
+		}
+	}
+
+	/**
+	 * <p>Writes all buffered data and flushes the stream.</p>
+	 *
+	 * @throws IOException
+	 */
+	public void flush() throws IOException{
+		drain();
+		out.flush();
+	}
+}
@@ -0,0 +1,808 @@
+package com.github.uberroot.ncjbot.protocol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>Carries many independent streams over a single connection. Each stream behaves as a connection of its own and normally
+ * carries a complete binary session, preamble included.</p>
+ *
+ * <p>A multiplexed connection begins with {@link Protocol#MUX_PREAMBLE} and is followed by any number of multiplexer frames,
+ * each consisting of a type byte, a varint stream id, a varint payload length, and the payload. A DATA frame carries stream data,
+ * a WINDOW frame carries a varint number of bytes the receiver is ready to accept, and a CLOSE frame indicates that the sender
+ * will send nothing further on the stream. Streams are opened implicitly by their first frame. The initiator of the connection
+ * uses odd stream ids and the acceptor uses even ones. Ids are assigned as streams send their first frame, so they always
+ * appear in increasing order and are never reused.</p>
+ *
+ * <p>Each stream may have at most {@link #INITIAL_WINDOW} bytes in flight, so a stream whose reader falls behind cannot hold
+ * up the others. Data is sent in chunks of at most {@link #MAX_CHUNK} bytes, and writers take turns on the connection in the
+ * order they arrive, so a large upload is interleaved with small messages on other streams rather than delaying them.</p>
+ *
+ * <p>The incoming side of the connection is read by {@link #run()}, which must be run on a dedicated thread.</p>
+ *
+ * @author Carter Waxman
+ *
+ */
+public final class Multiplexer implements Runnable, Closeable {
+	/**
+	 * <p>The number of bytes that may be in flight on a new stream.</p>
+	 */
+	public static final int INITIAL_WINDOW = 65536;
+	
+	/**
+	 * <p>The largest amount of data sent in a single frame.</p>
+	 */
+	public static final int MAX_CHUNK = 16384;
+	
+	/**
+	 * <p>The frame type carrying stream data.</p>
+	 */
+	private static final int DATA = 0;
+	
+	/**
+	 * <p>The frame type granting the sender more room to send.</p>
+	 */
+	private static final int WINDOW = 1;
+	
+	/**
+	 * <p>The frame type ending a direction of a stream.</p>
+	 */
+	private static final int CLOSE = 2;
+	
+	/**
+	 * <p>A listener for streams opened by the other end of the connection.</p>
+	 *
+	 * @author Carter Waxman
+	 *
+	 */
+	public interface StreamListener{
+		/**
+		 * <p>Called when the other end opens a stream. This is called on the reading thread, so it must not block.</p>
+		 *
+		 * @param mux The multiplexer carrying the stream.
+		 * @param stream The new stream.
+		 */
+		public void streamOpened(Multiplexer mux, Stream stream);
+	}
+	
+	/**
+	 * <p>A single stream carried by the connection.</p>
+	 *
+	 * @author Carter Waxman
+	 *
+	 */
+	public final class Stream implements Closeable{
+		/**
+		 * <p>The id of the stream, or 0 if the stream has not yet sent anything.</p>
+		 */
+		private int id;
+		
+		/**
+		 * <p>The data received that has not been read.</p>
+		 */
+		private final LinkedList<byte[]> inbound;
+		
+		/**
+		 * <p>The position of the next unread byte in the first inbound chunk.</p>
+		 */
+		private int inboundPos;
+		
+		/**
+		 * <p>The number of bytes read since the other end was last granted more room.</p>
+		 */
+		private int consumed;
+		
+		/**
+		 * <p>The number of bytes the other end may still send.</p>
+		 */
+		private int receiveWindow;
+		
+		/**
+		 * <p>The number of bytes this end may still send.</p>
+		 */
+		private int sendWindow;
+		
+		/**
+		 * <p>Whether this end has closed the stream.</p>
+		 */
+		private boolean localClosed;
+		
+		/**
+		 * <p>Whether the other end will send nothing further.</p>
+		 */
+		private boolean remoteClosed;
+		
+		/**
+		 * <p>The maximum time, in milliseconds, a read may block, or 0 to block indefinitely.</p>
+		 */
+		private int readTimeout;
+		
+		/**
+		 * <p>Guards the state of the stream. A lock is used rather than a monitor so that a virtual thread waiting for data
+		 * or for room to send does not pin its carrier thread.</p>
+		 */
+		private final ReentrantLock lock;
+		
+		/**
+		 * <p>Signalled when data arrives, room opens, or the stream or connection closes.</p>
+		 */
+		private final Condition changed;
+		
+		private Stream(int id){
+			this.id = id;
+			inbound = new LinkedList<byte[]>();
+			inboundPos = 0;
+			consumed = 0;
+			receiveWindow = INITIAL_WINDOW;
+			sendWindow = INITIAL_WINDOW;
+			localClosed = false;
+			remoteClosed = false;
+			readTimeout = 0;
+			lock = new ReentrantLock();
+			changed = lock.newCondition();
+		}
+		
+		/**
+		 * <p>Gets the id of the stream.</p>
+		 *
+		 * @return The id of the stream, or 0 if the stream has not yet sent anything.
+		 */
+		public int getId(){
+			return id;
+		}
+		
+		/**
+		 * <p>Sets the maximum time a read may block before failing with a {@link SocketTimeoutException}.</p>
+		 *
+		 * @param millis The timeout in milliseconds, or 0 to block indefinitely.
+		 */
+		public void setReadTimeout(int millis){
+			lock.lock();
+			try{
+				readTimeout = millis;
+			} finally {
+				lock.unlock();
+			}
+		}
+		
+		/**
+		 * <p>Reads data from the stream, blocking until some is available.</p>
+		 *
+		 * @param data The destination array.
+		 * @param off The offset in the array.
+		 * @param len The maximum number of bytes to read.
+		 * @return The number of bytes read, or -1 if the other end closed the stream or the connection.
+		 * @throws IOException
+		 */
+		public int read(byte[] data, int off, int len) throws IOException{
+			if(len == 0)
+				return 0;
+			int n = 0;
+			int grant = 0;
+			lock.lock();
+			try{
+				long deadline = readTimeout > 0 ? System.currentTimeMillis() + readTimeout : 0;
+				while(inbound.isEmpty()){
+					if(localClosed)
+						throw new IOException("The stream is closed");
+					if(remoteClosed || isClosedByPeer())
+						return -1;
+					checkFailure();
+					try {
+						if(deadline == 0)
+							changed.await();
+						else{
+							long left = deadline - System.currentTimeMillis();
+							if(left <= 0)
+								throw new SocketTimeoutException("Read timed out");
+							changed.await(left, TimeUnit.MILLISECONDS);
+						}
+					} catch (InterruptedException e) {
+						throw new IOException("Interrupted while reading", e);
+					}
+				}
+				
+				//Copy as much as is available
+				while(n < len && !inbound.isEmpty()){
+					byte chunk[] = inbound.getFirst();
+					int c = Math.min(len - n, chunk.length - inboundPos);
+					System.arraycopy(chunk, inboundPos, data, off + n, c);
+					n += c;
+					inboundPos += c;
+					if(inboundPos == chunk.length){
+						inbound.removeFirst();
+						inboundPos = 0;
+					}
+				}
+				
+				//Grant more room once half of the window has been read
+				consumed += n;
+				if(consumed >= INITIAL_WINDOW / 2 && !remoteClosed){
+					grant = consumed;
+					receiveWindow += grant;
+					consumed = 0;
+				}
+			} finally {
+				lock.unlock();
+			}
+			if(grant > 0)
+				sendWindowUpdate(this, grant);
+			return n;
+		}
+		
+		/**
+		 * <p>Writes data to the stream, blocking while the other end has no room for it.</p>
+		 *
+		 * @param data The array holding the data.
+		 * @param off The offset of the data in the array.
+		 * @param len The length of the data.
+		 * @throws IOException
+		 */
+		public void write(byte[] data, int off, int len) throws IOException{
+			while(len > 0){
+				int n;
+				lock.lock();
+				try{
+					while(sendWindow == 0 && !localClosed){
+						checkFailure();
+						try {
+							changed.await();
+						} catch (InterruptedException e) {
+							throw new IOException("Interrupted while writing", e);
+						}
+					}
+					if(localClosed)
+						throw new IOException("The stream is closed");
+					n = Math.min(Math.min(len, sendWindow), MAX_CHUNK);
+					sendWindow -= n;
+				} finally {
+					lock.unlock();
+				}
+				writeFrame(DATA, this, data, off, n);
+				off += n;
+				len -= n;
+			}
+		}
+		
+		/**
+		 * <p>Gets a stream that reads from this stream.</p>
+		 *
+		 * @return A stream that reads from this stream.
+		 */
+		public InputStream getInputStream(){
+			return new InputStream(){
+				@Override
+				public int read() throws IOException {
+					byte b[] = new byte[1];
+					return Stream.this.read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+				}
+				
+				@Override
+				public int read(byte[] data, int off, int len) throws IOException {
+					return Stream.this.read(data, off, len);
+				}
+				
+				@Override
+				public int available() {
+					lock.lock();
+					try{
+						int a = -inboundPos;
+						for(byte chunk[] : inbound)
+							a += chunk.length;
+						return Math.max(a, 0);
+					} finally {
+						lock.unlock();
+					}
+				}
+				
+				@Override
+				public void close() {
+					Stream.this.close();
+				}
+			};
+		}
+		
+		/**
+		 * <p>Gets a stream that writes to this stream.</p>
+		 *
+		 * @return A stream that writes to this stream.
+		 */
+		public OutputStream getOutputStream(){
+			return new OutputStream(){
+				@Override
+				public void write(int b) throws IOException {
+					Stream.this.write(new byte[]{(byte)b}, 0, 1);
+				}
+				
+				@Override
+				public void write(byte[] data, int off, int len) throws IOException {
+					Stream.this.write(data, off, len);
+				}
+				
+				@Override
+				public void close() {
+					Stream.this.close();
+				}
+			};
+		}
+		
+		/**
+		 * <p>Closes the stream. Any unread data is discarded and the other end is told that nothing further will be sent.</p>
+		 */
+		@Override
+		public void close(){
+			lock.lock();
+			try{
+				if(localClosed)
+					return;
+				localClosed = true;
+				inbound.clear();
+				changed.signalAll();
+			} finally {
+				lock.unlock();
+			}
+			remove(this);
+			try {
+				writeFrame(CLOSE, this, null, 0, 0);
+			} catch (IOException e) {}
+		}
+		
+		/**
+		 * <p>Accepts data from the other end.</p>
+		 *
+		 * @param data The data received.
+		 * @throws ProtocolException If the other end sent more than it was allowed.
+		 */
+		private void received(byte[] data) throws ProtocolException{
+			lock.lock();
+			try{
+				if(data.length > receiveWindow)
+					throw new ProtocolException("Stream " + id + " exceeded its window");
+				receiveWindow -= data.length;
+				if(localClosed || remoteClosed)
+					return;
+				inbound.add(data);
+				changed.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+		
+		/**
+		 * <p>Grants this end more room to send. The window never grows past {@link #INITIAL_WINDOW}, which is all the other end
+		 * will ever have read but not yet granted.</p>
+		 *
+		 * @param increment The number of additional bytes that may be sent.
+		 */
+		private void windowOpened(int increment){
+			lock.lock();
+			try{
+				sendWindow = (int)Math.min((long)sendWindow + increment, INITIAL_WINDOW);
+				changed.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+		
+		/**
+		 * <p>Records that the other end will send nothing further.</p>
+		 */
+		private void remoteClosed(){
+			lock.lock();
+			try{
+				remoteClosed = true;
+				changed.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+		
+		/**
+		 * <p>Wakes any threads waiting on the stream so that they notice a connection failure.</p>
+		 */
+		private void wake(){
+			lock.lock();
+			try{
+				changed.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+	
+	/**
+	 * <p>The incoming side of the connection.</p>
+	 */
+	private final InputStream in;
+	
+	/**
+	 * <p>The outgoing side of the connection.</p>
+	 */
+	private final OutputStream out;
+	
+	/**
+	 * <p>Closes the underlying connection.</p>
+	 */
+	private final Closeable transport;
+	
+	/**
+	 * <p>Whether this end initiated the connection.</p>
+	 */
+	private final boolean initiator;
+	
+	/**
+	 * <p>The listener for streams opened by the other end, or null if the other end may not open streams.</p>
+	 */
+	private final StreamListener listener;
+	
+	/**
+	 * <p>Grants writers access to the connection one frame at a time, in the order they arrive.</p>
+	 */
+	private final ReentrantLock writeLock;
+	
+	/**
+	 * <p>The open streams, keyed by id.</p>
+	 */
+	private final HashMap<Integer, Stream> streams;
+	
+	/**
+	 * <p>The id to use for the next stream opened by this end.</p>
+	 */
+	private int nextId;
+	
+	/**
+	 * <p>The number of streams opened by this end that have not yet sent anything.</p>
+	 */
+	private int unsent;
+	
+	/**
+	 * <p>The highest stream id opened by the other end.</p>
+	 */
+	private int lastRemoteId;
+	
+	/**
+	 * <p>The time at which the last stream was closed.</p>
+	 */
+	private long idleSince;
+	
+	/**
+	 * <p>The cause of the connection failure, or null if the connection is open.</p>
+	 */
+	private IOException failure;
+	
+	/**
+	 * <p>Whether the other end closed the connection between frames, which ends each stream as if the other end had closed
+	 * it.</p>
+	 */
+	private boolean closedByPeer;
+	
+	/**
+	 * <p>Creates a multiplexer over an open connection. The preamble must already have been exchanged.</p>
+	 *
+	 * @param in The incoming side of the connection.
+	 * @param out The outgoing side of the connection.
+	 * @param transport Closes the underlying connection.
+	 * @param initiator Whether this end initiated the connection.
+	 * @param listener The listener for streams opened by the other end, or null if the other end may not open streams.
+	 */
+	public Multiplexer(InputStream in, OutputStream out, Closeable transport, boolean initiator, StreamListener listener){
+		this.in = new BufferedInputStream(in);
+		this.out = new BufferedOutputStream(out);
+		this.transport = transport;
+		this.initiator = initiator;
+		this.listener = listener;
+		writeLock = new ReentrantLock(true);
+		streams = new HashMap<Integer, Stream>();
+		nextId = initiator ? 1 : 2;
+		unsent = 0;
+		lastRemoteId = 0;
+		idleSince = System.currentTimeMillis();
+		failure = null;
+		closedByPeer = false;
+	}
+	
+	/**
+	 * <p>Opens a new stream. Nothing is sent until data is written to the stream.</p>
+	 *
+	 * @return The new stream.
+	 * @throws IOException If the connection has failed.
+	 */
+	public Stream openStream() throws IOException{
+		synchronized(streams){
+			checkFailure();
+			unsent++;
+			return new Stream(0);
+		}
+	}
+	
+	/**
+	 * <p>Determines whether the connection is still open.</p>
+	 *
+	 * @return False if the connection has failed or been closed.
+	 */
+	public boolean isOpen(){
+		synchronized(streams){
+			return failure == null;
+		}
+	}
+	
+	/**
+	 * <p>Gets the time for which the connection has carried no streams.</p>
+	 *
+	 * @return The idle time in milliseconds, or 0 if streams are open.
+	 */
+	public long getIdleTime(){
+		synchronized(streams){
+			return streams.isEmpty() && unsent == 0 ? System.currentTimeMillis() - idleSince : 0;
+		}
+	}
+	
+	/**
+	 * <p>Reads frames from the connection and dispatches them to their streams until the connection ends.</p>
+	 */
+	@Override
+	public void run(){
+		try {
+			while(true){
+				int type = in.read();
+				if(type == -1)
+					break;
+				int id = readInt();
+				int len = readInt();
+				
+				//Find the stream, opening it if the other end has started a new one
+				Stream s = null;
+				boolean opened = false;
+				synchronized(streams){
+					s = streams.get(id);
+					if(s == null && (id % 2 == 1) != initiator && id > lastRemoteId && listener != null){
+						lastRemoteId = id;
+						s = new Stream(id);
+						streams.put(id, s);
+						opened = true;
+					}
+				}
+				if(opened)
+					listener.streamOpened(this, s);
+				
+				switch(type){
+					case DATA:{
+						//Chunks are never larger than MAX_CHUNK, so a larger length is rejected before it is allocated
+						if(len < 0 || len > MAX_CHUNK)
+							throw new ProtocolException("Chunk of " + len + " bytes exceeds the limit of " + MAX_CHUNK);
+						byte data[] = new byte[len];
+						readFully(data);
+						if(s != null)
+							s.received(data);
+						break;
+					}
+					case WINDOW:{
+						int increment = readInt();
+						if(increment <= 0)
+							throw new ProtocolException("Window increment of " + increment + " on stream " + id);
+						if(s != null)
+							s.windowOpened(increment);
+						break;
+					}
+					case CLOSE:{
+						if(len != 0)
+							throw new ProtocolException("Unexpected payload on CLOSE");
+						if(s != null)
+							s.remoteClosed();
+						break;
+					}
+					default:
+						throw new ProtocolException("Unknown multiplexer frame type: " + type);
+				}
+			}
+			synchronized(streams){
+				if(failure == null)
+					closedByPeer = true;
+			}
+			fail(new EOFException("The multiplexed connection was closed"));
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+	
+	/**
+	 * <p>Closes the connection and all of its streams.</p>
+	 */
+	@Override
+	public void close(){
+		fail(new IOException("The multiplexed connection was closed"));
+	}
+	
+	/**
+	 * <p>Marks the connection as failed, closing it and waking all streams.</p>
+	 *
+	 * @param e The cause of the failure.
+	 */
+	private void fail(IOException e){
+		ArrayList<Stream> open;
+		synchronized(streams){
+			if(failure != null)
+				return;
+			failure = e;
+			open = new ArrayList<Stream>(streams.values());
+		}
+		try {
+			transport.close();
+		} catch (IOException e1) {}
+		for(Stream s : open)
+			s.wake();
+	}
+	
+	/**
+	 * <p>Determines whether the other end closed the connection between frames.</p>
+	 *
+	 * @return True if the other end closed the connection.
+	 */
+	private boolean isClosedByPeer(){
+		synchronized(streams){
+			return closedByPeer;
+		}
+	}
+	
+	/**
+	 * <p>Throws the cause of the connection failure, if any.</p>
+	 *
+	 * @throws IOException If the connection has failed.
+	 */
+	private void checkFailure() throws IOException{
+		synchronized(streams){
+			if(failure != null)
+				throw new IOException("The multiplexed connection failed: " + failure.getMessage(), failure);
+		}
+	}
+	
+	/**
+	 * <p>Removes a closed stream.</p>
+	 *
+	 * @param s The stream.
+	 */
+	private void remove(Stream s){
+		synchronized(streams){
+			if(s.id != 0)
+				streams.remove(s.id);
+			else{
+				//The stream never sent anything, so it never needs an id
+				unsent--;
+				s.id = -1;
+			}
+			if(streams.isEmpty() && unsent == 0)
+				idleSince = System.currentTimeMillis();
+		}
+	}
+	
+	/**
+	 * <p>Grants the other end more room to send on a stream.</p>
+	 *
+	 * @param s The stream.
+	 * @param increment The number of additional bytes that may be sent.
+	 */
+	private void sendWindowUpdate(Stream s, int increment){
+		byte payload[] = new byte[FrameWriter.varintSize(increment)];
+		int p = 0;
+		while((increment & ~0x7F) != 0){
+			payload[p++] = (byte)((increment & 0x7F) | 0x80);
+			increment >>>= 7;
+		}
+		payload[p] = (byte)increment;
+		try {
+			writeFrame(WINDOW, s, payload, 0, payload.length);
+		} catch (IOException e) {
+			//The connection failure will be reported to the stream users
+		}
+	}
+	
+	/**
+	 * <p>Writes a single frame, assigning the stream its id if this is its first frame. The connection is flushed unless another
+	 * writer is waiting to write, in which case that writer will flush it.</p>
+	 *
+	 * @param type The frame type.
+	 * @param s The stream.
+	 * @param data The array holding the payload, or null if there is none.
+	 * @param off The offset of the payload in the array.
+	 * @param len The length of the payload.
+	 * @throws IOException
+	 */
+	private void writeFrame(int type, Stream s, byte[] data, int off, int len) throws IOException{
+		writeLock.lock();
+		try {
+			checkFailure();
+			if(s.id <= 0){
+				//A stream closed before sending anything was never seen by the other end
+				if(type == CLOSE)
+					return;
+				synchronized(streams){
+					if(s.id < 0)
+						throw new IOException("The stream is closed");
+					if(nextId < 0)
+						throw new IOException("Stream ids exhausted");
+					s.id = nextId;
+					nextId += 2;
+					unsent--;
+					streams.put(s.id, s);
+				}
+			}
+			out.write(type);
+			writeVarint(s.id);
+			writeVarint(len);
+			if(len > 0)
+				out.write(data, off, len);
+			if(!writeLock.hasQueuedThreads())
+				out.flush();
+		} catch (IOException e) {
+			fail(e);
+			throw e;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+	
+	/**
+	 * <p>Writes an unsigned varint.</p>
+	 *
+	 * @param value The value to write.
+	 * @throws IOException
+	 */
+	private void writeVarint(int value) throws IOException{
+		while((value & ~0x7F) != 0){
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+	
+	/**
+	 * <p>Reads an unsigned varint that must fit within an int.</p>
+	 *
+	 * @return The value read.
+	 * @throws IOException
+	 */
+	private int readInt() throws IOException{
+		long value = 0;
+		for(int shift = 0; shift < 35; shift += 7){
+			int b = in.read();
+			if(b == -1)
+				throw new EOFException();
+			value |= (long)(b & 0x7F) << shift;
+			if((b & 0x80) == 0){
+				if(value > Integer.MAX_VALUE)
+					throw new ProtocolException("Value out of range: " + value);
+				return (int)value;
+			}
+		}
+		throw new ProtocolException("Malformed varint");
+	}
+	
+	/**
+	 * <p>Fills an array with data from the connection.</p>
+	 *
+	 * @param data The destination array.
+	 * @throws IOException
+	 */
+	private void readFully(byte[] data) throws IOException{
+		int off = 0;
+		while(off < data.length){
+			int r = in.read(data, off, data.length - off);
+			if(r == -1)
+				throw new EOFException();
+			off += r;
+		}
+	}
+}
@@ -0,0 +1,186 @@
+package com.github.uberroot.ncjbot.protocol;
+
+/**
+ * <p>An enumeration of the operations that may be carried by a frame of the binary protocol. Each operation
+ * corresponds to one of the phrases of the original text protocol.</p>
+ *
+ * @author Carter Waxman
+ *
+ */
+public enum Opcode {
+	/**
+	 * <p>Queries the state of the node ("Are you alive?"). Answered with {@link #STATUS}.</p>
+	 */
+	ALIVE(0x01),
+
+	/**
+	 * <p>Reports the state of the node ("I'm not dead yet.", "I'm bleeding out.", "I'm not okay.").
+	 * The payload is a single state byte. This is also sent in place of the normal reply to any request the node will not
+	 * perform because it is not running.</p>
+	 */
+	STATUS(0x02),
+
+	/**
+	 * <p>Requests the list of active nodes ("Who do you know?"). Answered with {@link #NODE_LIST}. Nodes that support
+	 * {@link Capabilities#MEMBERSHIP_DELTAS} may send the varint membership epoch and version of the last list they received
+	 * from the node, or 0 and 0 if they have none, to receive only the changes since then.</p>
+	 */
+	KNOWN_NODES(0x03),
+
+	/**
+	 * <p>Carries a list of nodes. The payload is a varint count followed by an address and a varint port for each node.</p>
+	 *
+	 * <p>In answer to a versioned {@link #KNOWN_NODES}, the count is preceded by the varint membership epoch and version of the
+	 * sender. With {@link Protocol#FLAG_DELTA}, each entry is instead a byte that is 1 if the node was added or 0 if it was
+	 * removed, followed by its address and port. A long list is split over several frames, each carrying the epoch and version,
+	 * all but the last with {@link Protocol#FLAG_MORE} set.</p>
+	 */
+	NODE_LIST(0x04),
+
+	/**
+	 * <p>Announces the presence of the sender ("I'm here."). The payload is the varint listening port of the sender.
+	 * Answered with {@link #PRESENCE_ACK}.</p>
+	 */
+	PRESENCE(0x05),
+
+	/**
+	 * <p>Introduces a third node to the receiver ("I just met"). The payload is an address and a varint port.
+	 * Answered with {@link #PRESENCE_ACK}.</p>
+	 */
+	INTRODUCE(0x06),
+
+	/**
+	 * <p>Acknowledges a {@link #PRESENCE} or {@link #INTRODUCE} ("Got it.", "Hey I know you."). The node
+	 * was previously unknown if {@link Protocol#FLAG_NEW} is set.</p>
+	 */
+	PRESENCE_ACK(0x07),
+
+	/**
+	 * <p>Delivers a job to run ("I have a job for you."). Answered with {@link #JOB_ID}.</p>
+	 */
+	JOB(0x08),
+
+	/**
+	 * <p>Reports the thread id of a started job. The payload is a single varint.</p>
+	 */
+	JOB_ID(0x09),
+
+	/**
+	 * <p>Delivers data to a running job ("I have results."). Answered with {@link #ACK} once the data has been received.</p>
+	 */
+	DATA(0x0A),
+
+	/**
+	 * <p>Ends the session ("Goodbye.").</p>
+	 */
+	GOODBYE(0x0B),
+
+	/**
+	 * <p>Negotiates the protocol version and features for a session. The payload is a varint version followed by a varint
+	 * feature mask (see {@link Capabilities}). A client offers its own values and the server answers with the agreed values.</p>
+	 */
+	HELLO(0x0C),
+
+	/**
+	 * <p>Acknowledges a request that has no other result. The frame has no payload.</p>
+	 */
+	ACK(0x0D),
+	
+	/**
+	 * <p>Opens a stream of data to a running job. The payload is the same as for {@link #DATA}, without the data. Answered
+	 * with {@link #ACK}, with {@link Protocol#FLAG_FAILED} set if the job is not running. The sender then sends the data in
+	 * {@link #STREAM_DATA} frames and ends the stream with {@link #STREAM_END}. No other frames may be sent on the session
+	 * until the stream has ended.</p>
+	 */
+	STREAM(0x0E),
+	
+	/**
+	 * <p>Carries data for the open stream. The data fills the payload. No reply is sent.</p>
+	 */
+	STREAM_DATA(0x0F),
+	
+	/**
+	 * <p>Ends the open stream. The frame has no payload. Answered with {@link #ACK} once all of the data has been received,
+	 * with {@link Protocol#FLAG_FAILED} set if the job stopped reading the stream before its end.</p>
+	 */
+	STREAM_END(0x10),
+	
+	/**
+	 * <p>Delivers several units of data to a running job at once. The payload is the same as for {@link #DATA}, except that
+	 * the data is replaced by a varint count followed by a blob for each unit. The units are delivered in order. Answered with
+	 * {@link #ACK} once all of the data has been delivered.</p>
+	 */
+	DATA_BATCH(0x11),
+	
+	/**
+	 * <p>Calls a running job, expecting a reply. The payload is the same as for {@link #DATA}. Answered with {@link #RESULT}
+	 * once the job has answered. Calls are answered as they complete, so the replies to several calls on a session may arrive
+	 * in any order, and other requests may be answered first.</p>
+	 */
+	CALL(0x12),
+	
+	/**
+	 * <p>Carries the reply of a job to a {@link #CALL}, which fills the payload. If {@link Protocol#FLAG_FAILED} is set, the job
+	 * could not answer and the payload is a UTF-8 description of the failure.</p>
+	 */
+	RESULT(0x13),
+	
+	/**
+	 * <p>Probes a node as part of gossip about the membership of the network. The payload is the varint listening port of the
+	 * sender followed by membership updates: a varint count, then for each update an address, a varint port, a state byte, and
+	 * a varint incarnation. An update about the node writing it carries the unspecified address, which the reader replaces
+	 * with the address of the writer. Answered with {@link #PING_ACK}.</p>
+	 */
+	PING(0x14),
+	
+	/**
+	 * <p>Asks a node to probe another on behalf of the sender, which could not reach it directly. The payload is the varint
+	 * listening port of the sender, the address and varint port of the node to probe, the varint number of milliseconds to
+	 * wait for it, and membership updates as for {@link #PING}. Answered with {@link #PING_ACK} once the node has answered or
+	 * the time has passed, with {@link Protocol#FLAG_FAILED} set if it did not answer.</p>
+	 */
+	PING_REQ(0x15),
+	
+	/**
+	 * <p>Answers a {@link #PING} or {@link #PING_REQ}. The payload is membership updates as for {@link #PING}.</p>
+	 */
+	PING_ACK(0x16);
+
+	/**
+	 * <p>A lookup table from wire codes to opcodes, allowing decoding without searching.</p>
+	 */
+	private static final Opcode[] table = new Opcode[256];
+
+	static{
+		for(Opcode o : values())
+			table[o.code] = o;
+	}
+
+	/**
+	 * <p>The byte used for the opcode on the wire.</p>
+	 */
+	private final int code;
+
+	private Opcode(int code){
+		this.code = code;
+	}
+
+	/**
+	 * <p>Gets the byte used for the opcode on the wire.</p>
+	 *
+	 * @return The byte used for the opcode on the wire.
+	 */
+	public int getCode(){
+		return code;
+	}
+
+	/**
+	 * <p>Finds the opcode for the given wire code.</p>
+	 *
+	 * @param code The wire code (0 - 255).
+	 * @return The matching opcode, or null if the code is not known.
+	 */
+	public static Opcode valueOf(int code){
+		return table[code & 0xFF];
+	}
+}
@@ -0,0 +1,134 @@
+package com.github.uberroot.ncjbot.protocol;
+
+import java.net.ProtocolException;
+
+import com.github.uberroot.ncjbot.NodeState;
+
+/**
+ * <p>Constants shared by both ends of the binary protocol.</p>
+ *
+ * <p>A binary session begins with the {@link #PREAMBLE} byte, which can never begin a text protocol phrase. This allows a server
+ * to accept both protocols on the same port. The preamble is followed by any number of frames, each consisting of a fixed header
+ * (an opcode byte and a flags byte), a varint request id, a varint payload length, and the payload itself. Numbers within payloads
+ * are encoded as unsigned LEB128 varints.</p>
+ *
+ * <p>Every request is answered by exactly one reply carrying the id of the request. A client may write several requests before
+ * reading any replies. The server answers any request with {@link Opcode#STATUS} instead of the normal reply when it is not running,
+ * so a normal reply also confirms that the server is alive.</p>
+ *
+ * <p>A connection beginning with {@link #MUX_PREAMBLE} instead carries many binary sessions at once. See {@link Multiplexer}.</p>
+ *
+ * @author Carter Waxman
+ *
+ */
+public final class Protocol {
+	/**
+	 * <p>The first byte sent by a client on a binary session.</p>
+	 */
+	public static final int PREAMBLE = 0xCB;
+
+	/**
+	 * <p>The first byte sent by a client on a multiplexed connection.</p>
+	 */
+	public static final int MUX_PREAMBLE = 0xCC;
+
+	/**
+	 * <p>Set on {@link Opcode#PRESENCE_ACK} when the announced node was not previously known. The meaning of the low flag bits
+	 * depends on the opcode of the frame.</p>
+	 */
+	public static final int FLAG_NEW = 0x01;
+
+	/**
+	 * <p>Set on {@link Opcode#JOB_ID} when the job could not be started. The frame has no payload in that case. Also set on the
+	 * {@link Opcode#ACK} answering {@link Opcode#STREAM} or {@link Opcode#STREAM_END} when the job did not accept all of
+	 * the stream, on {@link Opcode#RESULT} when the job could not answer a call, and on the {@link Opcode#PING_ACK} answering
+	 * {@link Opcode#PING_REQ} when the probed node did not answer.</p>
+	 */
+	public static final int FLAG_FAILED = 0x01;
+
+	/**
+	 * <p>Set on {@link Opcode#JOB} when the SHA-256 hash of the worker class follows the initialization data. If nothing follows
+	 * the hash, the class was omitted because the receiver is expected to hold it already. Only sent to nodes that support
+	 * {@link Capabilities#CLASS_HASH_DEDUP}.</p>
+	 */
+	public static final int FLAG_CLASS_HASH = 0x02;
+
+	/**
+	 * <p>Set on {@link Opcode#JOB_ID} when the worker class was omitted but the receiver does not hold it. The job was not
+	 * started, and the frame has no payload. The sender should send the job again with the class.</p>
+	 */
+	public static final int FLAG_CLASS_MISSING = 0x02;
+
+	/**
+	 * <p>Set on {@link Opcode#NODE_LIST} when the listed entries are the changes since the membership version given in the
+	 * request rather than the whole list.</p>
+	 */
+	public static final int FLAG_DELTA = 0x02;
+
+	/**
+	 * <p>Set on {@link Opcode#NODE_LIST} when further frames answering the same request follow.</p>
+	 */
+	public static final int FLAG_MORE = 0x04;
+
+	/**
+	 * <p>Set on any frame whose payload is compressed. The payload is then the varint length of the original payload followed by
+	 * the original payload compressed with {@link java.util.zip.Deflater}. Only sent to nodes that support
+	 * {@link Capabilities#COMPRESSION}.</p>
+	 */
+	public static final int FLAG_COMPRESSED = 0x80;
+
+	/**
+	 * <p>The wire value for {@link NodeState#RUNNING}.</p>
+	 */
+	public static final int STATE_RUNNING = 0;
+
+	/**
+	 * <p>The wire value for {@link NodeState#SHUTTING_DOWN}.</p>
+	 */
+	public static final int STATE_SHUTTING_DOWN = 1;
+
+	/**
+	 * <p>The wire value for {@link NodeState#UNKNOWN}.</p>
+	 */
+	public static final int STATE_UNKNOWN = 2;
+
+	private Protocol(){}
+
+	/**
+	 * <p>Converts a node state to its wire value.</p>
+	 *
+	 * @param state The node state.
+	 * @return The wire value for the state.
+	 */
+	public static int encodeState(NodeState state){
+		switch(state){
+			case RUNNING:
+				return STATE_RUNNING;
+			case SHUTTING_DOWN:
+				return STATE_SHUTTING_DOWN;
+			case UNKNOWN:
+			default:
+				return STATE_UNKNOWN;
+		}
+	}
+
+	/**
+	 * <p>Converts a wire value to a node state.</p>
+	 *
+	 * @param state The wire value.
+	 * @return The node state.
+	 * @throws ProtocolException If the value does not represent a state.
+	 */
+	public static NodeState decodeState(int state) throws ProtocolException{
+		switch(state){
+			case STATE_RUNNING:
+				return NodeState.RUNNING;
+			case STATE_SHUTTING_DOWN:
+				return NodeState.SHUTTING_DOWN;
+			case STATE_UNKNOWN:
+				return NodeState.UNKNOWN;
+			default:
+				throw new ProtocolException("Unknown node state: " + state);
+		}
+	}
+}
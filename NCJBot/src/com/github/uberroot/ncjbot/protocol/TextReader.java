@@ -0,0 +1,308 @@
+package com.github.uberroot.ncjbot.protocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * <p>Decodes the text protocol spoken by nodes that predate the binary protocol. The reader buffers the underlying stream and
+ * matches phrases and parses numeric lines in place, so that no Strings or intermediate arrays are created unless a caller
+ * asks for one. A single reader should be kept for the life of a connection.</p>
+ *
+ * <p>A text phrase is not terminated. Each side writes a phrase and waits for the reply, so a phrase is whatever the other
+ * side has sent by the time it is read. The fields that follow some phrases are terminated by newlines, and may be followed
+ * by raw data.</p>
+ *
+ * @author Carter Waxman
+ *
+ */
+public final class TextReader {
+	/**
+	 * <p>The stream being decoded.</p>
+	 */
+	private final InputStream in;
+	
+	/**
+	 * <p>The buffer holding data read from the stream.</p>
+	 */
+	private final byte[] buffer;
+	
+	/**
+	 * <p>The position of the next unread byte in the buffer.</p>
+	 */
+	private int pos;
+	
+	/**
+	 * <p>The number of valid bytes in the buffer.</p>
+	 */
+	private int limit;
+	
+	/**
+	 * <p>The position of the first byte of the current phrase, without leading whitespace.</p>
+	 */
+	private int phraseStart;
+	
+	/**
+	 * <p>The position following the last byte of the current phrase, without trailing whitespace.</p>
+	 */
+	private int phraseEnd;
+	
+	/**
+	 * <p>Creates a reader with an 8 KB buffer.</p>
+	 *
+	 * @param in The stream to decode.
+	 */
+	public TextReader(InputStream in){
+		this(in, 8192);
+	}
+	
+	/**
+	 * <p>Creates a reader with the given buffer size. No line may be longer than the buffer.</p>
+	 *
+	 * @param in The stream to decode.
+	 * @param bufferSize The size of the read buffer.
+	 */
+	public TextReader(InputStream in, int bufferSize){
+		this.in = in;
+		this.buffer = new byte[bufferSize];
+		pos = 0;
+		limit = 0;
+		phraseStart = 0;
+		phraseEnd = 0;
+	}
+	
+	/**
+	 * <p>Encodes text for comparison with phrases or for sending.</p>
+	 *
+	 * @param text The text to encode.
+	 * @return The ASCII bytes of the text.
+	 */
+	public static byte[] encode(String text){
+		return text.getBytes(StandardCharsets.US_ASCII);
+	}
+	
+	/**
+	 * <p>Determines whether a byte is whitespace in the sense of {@link String#trim()}.</p>
+	 *
+	 * @param b The byte.
+	 * @return True if the byte is whitespace.
+	 */
+	private static boolean isSpace(byte b){
+		return (b & 0xFF) <= ' ';
+	}
+	
+	/**
+	 * <p>Reads more data from the stream into the free space at the end of the buffer, first moving any unread data to the start
+	 * of the buffer if there is no free space.</p>
+	 *
+	 * @return False if the end of the stream was reached.
+	 * @throws IOException
+	 */
+	private boolean fill() throws IOException{
+		if(pos == limit){
+			pos = 0;
+			limit = 0;
+		}
+		else if(limit == buffer.length){
+			System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+			limit -= pos;
+			pos = 0;
+		}
+		if(limit == buffer.length)
+			throw new ProtocolException("Line longer than " + buffer.length + " bytes");
+		int r;
+		do{
+			r = in.read(buffer, limit, buffer.length - limit);
+		} while(r == 0);
+		if(r == -1)
+			return false;
+		limit += r;
+		return true;
+	}
+	
+	/**
+	 * <p>Reads the next phrase, which is all data received but not yet read, waiting for data if there is none. Leading and
+	 * trailing whitespace is ignored.</p>
+	 *
+	 * @return False if the stream ended before a phrase.
+	 * @throws IOException
+	 */
+	public boolean readPhrase() throws IOException{
+		if(pos == limit && !fill())
+			return false;
+		int s = pos;
+		int e = limit;
+		while(s < e && isSpace(buffer[s]))
+			s++;
+		while(e > s && isSpace(buffer[e - 1]))
+			e--;
+		phraseStart = s;
+		phraseEnd = e;
+		pos = limit;
+		return true;
+	}
+	
+	/**
+	 * <p>Determines whether the current phrase is the given text.</p>
+	 *
+	 * @param text The encoded text.
+	 * @return True if the phrase matches.
+	 */
+	public boolean phraseIs(byte[] text){
+		return phraseEnd - phraseStart == text.length && phraseStartsWith(text);
+	}
+	
+	/**
+	 * <p>Determines whether the current phrase begins with the given text.</p>
+	 *
+	 * @param text The encoded text.
+	 * @return True if the phrase begins with the text.
+	 */
+	public boolean phraseStartsWith(byte[] text){
+		if(phraseEnd - phraseStart < text.length)
+			return false;
+		for(int i = 0; i < text.length; i++)
+			if(buffer[phraseStart + i] != text[i])
+				return false;
+		return true;
+	}
+	
+	/**
+	 * <p>Parses the end of the current phrase as a number.</p>
+	 *
+	 * @param offset The offset in the phrase at which the number begins.
+	 * @return The number, or -1 if the rest of the phrase is not a number.
+	 */
+	public long phraseNumber(int offset){
+		return parse(phraseStart + offset, phraseEnd);
+	}
+	
+	/**
+	 * <p>Gets the end of the current phrase as a String.</p>
+	 *
+	 * @param offset The offset in the phrase at which the String begins.
+	 * @return The rest of the phrase.
+	 */
+	public String phraseString(int offset){
+		int s = Math.min(phraseStart + offset, phraseEnd);
+		return new String(buffer, s, phraseEnd - s, StandardCharsets.US_ASCII);
+	}
+	
+	/**
+	 * <p>Reads a line, waiting until all of it has been received.</p>
+	 *
+	 * @return The position of the newline ending the line. The line begins at the current position.
+	 * @throws IOException If the stream ended before the newline or the line is longer than the buffer.
+	 */
+	private int line() throws IOException{
+		int scanned = pos;
+		while(true){
+			for(; scanned < limit; scanned++)
+				if(buffer[scanned] == '\n')
+					return scanned;
+			int moved = pos;
+			if(!fill())
+				throw new EOFException("The connection closed within a line");
+			scanned -= moved - pos;
+		}
+	}
+	
+	/**
+	 * <p>Reads a line holding a non-negative number. Leading and trailing whitespace is ignored.</p>
+	 *
+	 * @return The number.
+	 * @throws IOException If the line is not a number.
+	 */
+	public long readNumber() throws IOException{
+		int end = line();
+		long value = parse(pos, end);
+		pos = end + 1;
+		if(value == -1)
+			throw new ProtocolException("Expected a number");
+		return value;
+	}
+	
+	/**
+	 * <p>Reads a line as a String. Leading and trailing whitespace is ignored.</p>
+	 *
+	 * @return The line.
+	 * @throws IOException
+	 */
+	public String readToken() throws IOException{
+		int end = line();
+		int s = pos;
+		int e = end;
+		pos = end + 1;
+		while(s < e && isSpace(buffer[s]))
+			s++;
+		while(e > s && isSpace(buffer[e - 1]))
+			e--;
+		return new String(buffer, s, e - s, StandardCharsets.US_ASCII);
+	}
+	
+	/**
+	 * <p>Reads exactly the given number of bytes.</p>
+	 *
+	 * @param data The array to fill.
+	 * @param off The offset in the array at which to begin.
+	 * @param len The number of bytes to read.
+	 * @throws IOException If the stream ended first.
+	 */
+	public void readFully(byte[] data, int off, int len) throws IOException{
+		int n = Math.min(len, limit - pos);
+		System.arraycopy(buffer, pos, data, off, n);
+		pos += n;
+		for(off += n, len -= n; len > 0;){
+			int r = in.read(data, off, len);
+			if(r == -1)
+				throw new EOFException("The connection closed within the data");
+			off += r;
+			len -= r;
+		}
+	}
+	
+	/**
+	 * <p>Copies exactly the given number of bytes to a stream.</p>
+	 *
+	 * @param out The stream to write.
+	 * @param len The number of bytes to copy.
+	 * @throws IOException If the stream ended first.
+	 */
+	public void transferTo(OutputStream out, long len) throws IOException{
+		while(len > 0){
+			if(pos == limit && !fill())
+				throw new EOFException("The connection closed within the data");
+			int n = (int)Math.min(len, limit - pos);
+			out.write(buffer, pos, n);
+			pos += n;
+			len -= n;
+		}
+	}
+	
+	/**
+	 * <p>Parses a non-negative decimal number in the buffer, ignoring leading and trailing whitespace.</p>
+	 *
+	 * @param s The position at which to begin.
+	 * @param e The position at which to end.
+	 * @return The number, or -1 if the bytes are not a number.
+	 */
+	private long parse(int s, int e){
+		while(s < e && isSpace(buffer[s]))
+			s++;
+		while(e > s && isSpace(buffer[e - 1]))
+			e--;
+		if(s == e || e - s > 18)
+			return -1;
+		long value = 0;
+		for(; s < e; s++){
+			int d = buffer[s] - '0';
+			if(d < 0 || d > 9)
+				return -1;
+			value = value * 10 + d;
+		}
+		return value;
+	}
+}
@@ -0,0 +1,7 @@
+/**
+ * <p>This package contains the classes that encode and decode the binary wire protocol used between nodes.</p>
+ *
+ * @author Carter Waxman
+ *
+ */
+package com.github.uberroot.ncjbot.protocol;
\ No newline at end of file